@@ -0,0 +1,231 @@
+package com.example.ollama;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * {@link LlamaNative#download} against {@link StandInModelServer}: clean download, cut
+ * connections, resuming a .part, a changed ETag, a server without ranges, redirects,
+ * the GGUF and SHA-256 checks, and {@link ModelManager} fetching every shard of a split model.
+ *
+ * The cases that make a download fail wait out the native retry backoff (about 30 s each).
+ */
+@RunWith(AndroidJUnit4.class)
+public class ModelDownloadTest {
+    private static final int FILE_BYTES = 3 * 1024 * 1024;
+
+    private LlamaNative llama;
+    private StandInModelServer server;
+    private byte[] model;
+    private File dir;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        llama = new LlamaNative();
+        model = gguf(FILE_BYTES, 1);
+        server = new StandInModelServer(model);
+        dir = new File(InstrumentationRegistry.getInstrumentation().getTargetContext().getCacheDir(),
+            "download-test");
+        deleteRecursively(dir);
+        assertTrue(dir.mkdirs());
+        file = new File(dir, "model.gguf");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.close();
+        deleteRecursively(dir);
+    }
+
+    @Test
+    public void downloadsWholeFile() throws IOException {
+        assertEquals("ok", download(StandInModelServer.PATH, null));
+        assertArrayEquals(model, readAll(file));
+        assertFalse(new File(file.getPath() + ".part").exists());
+        assertEquals(ModelDigest.of(file), sha256Hex(model));
+    }
+
+    @Test
+    public void resumesAfterCutConnections() throws IOException {
+        server.setCutAfterBytes(200 * 1024);
+        assertEquals("ok", download(StandInModelServer.PATH, null));
+        assertArrayEquals(model, readAll(file));
+        // Probe, then one request per cut, each starting where the previous one stopped
+        List<String> requests = server.requests();
+        assertTrue(requests.toString(), requests.size() > FILE_BYTES / (200 * 1024));
+        assertTrue(requests.toString(), requests.contains((200 * 1024) + "-" + FILE_BYTES));
+    }
+
+    @Test
+    public void resumesPartFromEarlierCall() throws IOException {
+        server.setBudget(FILE_BYTES / 2);
+        assertFalse("ok".equals(download(StandInModelServer.PATH, null)));
+        assertFalse(file.exists());
+        assertTrue(new File(file.getPath() + ".part.state").exists());
+
+        server.setBudget(-1);
+        server.clearRequests();
+        assertEquals("ok", download(StandInModelServer.PATH, null));
+        assertArrayEquals(model, readAll(file));
+        // After the probe, only what is missing is asked for
+        List<String> requests = server.requests();
+        assertEquals(requests.toString(), 2, requests.size());
+        assertTrue(requests.toString(), requests.get(1).matches("[1-9]\\d*-" + FILE_BYTES));
+    }
+
+    @Test
+    public void restartsWhenEtagChanges() throws IOException {
+        server.setBudget(FILE_BYTES / 2);
+        assertFalse("ok".equals(download(StandInModelServer.PATH, null)));
+
+        byte[] newer = gguf(FILE_BYTES, 2);
+        server.setData(newer, "\"v2\"");
+        server.setBudget(-1);
+        assertEquals("ok", download(StandInModelServer.PATH, null));
+        assertArrayEquals(newer, readAll(file));
+    }
+
+    @Test
+    public void downloadsWithoutRangeSupport() throws IOException {
+        server.setRanges(false);
+        assertEquals("ok", download(StandInModelServer.PATH, null));
+        assertArrayEquals(model, readAll(file));
+        for (String request : server.requests()) {
+            assertEquals("full", request);
+        }
+    }
+
+    @Test
+    public void followsRedirects() throws IOException {
+        assertEquals("ok", download(StandInModelServer.REDIRECT_PATH, null));
+        assertArrayEquals(model, readAll(file));
+    }
+
+    @Test
+    public void checksExpectedSha256() throws IOException {
+        assertEquals("ok", download(StandInModelServer.PATH, sha256Hex(model).toUpperCase(Locale.ROOT)));
+        assertTrue(file.delete());
+
+        String result = download(StandInModelServer.PATH, sha256Hex(gguf(FILE_BYTES, 2)));
+        assertTrue(result, result.startsWith("SHA-256 mismatch"));
+        assertFalse(file.exists());
+        assertFalse(new File(file.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void rejectsNonGgufData() {
+        byte[] page = new byte[64 * 1024];
+        Arrays.fill(page, (byte) '<');
+        server.setData(page, "\"page\"");
+        String result = download(StandInModelServer.PATH, null);
+        assertFalse(result, "ok".equals(result));
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void replacesExistingFileOnlyWhenDone() throws IOException {
+        byte[] old = gguf(FILE_BYTES, 3);
+        writeAll(file, old);
+        server.setBudget(FILE_BYTES / 2);
+        assertFalse("ok".equals(download(StandInModelServer.PATH, null)));
+        assertArrayEquals(old, readAll(file));
+
+        server.setBudget(-1);
+        assertEquals("ok", download(StandInModelServer.PATH, null));
+        assertArrayEquals(model, readAll(file));
+    }
+
+    @Test
+    public void downloadsEveryShardOfSplitModel() throws IOException {
+        byte[] second = gguf(FILE_BYTES / 2, 4);
+        server.addFile("/split/model-00001-of-00002.gguf", model);
+        server.addFile("/split/model-00002-of-00002.gguf", second);
+        ConfigurationManager.Configuration config = new ConfigurationManager.Configuration("split-test");
+        config.modelUrl = server.url("/split/model-00001-of-00002.gguf") + "?download=true";
+
+        File first = new File(dir, "model-00001-of-00002.gguf");
+        ModelManager manager = ModelManager.getInstance(
+            InstrumentationRegistry.getInstrumentation().getTargetContext());
+        assertTrue(manager.downloadIfMissing(config, first));
+        assertArrayEquals(model, readAll(first));
+        assertArrayEquals(second, readAll(new File(dir, "model-00002-of-00002.gguf")));
+
+        // Both are on disk and intact, so nothing is fetched again
+        server.clearRequests();
+        assertTrue(manager.downloadIfMissing(config, first));
+        assertEquals(0, server.requests().size());
+    }
+
+    private String download(String path, String sha256) {
+        return llama.download(server.url(path), file.getAbsolutePath(), sha256);
+    }
+
+    // A GGUF header (version 3, no tensors or metadata) followed by random bytes
+    private static byte[] gguf(int size, long seed) {
+        byte[] data = new byte[size];
+        new Random(seed).nextBytes(data);
+        ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN)
+            .put(new byte[] {'G', 'G', 'U', 'F'}).putInt(3).putLong(0).putLong(0);
+        return data;
+    }
+
+    private static String sha256Hex(byte[] data) {
+        try {
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+                hex.append(String.format(Locale.ROOT, "%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static byte[] readAll(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            byte[] data = new byte[(int) raf.length()];
+            raf.readFully(data);
+            return data;
+        }
+    }
+
+    private static void writeAll(File f, byte[] data) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(0);
+            raf.write(data);
+        }
+    }
+
+    private static void deleteRecursively(File f) {
+        File[] children = f.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        f.delete();
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.ollama;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Loopback HTTP server standing in for a model host in download tests. Serves one file
+ * at /model.gguf, and /redirect/model.gguf answers 302 to it; more files (shards of a
+ * split model) can be added at paths of their own. Query strings are ignored. What it
+ * does to clients can be changed between (or during) downloads:
+ *  - byte ranges on or off (off: every GET gets a 200 with the whole file);
+ *  - an ETag, and the file itself;
+ *  - cutting every response off after some body bytes;
+ *  - a budget of body bytes after which every request gets a 503.
+ * One request per connection, each on its own thread.
+ */
+final class StandInModelServer implements Closeable {
+    static final String PATH = "/model.gguf";
+    static final String REDIRECT_PATH = "/redirect/model.gguf";
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    private final ServerSocket socket;
+    private final Thread acceptor;
+
+    private volatile byte[] data;
+    // Files served besides PATH, by path
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private volatile String etag = "\"v1\"";
+    private volatile boolean ranges = true;
+    // Body bytes per response before the connection is dropped; 0 = never
+    private volatile int cutAfterBytes;
+    // Body bytes served in total before everything gets a 503; -1 = no limit
+    private long budget = -1;
+    // "start-end" of each ranged GET, "full" for each 200 GET
+    private final List<String> requests = Collections.synchronizedList(new ArrayList<String>());
+
+    StandInModelServer(byte[] data) throws IOException {
+        this.data = data;
+        socket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::acceptLoop, "StandInModelServer");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    String url(String path) {
+        return "http://127.0.0.1:" + socket.getLocalPort() + path;
+    }
+
+    void setData(byte[] data, String etag) {
+        this.data = data;
+        this.etag = etag;
+    }
+
+    void addFile(String path, byte[] data) {
+        files.put(path, data);
+    }
+
+    void setRanges(boolean ranges) {
+        this.ranges = ranges;
+    }
+
+    void setCutAfterBytes(int cutAfterBytes) {
+        this.cutAfterBytes = cutAfterBytes;
+    }
+
+    synchronized void setBudget(long budget) {
+        this.budget = budget;
+    }
+
+    List<String> requests() {
+        synchronized (requests) {
+            return new ArrayList<>(requests);
+        }
+    }
+
+    void clearRequests() {
+        requests.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    private void acceptLoop() {
+        while (!socket.isClosed()) {
+            try {
+                final Socket client = socket.accept();
+                Thread handler = new Thread(() -> handle(client), "StandInModelServer-client");
+                handler.setDaemon(true);
+                handler.start();
+            } catch (IOException e) {
+                return;
+            }
+        }
+    }
+
+    private void handle(Socket client) {
+        try (Socket s = client) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(),
+                StandardCharsets.ISO_8859_1));
+            String requestLine = in.readLine();
+            if (requestLine == null) {
+                return;
+            }
+            String range = null;
+            String line;
+            while ((line = in.readLine()) != null && !line.isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Range")) {
+                    range = line.substring(colon + 1).trim();
+                }
+            }
+            String[] parts = requestLine.split(" ");
+            String method = parts[0];
+            String path = parts.length > 1 ? parts[1] : "";
+            int query = path.indexOf('?');
+            if (query >= 0) {
+                path = path.substring(0, query);
+            }
+            OutputStream out = s.getOutputStream();
+
+            if (path.equals(REDIRECT_PATH)) {
+                writeHead(out, "302 Found", "Location: " + PATH + "\r\nContent-Length: 0\r\n");
+                return;
+            }
+            byte[] body = path.equals(PATH) ? data : files.get(path);
+            if (body == null) {
+                writeHead(out, "404 Not Found", "Content-Length: 0\r\n");
+                return;
+            }
+            if (!hasBudget()) {
+                writeHead(out, "503 Service Unavailable", "Content-Length: 0\r\n");
+                return;
+            }
+
+            long start = 0;
+            long end = body.length;
+            Matcher m = range != null && ranges ? RANGE.matcher(range) : null;
+            boolean partial = m != null && m.matches();
+            if (partial) {
+                start = Long.parseLong(m.group(1));
+                end = m.group(2).isEmpty() ? body.length : Math.min(body.length, Long.parseLong(m.group(2)) + 1);
+                if (start >= end) {
+                    writeHead(out, "416 Range Not Satisfiable",
+                        "Content-Range: bytes */" + body.length + "\r\nContent-Length: 0\r\n");
+                    return;
+                }
+                writeHead(out, "206 Partial Content", headers(end - start)
+                    + String.format(Locale.ROOT, "Content-Range: bytes %d-%d/%d\r\n", start, end - 1, body.length));
+            } else {
+                writeHead(out, "200 OK", headers(body.length));
+            }
+            if (method.equals("HEAD")) {
+                return;
+            }
+            requests.add(partial ? start + "-" + end : "full");
+
+            int cut = cutAfterBytes;
+            long limit = cut > 0 ? Math.min(end, start + cut) : end;
+            for (long at = start; at < limit; ) {
+                int n = (int) Math.min(64 * 1024, limit - at);
+                n = (int) Math.min(n, take(n));
+                if (n <= 0) {
+                    break;
+                }
+                out.write(body, (int) at, n);
+                at += n;
+            }
+            out.flush();
+            // Returning closes the socket, cutting the body short if it is not all there
+        } catch (IOException e) {
+            // Client went away
+        }
+    }
+
+    private String headers(long contentLength) {
+        return "Content-Length: " + contentLength + "\r\n"
+            + "Content-Type: application/octet-stream\r\n"
+            + (ranges ? "Accept-Ranges: bytes\r\n" : "")
+            + (etag != null ? "ETag: " + etag + "\r\n" : "");
+    }
+
+    private static void writeHead(OutputStream out, String status, String headers) throws IOException {
+        String head = "HTTP/1.1 " + status + "\r\n" + headers + "Connection: close\r\n\r\n";
+        out.write(head.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+
+    private synchronized boolean hasBudget() {
+        return budget != 0;
+    }
+
+    // Up to n bytes of the budget
+    private synchronized long take(long n) {
+        if (budget < 0) {
+            return n;
+        }
+        long granted = Math.min(n, budget);
+        budget -= granted;
+        return granted;
+    }
+}
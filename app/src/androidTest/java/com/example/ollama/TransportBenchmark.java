@@ -0,0 +1,168 @@
+package com.example.ollama;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Compares the local socket with loopback TCP against a running {@link OllamaApiServer}
+ * that has both listeners enabled.
+ *
+ * Two measurements per transport, alternating between them so thermal and load drift
+ * affect both alike:
+ *  - round trip of GET / (no model work: pure transport plus routing), and
+ *  - a streamed /api/generate with a fixed seed and "cache": false: time to the first
+ *    line and the gaps between lines. Generation dominates these, so the difference
+ *    between transports is the per-token overhead worth looking at. Every stream has a
+ *    prompt of its own; an identical one sent while the previous is finishing would be
+ *    coalesced onto it and replayed instead of generated.
+ *
+ * Runs on the calling thread and blocks for the whole run; call it off the main thread.
+ * {@link TransportBenchmarkTest} runs it on a device.
+ */
+public final class TransportBenchmark {
+    private static final int WARMUP_ROUND_TRIPS = 20;
+
+    private TransportBenchmark() {}
+
+    /**
+     * @param socketName local socket name the server listens on
+     * @param port       TCP port of the same server
+     * @param model      configuration name used for /api/generate
+     * @param roundTrips GET / requests per transport
+     * @param streams    streamed generations per transport
+     * @param numPredict tokens per streamed generation
+     * @return a plain-text report
+     */
+    public static String run(String socketName, int port, String model, int roundTrips,
+                             int streams, int numPredict) throws IOException {
+        LocalApiClient local = LocalApiClient.overLocalSocket(socketName);
+        LocalApiClient tcp = LocalApiClient.overTcp("127.0.0.1", port);
+        try {
+            for (int i = 0; i < WARMUP_ROUND_TRIPS; i++) {
+                local.get("/");
+                tcp.get("/");
+            }
+            long[] localRtt = new long[roundTrips];
+            long[] tcpRtt = new long[roundTrips];
+            for (int i = 0; i < roundTrips; i++) {
+                localRtt[i] = roundTrip(local);
+                tcpRtt[i] = roundTrip(tcp);
+            }
+
+            StreamTimes localStream = new StreamTimes(streams * numPredict);
+            StreamTimes tcpStream = new StreamTimes(streams * numPredict);
+            for (int i = 0; i < streams; i++) {
+                localStream.measure(local, generateBody(model, numPredict, "local " + i));
+                tcpStream.measure(tcp, generateBody(model, numPredict, "tcp " + i));
+            }
+
+            StringBuilder report = new StringBuilder();
+            report.append("GET / round trip (us), n=").append(roundTrips).append('\n');
+            appendRow(report, "  local", localRtt, roundTrips);
+            appendRow(report, "  tcp  ", tcpRtt, roundTrips);
+            report.append("Streamed /api/generate, ").append(streams).append(" x ")
+                .append(numPredict).append(" tokens\n");
+            report.append(" time to first line (us)\n");
+            appendRow(report, "  local", localStream.firstLine, localStream.streams);
+            appendRow(report, "  tcp  ", tcpStream.firstLine, tcpStream.streams);
+            report.append(" gap between lines (us)\n");
+            appendRow(report, "  local", localStream.gaps, localStream.gapCount);
+            appendRow(report, "  tcp  ", tcpStream.gaps, tcpStream.gapCount);
+            return report.toString();
+        } finally {
+            local.close();
+            tcp.close();
+        }
+    }
+
+    private static long roundTrip(LocalApiClient client) throws IOException {
+        long start = System.nanoTime();
+        LocalApiClient.Response response = client.get("/");
+        long elapsed = System.nanoTime() - start;
+        if (response.statusCode != 200) {
+            throw new IOException("GET / returned " + response.statusCode);
+        }
+        return elapsed;
+    }
+
+    private static String generateBody(String model, int numPredict, String run) {
+        try {
+            return new JSONObject()
+                .put("model", model)
+                .put("prompt", "Count from one to one hundred in words. (" + run + ")")
+                .put("stream", true)
+                .put("cache", false)
+                .put("options", new JSONObject().put("seed", 42).put("num_predict", numPredict))
+                .toString();
+        } catch (JSONException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Arrival times of streamed lines, in nanoseconds
+    private static final class StreamTimes {
+        long[] firstLine = new long[4];
+        long[] gaps;
+        int streams = 0;
+        int gapCount = 0;
+        private long start;
+        private long last;
+
+        StreamTimes(int expectedGaps) {
+            gaps = new long[Math.max(16, expectedGaps)];
+        }
+
+        void measure(LocalApiClient client, String body) throws IOException {
+            start = System.nanoTime();
+            last = 0;
+            LocalApiClient.Response response = client.postStreaming("/api/generate", body, line -> {
+                long now = System.nanoTime();
+                if (last == 0) {
+                    addFirstLine(now - start);
+                } else {
+                    addGap(now - last);
+                }
+                last = now;
+            });
+            if (response.statusCode != 200) {
+                throw new IOException("/api/generate returned " + response.statusCode);
+            }
+        }
+
+        private void addFirstLine(long nanos) {
+            if (streams == firstLine.length) {
+                firstLine = Arrays.copyOf(firstLine, streams * 2);
+            }
+            firstLine[streams++] = nanos;
+        }
+
+        private void addGap(long nanos) {
+            if (gapCount == gaps.length) {
+                gaps = Arrays.copyOf(gaps, gapCount * 2);
+            }
+            gaps[gapCount++] = nanos;
+        }
+    }
+
+    private static void appendRow(StringBuilder report, String label, long[] nanos, int count) {
+        report.append(label);
+        if (count == 0) {
+            report.append("  no samples\n");
+            return;
+        }
+        long[] sorted = Arrays.copyOf(nanos, count);
+        Arrays.sort(sorted);
+        report.append(String.format(Locale.ROOT, "  p50 %8.1f  p95 %8.1f  p99 %8.1f  max %8.1f\n",
+            percentile(sorted, 50) / 1000.0, percentile(sorted, 95) / 1000.0,
+            percentile(sorted, 99) / 1000.0, sorted[count - 1] / 1000.0));
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        int index = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
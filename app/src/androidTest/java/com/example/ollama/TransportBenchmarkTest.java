@@ -0,0 +1,66 @@
+package com.example.ollama;
+
+import android.app.Instrumentation;
+import android.content.Context;
+import android.os.Bundle;
+import android.util.Log;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Runs {@link TransportBenchmark} against a server started in the app's process, with
+ * both listeners on ports of its own so it does not clash with the service. Needs a
+ * configuration whose model is on the device:
+ *
+ * <pre>
+ * adb shell am instrument -w -e class com.example.ollama.TransportBenchmarkTest \
+ *     -e model NAME [-e roundTrips 500] [-e streams 5] [-e numPredict 64] \
+ *     com.example.ollama.test/androidx.test.runner.AndroidJUnitRunner
+ * </pre>
+ *
+ * Skipped without "model". The report goes to the instrumentation output and logcat.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TransportBenchmarkTest {
+    private static final String TAG = "TransportBenchmark";
+    private static final String SOCKET_NAME = "com.example.ollama.benchmark";
+    private static final int PORT = 11435;
+
+    @Test
+    public void compareLocalSocketWithTcp() throws IOException {
+        Bundle args = InstrumentationRegistry.getArguments();
+        String model = args.getString("model");
+        assumeTrue("pass -e model <configuration name>", model != null);
+
+        Instrumentation instrumentation = InstrumentationRegistry.getInstrumentation();
+        Context context = instrumentation.getTargetContext();
+        OllamaApiServer server = new OllamaApiServer(context, ModelManager.getInstance(context));
+        server.setPort(PORT);
+        server.setLocalSocketName(SOCKET_NAME);
+        server.start();
+        try {
+            String report = TransportBenchmark.run(SOCKET_NAME, PORT, model,
+                intArg(args, "roundTrips", 500), intArg(args, "streams", 5),
+                intArg(args, "numPredict", 64));
+            Log.i(TAG, report);
+            Bundle status = new Bundle();
+            status.putString(Instrumentation.REPORT_KEY_STREAMRESULT, report);
+            instrumentation.sendStatus(0, status);
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static int intArg(Bundle args, String key, int defaultValue) {
+        String value = args.getString(key);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+}
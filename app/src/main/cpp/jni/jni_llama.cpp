@@ -2,6 +2,7 @@
 #include <string>
 #include <vector>
 #include <mutex>
+#include <shared_mutex>
 #include <fstream>
 #include <chrono>
 #include <ctime>
@@ -10,6 +11,16 @@
 #include <cerrno>
 #include <cstring>
 #include <cctype>
+#include <cstdio>
+#include <cstdlib>
+#include <algorithm>
+#include <atomic>
+#include <functional>
+#include <thread>
+#include <cstdint>
+#include <fcntl.h>
+#include <sys/stat.h>
+#include <unistd.h>
 
 #include <android/log.h>
 #define LOG_TAG "LLAMA_JNI"
@@ -21,9 +32,13 @@
 #include "ggml-backend-impl.h"   // ★ これが必要
 #include "ggml-cpu.h"
 #include <curl/curl.h>
+#include <mbedtls/sha256.h>
 
 // ---------------- グローバル ----------------
 static std::mutex g_mutex;
+// Guards g_model lifetime for vocab-only calls (tokenize/detokenize) so they can run
+// while generate() holds g_mutex. init/free take it exclusively.
+static std::shared_mutex g_model_mutex;
 static llama_model   *g_model = nullptr;
 static llama_context *g_ctx   = nullptr;
 static JavaVM *g_jvm = nullptr;
@@ -39,6 +54,11 @@ static std::ofstream g_log_ofs;
 static int   g_n_ctx      = 2048;
 static int   g_n_threads  = 2;
 static int   g_n_batch    = 16;
+// Most prompts generateBatchUtf8() decodes side by side. The normal context holds a single
+// sequence: more would size the SWA cache per sequence and change rope scaling (which goes by
+// n_ctx / n_seq_max) for generate() too. generateBatchUtf8() swaps in a context with more
+// sequences only while it runs; see new_context().
+static const int BATCH_MAX_SEQUENCES = 4;
 static float g_temp       = 0.7f;
 static float g_top_p      = 0.9f;
 static int   g_top_k      = 40;
@@ -73,6 +93,17 @@ static int   g_dry_allowed_length   = 2;
 static int   g_dry_penalty_last_n   = -1;
 static std::string g_dry_sequence_breakers = DEFAULT_DRY_SEQUENCE_BREAKERS;
 
+// generate() error codes - MUST match Java GenerateResult.ERROR_*
+enum {
+    GEN_ERR_NONE              = 0,
+    GEN_ERR_NOT_INITIALIZED   = 1,
+    GEN_ERR_TOKENIZE          = 2,
+    GEN_ERR_CONTEXT_EXCEEDED  = 3,
+    GEN_ERR_DECODE_PROMPT     = 4,
+    GEN_ERR_DECODE_GENERATION = 5,
+    GEN_ERR_INVALID_ARGUMENT  = 7,
+};
+
 // ---------------- ログユーティリティ ----------------
 static std::string current_time_str() {
     using namespace std::chrono;
@@ -96,6 +127,34 @@ static void log_to_file(const std::string& msg) {
     g_log_ofs.flush();
 }
 
+// Java コールバックが投げた例外をログに残してクリアする。例外があれば true
+static bool clear_callback_exception(JNIEnv* env, const char* where) {
+    if (!env->ExceptionCheck()) return false;
+    jthrowable thrown = env->ExceptionOccurred();
+    env->ExceptionClear();
+    std::string desc = "(unknown)";
+    if (thrown) {
+        jclass cls = env->GetObjectClass(thrown);
+        jmethodID to_string = env->GetMethodID(cls, "toString", "()Ljava/lang/String;");
+        jstring jdesc = to_string ? (jstring)env->CallObjectMethod(thrown, to_string) : nullptr;
+        if (env->ExceptionCheck()) {
+            env->ExceptionClear();
+        } else if (jdesc) {
+            const char* chars = env->GetStringUTFChars(jdesc, nullptr);
+            if (chars) {
+                desc = chars;
+                env->ReleaseStringUTFChars(jdesc, chars);
+            }
+        }
+        if (jdesc) env->DeleteLocalRef(jdesc);
+        env->DeleteLocalRef(cls);
+        env->DeleteLocalRef(thrown);
+    }
+    LOGE("%s: callback threw %s", where, desc.c_str());
+    log_to_file(std::string(where) + ": callback threw " + desc);
+    return true;
+}
+
 // ---------------- llama.cpp ログコールバック ----------------
 // 0.17.1 は llama_log_level ではなく ggml_log_level を使う
 // Filter out DEBUG level logs to reduce noise (e.g., "Not marked as EOG" messages)
@@ -134,6 +193,67 @@ static void throw_java_exception(JNIEnv *env, const char *msg) {
     if (exClass) env->ThrowNew(exClass, msg);
 }
 
+static int64_t elapsed_ns(std::chrono::high_resolution_clock::time_point t0,
+                          std::chrono::high_resolution_clock::time_point t1) {
+    return std::chrono::duration_cast<std::chrono::nanoseconds>(t1 - t0).count();
+}
+
+// Build a com.example.ollama.GenerateResult
+// The text itself is not copied here: generateUtf8() writes it into the caller's direct
+// ByteBuffer and only the byte length is reported (Java decodes it as real UTF-8).
+static jobject make_generate_result(
+        JNIEnv *env,
+        int output_length,
+        int prompt_eval_count, int eval_count,
+        int64_t prompt_eval_ns, int64_t eval_ns,
+        const char *done_reason,
+        int error_code, const char *error_msg) {
+    jclass cls = env->FindClass("com/example/ollama/GenerateResult");
+    if (!cls) return nullptr;
+    jmethodID ctor = env->GetMethodID(cls, "<init>",
+            "(IIIJJLjava/lang/String;ILjava/lang/String;)V");
+    if (!ctor) return nullptr;
+
+    jstring jreason = env->NewStringUTF(done_reason ? done_reason : "");
+    jstring jerror  = error_msg ? env->NewStringUTF(error_msg) : nullptr;
+
+    jobject result = env->NewObject(cls, ctor,
+            (jint)output_length, (jint)prompt_eval_count, (jint)eval_count,
+            (jlong)prompt_eval_ns, (jlong)eval_ns,
+            jreason, (jint)error_code, jerror);
+
+    env->DeleteLocalRef(jreason);
+    if (jerror) env->DeleteLocalRef(jerror);
+    env->DeleteLocalRef(cls);
+    return result;
+}
+
+static jobject make_generate_error(JNIEnv *env, int error_code, const char *error_msg,
+                                   int prompt_eval_count = 0) {
+    return make_generate_result(env, 0, prompt_eval_count, 0, 0, 0, "error", error_code, error_msg);
+}
+
+// Length of the longest prefix of s[0, len) that does not end in a truncated UTF-8 sequence.
+// A token can end in the middle of a multi-byte character; those bytes are held back until
+// the next token completes the character.
+static int32_t utf8_complete_prefix(const char *s, int32_t len) {
+    int32_t i = len;
+    int32_t continuation = 0;
+    while (i > 0 && continuation < 4) {
+        const unsigned char c = static_cast<unsigned char>(s[i - 1]);
+        if ((c & 0xC0) != 0x80) {
+            int need = 1;
+            if      ((c & 0xE0) == 0xC0) need = 2;
+            else if ((c & 0xF0) == 0xE0) need = 3;
+            else if ((c & 0xF8) == 0xF0) need = 4;
+            return (continuation + 1 >= need) ? len : i - 1;
+        }
+        --i;
+        ++continuation;
+    }
+    return len;
+}
+
 // Helper function to process escape sequences in a string
 // Converts user-friendly escape sequences like "\n" (backslash+n) to actual characters (newline)
 static std::string process_escape_sequences(const std::string& input) {
@@ -156,56 +276,596 @@ static std::string process_escape_sequences(const std::string& input) {
 }
 
 // ---------------- download() 用 ----------------
-static size_t write_data(void* ptr, size_t size, size_t nmemb, void* userdata) {
-    std::ofstream* ofs = reinterpret_cast<std::ofstream*>(userdata);
-    ofs->write(reinterpret_cast<const char*>(ptr), size * nmemb);
-    return size * nmemb;
-}
+// Downloads go to <path>.part and are renamed to <path> only when complete, so an
+// existing <path> is always a whole file. When the server takes byte ranges and tells
+// the size, the file is fetched in up to DOWNLOAD_MAX_SEGMENTS parallel ranges and their
+// progress is saved to <path>.part.state; a later call (after a dropped connection or
+// an app restart) continues from there if the server still has the same file.
+//
+// The GGUF header is checked as soon as its first bytes arrive, and the file is hashed
+// (SHA-256) while it downloads. The digest is compared with the expected one (given, or
+// the server's ETag when that is a SHA-256) before the rename, and written to
+// <path>.sha256 as "<hex> <size> <mtime seconds>" so later checks need not re-hash.
+static const int        DOWNLOAD_MAX_SEGMENTS   = 4;
+static const curl_off_t DOWNLOAD_MIN_SEGMENT    = 64LL * 1024 * 1024;
+// Attempts per segment without progress before the download fails
+static const int        DOWNLOAD_MAX_ATTEMPTS   = 5;
+static const int        DOWNLOAD_SAVE_INTERVAL_MS = 2000;
+// Most bytes hashed per progress tick, so progress keeps flowing while catching up
+static const curl_off_t DOWNLOAD_HASH_PER_TICK  = 64LL * 1024 * 1024;
+static const char*      DOWNLOAD_STATE_MAGIC    = "ggufdl 1";
+static const char*      DOWNLOAD_USER_AGENT =
+    "Mozilla/5.0 (Linux; Android 14; Mobile) "
+    "AppleWebKit/537.36 (KHTML, like Gecko) "
+    "Chrome/120.0.0.0 Mobile Safari/537.36";
+// Magic, version, tensor count, metadata count
+static const size_t     GGUF_HEADER_BYTES       = 24;
+
+static std::once_flag g_curl_init_once;
+
+struct DownloadSegment {
+    curl_off_t start = 0;
+    // Exclusive; -1 while the size is unknown (single stream)
+    curl_off_t end = 0;
+    std::atomic<curl_off_t> done{0};
+};
 
-struct ProgressData {
-    jobject thiz_global;
-    jmethodID onProgressMethod;
-    int last_percent;
+struct RemoteFile {
+    curl_off_t length = -1;
+    bool ranges = false;
+    // ETag (x-linked-etag on Hugging Face redirects); tells whether a .part is still current
+    std::string validator;
 };
 
-static int xferinfo(void* p, curl_off_t dltotal, curl_off_t dlnow, curl_off_t, curl_off_t) {
-    ProgressData* pd = reinterpret_cast<ProgressData*>(p);
-    if (!pd) return 0;
-    if (dltotal <= 0) return 0;
+// Shared by the segment threads of one download
+struct DownloadJob {
+    std::string url;
+    int fd = -1;
+    bool ranged = false;
+    // Set on a failure no retry can fix (not a GGUF file); stops every segment
+    std::atomic<bool> fatal{false};
+    std::mutex error_mutex;
+    std::string error;
+
+    void fail(const std::string& message, bool is_fatal) {
+        std::lock_guard<std::mutex> lock(error_mutex);
+        if (error.empty()) error = message;
+        if (is_fatal) fatal = true;
+    }
+};
+
+static void setup_download_handle(CURL* curl, const std::string& url) {
+    curl_easy_setopt(curl, CURLOPT_URL, url.c_str());
+    curl_easy_setopt(curl, CURLOPT_FOLLOWLOCATION, 1L);
+    curl_easy_setopt(curl, CURLOPT_NOSIGNAL, 1L);
+    curl_easy_setopt(curl, CURLOPT_CONNECTTIMEOUT, 30L);
+    // A stalled connection is dropped and its segment retried
+    curl_easy_setopt(curl, CURLOPT_LOW_SPEED_LIMIT, 1024L);
+    curl_easy_setopt(curl, CURLOPT_LOW_SPEED_TIME, 60L);
+    curl_easy_setopt(curl, CURLOPT_USERAGENT, DOWNLOAD_USER_AGENT);
+    // Disable SSL verification for specific hosts (huggingface.co and github.com)
+    if (url.rfind("https://huggingface.co/", 0) == 0 || url.rfind("https://github.com/", 0) == 0) {
+        curl_easy_setopt(curl, CURLOPT_SSL_VERIFYPEER, 0L);
+        curl_easy_setopt(curl, CURLOPT_SSL_VERIFYHOST, 0L);
+    }
+}
+
+// Lower-cased header name and trimmed value, or false for the status line / blank line
+static bool split_header(const char* data, size_t len, std::string& name, std::string& value) {
+    std::string line(data, len);
+    size_t colon = line.find(':');
+    if (colon == std::string::npos) return false;
+    name = line.substr(0, colon);
+    for (char& c : name) c = (char)std::tolower((unsigned char)c);
+    size_t b = colon + 1;
+    size_t e = line.size();
+    while (b < e && std::isspace((unsigned char)line[b])) b++;
+    while (e > b && std::isspace((unsigned char)line[e - 1])) e--;
+    value = line.substr(b, e - b);
+    return true;
+}
+
+static size_t probe_header(char* data, size_t size, size_t nmemb, void* userdata) {
+    RemoteFile* remote = reinterpret_cast<RemoteFile*>(userdata);
+    size_t len = size * nmemb;
+    std::string name, value;
+    if (len >= 5 && std::strncmp(data, "HTTP/", 5) == 0) {
+        // Next response in a redirect chain; a redirect's x-linked-etag is kept
+        remote->length = -1;
+        remote->ranges = false;
+    } else if (split_header(data, len, name, value)) {
+        if (name == "content-range") {
+            // bytes 0-0/<total>
+            size_t slash = value.rfind('/');
+            if (slash != std::string::npos && value.compare(slash + 1, std::string::npos, "*") != 0) {
+                remote->length = std::strtoll(value.c_str() + slash + 1, nullptr, 10);
+                remote->ranges = remote->length > 0;
+            }
+        } else if (name == "content-length" && !remote->ranges) {
+            remote->length = std::strtoll(value.c_str(), nullptr, 10);
+        } else if (name == "x-linked-etag") {
+            remote->validator = value;
+        } else if (name == "etag" && remote->validator.empty()) {
+            remote->validator = value;
+        }
+    }
+    return len;
+}
+
+static size_t probe_body(void*, size_t size, size_t nmemb, void*) {
+    // Only the headers are wanted; a server that ignored the range is cut off here
+    return size * nmemb <= 1 ? size * nmemb : 0;
+}
+
+// Size, range support and validator of url, from a one-byte range request
+static bool probe_remote(const std::string& url, RemoteFile& remote, std::string& error) {
+    CURL* curl = curl_easy_init();
+    if (!curl) {
+        error = "curl init failed";
+        return false;
+    }
+    setup_download_handle(curl, url);
+    curl_easy_setopt(curl, CURLOPT_RANGE, "0-0");
+    curl_easy_setopt(curl, CURLOPT_HEADERFUNCTION, probe_header);
+    curl_easy_setopt(curl, CURLOPT_HEADERDATA, &remote);
+    curl_easy_setopt(curl, CURLOPT_WRITEFUNCTION, probe_body);
+    CURLcode res = curl_easy_perform(curl);
+    long status = 0;
+    curl_easy_getinfo(curl, CURLINFO_RESPONSE_CODE, &status);
+    curl_easy_cleanup(curl);
+    if (res != CURLE_OK && res != CURLE_WRITE_ERROR) {
+        error = std::string("curl download failed: ") + curl_easy_strerror(res);
+        return false;
+    }
+    if (status != 200 && status != 206) {
+        error = "HTTP " + std::to_string(status);
+        return false;
+    }
+    if (status == 200) {
+        remote.ranges = false;
+    }
+    return true;
+}
 
-    int percent = (int)((dlnow * 100) / dltotal);
-    if (percent == pd->last_percent) return 0;
-    pd->last_percent = percent;
+// Lower-case hex SHA-256 in an ETag ("<hex>", W/"<hex>"), or "" if it is something else
+static std::string etag_sha256(const std::string& etag) {
+    std::string v = etag;
+    if (v.rfind("W/", 0) == 0) v = v.substr(2);
+    if (v.size() >= 2 && v.front() == '"' && v.back() == '"') v = v.substr(1, v.size() - 2);
+    if (v.size() != 64) return "";
+    for (char& c : v) {
+        if (!std::isxdigit((unsigned char)c)) return "";
+        c = (char)std::tolower((unsigned char)c);
+    }
+    return v;
+}
+
+static uint64_t read_le(const unsigned char* p, int bytes) {
+    uint64_t v = 0;
+    for (int i = bytes - 1; i >= 0; i--) v = (v << 8) | p[i];
+    return v;
+}
+
+// The fixed part of a GGUF header: magic, a version llama.cpp reads, sane counts
+static bool check_gguf_header(const unsigned char* h, std::string& error) {
+    if (std::memcmp(h, "GGUF", 4) != 0) {
+        error = "not a GGUF file";
+        return false;
+    }
+    uint64_t version = read_le(h + 4, 4);
+    if (version < 2 || version > 3) {
+        error = "unsupported GGUF version " + std::to_string(version);
+        return false;
+    }
+    if (read_le(h + 8, 8) > (1u << 24) || read_le(h + 16, 8) > (1u << 20)) {
+        error = "corrupt GGUF header";
+        return false;
+    }
+    return true;
+}
+
+static bool load_download_state(const std::string& state_path, const std::string& url,
+                                const RemoteFile& remote, std::vector<DownloadSegment>& segments) {
+    std::ifstream in(state_path);
+    std::string magic, saved_url, saved_validator;
+    curl_off_t saved_length = -1;
+    size_t count = 0;
+    if (!std::getline(in, magic) || magic != DOWNLOAD_STATE_MAGIC) return false;
+    if (!std::getline(in, saved_url) || saved_url != url) return false;
+    if (!(in >> saved_length) || saved_length != remote.length) return false;
+    in >> std::ws;
+    if (!std::getline(in, saved_validator)) return false;
+    if (saved_validator != "-" && !remote.validator.empty() && saved_validator != remote.validator) return false;
+    if (!(in >> count) || count == 0 || count > (size_t)DOWNLOAD_MAX_SEGMENTS) return false;
+    std::vector<DownloadSegment> loaded(count);
+    curl_off_t expected_start = 0;
+    for (DownloadSegment& seg : loaded) {
+        curl_off_t start, end, done;
+        if (!(in >> start >> end >> done)) return false;
+        if (start != expected_start || end <= start || done < 0 || done > end - start) return false;
+        seg.start = start;
+        seg.end = end;
+        seg.done = done;
+        expected_start = end;
+    }
+    if (expected_start != remote.length) return false;
+    segments.swap(loaded);
+    return true;
+}
+
+// Bytes done per segment, taken before the .part is synced: the segment threads keep
+// writing, so counts read after the sync could include data that is not on disk yet
+static std::vector<curl_off_t> snapshot_done(const std::vector<DownloadSegment>& segments) {
+    std::vector<curl_off_t> done;
+    done.reserve(segments.size());
+    for (const DownloadSegment& seg : segments) done.push_back(seg.done.load());
+    return done;
+}
+
+// done: snapshot_done() from before the .part was last synced
+static bool save_download_state(const std::string& state_path, const std::string& url,
+                                const RemoteFile& remote, const std::vector<DownloadSegment>& segments,
+                                const std::vector<curl_off_t>& done) {
+    std::string tmp = state_path + ".tmp";
+    {
+        std::ofstream out(tmp, std::ios::trunc);
+        out << DOWNLOAD_STATE_MAGIC << "\n" << url << "\n" << remote.length << "\n"
+            << (remote.validator.empty() ? "-" : remote.validator) << "\n" << segments.size() << "\n";
+        for (size_t i = 0; i < segments.size(); i++) {
+            out << segments[i].start << " " << segments[i].end << " " << done[i] << "\n";
+        }
+        out.flush();
+        if (!out) return false;
+    }
+    return std::rename(tmp.c_str(), state_path.c_str()) == 0;
+}
 
-    if (!g_jvm) return 0;
+struct SegmentWriter {
+    CURL* curl;
+    DownloadJob* job;
+    DownloadSegment* seg;
+    bool checked;
+    bool failed;
+    // Start of the file, for the GGUF check (segment at offset 0 only)
+    unsigned char header[GGUF_HEADER_BYTES];
+};
 
-    JNIEnv* env = nullptr;
-    bool attached = false;
-    if (g_jvm->GetEnv(reinterpret_cast<void**>(&env), JNI_VERSION_1_6) != JNI_OK) {
-        if (g_jvm->AttachCurrentThread(&env, nullptr) != JNI_OK) {
+static size_t write_segment(void* ptr, size_t size, size_t nmemb, void* userdata) {
+    SegmentWriter* w = reinterpret_cast<SegmentWriter*>(userdata);
+    DownloadJob* job = w->job;
+    size_t len = size * nmemb;
+    if (job->fatal.load()) {
+        w->failed = true;
+        return 0;
+    }
+    if (!w->checked) {
+        // A 200 to a range request would write the file's head at the segment's offset
+        long status = 0;
+        curl_easy_getinfo(w->curl, CURLINFO_RESPONSE_CODE, &status);
+        if (status != (job->ranged ? 206 : 200)) {
+            w->failed = true;
+            return 0;
+        }
+        w->checked = true;
+    }
+    DownloadSegment* seg = w->seg;
+    curl_off_t at = seg->start + seg->done.load();
+    if (seg->end >= 0 && at + (curl_off_t)len > seg->end) {
+        w->failed = true;
+        return 0;
+    }
+    const unsigned char* p = reinterpret_cast<const unsigned char*>(ptr);
+    if (at < (curl_off_t)GGUF_HEADER_BYTES) {
+        size_t n = std::min(len, GGUF_HEADER_BYTES - (size_t)at);
+        std::memcpy(w->header + at, p, n);
+        std::string error;
+        if (at + (curl_off_t)n == (curl_off_t)GGUF_HEADER_BYTES && !check_gguf_header(w->header, error)) {
+            job->fail(error, true);
+            w->failed = true;
+            return 0;
+        }
+    }
+    size_t left = len;
+    while (left > 0) {
+        ssize_t n = pwrite(job->fd, p, left, (off_t)at);
+        if (n < 0) {
+            if (errno == EINTR) continue;
+            w->failed = true;
             return 0;
         }
-        attached = true;
+        p += n;
+        at += n;
+        left -= (size_t)n;
+    }
+    seg->done += (curl_off_t)len;
+    return len;
+}
+
+// Fetch the rest of one segment, retrying with backoff while attempts make progress
+static bool fetch_segment(DownloadJob& job, DownloadSegment& seg) {
+    int attempts = 0;
+    while (true) {
+        curl_off_t before = seg.done.load();
+        if (seg.end >= 0 && seg.start + before >= seg.end) return true;
+
+        SegmentWriter w{nullptr, &job, &seg, false, false, {}};
+        if (seg.start == 0 && before > 0 && before < (curl_off_t)GGUF_HEADER_BYTES) {
+            // Resumed inside the header: the check needs the bytes already on disk
+            if (pread(job.fd, w.header, (size_t)before, 0) != (ssize_t)before) {
+                // Not all there after all: fetch the segment again from its start
+                log_to_file("download: could not reread the header, restarting its segment");
+                seg.done = 0;
+                before = 0;
+            }
+        }
+
+        CURL* curl = curl_easy_init();
+        if (!curl) {
+            job.fail("curl init failed", false);
+            return false;
+        }
+        w.curl = curl;
+        setup_download_handle(curl, job.url);
+        std::string range;
+        if (job.ranged) {
+            range = std::to_string(seg.start + before) + "-" + std::to_string(seg.end - 1);
+            curl_easy_setopt(curl, CURLOPT_RANGE, range.c_str());
+        }
+        curl_easy_setopt(curl, CURLOPT_WRITEFUNCTION, write_segment);
+        curl_easy_setopt(curl, CURLOPT_WRITEDATA, &w);
+        CURLcode res = curl_easy_perform(curl);
+        long status = 0;
+        curl_easy_getinfo(curl, CURLINFO_RESPONSE_CODE, &status);
+        curl_easy_cleanup(curl);
+
+        if (job.fatal.load()) return false;
+        if (res == CURLE_OK && !w.failed && (seg.end < 0 || seg.start + seg.done.load() == seg.end)) {
+            return true;
+        }
+        if (!job.ranged) {
+            // Without ranges a retry would start over; fail and let the caller decide
+            job.fail(res != CURLE_OK ? std::string("curl download failed: ") + curl_easy_strerror(res)
+                                     : "HTTP " + std::to_string(status), false);
+            return false;
+        }
+        if (seg.done.load() > before) {
+            attempts = 0;
+        }
+        if (++attempts >= DOWNLOAD_MAX_ATTEMPTS) {
+            std::ostringstream ss;
+            ss << "segment " << seg.start << "-" << seg.end << " failed: "
+               << (res != CURLE_OK ? curl_easy_strerror(res) : "HTTP " + std::to_string(status));
+            job.fail(ss.str(), false);
+            return false;
+        }
+        {
+            std::ostringstream ss;
+            ss << "download: segment at " << (seg.start + seg.done.load()) << " retrying (" << attempts
+               << ") res=" << res << " status=" << status;
+            log_to_file(ss.str());
+        }
+        std::this_thread::sleep_for(std::chrono::seconds(1 << attempts));
+    }
+}
+
+static std::vector<DownloadSegment> plan_segments(curl_off_t length) {
+    int count = (int)std::min<curl_off_t>(DOWNLOAD_MAX_SEGMENTS,
+                                          std::max<curl_off_t>(1, length / DOWNLOAD_MIN_SEGMENT));
+    std::vector<DownloadSegment> segments(count);
+    curl_off_t step = length / count;
+    for (int i = 0; i < count; i++) {
+        segments[i].start = i * step;
+        segments[i].end = i == count - 1 ? length : (i + 1) * step;
+    }
+    return segments;
+}
+
+// Bytes from offset 0 that are all downloaded
+static curl_off_t contiguous_done(const std::vector<DownloadSegment>& segments) {
+    curl_off_t end = 0;
+    for (const DownloadSegment& seg : segments) {
+        end = seg.start + seg.done.load();
+        if (seg.end < 0 || end < seg.end) break;
+    }
+    return end;
+}
+
+// SHA-256 of the file so far, fed from the .part file as its prefix completes. Parallel
+// segments arrive out of order, so the hash follows the contiguous prefix (read back from
+// the page cache) rather than the write callbacks.
+struct PartHasher {
+    mbedtls_sha256_context ctx;
+    curl_off_t hashed = 0;
+    std::vector<unsigned char> buf = std::vector<unsigned char>(1 << 20);
+
+    PartHasher() {
+        mbedtls_sha256_init(&ctx);
+        mbedtls_sha256_starts(&ctx, 0);
+    }
+    ~PartHasher() { mbedtls_sha256_free(&ctx); }
+
+    bool advance(int fd, curl_off_t limit) {
+        while (hashed < limit) {
+            size_t want = (size_t)std::min<curl_off_t>((curl_off_t)buf.size(), limit - hashed);
+            ssize_t n = pread(fd, buf.data(), want, (off_t)hashed);
+            if (n < 0 && errno == EINTR) continue;
+            if (n <= 0) return false;
+            mbedtls_sha256_update(&ctx, buf.data(), (size_t)n);
+            hashed += n;
+        }
+        return true;
+    }
+
+    std::string finish() {
+        unsigned char digest[32];
+        mbedtls_sha256_finish(&ctx, digest);
+        static const char* hex = "0123456789abcdef";
+        std::string out;
+        for (unsigned char b : digest) {
+            out += hex[b >> 4];
+            out += hex[b & 15];
+        }
+        return out;
+    }
+};
+
+static void write_digest_file(const std::string& path, const std::string& digest) {
+    struct stat st;
+    if (stat(path.c_str(), &st) != 0) return;
+    std::string tmp = path + ".sha256.tmp";
+    {
+        std::ofstream out(tmp, std::ios::trunc);
+        out << digest << " " << (long long)st.st_size << " " << (long long)st.st_mtime << "\n";
+        if (!out) return;
     }
+    std::rename(tmp.c_str(), (path + ".sha256").c_str());
+}
 
-    if (env && pd->thiz_global && pd->onProgressMethod) {
-        env->CallVoidMethod(pd->thiz_global, pd->onProgressMethod, (jint)percent);
-        if (env->ExceptionCheck()) env->ExceptionClear();
+/**
+ * Download url to path via path.part (see above). expected_sha256 may be empty.
+ * on_progress gets 0-100 on the calling thread; the segments run on their own threads.
+ */
+static bool download_resumable(const std::string& url, const std::string& path,
+                               const std::string& expected_sha256,
+                               const std::function<void(int)>& on_progress, std::string& error) {
+    std::call_once(g_curl_init_once, [] { curl_global_init(CURL_GLOBAL_DEFAULT); });
+    const std::string part_path = path + ".part";
+    const std::string state_path = part_path + ".state";
+
+    RemoteFile remote;
+    if (!probe_remote(url, remote, error)) return false;
+    std::string expected = expected_sha256;
+    for (char& c : expected) c = (char)std::tolower((unsigned char)c);
+    if (expected.empty()) expected = etag_sha256(remote.validator);
+
+    DownloadJob job;
+    job.url = url;
+    job.ranged = remote.ranges && remote.length > 0;
+
+    std::vector<DownloadSegment> segments;
+    bool resumed = job.ranged && access(part_path.c_str(), F_OK) == 0
+        && load_download_state(state_path, url, remote, segments);
+    if (!resumed) {
+        if (job.ranged) {
+            segments = plan_segments(remote.length);
+        } else {
+            segments = std::vector<DownloadSegment>(1);
+            segments[0].end = remote.length > 0 ? remote.length : -1;
+        }
+        std::remove(state_path.c_str());
     }
 
+    job.fd = open(part_path.c_str(), O_RDWR | O_CREAT | (resumed ? 0 : O_TRUNC), 0644);
+    if (job.fd < 0) {
+        error = std::string("file open failed: ") + std::strerror(errno);
+        return false;
+    }
+    if (job.ranged && ftruncate(job.fd, (off_t)remote.length) != 0) {
+        error = std::string("cannot allocate file: ") + std::strerror(errno);
+        close(job.fd);
+        return false;
+    }
     {
         std::ostringstream ss;
-        ss << "Download progress: " << percent << "%";
+        ss << "download: " << (resumed ? "resuming" : "start") << " length=" << remote.length
+           << " segments=" << segments.size() << (job.ranged ? "" : " (no ranges)")
+           << " sha256=" << (expected.empty() ? "unknown" : expected);
         log_to_file(ss.str());
     }
 
-    if (attached) g_jvm->DetachCurrentThread();
-    return 0;
+    std::atomic<int> running{(int)segments.size()};
+    std::vector<std::thread> threads;
+    for (DownloadSegment& seg : segments) {
+        threads.emplace_back([&job, &running, segp = &seg] {
+            fetch_segment(job, *segp);
+            running--;
+        });
+    }
+
+    PartHasher hasher;
+    bool hash_ok = true;
+    int last_percent = -1;
+    auto last_save = std::chrono::steady_clock::now();
+    while (running.load() > 0) {
+        std::this_thread::sleep_for(std::chrono::milliseconds(250));
+        curl_off_t done = 0;
+        for (const DownloadSegment& seg : segments) done += seg.done.load();
+        int percent = remote.length > 0 ? (int)(done * 100 / remote.length) : -1;
+        if (percent >= 0 && percent != last_percent) {
+            last_percent = percent;
+            on_progress(percent);
+        }
+        if (hash_ok && !job.fatal.load()) {
+            hash_ok = hasher.advance(job.fd, std::min(contiguous_done(segments),
+                                                      hasher.hashed + DOWNLOAD_HASH_PER_TICK));
+        }
+        auto now = std::chrono::steady_clock::now();
+        if (job.ranged && now - last_save >= std::chrono::milliseconds(DOWNLOAD_SAVE_INTERVAL_MS)) {
+            // Record only what the sync below is sure to cover
+            std::vector<curl_off_t> synced = snapshot_done(segments);
+            fdatasync(job.fd);
+            save_download_state(state_path, url, remote, segments, synced);
+            last_save = now;
+        }
+    }
+    for (std::thread& t : threads) t.join();
+
+    error = job.error;
+    bool complete = error.empty();
+    std::string digest;
+    if (complete) {
+        if (hash_ok) hash_ok = hasher.advance(job.fd, contiguous_done(segments));
+        if (!hash_ok) {
+            error = "cannot read back downloaded data";
+            complete = false;
+        } else {
+            digest = hasher.finish();
+            if (!expected.empty() && digest != expected) {
+                error = "SHA-256 mismatch: expected " + expected + ", got " + digest;
+                complete = false;
+                job.fatal = true;
+            }
+        }
+    }
+    if (complete && fsync(job.fd) != 0) {
+        error = std::string("sync failed: ") + std::strerror(errno);
+        complete = false;
+    }
+    if (!complete && job.ranged && !job.fatal.load()) {
+        // Keep what arrived for the next call (the segment threads have stopped)
+        std::vector<curl_off_t> synced = snapshot_done(segments);
+        fdatasync(job.fd);
+        close(job.fd);
+        save_download_state(state_path, url, remote, segments, synced);
+        return false;
+    }
+    close(job.fd);
+    if (!complete) {
+        // Not resumable, or the data itself is wrong
+        std::remove(part_path.c_str());
+        std::remove(state_path.c_str());
+        return false;
+    }
+    if (std::rename(part_path.c_str(), path.c_str()) != 0) {
+        error = std::string("rename failed: ") + std::strerror(errno);
+        return false;
+    }
+    std::remove(state_path.c_str());
+    write_digest_file(path, digest);
+    {
+        std::ostringstream ss;
+        ss << "download: sha256=" << digest << (expected.empty() ? " (not verified)" : " (verified)");
+        log_to_file(ss.str());
+    }
+    if (last_percent != 100) on_progress(100);
+    return true;
 }
+// ---------------- download() 用 ここまで ----------------
 
 // ---------------- 解放 ----------------
 static void llama_jni_free() {
     std::lock_guard<std::mutex> lock(g_mutex);
+    std::unique_lock<std::shared_mutex> model_lock(g_model_mutex);
 
     log_to_file("llama_jni_free: freeing resources (explicit)");
 
@@ -264,24 +924,13 @@ Java_com_example_ollama_LlamaNative_download(
         JNIEnv* env,
         jobject thiz,
         jstring jurl,
-        jstring jpath) {
-
-    // Ensure we have a stored JavaVM for callbacks even if init() has not been called yet
-    if (!g_jvm) {
-        if (env->GetJavaVM(&g_jvm) != JNI_OK) {
-            g_jvm = nullptr;
-            log_to_file("download: GetJavaVM failed");
-        } else {
-            log_to_file("download: JavaVM stored");
-        }
-    }
-
-    const char* url  = env->GetStringUTFChars(jurl,  nullptr);
-    const char* path = env->GetStringUTFChars(jpath, nullptr);
+        jstring jpath,
+        jstring jsha256) {
 
-    if (!url || !path) {
-        if (url)  env->ReleaseStringUTFChars(jurl, url);
-        if (path) env->ReleaseStringUTFChars(jpath, path);
+    std::string url  = jstring_to_std(env, jurl);
+    std::string path = jstring_to_std(env, jpath);
+    std::string sha256 = jsha256 ? jstring_to_std(env, jsha256) : std::string();
+    if (url.empty() || path.empty()) {
         log_to_file("download: invalid args");
         return env->NewStringUTF("invalid args");
     }
@@ -292,91 +941,46 @@ Java_com_example_ollama_LlamaNative_download(
         log_to_file(ss.str());
     }
 
-    CURL* curl = curl_easy_init();
-    if (!curl) {
-        env->ReleaseStringUTFChars(jurl,  url);
-        env->ReleaseStringUTFChars(jpath, path);
-        log_to_file("download: curl init failed");
-        return env->NewStringUTF("curl init failed");
-    }
-
-    std::ofstream ofs(path, std::ios::binary);
-    if (!ofs) {
-        env->ReleaseStringUTFChars(jurl,  url);
-        env->ReleaseStringUTFChars(jpath, path);
-        curl_easy_cleanup(curl);
-        {
-            std::ostringstream ss;
-            ss << "download: file open failed path=" << path;
-            log_to_file(ss.str());
-        }
-        return env->NewStringUTF("file open failed");
-    }
-
-    ProgressData pd;
-    pd.last_percent = -1;
-    pd.thiz_global = env->NewGlobalRef(thiz);
-    pd.onProgressMethod = nullptr;
-
+    // Progress is reported from this thread, so env can be used directly
+    jmethodID onProgress = nullptr;
     jclass cls = env->GetObjectClass(thiz);
     if (cls) {
-        pd.onProgressMethod = env->GetMethodID(cls, "onDownloadProgress", "(I)V");
-    }
-
-    curl_easy_setopt(curl, CURLOPT_URL, url);
-    curl_easy_setopt(curl, CURLOPT_FOLLOWLOCATION, 1L);
-    curl_easy_setopt(curl, CURLOPT_WRITEFUNCTION, write_data);
-    curl_easy_setopt(curl, CURLOPT_WRITEDATA, &ofs);
-
-    curl_easy_setopt(curl, CURLOPT_XFERINFOFUNCTION, xferinfo);
-    curl_easy_setopt(curl, CURLOPT_XFERINFODATA, &pd);
-    curl_easy_setopt(curl, CURLOPT_NOPROGRESS, 0L);
-
-    std::string surl(url);
-    // Disable SSL verification for specific hosts (huggingface.co and github.com)
-    bool disable_ssl = false;
-    std::string ssl_host;
-    if (surl.rfind("https://huggingface.co/", 0) == 0) {
-        disable_ssl = true;
-        ssl_host = "huggingface.co";
+        onProgress = env->GetMethodID(cls, "onDownloadProgress", "(I)V");
+        env->DeleteLocalRef(cls);
     }
-    if (surl.rfind("https://github.com/", 0) == 0) {
-        disable_ssl = true;
-        ssl_host = "github.com";
-    }
-    if (disable_ssl) {
-        curl_easy_setopt(curl, CURLOPT_SSL_VERIFYPEER, 0L);
-        curl_easy_setopt(curl, CURLOPT_SSL_VERIFYHOST, 0L);
+    auto report = [&](int percent) {
+        if (onProgress) {
+            env->CallVoidMethod(thiz, onProgress, (jint)percent);
+            if (env->ExceptionCheck()) env->ExceptionClear();
+        }
         std::ostringstream ss;
-        ss << "download: disabled SSL verification for " << ssl_host;
+        ss << "Download progress: " << percent << "%";
         log_to_file(ss.str());
-    }
-
-    curl_easy_setopt(curl, CURLOPT_USERAGENT,
-        "Mozilla/5.0 (Linux; Android 14; Mobile) "
-        "AppleWebKit/537.36 (KHTML, like Gecko) "
-        "Chrome/120.0.0.0 Mobile Safari/537.36");
-
-    CURLcode res = curl_easy_perform(curl);
-
-    env->ReleaseStringUTFChars(jurl,  url);
-    env->ReleaseStringUTFChars(jpath, path);
-    curl_easy_cleanup(curl);
-    ofs.close();
-
-    if (pd.thiz_global) env->DeleteGlobalRef(pd.thiz_global);
+    };
 
-    if (res != CURLE_OK) {
-        std::ostringstream ss;
-        ss << "download: curl download failed res=" << res << " msg=" << curl_easy_strerror(res);
-        log_to_file(ss.str());
-        return env->NewStringUTF("curl download failed");
+    std::string error;
+    if (!download_resumable(url, path, sha256, report, error)) {
+        log_to_file("download: failed: " + error);
+        return env->NewStringUTF(error.c_str());
     }
 
     log_to_file("download: ok");
     return env->NewStringUTF("ok");
 }
 
+// ---------------- コンテキスト作成 ----------------
+// A context for g_model with the current settings holding n_seq_max sequences (1 except
+// inside generateBatchUtf8()). Caller must hold g_mutex; null on failure.
+static llama_context * new_context(uint32_t n_seq_max) {
+    llama_context_params cparams = llama_context_default_params();
+    cparams.n_ctx           = g_n_ctx;
+    cparams.n_threads       = g_n_threads;
+    cparams.n_batch         = g_n_batch;
+    cparams.n_threads_batch = g_n_threads;
+    cparams.n_seq_max       = n_seq_max;
+    return llama_init_from_model(g_model, cparams);
+}
+
 // ---------------- JNI: init ----------------
 extern "C"
 JNIEXPORT jstring JNICALL
@@ -385,6 +989,7 @@ Java_com_example_ollama_LlamaNative_init(
         jstring jModelPath
 ) {
     std::lock_guard<std::mutex> lock(g_mutex);
+    std::unique_lock<std::shared_mutex> model_lock(g_model_mutex);
 
     log_to_file("init: start");
 
@@ -407,6 +1012,12 @@ Java_com_example_ollama_LlamaNative_init(
         log_to_file(ss.str());
         return env->NewStringUTF("ok");
     }
+    // Same model, but its context could not be recreated (generateBatch): only make the context
+    if (!g_current_model_path.empty() && g_current_model_path == model_path && g_model) {
+        g_ctx = new_context(1);
+        log_to_file(g_ctx ? "init: context recreated" : "init: failed to recreate context");
+        return env->NewStringUTF(g_ctx ? "ok" : "failed to create context");
+    }
 
     {
         std::ifstream ifs(model_path, std::ios::binary | std::ios::ate);
@@ -491,16 +1102,10 @@ Java_com_example_ollama_LlamaNative_init(
         }
     }
 
-    llama_context_params cparams = llama_context_default_params();
-    cparams.n_ctx           = g_n_ctx;
-    cparams.n_threads       = g_n_threads;
-    cparams.n_batch         = g_n_batch;
-    cparams.n_threads_batch = g_n_threads;
-
     {
         using namespace std::chrono;
         auto t0 = high_resolution_clock::now();
-        g_ctx = llama_init_from_model(g_model, cparams);
+        g_ctx = new_context(1);
         auto t1 = high_resolution_clock::now();
         auto ms = duration_cast<milliseconds>(t1 - t0).count();
 
@@ -527,6 +1132,7 @@ extern "C"
 JNIEXPORT void JNICALL
 Java_com_example_ollama_LlamaNative_setParameters(
         JNIEnv *env, jobject,
+        jfloat temp, jfloat topP, jint topK,
         jint penaltyLastN, jfloat penaltyRepeat, jfloat penaltyFreq, jfloat penaltyPresent,
         jint mirostat, jfloat mirostatTau, jfloat mirostatEta,
         jfloat minP, jfloat typicalP,
@@ -538,6 +1144,11 @@ Java_com_example_ollama_LlamaNative_setParameters(
 ) {
     std::lock_guard<std::mutex> lock(g_mutex);
     
+    // Basic sampling parameters
+    g_temp = temp;
+    g_top_p = topP;
+    g_top_k = topK;
+    
     // Penalty parameters
     g_penalty_last_n = penaltyLastN;
     g_penalty_repeat = penaltyRepeat;
@@ -567,7 +1178,10 @@ Java_com_example_ollama_LlamaNative_setParameters(
     
     {
         std::ostringstream ss;
-        ss << "setParameters: penalty_last_n=" << g_penalty_last_n
+        ss << "setParameters: temp=" << g_temp
+           << " top_p=" << g_top_p
+           << " top_k=" << g_top_k
+           << " penalty_last_n=" << g_penalty_last_n
            << " penalty_repeat=" << g_penalty_repeat
            << " penalty_freq=" << g_penalty_freq
            << " penalty_present=" << g_penalty_present
@@ -590,133 +1204,58 @@ Java_com_example_ollama_LlamaNative_setParameters(
     }
 }
 
-// ---------------- JNI: generate ----------------
+// ---------------- JNI: setContextParams ----------------
+// Context size / threads / batch size used by the next init(). If a model is already loaded
+// and the values changed, its context is recreated (the model weights stay loaded).
 extern "C"
 JNIEXPORT jstring JNICALL
-Java_com_example_ollama_LlamaNative_generate(
+Java_com_example_ollama_LlamaNative_setContextParams(
         JNIEnv *env, jobject,
-        jstring jPrompt
+        jint nCtx, jint nThreads, jint nBatch
 ) {
     std::lock_guard<std::mutex> lock(g_mutex);
+    std::unique_lock<std::shared_mutex> model_lock(g_model_mutex);
 
-    if (!g_ctx || !g_model) {
-        log_to_file("generate: not initialized");
-        return env->NewStringUTF("not initialized");
-    }
-
-    std::string prompt = jstring_to_std(env, jPrompt);
-    {
-        std::ostringstream ss;
-        ss << "generate: prompt_len=" << prompt.size();
-        log_to_file(ss.str());
+    if (nCtx <= 0 || nThreads <= 0 || nBatch <= 0) {
+        log_to_file("setContextParams: invalid values");
+        return env->NewStringUTF("invalid context parameters");
     }
-    {
-        std::ostringstream ss;
-        ss << "generate: prompt=\n" << prompt;
-        log_to_file(ss.str());
+    if (nCtx == g_n_ctx && nThreads == g_n_threads && nBatch == g_n_batch) {
+        return env->NewStringUTF("ok");
     }
-    const int max_tokens = 1024;
 
-    llama_memory_t mem = llama_get_memory(g_ctx);
-    llama_memory_seq_rm(mem, -1, 0, -1);
+    g_n_ctx = nCtx;
+    g_n_threads = nThreads;
+    g_n_batch = nBatch;
     {
         std::ostringstream ss;
-        ss << "generate: kv cache cleared; ctx=" << g_n_ctx;
+        ss << "setContextParams: n_ctx=" << g_n_ctx << " n_threads=" << g_n_threads
+           << " n_batch=" << g_n_batch;
         log_to_file(ss.str());
     }
 
-    std::vector<llama_token> tokens;
-    tokens.resize(g_n_ctx);
-
-    const llama_vocab * vocab = llama_model_get_vocab(g_model);
-    
-    int32_t n_tokens = llama_tokenize(
-            vocab,
-            prompt.c_str(),
-            (int)prompt.size(),
-            tokens.data(),
-            (int)tokens.size(),
-            false,
-            true
-    );
-
-    if (n_tokens <= 0) {
-        log_to_file("generate: tokenize failed");
-        return env->NewStringUTF("tokenize failed");
+    if (!g_model) {
+        return env->NewStringUTF("ok");
     }
 
-    {
-        std::ostringstream ss;
-        ss << "generate: n_tokens=" << n_tokens;
-        log_to_file(ss.str());
+    // ★ モデルはそのまま、コンテキストだけ作り直す
+    if (g_ctx) {
+        llama_free(g_ctx);
+        g_ctx = nullptr;
     }
-
-    if (n_tokens >= g_n_ctx) {
-        std::ostringstream ss;
-        ss << "generate: n_tokens(" << n_tokens << ") exceeds ctx(" << g_n_ctx << ")";
-        log_to_file(ss.str());
-        return env->NewStringUTF("token count exceeds context");
-    }
-
-    tokens.resize(n_tokens);
-
-    std::string output;
-    output.reserve(max_tokens * 4);
-
-    {
-        log_to_file("generate: processing prompt in batches");
-        if (g_log_ofs.is_open()) g_log_ofs.flush();
-        
-        auto t_decode0 = std::chrono::high_resolution_clock::now();
-        
-        // Process prompt in chunks of g_n_batch size to avoid OOM on Android
-        for (int i = 0; i < n_tokens; i += g_n_batch) {
-            int batch_size = std::min(g_n_batch, n_tokens - i);
-            
-            {
-                std::ostringstream ss;
-                ss << "generate: processing batch " << (i / g_n_batch + 1) 
-                   << " (tokens " << i << "-" << (i + batch_size - 1) << ")";
-                log_to_file(ss.str());
-            }
-            
-            llama_batch batch = llama_batch_init(batch_size, 0, 1);
-            batch.n_tokens = batch_size;
-            
-            for (int j = 0; j < batch_size; j++) {
-                batch.token[j] = tokens[i + j];
-                batch.pos[j] = i + j;
-                batch.n_seq_id[j] = 1;
-                batch.seq_id[j][0] = 0;
-                // Only compute logits for the last token of the entire prompt
-                batch.logits[j] = (i + j == n_tokens - 1) ? 1 : 0;
-            }
-            
-            int rc = llama_decode(g_ctx, batch);
-            llama_batch_free(batch);
-            
-            if (rc != 0) {
-                std::ostringstream ss;
-                ss << "generate: decode failed at batch " << (i / g_n_batch + 1) 
-                   << " (rc=" << rc << ")";
-                log_to_file(ss.str());
-                if (g_log_ofs.is_open()) g_log_ofs.flush();
-                return env->NewStringUTF("decode failed (prompt)");
-            }
-        }
-        
-        auto t_decode1 = std::chrono::high_resolution_clock::now();
-        auto ms_prompt = std::chrono::duration_cast<std::chrono::milliseconds>(t_decode1 - t_decode0).count();
-        {
-            std::ostringstream ss;
-            ss << "generate: prompt decode complete, ms=" << ms_prompt;
-            log_to_file(ss.str());
-        }
-        
-        log_to_file("generate: prompt processed with chunked batch decode");
-        if (g_log_ofs.is_open()) g_log_ofs.flush();
+    g_ctx = new_context(1);
+    if (!g_ctx) {
+        log_to_file("setContextParams: failed to recreate context");
+        return env->NewStringUTF("failed to create context");
     }
+    log_to_file("setContextParams: context recreated");
+    return env->NewStringUTF("ok");
+}
 
+// ---------------- サンプラーチェーン ----------------
+// Built from the current sampling parameters (setParameters) for one sequence.
+// Caller must hold g_mutex and free the chain with llama_sampler_free().
+static llama_sampler * build_sampler_chain(const llama_vocab * vocab, uint32_t sampler_seed) {
     const int n_vocab = llama_vocab_n_tokens(vocab);
     
     // Build sampler chain based on parameters
@@ -802,7 +1341,7 @@ Java_com_example_ollama_LlamaNative_generate(
     // 8. Add XTC (if enabled)
     if (g_xtc_probability > 0.0f) {
         llama_sampler_chain_add(smpl, llama_sampler_init_xtc(
-            g_xtc_probability, g_xtc_threshold, 1, LLAMA_DEFAULT_SEED));
+            g_xtc_probability, g_xtc_threshold, 1, sampler_seed));
         log_to_file("generate: added XTC sampler");
     }
     
@@ -819,24 +1358,196 @@ Java_com_example_ollama_LlamaNative_generate(
     // 10. Add mirostat or distribution sampler
     if (g_mirostat == 1) {
         llama_sampler_chain_add(smpl, llama_sampler_init_mirostat(
-            n_vocab, LLAMA_DEFAULT_SEED, g_mirostat_tau, g_mirostat_eta, 100));
+            n_vocab, sampler_seed, g_mirostat_tau, g_mirostat_eta, 100));
         log_to_file("generate: added mirostat v1 sampler");
     } else if (g_mirostat == 2) {
         llama_sampler_chain_add(smpl, llama_sampler_init_mirostat_v2(
-            LLAMA_DEFAULT_SEED, g_mirostat_tau, g_mirostat_eta));
+            sampler_seed, g_mirostat_tau, g_mirostat_eta));
         log_to_file("generate: added mirostat v2 sampler");
     } else {
-        llama_sampler_chain_add(smpl, llama_sampler_init_dist(LLAMA_DEFAULT_SEED));
+        llama_sampler_chain_add(smpl, llama_sampler_init_dist(sampler_seed));
         log_to_file("generate: added distribution sampler");
     }
 
+    return smpl;
+}
+
+// ---------------- JNI: generate ----------------
+// Prompt and output are raw UTF-8 in direct ByteBuffers (no modified UTF-8, no jstring copies).
+// The output text is detokenized straight into the output buffer; its byte length is returned
+// in GenerateResult and Java decodes it.
+// If jCallback is non-null, its onBytes(int offset, int length) is called after every token with
+// the newly completed UTF-8 range of the output buffer; returning false stops generation.
+// seed < 0 picks a random seed; a fixed seed makes the run reproducible for the same prompt,
+// parameters, thread count and batch size (the KV cache is cleared on every call).
+// maxTokens > 0 caps the number of generated tokens (done_reason "length"); <= 0 uses the default.
+static const int DEFAULT_MAX_TOKENS = 1024;
+
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_example_ollama_LlamaNative_generateUtf8(
+        JNIEnv *env, jobject,
+        jobject jPrompt, jint promptLength,
+        jobject jOutput, jint seed, jint maxTokens, jobject jCallback
+) {
+    std::lock_guard<std::mutex> lock(g_mutex);
+
+    if (!g_ctx || !g_model) {
+        log_to_file("generate: not initialized");
+        return make_generate_error(env, GEN_ERR_NOT_INITIALIZED, "not initialized");
+    }
+
+    const char *prompt = static_cast<const char *>(env->GetDirectBufferAddress(jPrompt));
+    char *out_buf = static_cast<char *>(env->GetDirectBufferAddress(jOutput));
+    const jlong out_capacity = env->GetDirectBufferCapacity(jOutput);
+    if (!prompt || !out_buf || promptLength < 0 || out_capacity <= 0
+            || promptLength > env->GetDirectBufferCapacity(jPrompt)) {
+        log_to_file("generate: invalid prompt/output buffers");
+        return make_generate_error(env, GEN_ERR_INVALID_ARGUMENT, "invalid prompt/output buffers");
+    }
+    const int32_t out_cap = (int32_t)std::min<jlong>(out_capacity, INT32_MAX);
+
+    jmethodID on_bytes = nullptr;
+    if (jCallback) {
+        jclass cb_cls = env->GetObjectClass(jCallback);
+        on_bytes = env->GetMethodID(cb_cls, "onBytes", "(II)Z");
+        env->DeleteLocalRef(cb_cls);
+        if (!on_bytes) {
+            env->ExceptionClear();
+            log_to_file("generate: callback has no onBytes(II)Z");
+            return make_generate_error(env, GEN_ERR_INVALID_ARGUMENT, "invalid token callback");
+        }
+    }
+
+    const uint32_t sampler_seed = seed < 0 ? LLAMA_DEFAULT_SEED : (uint32_t)seed;
+
+    {
+        std::ostringstream ss;
+        ss << "generate: prompt_len=" << promptLength << " output_capacity=" << out_cap
+           << " seed=" << seed << " max_tokens=" << maxTokens;
+        log_to_file(ss.str());
+    }
+    {
+        std::ostringstream ss;
+        ss << "generate: prompt=\n";
+        ss.write(prompt, promptLength);
+        log_to_file(ss.str());
+    }
+    // ★ maxTokens <= 0 のときは従来どおり 1024 トークンまで
+    const int max_tokens = maxTokens > 0 ? maxTokens : DEFAULT_MAX_TOKENS;
+
+    llama_memory_t mem = llama_get_memory(g_ctx);
+    llama_memory_seq_rm(mem, -1, 0, -1);
+    {
+        std::ostringstream ss;
+        ss << "generate: kv cache cleared; ctx=" << g_n_ctx;
+        log_to_file(ss.str());
+    }
+
+    std::vector<llama_token> tokens;
+    tokens.resize(g_n_ctx);
+
+    const llama_vocab * vocab = llama_model_get_vocab(g_model);
+    
+    int32_t n_tokens = llama_tokenize(
+            vocab,
+            prompt,
+            (int)promptLength,
+            tokens.data(),
+            (int)tokens.size(),
+            false,
+            true
+    );
+
+    if (n_tokens <= 0) {
+        log_to_file("generate: tokenize failed");
+        return make_generate_error(env, GEN_ERR_TOKENIZE, "tokenize failed");
+    }
+
+    {
+        std::ostringstream ss;
+        ss << "generate: n_tokens=" << n_tokens;
+        log_to_file(ss.str());
+    }
+
+    if (n_tokens >= g_n_ctx) {
+        std::ostringstream ss;
+        ss << "generate: n_tokens(" << n_tokens << ") exceeds ctx(" << g_n_ctx << ")";
+        log_to_file(ss.str());
+        return make_generate_error(env, GEN_ERR_CONTEXT_EXCEEDED, "token count exceeds context", n_tokens);
+    }
+
+    tokens.resize(n_tokens);
+
+    int32_t out_len = 0;   // bytes of output currently in out_buf
+    int32_t emitted = 0;   // bytes of output already passed to the callback
+
+    int64_t prompt_eval_ns = 0;
+    {
+        log_to_file("generate: processing prompt in batches");
+        if (g_log_ofs.is_open()) g_log_ofs.flush();
+        
+        auto t_decode0 = std::chrono::high_resolution_clock::now();
+        
+        // Process prompt in chunks of g_n_batch size to avoid OOM on Android
+        for (int i = 0; i < n_tokens; i += g_n_batch) {
+            int batch_size = std::min(g_n_batch, n_tokens - i);
+            
+            {
+                std::ostringstream ss;
+                ss << "generate: processing batch " << (i / g_n_batch + 1) 
+                   << " (tokens " << i << "-" << (i + batch_size - 1) << ")";
+                log_to_file(ss.str());
+            }
+            
+            llama_batch batch = llama_batch_init(batch_size, 0, 1);
+            batch.n_tokens = batch_size;
+            
+            for (int j = 0; j < batch_size; j++) {
+                batch.token[j] = tokens[i + j];
+                batch.pos[j] = i + j;
+                batch.n_seq_id[j] = 1;
+                batch.seq_id[j][0] = 0;
+                // Only compute logits for the last token of the entire prompt
+                batch.logits[j] = (i + j == n_tokens - 1) ? 1 : 0;
+            }
+            
+            int rc = llama_decode(g_ctx, batch);
+            llama_batch_free(batch);
+            
+            if (rc != 0) {
+                std::ostringstream ss;
+                ss << "generate: decode failed at batch " << (i / g_n_batch + 1) 
+                   << " (rc=" << rc << ")";
+                log_to_file(ss.str());
+                if (g_log_ofs.is_open()) g_log_ofs.flush();
+                return make_generate_error(env, GEN_ERR_DECODE_PROMPT, "decode failed (prompt)", n_tokens);
+            }
+        }
+        
+        auto t_decode1 = std::chrono::high_resolution_clock::now();
+        prompt_eval_ns = elapsed_ns(t_decode0, t_decode1);
+        auto ms_prompt = prompt_eval_ns / 1000000;
+        {
+            std::ostringstream ss;
+            ss << "generate: prompt decode complete, ms=" << ms_prompt;
+            log_to_file(ss.str());
+        }
+        
+        log_to_file("generate: prompt processed with chunked batch decode");
+        if (g_log_ofs.is_open()) g_log_ofs.flush();
+    }
+
+    llama_sampler * smpl = build_sampler_chain(vocab, sampler_seed);
     log_to_file("generate: sampler chain initialized");
 
 // detokenize 用にトークン列を保持
     std::vector<llama_token> out_tokens;
     out_tokens.reserve(max_tokens);
 
-    std::string prev_text;   // ★ 差分抽出用
+    // "stop" on EOG, "length" when a token/ctx limit ends generation
+    const char *done_reason = "length";
+    auto t_eval0 = std::chrono::high_resolution_clock::now();
 
     log_to_file("generate: entering decode loop");
     for (int i = 0; i < max_tokens; ++i) {
@@ -859,6 +1570,7 @@ Java_com_example_ollama_LlamaNative_generate(
         // check eos
         if (llama_vocab_is_eog(vocab, id)) {
             log_to_file("generate: reached EOS");
+            done_reason = "stop";
             break;
         }
 
@@ -870,41 +1582,49 @@ Java_com_example_ollama_LlamaNative_generate(
             log_to_file("generate: reached ctx safety limit, stopping early");
             break;
         }
-        // ★ 累積トークン列を detokenize して全文を得る
-        char buf[4096];
+        // ★ 累積トークン列を出力バッファへ直接 detokenize（スペースも含めて正しく復元）
         int n_chars = llama_detokenize(
                 vocab,
                 out_tokens.data(),
                 (int)out_tokens.size(),
-                buf,
-                sizeof(buf),
+                out_buf,
+                out_cap,
                 true,
                 false
         );
 
-        if (n_chars > 0) {
-            std::string full(buf, n_chars);
-
-            // ★ 前回との差分だけを output に追加（スペースも含めて正しく復元）
-            if (full.size() > prev_text.size()) {
-                output += full.substr(prev_text.size());
-            }
-
-            prev_text = full;
+        if (n_chars >= 0) {
+            out_len = n_chars;
             {
                 std::ostringstream ss;
-                ss << "generate: detok chars=" << n_chars
-                   << " output_len=" << output.size()
-                   << " full_len=" << full.size()
-                   << " step=" << i;
+                ss << "generate: detok output_len=" << out_len << " step=" << i;
                 log_to_file(ss.str());
             }
         } else {
-            // Only log if detokenize fails (unusual case)
-            if (n_chars < 0) {
-                std::ostringstream ss;
-                ss << "generate: detokenize error n_chars=" << n_chars;
-                log_to_file(ss.str());
+            // Negative result = required size; the output buffer is full
+            std::ostringstream ss;
+            ss << "generate: output buffer full (need " << -n_chars
+               << " bytes, capacity " << out_cap << "), stopping";
+            log_to_file(ss.str());
+            break;
+        }
+
+        // ★ 新しく確定した UTF-8 部分だけをコールバックへ通知
+        if (on_bytes) {
+            const int32_t complete = utf8_complete_prefix(out_buf, out_len);
+            if (complete > emitted) {
+                const jboolean keep_going = env->CallBooleanMethod(
+                        jCallback, on_bytes, (jint)emitted, (jint)(complete - emitted));
+                emitted = complete;
+                if (clear_callback_exception(env, "generate")) {
+                    done_reason = "stop";
+                    break;
+                }
+                if (!keep_going) {
+                    log_to_file("generate: stopped by callback");
+                    done_reason = "stop";
+                    break;
+                }
             }
         }
 
@@ -936,20 +1656,526 @@ Java_com_example_ollama_LlamaNative_generate(
             log_to_file("generate: decode failed (generation)");
             if (g_log_ofs.is_open()) g_log_ofs.flush();
             llama_sampler_free(smpl);
-            return env->NewStringUTF("decode failed (generation)");
+            return make_generate_error(env, GEN_ERR_DECODE_GENERATION, "decode failed (generation)", n_tokens);
         }
     }
 
+    const int64_t eval_ns = elapsed_ns(t_eval0, std::chrono::high_resolution_clock::now());
+
     // Free the sampler chain
     llama_sampler_free(smpl);
 
+    // Flush whatever the callback has not seen yet (including a trailing partial character)
+    if (on_bytes && out_len > emitted) {
+        env->CallBooleanMethod(jCallback, on_bytes, (jint)emitted, (jint)(out_len - emitted));
+        clear_callback_exception(env, "generate");
+    }
+
+    {
+        std::ostringstream ss;
+        ss << "generate: finished, output_len=" << out_len
+           << " prompt_eval_count=" << n_tokens
+           << " eval_count=" << out_tokens.size()
+           << " prompt_eval_ns=" << prompt_eval_ns
+           << " eval_ns=" << eval_ns
+           << " done_reason=" << done_reason;
+        log_to_file(ss.str());
+    }
+
+    return make_generate_result(env, out_len, n_tokens, (int)out_tokens.size(),
+                                prompt_eval_ns, eval_ns, done_reason, GEN_ERR_NONE, nullptr);
+}
+
+// ---------------- JNI: generateBatch ----------------
+// Runs many prompts with the same parameters as parallel sequences of one context.
+// Prompts are raw UTF-8 back to back in jPrompts; promptEnds[i] is the end offset of prompt i.
+// Up to `parallel` sequences (at most BATCH_MAX_SEQUENCES and n_batch) are active at once, in a
+// context with that many sequences that replaces g_ctx for the call; each
+// llama_decode call carries the next token of every generating sequence, and the remaining room
+// in the batch is filled with prompt tokens of sequences still prefilling. When a sequence ends,
+// its KV cells are dropped and the next prompt takes its slot.
+// Each slot owns an equal share of the output buffer and of n_ctx (the KV cache is shared).
+// jCallback must have:
+//   boolean onBytes(int index, int offset, int length)  - newly completed UTF-8 range of prompt
+//                                                          index's output; false stops that prompt
+//   boolean onDone(int index, int offset, GenerateResult r) - prompt index finished (or failed);
+//                                                          its output is r.outputLength bytes at offset;
+//                                                          false starts no further prompts
+// Returns a GenerateResult with the summed token counts, or an error if the batch could not run.
+// Prompts never started (onDone returned false) get no onDone call.
+struct BatchSequence {
+    int index = -1;                     // input index; -1 = slot free
+    std::vector<llama_token> prompt;
+    int32_t n_prefilled = 0;            // prompt tokens already decoded
+    int32_t n_past = 0;                 // position of the next token
+    llama_sampler *smpl = nullptr;
+    std::vector<llama_token> out_tokens;
+    llama_token pending = -1;           // sampled token not yet decoded
+    int32_t logits_idx = -1;            // this sequence's logits row in the current batch
+    int32_t out_len = 0;
+    int32_t emitted = 0;
+    std::chrono::high_resolution_clock::time_point t_start;
+    std::chrono::high_resolution_clock::time_point t_prefilled;
+};
+
+extern "C"
+JNIEXPORT jobject JNICALL
+Java_com_example_ollama_LlamaNative_generateBatchUtf8(
+        JNIEnv *env, jobject,
+        jobject jPrompts, jintArray jPromptEnds,
+        jobject jOutput, jint parallel, jint seed, jint maxTokens, jobject jCallback
+) {
+    std::lock_guard<std::mutex> lock(g_mutex);
+
+    if (!g_ctx || !g_model) {
+        log_to_file("generateBatch: not initialized");
+        return make_generate_error(env, GEN_ERR_NOT_INITIALIZED, "not initialized");
+    }
+
+    const char *prompts = static_cast<const char *>(env->GetDirectBufferAddress(jPrompts));
+    char *out_buf = static_cast<char *>(env->GetDirectBufferAddress(jOutput));
+    const jlong prompts_capacity = env->GetDirectBufferCapacity(jPrompts);
+    const jlong out_capacity = env->GetDirectBufferCapacity(jOutput);
+    const jsize count = jPromptEnds ? env->GetArrayLength(jPromptEnds) : 0;
+    if (!prompts || !out_buf || out_capacity <= 0 || count <= 0 || !jCallback) {
+        log_to_file("generateBatch: invalid prompt/output buffers");
+        return make_generate_error(env, GEN_ERR_INVALID_ARGUMENT, "invalid prompt/output buffers");
+    }
+
+    std::vector<jint> ends(count);
+    env->GetIntArrayRegion(jPromptEnds, 0, count, ends.data());
+    for (jsize i = 0; i < count; ++i) {
+        if (ends[i] < (i > 0 ? ends[i - 1] : 0) || ends[i] > prompts_capacity) {
+            log_to_file("generateBatch: invalid prompt offsets");
+            return make_generate_error(env, GEN_ERR_INVALID_ARGUMENT, "invalid prompt offsets");
+        }
+    }
+
+    jclass cb_cls = env->GetObjectClass(jCallback);
+    jmethodID on_bytes = env->GetMethodID(cb_cls, "onBytes", "(III)Z");
+    jmethodID on_done = on_bytes ? env->GetMethodID(cb_cls, "onDone",
+            "(IILcom/example/ollama/GenerateResult;)Z") : nullptr;
+    env->DeleteLocalRef(cb_cls);
+    if (!on_bytes || !on_done) {
+        env->ExceptionClear();
+        log_to_file("generateBatch: callback has no onBytes(III)Z / onDone");
+        return make_generate_error(env, GEN_ERR_INVALID_ARGUMENT, "invalid batch callback");
+    }
+
+    // ★ 並列数: 要求値を BATCH_MAX_SEQUENCES / n_batch / プロンプト数で制限
+    int n_parallel = parallel > 0 ? parallel : BATCH_MAX_SEQUENCES;
+    n_parallel = std::min<int>(n_parallel, BATCH_MAX_SEQUENCES);
+    n_parallel = std::min<int>(n_parallel, g_n_batch);
+    n_parallel = std::min<int>(n_parallel, (int)count);
+    n_parallel = std::max(n_parallel, 1);
+
+    // ★ 複数シーケンス用のコンテキストに差し替え (終了時に元へ戻す)
+    // The single-sequence context is freed first so the two KV caches are never held at once.
+    llama_context *ctx = g_ctx;
+    if (n_parallel > 1) {
+        llama_free(g_ctx);
+        g_ctx = nullptr;
+        ctx = new_context((uint32_t)n_parallel);
+        if (!ctx) {
+            log_to_file("generateBatch: failed to create multi-sequence context, running one at a time");
+            n_parallel = 1;
+            ctx = g_ctx = new_context(1);
+            if (!ctx) {
+                log_to_file("generateBatch: failed to recreate context");
+                return make_generate_error(env, GEN_ERR_NOT_INITIALIZED, "failed to create context");
+            }
+        }
+    }
+
+    const int32_t slot_cap = (int32_t)std::min<jlong>(out_capacity / n_parallel, INT32_MAX);
+    const int32_t slot_ctx = g_n_ctx / n_parallel;
+    const int max_tokens = maxTokens > 0 ? maxTokens : DEFAULT_MAX_TOKENS;
+    const uint32_t sampler_seed = seed < 0 ? LLAMA_DEFAULT_SEED : (uint32_t)seed;
+
+    {
+        std::ostringstream ss;
+        ss << "generateBatch: prompts=" << count << " parallel=" << n_parallel
+           << " slot_ctx=" << slot_ctx << " slot_output=" << slot_cap
+           << " seed=" << seed << " max_tokens=" << max_tokens;
+        log_to_file(ss.str());
+    }
+
+    llama_memory_t mem = llama_get_memory(ctx);
+    llama_memory_seq_rm(mem, -1, 0, -1);
+
+    const llama_vocab * vocab = llama_model_get_vocab(g_model);
+    std::vector<BatchSequence> seqs(n_parallel);
+    llama_batch batch = llama_batch_init(g_n_batch, 0, 1);
+
+    int next_input = 0;
+    bool accepting = true;        // cleared when onDone asks for no further prompts
+    int64_t total_prompt_tokens = 0;
+    int64_t total_eval_tokens = 0;
+    int64_t prompt_eval_ns = 0;   // decode time of batches that carried prompt tokens
+    int error_code = GEN_ERR_NONE;
+    const char *error_msg = nullptr;
+    auto t_batch0 = std::chrono::high_resolution_clock::now();
+
+    // Report one input as finished and free its slot (if it had one)
+    auto finish = [&](int slot, int index, const char *done_reason, int err, const char *msg) {
+        BatchSequence *s = slot >= 0 ? &seqs[slot] : nullptr;
+        const int32_t offset = slot >= 0 ? slot * slot_cap : 0;
+        const int32_t n_prompt = s ? (int32_t)s->prompt.size() : 0;
+        jobject result;
+        if (err != GEN_ERR_NONE) {
+            result = make_generate_error(env, err, msg, n_prompt);
+        } else {
+            auto t_end = std::chrono::high_resolution_clock::now();
+            // Flush whatever the callback has not seen yet (including a trailing partial character)
+            if (s->out_len > s->emitted) {
+                env->CallBooleanMethod(jCallback, on_bytes, (jint)index,
+                        (jint)(offset + s->emitted), (jint)(s->out_len - s->emitted));
+                clear_callback_exception(env, "generateBatch");
+            }
+            result = make_generate_result(env, s->out_len, n_prompt, (int)s->out_tokens.size(),
+                    elapsed_ns(s->t_start, s->t_prefilled), elapsed_ns(s->t_prefilled, t_end),
+                    done_reason, GEN_ERR_NONE, nullptr);
+            total_prompt_tokens += n_prompt;
+            total_eval_tokens += (int64_t)s->out_tokens.size();
+        }
+        const jboolean more = env->CallBooleanMethod(jCallback, on_done, (jint)index, (jint)offset, result);
+        if (clear_callback_exception(env, "generateBatch")) {
+            accepting = false;
+        } else if (!more) {
+            accepting = false;
+        }
+        if (result) env->DeleteLocalRef(result);
+        if (s) {
+            llama_memory_seq_rm(mem, slot, -1, -1);
+            if (s->smpl) llama_sampler_free(s->smpl);
+            *s = BatchSequence();
+        }
+    };
+
+    while (true) {
+        // ★ 空きスロットに次のプロンプトを割り当てる
+        for (int slot = 0; slot < n_parallel; ++slot) {
+            BatchSequence &s = seqs[slot];
+            while (s.index < 0 && next_input < count && accepting) {
+                const int index = next_input++;
+                const int32_t start = index > 0 ? ends[index - 1] : 0;
+                const int32_t len = ends[index] - start;
+                s.prompt.resize(slot_ctx);
+                int32_t n_tokens = llama_tokenize(vocab, prompts + start, len,
+                        s.prompt.data(), (int)s.prompt.size(), false, true);
+                if (n_tokens <= 0 || n_tokens >= slot_ctx) {
+                    std::ostringstream ss;
+                    ss << "generateBatch: prompt " << index << " n_tokens=" << n_tokens
+                       << " does not fit slot ctx(" << slot_ctx << ")";
+                    log_to_file(ss.str());
+                    s.prompt.clear();
+                    if (n_tokens == 0) {
+                        finish(-1, index, nullptr, GEN_ERR_TOKENIZE, "tokenize failed");
+                    } else {
+                        finish(-1, index, nullptr, GEN_ERR_CONTEXT_EXCEEDED, "token count exceeds context");
+                    }
+                    continue;
+                }
+                s.prompt.resize(n_tokens);
+                s.index = index;
+                s.smpl = build_sampler_chain(vocab, sampler_seed);
+                s.out_tokens.reserve(max_tokens);
+                s.t_start = std::chrono::high_resolution_clock::now();
+                s.t_prefilled = s.t_start;
+            }
+        }
+
+        // ★ 生成中のシーケンスの次トークンを先に詰め、残りをプリフィルで埋める
+        batch.n_tokens = 0;
+        bool has_prompt_tokens = false;
+        for (int slot = 0; slot < n_parallel; ++slot) {
+            BatchSequence &s = seqs[slot];
+            s.logits_idx = -1;
+            if (s.index < 0 || s.pending < 0) continue;
+            const int n = batch.n_tokens++;
+            batch.token[n] = s.pending;
+            batch.pos[n] = s.n_past++;
+            batch.n_seq_id[n] = 1;
+            batch.seq_id[n][0] = slot;
+            batch.logits[n] = 1;
+            s.logits_idx = n;
+            s.pending = -1;
+        }
+        for (int slot = 0; slot < n_parallel && batch.n_tokens < g_n_batch; ++slot) {
+            BatchSequence &s = seqs[slot];
+            if (s.index < 0 || s.n_prefilled >= (int32_t)s.prompt.size()) continue;
+            const int32_t n_prompt = (int32_t)s.prompt.size();
+            while (s.n_prefilled < n_prompt && batch.n_tokens < g_n_batch) {
+                const int n = batch.n_tokens++;
+                batch.token[n] = s.prompt[s.n_prefilled];
+                batch.pos[n] = s.n_past++;
+                batch.n_seq_id[n] = 1;
+                batch.seq_id[n][0] = slot;
+                // Only compute logits for the last token of the prompt
+                batch.logits[n] = (++s.n_prefilled == n_prompt) ? 1 : 0;
+                if (batch.logits[n]) s.logits_idx = n;
+            }
+            has_prompt_tokens = true;
+        }
+
+        if (batch.n_tokens == 0) {
+            break;   // every input has been reported
+        }
+
+        auto t_decode0 = std::chrono::high_resolution_clock::now();
+        const int rc = llama_decode(ctx, batch);
+        auto t_decode1 = std::chrono::high_resolution_clock::now();
+        if (has_prompt_tokens) {
+            prompt_eval_ns += elapsed_ns(t_decode0, t_decode1);
+        }
+        if (rc != 0) {
+            std::ostringstream ss;
+            ss << "generateBatch: decode failed (rc=" << rc << ") n_tokens=" << batch.n_tokens;
+            log_to_file(ss.str());
+            error_code = has_prompt_tokens ? GEN_ERR_DECODE_PROMPT : GEN_ERR_DECODE_GENERATION;
+            error_msg = has_prompt_tokens ? "decode failed (prompt)" : "decode failed (generation)";
+            for (int slot = 0; slot < n_parallel; ++slot) {
+                if (seqs[slot].index >= 0) {
+                    finish(slot, seqs[slot].index, nullptr, error_code, error_msg);
+                }
+            }
+            break;
+        }
+
+        // ★ ロジットを持つシーケンスごとにサンプリング
+        for (int slot = 0; slot < n_parallel; ++slot) {
+            BatchSequence &s = seqs[slot];
+            if (s.index < 0 || s.logits_idx < 0) continue;
+            if (s.out_tokens.empty()) {
+                s.t_prefilled = t_decode1;
+            }
+
+            const llama_token id = llama_sampler_sample(s.smpl, ctx, s.logits_idx);
+            llama_sampler_accept(s.smpl, id);
+
+            if (llama_vocab_is_eog(vocab, id)) {
+                finish(slot, s.index, "stop", GEN_ERR_NONE, nullptr);
+                continue;
+            }
+            // ★ スロットの ctx 割り当てを使い切ったら終了
+            if (s.n_past + 1 >= slot_ctx) {
+                finish(slot, s.index, "length", GEN_ERR_NONE, nullptr);
+                continue;
+            }
+            s.out_tokens.push_back(id);
+
+            char *slot_buf = out_buf + (size_t)slot * slot_cap;
+            const int n_chars = llama_detokenize(vocab, s.out_tokens.data(), (int)s.out_tokens.size(),
+                    slot_buf, slot_cap, true, false);
+            if (n_chars < 0) {
+                // Negative result = required size; this slot's output share is full
+                finish(slot, s.index, "length", GEN_ERR_NONE, nullptr);
+                continue;
+            }
+            s.out_len = n_chars;
+
+            const int32_t complete = utf8_complete_prefix(slot_buf, s.out_len);
+            if (complete > s.emitted) {
+                const jboolean keep_going = env->CallBooleanMethod(jCallback, on_bytes, (jint)s.index,
+                        (jint)(slot * slot_cap + s.emitted), (jint)(complete - s.emitted));
+                s.emitted = complete;
+                if (clear_callback_exception(env, "generateBatch")) {
+                    finish(slot, s.index, "stop", GEN_ERR_NONE, nullptr);
+                    continue;
+                }
+                if (!keep_going) {
+                    finish(slot, s.index, "stop", GEN_ERR_NONE, nullptr);
+                    continue;
+                }
+            }
+
+            if ((int)s.out_tokens.size() >= max_tokens) {
+                finish(slot, s.index, "length", GEN_ERR_NONE, nullptr);
+                continue;
+            }
+            s.pending = id;
+        }
+    }
+
+    llama_batch_free(batch);
+    for (BatchSequence &s : seqs) {
+        if (s.smpl) llama_sampler_free(s.smpl);
+    }
+    llama_memory_seq_rm(mem, -1, 0, -1);
+
+    if (ctx != g_ctx) {
+        llama_free(ctx);
+        g_ctx = new_context(1);
+        if (!g_ctx) {
+            // generate() reports "not initialized" until init() makes a new one
+            log_to_file("generateBatch: failed to recreate single-sequence context");
+        }
+    }
+
+    const int64_t batch_ns = elapsed_ns(t_batch0, std::chrono::high_resolution_clock::now());
     {
         std::ostringstream ss;
-        ss << "generate: finished, output_len=" << output.size();
+        ss << "generateBatch: finished, prompts=" << count
+           << " prompt_eval_count=" << total_prompt_tokens
+           << " eval_count=" << total_eval_tokens
+           << " prompt_eval_ns=" << prompt_eval_ns
+           << " total_ns=" << batch_ns
+           << " error=" << error_code;
         log_to_file(ss.str());
     }
+    if (error_code != GEN_ERR_NONE) {
+        return make_generate_error(env, error_code, error_msg, (int)total_prompt_tokens);
+    }
+    return make_generate_result(env, 0, (int)total_prompt_tokens, (int)total_eval_tokens,
+                                prompt_eval_ns, batch_ns - prompt_eval_ns, "stop", GEN_ERR_NONE, nullptr);
+}
+
+// ---------------- JNI: tokenize / detokenize ----------------
+// Vocab-only operations: they take g_model_mutex (shared) instead of g_mutex so token
+// counting does not wait for a running generate().
+extern "C"
+JNIEXPORT jintArray JNICALL
+Java_com_example_ollama_LlamaNative_tokenizeUtf8(
+        JNIEnv *env, jobject,
+        jobject jText, jint length,
+        jboolean addSpecial, jboolean parseSpecial
+) {
+    std::shared_lock<std::shared_mutex> model_lock(g_model_mutex);
+
+    if (!g_model) {
+        throw_java_exception(env, "model not initialized");
+        return nullptr;
+    }
+    const char *text = static_cast<const char *>(env->GetDirectBufferAddress(jText));
+    if (!text || length < 0 || length > env->GetDirectBufferCapacity(jText)) {
+        throw_java_exception(env, "invalid text buffer");
+        return nullptr;
+    }
+
+    const llama_vocab * vocab = llama_model_get_vocab(g_model);
+
+    // Every token covers at least one byte, plus room for BOS/EOS
+    std::vector<llama_token> tokens((size_t)length + 2);
+    int32_t n_tokens = llama_tokenize(vocab, text, length,
+                                      tokens.data(), (int32_t)tokens.size(),
+                                      addSpecial, parseSpecial);
+    if (n_tokens < 0) {
+        tokens.resize((size_t)-n_tokens);
+        n_tokens = llama_tokenize(vocab, text, length,
+                                  tokens.data(), (int32_t)tokens.size(),
+                                  addSpecial, parseSpecial);
+    }
+    if (n_tokens < 0) {
+        log_to_file("tokenize: failed");
+        throw_java_exception(env, "tokenize failed");
+        return nullptr;
+    }
+
+    jintArray result = env->NewIntArray(n_tokens);
+    if (result && n_tokens > 0) {
+        static_assert(sizeof(llama_token) == sizeof(jint), "llama_token must be 32-bit");
+        env->SetIntArrayRegion(result, 0, n_tokens, reinterpret_cast<const jint *>(tokens.data()));
+    }
+    return result;
+}
 
-    return env->NewStringUTF(output.c_str());
+// Returns the number of UTF-8 bytes written into the output buffer, or a negative
+// number (the required size) when the buffer is too small.
+extern "C"
+JNIEXPORT jint JNICALL
+Java_com_example_ollama_LlamaNative_detokenizeUtf8(
+        JNIEnv *env, jobject,
+        jintArray jTokens, jobject jOutput
+) {
+    std::shared_lock<std::shared_mutex> model_lock(g_model_mutex);
+
+    if (!g_model) {
+        throw_java_exception(env, "model not initialized");
+        return 0;
+    }
+    char *out = static_cast<char *>(env->GetDirectBufferAddress(jOutput));
+    const jlong out_capacity = env->GetDirectBufferCapacity(jOutput);
+    if (!jTokens || !out || out_capacity <= 0) {
+        throw_java_exception(env, "invalid tokens/output buffer");
+        return 0;
+    }
+
+    const llama_vocab * vocab = llama_model_get_vocab(g_model);
+    const int32_t n_vocab = llama_vocab_n_tokens(vocab);
+
+    const jsize n = env->GetArrayLength(jTokens);
+    std::vector<llama_token> tokens((size_t)n);
+    env->GetIntArrayRegion(jTokens, 0, n, reinterpret_cast<jint *>(tokens.data()));
+    for (llama_token t : tokens) {
+        if (t < 0 || t >= n_vocab) {
+            throw_java_exception(env, "token id out of range");
+            return 0;
+        }
+    }
+
+    return llama_detokenize(vocab, tokens.data(), (int32_t)tokens.size(),
+                            out, (int32_t)std::min<jlong>(out_capacity, INT32_MAX),
+                            false, false);
+}
+
+// ---------------- JNI: applyChatTemplateUtf8 ----------------
+// Formats a conversation with a chat template through llama_chat_apply_template (the
+// built-in template families, no jinja). Needs no model or lock. jPacked holds the
+// template and then role/content pairs, each as NUL-terminated UTF-8.
+// Returns the formatted UTF-8 bytes, or null if the template is not supported.
+extern "C"
+JNIEXPORT jbyteArray JNICALL
+Java_com_example_ollama_LlamaNative_applyChatTemplateUtf8(
+        JNIEnv *env, jobject,
+        jbyteArray jPacked, jint nMessages, jboolean addAssistant
+) {
+    if (!jPacked || nMessages < 0) {
+        throw_java_exception(env, "invalid chat template input");
+        return nullptr;
+    }
+    const jsize n = env->GetArrayLength(jPacked);
+    std::vector<char> packed((size_t)n + 1, '\0');
+    env->GetByteArrayRegion(jPacked, 0, n, reinterpret_cast<jbyte *>(packed.data()));
+
+    std::vector<const char *> parts;
+    size_t start = 0;
+    for (size_t i = 0; i < (size_t)n; i++) {
+        if (packed[i] == '\0') {
+            parts.push_back(packed.data() + start);
+            start = i + 1;
+        }
+    }
+    if (parts.size() != 1 + 2 * (size_t)nMessages) {
+        throw_java_exception(env, "invalid chat template input");
+        return nullptr;
+    }
+
+    std::vector<llama_chat_message> chat((size_t)nMessages);
+    size_t chars = 0;
+    for (size_t i = 0; i < chat.size(); i++) {
+        chat[i].role = parts[1 + 2 * i];
+        chat[i].content = parts[2 + 2 * i];
+        chars += strlen(chat[i].role) + strlen(chat[i].content);
+    }
+
+    // llama.h suggests twice the message size; markup adds a roughly fixed amount per turn
+    std::vector<char> buf(chars * 2 + 64 * chat.size() + 256);
+    int32_t len = llama_chat_apply_template(parts[0], chat.data(), chat.size(), addAssistant,
+                                            buf.data(), (int32_t)buf.size());
+    if (len > (int32_t)buf.size()) {
+        buf.resize((size_t)len);
+        len = llama_chat_apply_template(parts[0], chat.data(), chat.size(), addAssistant,
+                                        buf.data(), (int32_t)buf.size());
+    }
+    if (len < 0) {
+        return nullptr;
+    }
+
+    jbyteArray result = env->NewByteArray(len);
+    if (result && len > 0) {
+        env->SetByteArrayRegion(result, 0, len, reinterpret_cast<const jbyte *>(buf.data()));
+    }
+    return result;
 }
 
 // ---------------- JNI: free ----------------
@@ -0,0 +1,134 @@
+package com.example.ollama;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An /api/batch request: many prompts run with one configuration.
+ *
+ * The body is either one object, {"model", "prompts": [...], "options", ...}, or JSONL:
+ * one value per line, each a prompt string or an object with "prompt" (and optionally the
+ * batch fields). Both are read as a sequence of top-level values, so they can be mixed;
+ * a later value's batch fields override an earlier one's. Prompts are numbered in the
+ * order they appear.
+ */
+final class BatchRequest {
+    // Upper bound on prompts per request; larger jobs should be split
+    static final int MAX_PROMPTS = 4096;
+
+    String model = "default";
+    // Stream each prompt's tokens as they are generated, not only its result
+    boolean stream = false;
+    int priority = RequestScheduler.PRIORITY_NORMAL;
+    // Prompts decoded side by side; <= 0 lets the native side choose
+    int parallel = 0;
+    JSONObject options;
+    final List<String> prompts = new ArrayList<>();
+
+    private BatchRequest() {
+    }
+
+    int promptChars() {
+        int chars = 0;
+        for (String prompt : prompts) {
+            chars += prompt.length();
+        }
+        return chars;
+    }
+
+    /**
+     * Parse a request body. Unknown fields are skipped.
+     *
+     * @throws JSONException if the body is not valid JSON, a value is neither a prompt string
+     *                       nor an object, or there are more than {@link #MAX_PROMPTS} prompts
+     */
+    static BatchRequest parse(byte[] body) throws JSONException {
+        BatchRequest request = new BatchRequest();
+        JsonReader reader = new JsonReader(new InputStreamReader(
+            new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+        // Lenient mode reads several top-level values (JSONL)
+        reader.setLenient(true);
+        try {
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                JsonToken token = reader.peek();
+                if (token == JsonToken.STRING) {
+                    request.addPrompt(reader.nextString());
+                } else if (token == JsonToken.BEGIN_OBJECT) {
+                    request.readRecord(reader);
+                } else {
+                    throw new JSONException("Batch entry is not a prompt or an object");
+                }
+            }
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new JSONException(e.getMessage());
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {}
+        }
+        return request;
+    }
+
+    private void readRecord(JsonReader reader) throws IOException, JSONException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            switch (name) {
+                case "model":
+                    model = ChatRequest.readString(reader, model);
+                    break;
+                case "stream":
+                    stream = ChatRequest.readBoolean(reader, stream);
+                    break;
+                case "priority":
+                    priority = RequestScheduler.clientPriority(ChatRequest.readInt(reader, priority));
+                    break;
+                case "parallel":
+                    parallel = ChatRequest.readInt(reader, parallel);
+                    break;
+                case "options":
+                    if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                        options = ChatRequest.readObject(reader);
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                case "prompt":
+                    addPrompt(ChatRequest.readString(reader, ""));
+                    break;
+                case "prompts":
+                    if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                        reader.beginArray();
+                        while (reader.hasNext()) {
+                            addPrompt(ChatRequest.readString(reader, ""));
+                        }
+                        reader.endArray();
+                    } else {
+                        reader.skipValue();
+                    }
+                    break;
+                default:
+                    reader.skipValue();
+                    break;
+            }
+        }
+        reader.endObject();
+    }
+
+    private void addPrompt(String prompt) throws JSONException {
+        if (prompts.size() >= MAX_PROMPTS) {
+            throw new JSONException("Too many prompts (max " + MAX_PROMPTS + ")");
+        }
+        prompts.add(prompt);
+    }
+}
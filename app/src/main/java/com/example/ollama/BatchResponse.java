@@ -0,0 +1,99 @@
+package com.example.ollama;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+/**
+ * /api/batch output: application/x-ndjson, one line per finished prompt tagged with its
+ * "index" (in completion order, not input order), then a closing line with the counts.
+ *
+ * A prompt's line has the /api/generate fields, or {"index", "error"} if it failed. With
+ * "stream": true each prompt's pieces are sent as they are generated too (tagged the same
+ * way), and its closing line has an empty "response" as in /api/generate.
+ * Called back on the generating thread only; not thread-safe.
+ */
+final class BatchResponse implements LlamaNative.BatchListener {
+    private static final String TAG = "BatchResponse";
+
+    private final HttpResponseWriter response;
+    private final boolean stream;
+    private final ChunkEncoder encoder;
+    private boolean started = false;
+    private boolean clientGone = false;
+    private int failed = 0;
+
+    BatchResponse(HttpResponseWriter response, boolean stream, String model) {
+        this.response = response;
+        this.stream = stream;
+        this.encoder = new ChunkEncoder(model, false);
+    }
+
+    boolean isClientGone() {
+        return clientGone;
+    }
+
+    @Override
+    public boolean onToken(int index, String piece) {
+        if (stream && !clientGone) {
+            encoder.setIndex(index);
+            writeLine(encoder.piece(piece));
+        }
+        // The whole batch stops once nobody is reading
+        return !clientGone;
+    }
+
+    @Override
+    public boolean onResult(int index, GenerateResult result) {
+        if (result.isError()) {
+            failed++;
+        }
+        if (clientGone) {
+            return false;
+        }
+        encoder.setIndex(index);
+        if (result.isError()) {
+            writeLine(encoder.error(result.errorMessage));
+        } else {
+            writeLine(encoder.done(stream ? "" : result.text, result));
+        }
+        return !clientGone;
+    }
+
+    /**
+     * Closing line and end of the stream. {@code total} carries the summed counters; if it is
+     * an error, the closing line is that error instead (a 500 if nothing has been sent yet),
+     * and prompts that never got a line did not run.
+     */
+    void finish(GenerateResult total, int promptCount) throws IOException {
+        if (clientGone) {
+            return;
+        }
+        encoder.setIndex(-1);
+        if (total.isError() && !started) {
+            Utf8Buffer body = encoder.error(total.errorMessage);
+            response.sendJson(500, body.array(), body.length(), "");
+            return;
+        }
+        writeLine(total.isError() ? encoder.error(total.errorMessage)
+            : encoder.batchDone(promptCount, failed, total));
+        if (!clientGone) {
+            response.endChunked();
+        }
+    }
+
+    private void writeLine(Utf8Buffer json) {
+        json.append((byte) '\n');
+        try {
+            if (!started) {
+                response.startChunked("application/x-ndjson");
+                started = true;
+            }
+            response.writeChunk(json.array(), 0, json.length());
+            response.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Client went away during batch: " + e.getMessage());
+            clientGone = true;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.example.ollama;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Builds the prompt for /api/chat one message at a time: only each message's role and
+ * content are kept. {@link #build} strips template markers from them (the model's own
+ * special tokens included, once the model is known) and formats them with the model's
+ * chat template ({@link ChatTemplate}), or with the configuration's promptTemplate
+ * when there is none.
+ */
+final class ChatPromptBuilder {
+    private static final String DEFAULT_SYSTEM_PROMPT = "You are a helpful assistant.";
+
+    private final List<String> roles = new ArrayList<>();
+    private final List<String> contents = new ArrayList<>();
+    private boolean hasSystem = false;
+
+    void addMessage(String role, String content) {
+        roles.add(role != null ? role : "user");
+        contents.add(content != null ? content : "");
+        hasSystem |= "system".equals(role);
+    }
+
+    int getMessageCount() {
+        return roles.size();
+    }
+
+    /**
+     * The full prompt: every message in its own turn with the model's chat template,
+     * otherwise the configuration's template if it has a {USER_INPUT} slot.
+     *
+     * @param chatTemplate the model's template, or null if it has none usable
+     */
+    String build(ConfigurationManager.Configuration config, ChatTemplate chatTemplate) {
+        // Strip any existing template markers from content to avoid double-templating
+        TemplateMarkerStripper stripper = stripperFor(chatTemplate);
+        List<String> cleanContents = new ArrayList<>(contents.size());
+        for (String content : contents) {
+            cleanContents.add(stripper.strip(content));
+        }
+        if (chatTemplate != null) {
+            String prompt = chatTemplate.formatConversation(roles, cleanContents, hasSystem);
+            if (prompt != null) {
+                return prompt;
+            }
+        }
+        return buildFallback(config, cleanContents);
+    }
+
+    // The older single-slot format: user turns joined, assistant turns inlined after them
+    private String buildFallback(ConfigurationManager.Configuration config, List<String> contents) {
+        String systemPrompt = DEFAULT_SYSTEM_PROMPT;
+        StringBuilder userContent = new StringBuilder();
+        for (int i = 0; i < roles.size(); i++) {
+            String role = roles.get(i);
+            String content = contents.get(i);
+            if ("system".equals(role)) {
+                systemPrompt = content;
+            } else if ("user".equals(role)) {
+                if (userContent.length() > 0) {
+                    userContent.append("\n");
+                }
+                userContent.append(content);
+            } else if ("assistant".equals(role)) {
+                // Include previous assistant responses in context
+                if (userContent.length() > 0) {
+                    userContent.append("\nAssistant: ").append(content).append("\nUser: ");
+                }
+            }
+        }
+
+        String template = config != null ? config.promptTemplate : null;
+        if (template != null && !template.isEmpty() && template.contains("{USER_INPUT}")) {
+            return template.replace("{USER_INPUT}", userContent);
+        }
+
+        // Default format
+        StringBuilder sb = new StringBuilder(userContent.length() + systemPrompt.length() + 48);
+        sb.append("<|system|>\n").append(systemPrompt).append("\n");
+        sb.append("<|user|>\n").append(userContent).append("\n");
+        sb.append("<|assistant|>\n");
+        return sb.toString();
+    }
+
+    /**
+     * Prompt for a single user input (/api/generate, /api/batch, jobs): markers stripped,
+     * then the model's chat template, the configuration's template, or the default format.
+     *
+     * @param chatTemplate the model's template, or null if it has none usable
+     */
+    static String applyTemplate(String userInput, ConfigurationManager.Configuration config,
+                                ChatTemplate chatTemplate) {
+        // Strip any existing template markers from user input to prevent double-templating
+        String cleanInput = stripperFor(chatTemplate).strip(userInput);
+        if (chatTemplate != null) {
+            return chatTemplate.formatInput(cleanInput);
+        }
+
+        if (config != null && config.promptTemplate != null && !config.promptTemplate.isEmpty()) {
+            return config.promptTemplate.replace("{USER_INPUT}", cleanInput);
+        }
+        return "<|system|>\n" + DEFAULT_SYSTEM_PROMPT + "\n<|user|>\n" + cleanInput + "\n<|assistant|>\n";
+    }
+
+    private static TemplateMarkerStripper stripperFor(ChatTemplate chatTemplate) {
+        return chatTemplate != null ? chatTemplate.getStripper() : TemplateMarkerStripper.DEFAULT;
+    }
+}
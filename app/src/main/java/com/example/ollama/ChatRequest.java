@@ -0,0 +1,329 @@
+package com.example.ollama;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An /api/chat or /v1/chat/completions request read with a streaming JSON reader.
+ * The body bytes are decoded as they are read, and each message goes straight into a
+ * {@link ChatPromptBuilder}: the body is never turned into a String or an object tree,
+ * so a long history is held about once (its bytes) instead of three or four times.
+ * Only "options" is materialized as a JSONObject, since it is small.
+ *
+ * The OpenAI fields (max_tokens, stop, seed, stream_options) are read as well; message
+ * content may be a string or an array of {"type": "text", "text"} parts.
+ */
+final class ChatRequest {
+    String model = "default";
+    boolean stream;
+    int priority = RequestScheduler.PRIORITY_NORMAL;
+    boolean useCache = true;
+    long keepAliveMs = GenerateOptions.KEEP_ALIVE_CONFIG;
+    JSONObject options;
+    final ChatPromptBuilder prompt = new ChatPromptBuilder();
+
+    // OpenAI top-level fields; unset unless present
+    int maxTokens = GenerateOptions.NUM_PREDICT_DEFAULT;
+    List<String> stop;
+    Integer seed;
+    boolean includeUsage = false;
+
+    private ChatRequest(boolean defaultStream) {
+        this.stream = defaultStream;
+    }
+
+    /**
+     * Generation options: the configuration's defaults, then "options", then the
+     * OpenAI top-level fields.
+     */
+    GenerateOptions generateOptions(ConfigurationManager.Configuration config) {
+        GenerateOptions result = GenerateOptions.from(config).apply(options);
+        if (maxTokens != GenerateOptions.NUM_PREDICT_DEFAULT) {
+            result.numPredict = maxTokens;
+        }
+        if (stop != null) {
+            result.stop = new ArrayList<>();
+            for (String s : stop) {
+                result.addStop(s);
+            }
+        }
+        if (seed != null) {
+            result.seed = seed;
+        }
+        result.keepAliveMs = keepAliveMs;
+        return result;
+    }
+
+    /**
+     * Parse a request body. Unknown fields are skipped.
+     *
+     * @param defaultStream "stream" when absent (true for Ollama, false for OpenAI)
+     * @throws JSONException if the body is not valid JSON or is not an object
+     */
+    static ChatRequest parse(byte[] body, boolean defaultStream) throws JSONException {
+        ChatRequest request = new ChatRequest(defaultStream);
+        JsonReader reader = new JsonReader(new InputStreamReader(
+            new ByteArrayInputStream(body), StandardCharsets.UTF_8));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case "model":
+                        request.model = readString(reader, request.model);
+                        break;
+                    case "stream":
+                        request.stream = readBoolean(reader, request.stream);
+                        break;
+                    case "priority":
+                        request.priority = RequestScheduler.clientPriority(readInt(reader, request.priority));
+                        break;
+                    case "cache":
+                        request.useCache = readBoolean(reader, request.useCache);
+                        break;
+                    case "keep_alive":
+                        request.keepAliveMs = readKeepAlive(reader);
+                        break;
+                    case "options":
+                        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                            request.options = readObject(reader);
+                        } else {
+                            reader.skipValue();
+                        }
+                        break;
+                    case "max_tokens":
+                    case "max_completion_tokens":
+                        request.maxTokens = readInt(reader, request.maxTokens);
+                        break;
+                    case "stop":
+                        request.stop = readStop(reader);
+                        break;
+                    case "seed":
+                        if (reader.peek() == JsonToken.NUMBER) {
+                            request.seed = readInt(reader, GenerateOptions.SEED_RANDOM);
+                        } else {
+                            reader.skipValue();
+                        }
+                        break;
+                    case "stream_options":
+                        if (reader.peek() == JsonToken.BEGIN_OBJECT) {
+                            JSONObject streamOptions = readObject(reader);
+                            request.includeUsage = streamOptions.optBoolean("include_usage", false);
+                        } else {
+                            reader.skipValue();
+                        }
+                        break;
+                    case "messages":
+                        if (reader.peek() == JsonToken.BEGIN_ARRAY) {
+                            readMessages(reader, request.prompt);
+                        } else {
+                            reader.skipValue();
+                        }
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            // Malformed JSON, or a value of the wrong type where structure was expected
+            throw new JSONException(e.getMessage());
+        } finally {
+            try {
+                reader.close();
+            } catch (IOException ignored) {}
+        }
+        return request;
+    }
+
+    private static void readMessages(JsonReader reader, ChatPromptBuilder prompt)
+            throws IOException, JSONException {
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                throw new JSONException("Message is not an object");
+            }
+            String role = "";
+            String content = "";
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if ("role".equals(name)) {
+                    role = readString(reader, "");
+                } else if ("content".equals(name)) {
+                    content = readContent(reader);
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            prompt.addMessage(role, content);
+        }
+        reader.endArray();
+    }
+
+    // A string, or the text parts of an OpenAI content array joined together
+    private static String readContent(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_ARRAY) {
+            return readString(reader, "");
+        }
+        StringBuilder text = new StringBuilder();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+                reader.skipValue();
+                continue;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if ("text".equals(reader.nextName())) {
+                    text.append(readString(reader, ""));
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        reader.endArray();
+        return text.toString();
+    }
+
+    // A string or an array of strings; null for anything else
+    private static List<String> readStop(JsonReader reader) throws IOException {
+        List<String> stop = new ArrayList<>();
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING) {
+            stop.add(reader.nextString());
+        } else if (token == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                stop.add(readString(reader, ""));
+            }
+            reader.endArray();
+        } else {
+            reader.skipValue();
+            return null;
+        }
+        return stop;
+    }
+
+    // Lenient value readers, also used by BatchRequest
+
+    // Scalar as a string (as optString would); anything else gives the fallback
+    static String readString(JsonReader reader, String fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.STRING || token == JsonToken.NUMBER) {
+            return reader.nextString();
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return String.valueOf(reader.nextBoolean());
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+    // Boolean, or "true"/"false" as a string (as optBoolean would)
+    static boolean readBoolean(JsonReader reader, boolean fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.BOOLEAN) {
+            return reader.nextBoolean();
+        }
+        if (token == JsonToken.STRING) {
+            String s = reader.nextString();
+            if ("true".equalsIgnoreCase(s)) {
+                return true;
+            }
+            if ("false".equalsIgnoreCase(s)) {
+                return false;
+            }
+            return fallback;
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+    // Number, or a numeric string (as optInt would)
+    static int readInt(JsonReader reader, int fallback) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER || token == JsonToken.STRING) {
+            try {
+                return (int) Double.parseDouble(reader.nextString());
+            } catch (NumberFormatException e) {
+                return fallback;
+            }
+        }
+        reader.skipValue();
+        return fallback;
+    }
+
+    // Ollama keep_alive: a number of seconds or a duration string
+    static long readKeepAlive(JsonReader reader) throws IOException {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NUMBER) {
+            try {
+                return GenerateOptions.parseKeepAlive(Double.parseDouble(reader.nextString()));
+            } catch (NumberFormatException e) {
+                return GenerateOptions.KEEP_ALIVE_CONFIG;
+            }
+        }
+        if (token == JsonToken.STRING) {
+            return GenerateOptions.parseKeepAlive(reader.nextString());
+        }
+        reader.skipValue();
+        return GenerateOptions.KEEP_ALIVE_CONFIG;
+    }
+
+    static JSONObject readObject(JsonReader reader) throws IOException, JSONException {
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            object.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY: {
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    array.put(readValue(reader));
+                }
+                reader.endArray();
+                return array;
+            }
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NUMBER: {
+                String number = reader.nextString();
+                try {
+                    return Long.parseLong(number);
+                } catch (NumberFormatException e) {
+                    return Double.parseDouble(number);
+                }
+            }
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+}
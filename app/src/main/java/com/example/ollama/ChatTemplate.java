@@ -0,0 +1,151 @@
+package com.example.ollama;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A configuration's model chat template (GGUF tokenizer.chat_template), applied by
+ * llama_chat_apply_template. Every turn keeps its own markup, so the prompt for turn N
+ * is a prefix of the prompt for turn N+1, which is what KV cache reuse needs.
+ *
+ * Instances are cached per configuration ({@link #forConfig}) and rebuilt when the model
+ * file or the system prompt changes. Each one also holds the formatted prefix and suffix
+ * around a single user message under the configuration's system prompt. Prompts for one
+ * input (/api/generate, batches, jobs) are built from these without a native call. The
+ * marker stripper with the model's control tokens is cached alongside.
+ */
+final class ChatTemplate {
+    private static final String TAG = "ChatTemplate";
+
+    // Stands in for the user input while formatting the prefix/suffix; no template alters it
+    private static final String INPUT_SENTINEL = "\u0001\u0002";
+
+    private static final Map<String, ChatTemplate> CACHE = new HashMap<>();
+
+    private final LlamaNative llama;
+    private final String template;
+    private final String systemPrompt;
+    // Model file and system prompt this instance was built for
+    private final String stamp;
+    // Single-input prompt = inputPrefix + input + inputSuffix; null if the template is unsupported
+    private final String inputPrefix;
+    private final String inputSuffix;
+    // Built-in markers plus the model's control tokens
+    private final TemplateMarkerStripper stripper;
+
+    private ChatTemplate(LlamaNative llama, String template, String systemPrompt, String stamp,
+                         TemplateMarkerStripper stripper) {
+        this.llama = llama;
+        this.template = template;
+        this.systemPrompt = systemPrompt;
+        this.stamp = stamp;
+        this.stripper = stripper;
+        String formatted = template != null ? formatSingle(INPUT_SENTINEL) : null;
+        int at = formatted != null ? formatted.indexOf(INPUT_SENTINEL) : -1;
+        if (at >= 0 && formatted.indexOf(INPUT_SENTINEL, at + 1) < 0) {
+            inputPrefix = formatted.substring(0, at);
+            inputSuffix = formatted.substring(at + INPUT_SENTINEL.length());
+        } else {
+            inputPrefix = null;
+            inputSuffix = null;
+        }
+    }
+
+    /**
+     * The model's template for {@code config}, or null if it cannot be used and the
+     * configuration's promptTemplate applies instead. That happens when the model file
+     * is not downloaded yet, has no embedded template, or has one llama.cpp does not
+     * recognise.
+     */
+    static ChatTemplate forConfig(ConfigurationManager.Configuration config, File modelFile,
+                                  LlamaNative llama) {
+        if (config == null || modelFile == null || !modelFile.isFile()) {
+            return null;
+        }
+        String systemPrompt = config.systemPrompt != null ? config.systemPrompt : "";
+        String stamp = modelFile.getAbsolutePath() + ":" + modelFile.length() + ":"
+            + modelFile.lastModified() + ":" + systemPrompt;
+        ChatTemplate cached;
+        synchronized (CACHE) {
+            cached = CACHE.get(config.name);
+        }
+        if (cached == null || !cached.stamp.equals(stamp)) {
+            GgufReader.Metadata metadata = GgufReader.read(modelFile);
+            String template = metadata != null ? metadata.chatTemplate() : null;
+            TemplateMarkerStripper stripper = metadata != null && !metadata.controlTokens.isEmpty()
+                ? TemplateMarkerStripper.withMarkers(metadata.controlTokens) : TemplateMarkerStripper.DEFAULT;
+            cached = new ChatTemplate(llama, template, systemPrompt, stamp, stripper);
+            if (template != null && cached.inputPrefix == null) {
+                Log.w(TAG, "Chat template of " + modelFile.getName()
+                    + " is not supported; using the configured prompt template");
+            }
+            synchronized (CACHE) {
+                CACHE.put(config.name, cached);
+            }
+        }
+        return cached.inputPrefix != null ? cached : null;
+    }
+
+    /**
+     * Template-marker stripper for messages to this model: the built-in markers and the
+     * model's control tokens.
+     */
+    TemplateMarkerStripper getStripper() {
+        return stripper;
+    }
+
+    /**
+     * Prompt for a single user message under the configuration's system prompt.
+     */
+    String formatInput(String userInput) {
+        return inputPrefix + userInput + inputSuffix;
+    }
+
+    /**
+     * Prompt for a conversation, ending with the opening of the assistant's turn. The
+     * configuration's system prompt is put first unless the conversation has its own.
+     *
+     * @return null if the template rejected the conversation
+     */
+    String formatConversation(List<String> roles, List<String> contents, boolean hasSystem) {
+        if (!hasSystem && !systemPrompt.isEmpty()) {
+            List<String> withSystemRoles = new ArrayList<>(roles.size() + 1);
+            List<String> withSystemContents = new ArrayList<>(contents.size() + 1);
+            withSystemRoles.add("system");
+            withSystemContents.add(systemPrompt);
+            withSystemRoles.addAll(roles);
+            withSystemContents.addAll(contents);
+            roles = withSystemRoles;
+            contents = withSystemContents;
+        }
+        try {
+            return llama.applyChatTemplate(template, roles, contents, true);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Chat template failed", e);
+            return null;
+        }
+    }
+
+    // [system prompt,] one user message; null if the template is not supported
+    private String formatSingle(String userInput) {
+        List<String> roles = new ArrayList<>(2);
+        List<String> contents = new ArrayList<>(2);
+        if (!systemPrompt.isEmpty()) {
+            roles.add("system");
+            contents.add(systemPrompt);
+        }
+        roles.add("user");
+        contents.add(userInput);
+        try {
+            return llama.applyChatTemplate(template, roles, contents, true);
+        } catch (RuntimeException | UnsatisfiedLinkError e) {
+            Log.w(TAG, "Chat template failed", e);
+            return null;
+        }
+    }
+}
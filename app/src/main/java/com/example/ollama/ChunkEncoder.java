@@ -0,0 +1,177 @@
+package com.example.ollama;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes /api/generate and /api/chat response objects straight to UTF-8 bytes.
+ *
+ * The parts that are fixed for a request (model name, field names, the chat message
+ * wrapper) are serialized once in the constructor; per token only the timestamp and
+ * the escaped token text are written. Field order matches what the JSONObject-based
+ * code produced. Encoded objects land in one reused buffer, valid until the next call.
+ * One instance per request; not thread-safe.
+ */
+final class ChunkEncoder {
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] DONE_FALSE = ascii(",\"done\":false}");
+    private static final byte[] DONE_TRUE = ascii(",\"done\":true");
+
+    // "model":"<model>","created_at":"  (after the opening brace and any "index")
+    private final byte[] prefix;
+    // ","response":"  or  ","message":{"role":"assistant","content":"
+    private final byte[] textOpen;
+    // "  or  "}
+    private final byte[] textClose;
+    private final Utf8Buffer buffer = new Utf8Buffer(512);
+    // /api/batch input index written first in every object; -1 for none
+    private int index = -1;
+
+    ChunkEncoder(String model, boolean chat) {
+        Utf8Buffer b = new Utf8Buffer(64);
+        b.appendAscii("\"model\":\"");
+        appendEscaped(b, model);
+        b.appendAscii("\",\"created_at\":\"");
+        prefix = toArray(b);
+        textOpen = ascii(chat
+            ? "\",\"message\":{\"role\":\"assistant\",\"content\":\""
+            : "\",\"response\":\"");
+        textClose = ascii(chat ? "\"}" : "\"");
+    }
+
+    /**
+     * Tag the following objects with {"index": n} (an /api/batch input); -1 to stop.
+     */
+    void setIndex(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Streamed piece: {"model",...,"done":false}.
+     */
+    Utf8Buffer piece(String text) {
+        begin(text);
+        buffer.append(DONE_FALSE);
+        return buffer;
+    }
+
+    /**
+     * Final object with done_reason and timings; {@code text} is "" when streaming.
+     */
+    Utf8Buffer done(String text, GenerateResult gen) {
+        begin(text);
+        buffer.append(DONE_TRUE);
+        buffer.appendAscii(",\"done_reason\":\"");
+        appendEscaped(buffer, gen.doneReason != null ? gen.doneReason : "");
+        buffer.append((byte) '"');
+        timings(gen);
+        buffer.append((byte) '}');
+        return buffer;
+    }
+
+    /**
+     * Closing /api/batch object: how many inputs ran and failed, then the summed
+     * counters and the batch's timings.
+     */
+    Utf8Buffer batchDone(int count, int failed, GenerateResult total) {
+        open();
+        buffer.append(prefix);
+        buffer.appendAscii(HttpResponseWriter.timestamp());
+        buffer.append((byte) '"').append(DONE_TRUE);
+        field("count", count);
+        field("errors", failed);
+        timings(total);
+        buffer.append((byte) '}');
+        return buffer;
+    }
+
+    /**
+     * {"error":"..."}, for errors after streaming has started.
+     */
+    Utf8Buffer error(String message) {
+        open();
+        buffer.appendAscii("\"error\":\"");
+        appendEscaped(buffer, message != null ? message : "");
+        buffer.appendAscii("\"}");
+        return buffer;
+    }
+
+    private void begin(String text) {
+        open();
+        buffer.append(prefix);
+        buffer.appendAscii(HttpResponseWriter.timestamp());
+        buffer.append(textOpen);
+        appendEscaped(buffer, text);
+        buffer.append(textClose);
+    }
+
+    private void open() {
+        buffer.reset();
+        buffer.append((byte) '{');
+        if (index >= 0) {
+            buffer.appendAscii("\"index\":").appendDecimal(index).append((byte) ',');
+        }
+    }
+
+    private void timings(GenerateResult gen) {
+        field("total_duration", gen.totalDurationNs);
+        field("load_duration", gen.loadDurationNs);
+        field("prompt_eval_count", gen.promptEvalCount);
+        field("prompt_eval_duration", gen.promptEvalDurationNs);
+        field("eval_count", gen.evalCount);
+        field("eval_duration", gen.evalDurationNs);
+        field("queue_duration", gen.queueDurationNs);
+    }
+
+    private void field(String name, long value) {
+        buffer.append((byte) ',').append((byte) '"').appendAscii(name)
+            .append((byte) '"').append((byte) ':').appendDecimal(value);
+    }
+
+    /**
+     * Append s as the contents of a JSON string (no surrounding quotes).
+     * Runs of characters needing no escape are copied in one go.
+     */
+    static void appendEscaped(Utf8Buffer out, CharSequence s) {
+        int n = s.length();
+        int runStart = 0;
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != '\u2028' && c != '\u2029') {
+                continue;
+            }
+            if (i > runStart) {
+                out.appendUtf8(s, runStart, i);
+            }
+            runStart = i + 1;
+            out.append((byte) '\\');
+            switch (c) {
+                case '"': out.append((byte) '"'); break;
+                case '\\': out.append((byte) '\\'); break;
+                case '\n': out.append((byte) 'n'); break;
+                case '\r': out.append((byte) 'r'); break;
+                case '\t': out.append((byte) 't'); break;
+                case '\b': out.append((byte) 'b'); break;
+                case '\f': out.append((byte) 'f'); break;
+                default:
+                    // Other control chars, and U+2028/U+2029 (line breaks to JavaScript)
+                    out.append((byte) 'u')
+                        .append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF])
+                        .append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+                    break;
+            }
+        }
+        if (n > runStart) {
+            out.appendUtf8(s, runStart, n);
+        }
+    }
+
+    private static byte[] toArray(Utf8Buffer b) {
+        byte[] bytes = new byte[b.length()];
+        System.arraycopy(b.array(), 0, bytes, 0, b.length());
+        return bytes;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
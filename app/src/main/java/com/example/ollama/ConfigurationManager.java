@@ -1,6 +1,7 @@
 package com.example.ollama;
 
 import android.content.Context;
+import android.os.FileObserver;
 import android.util.Log;
 
 import org.json.JSONException;
@@ -8,33 +9,71 @@ import org.json.JSONObject;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+/**
+ * Configurations are JSON files in the app's external files dir. Parsed configurations
+ * and the list of names are kept in memory, shared by every instance, so loading one on
+ * the request path normally costs no file access. A {@link FileObserver} on the directory
+ * marks entries stale when a file is written, renamed or deleted behind our back (adb,
+ * a file manager), and every entry is also re-checked against the file's size and mtime
+ * once it is REVALIDATE_MS old in case an event was missed. Saves go to a temp file that
+ * is renamed over the old one, so a reader never sees half a file.
+ */
 public class ConfigurationManager {
     private static final String TAG = "ConfigurationManager";
     private static final String CONFIG_DIR = "configs";
     private static final String DEFAULT_CONFIG_NAME = "default";
+    private static final String SUFFIX = ".json";
+    private static final String TEMP_SUFFIX = ".tmp";
+    
+    // Age after which a cached entry is checked against the file again
+    private static final long REVALIDATE_MS = 10_000;
+    private static final int OBSERVED_EVENTS = FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO
+        | FileObserver.MOVED_FROM | FileObserver.DELETE | FileObserver.CREATE;
+    
+    // Per configs directory (there is one in practice); also keeps its observer reachable
+    private static final Map<String, DirCache> DIR_CACHES = new HashMap<>();
     
     private final Context context;
     private final File configDir;
+    private final DirCache cache;
     
+    /**
+     * A configuration. Instances returned by {@link #loadConfiguration} are shared
+     * snapshots: read them, but build a new one (or go through toJSON/fromJSON) to change
+     * settings, and save that.
+     */
     public static class Configuration {
         // Default constant for DRY sequence breakers (must match C++ DEFAULT_DRY_SEQUENCE_BREAKERS)
         public static final String DEFAULT_DRY_SEQUENCE_BREAKERS = "\\n,:,\",*";
+        public static final String DEFAULT_KEEP_ALIVE = "5m";
+        public static final String DEFAULT_SYSTEM_PROMPT =
+            "You are a helpful assistant. Please respond in the user's language.";
         
         public String name;
         public String modelUrl;
+        // Expected SHA-256 of the model file (hex); "" to rely on the server's ETag
+        public String sha256;
         public int nCtx;
         public int nThreads;
         public int nBatch;
         public double temp;
         public double topP;
         public int topK;
+        // Sampler seed; -1 = random each run, >= 0 = reproducible output
+        public int seed;
+        // Fallback when the model's GGUF chat template cannot be used
         public String promptTemplate;
+        // System message for the model's chat template when the request has none; "" for none
+        public String systemPrompt;
         
         // Penalty parameters
         public int penaltyLastN;
@@ -63,16 +102,23 @@ public class ConfigurationManager {
         public int dryPenaltyLastN;
         public String drySequenceBreakers;
         
+        // Idle time before the model is unloaded (Ollama keep_alive syntax; "-1" = never)
+        public String keepAlive;
+        
         public Configuration() {
             // Default values - Gemma 1B assistant
             name = DEFAULT_CONFIG_NAME;
             modelUrl = "https://huggingface.co/vinhnx90/gemma-3-1b-thinking-v2-Q4_K_M-GGUF/resolve/main/gemma-3-1b-thinking-v2-q4_k_m.gguf?download=true";
+            sha256 = "";
             nCtx = 2048;
             nThreads = 4;
             nBatch = 16;
             temp = 0.7;
             topP = 0.9;
             topK = 40;
+            seed = -1;
+            keepAlive = DEFAULT_KEEP_ALIVE;
+            systemPrompt = DEFAULT_SYSTEM_PROMPT;
             promptTemplate = "<start_of_turn>system\nYou are a helpful assistant. Please respond in the user's language.\n<end_of_turn>\n<start_of_turn>user\n{USER_INPUT}\n<end_of_turn>\n<start_of_turn>model";
             
             // Penalty parameters defaults
@@ -112,13 +158,17 @@ public class ConfigurationManager {
             JSONObject json = new JSONObject();
             json.put("name", name);
             json.put("modelUrl", modelUrl);
+            json.put("sha256", sha256);
             json.put("nCtx", nCtx);
             json.put("nThreads", nThreads);
             json.put("nBatch", nBatch);
             json.put("temp", temp);
             json.put("topP", topP);
             json.put("topK", topK);
+            json.put("seed", seed);
+            json.put("keepAlive", keepAlive);
             json.put("promptTemplate", promptTemplate);
+            json.put("systemPrompt", systemPrompt);
             
             // Penalty parameters
             json.put("penaltyLastN", penaltyLastN);
@@ -154,13 +204,17 @@ public class ConfigurationManager {
             Configuration config = new Configuration();
             config.name = json.getString("name");
             config.modelUrl = json.getString("modelUrl");
+            config.sha256 = json.optString("sha256", "");
             config.nCtx = json.getInt("nCtx");
             config.nThreads = json.getInt("nThreads");
             config.nBatch = json.getInt("nBatch");
             config.temp = json.getDouble("temp");
             config.topP = json.getDouble("topP");
             config.topK = json.getInt("topK");
+            config.seed = json.optInt("seed", -1);
+            config.keepAlive = json.optString("keepAlive", DEFAULT_KEEP_ALIVE);
             config.promptTemplate = json.getString("promptTemplate");
+            config.systemPrompt = json.optString("systemPrompt", DEFAULT_SYSTEM_PROMPT);
             
             // Penalty parameters (with defaults for backward compatibility)
             config.penaltyLastN = json.optInt("penaltyLastN", 64);
@@ -199,6 +253,7 @@ public class ConfigurationManager {
         if (!configDir.exists()) {
             configDir.mkdirs();
         }
+        this.cache = dirCache(configDir);
         ensureDefaultConfig();
     }
     
@@ -218,20 +273,44 @@ public class ConfigurationManager {
         if (config.name == null || config.name.trim().isEmpty()) {
             throw new IllegalArgumentException("Configuration name cannot be empty");
         }
+        if (!ModelDigest.isWellFormed(config.sha256)) {
+            throw new IllegalArgumentException("SHA-256 must be 64 hex digits or empty");
+        }
         
-        File configFile = new File(configDir, config.name + ".json");
-        try (FileWriter writer = new FileWriter(configFile)) {
-            writer.write(config.toJSON().toString(2)); // Pretty print with indent of 2
+        String text = config.toJSON().toString(2); // Pretty print with indent of 2
+        // The cache gets its own copy, not the caller's object
+        Configuration snapshot = Configuration.fromJSON(new JSONObject(text));
+        File configFile = new File(configDir, config.name + SUFFIX);
+        File tempFile = new File(configDir, config.name + SUFFIX + TEMP_SUFFIX);
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(text.getBytes(StandardCharsets.UTF_8));
+            out.getFD().sync();
+        } catch (IOException e) {
+            tempFile.delete();
+            throw e;
+        }
+        if (!tempFile.renameTo(configFile)) {
+            tempFile.delete();
+            throw new IOException("Cannot replace " + configFile);
         }
+        cache.put(config.name, snapshot, configFile);
         Log.d(TAG, "Saved configuration: " + config.name);
     }
     
     public Configuration loadConfiguration(String name) throws IOException, JSONException {
-        File configFile = new File(configDir, name + ".json");
+        File configFile = new File(configDir, name + SUFFIX);
+        Configuration cached = cache.get(name, configFile);
+        if (cached != null) {
+            return cached;
+        }
         if (!configFile.exists()) {
+            cache.remove(name);
             throw new IOException("Configuration not found: " + name);
         }
         
+        // Stat before reading: a write in between makes the entry look stale, not current
+        long length = configFile.length();
+        long mtime = configFile.lastModified();
         StringBuilder sb = new StringBuilder();
         try (BufferedReader reader = new BufferedReader(new FileReader(configFile))) {
             String line;
@@ -242,21 +321,13 @@ public class ConfigurationManager {
         
         JSONObject json = new JSONObject(sb.toString());
         Configuration config = Configuration.fromJSON(json);
+        cache.put(name, config, length, mtime);
         Log.d(TAG, "Loaded configuration: " + name);
         return config;
     }
     
     public List<String> listConfigurations() {
-        List<String> configs = new ArrayList<>();
-        File[] files = configDir.listFiles((dir, name) -> name.endsWith(".json"));
-        if (files != null) {
-            for (File file : files) {
-                String name = file.getName();
-                // Remove .json extension
-                configs.add(name.substring(0, name.length() - 5));
-            }
-        }
-        return configs;
+        return cache.names();
     }
     
     public boolean deleteConfiguration(String name) {
@@ -265,11 +336,142 @@ public class ConfigurationManager {
             return false;
         }
         
-        File configFile = new File(configDir, name + ".json");
+        File configFile = new File(configDir, name + SUFFIX);
         boolean deleted = configFile.delete();
+        cache.remove(name);
         if (deleted) {
             Log.d(TAG, "Deleted configuration: " + name);
         }
         return deleted;
     }
+    
+    private static DirCache dirCache(File dir) {
+        synchronized (DIR_CACHES) {
+            DirCache cache = DIR_CACHES.get(dir.getAbsolutePath());
+            if (cache == null) {
+                cache = new DirCache(dir);
+                DIR_CACHES.put(dir.getAbsolutePath(), cache);
+                cache.startWatching();
+            }
+            return cache;
+        }
+    }
+    
+    private static long nowMs() {
+        return System.nanoTime() / 1_000_000;
+    }
+    
+    private static final class Entry {
+        final Configuration config;
+        final long length;
+        final long mtime;
+        // When the file was last seen to match; 0 = check on next use
+        long validatedAt;
+        
+        Entry(Configuration config, long length, long mtime, long validatedAt) {
+            this.config = config;
+            this.length = length;
+            this.mtime = mtime;
+            this.validatedAt = validatedAt;
+        }
+    }
+    
+    /**
+     * Parsed configurations and file names of one configs directory.
+     */
+    private static final class DirCache {
+        private final File dir;
+        private final Map<String, Entry> entries = new HashMap<>();
+        private List<String> names;
+        private long namesDirMtime;
+        private long namesValidatedAt;
+        private FileObserver observer;
+        
+        DirCache(File dir) {
+            this.dir = dir;
+        }
+        
+        @SuppressWarnings("deprecation")
+        void startWatching() {
+            // FileObserver(File, int) needs API 29
+            observer = new FileObserver(dir.getAbsolutePath(), OBSERVED_EVENTS) {
+                @Override
+                public void onEvent(int event, String path) {
+                    if (path != null && path.endsWith(SUFFIX)) {
+                        invalidate(path.substring(0, path.length() - SUFFIX.length()));
+                    }
+                }
+            };
+            observer.startWatching();
+        }
+        
+        // Cached configuration, or null if there is none or the file has changed
+        synchronized Configuration get(String name, File file) {
+            Entry entry = entries.get(name);
+            if (entry == null) {
+                return null;
+            }
+            long now = nowMs();
+            if (entry.validatedAt != 0 && now - entry.validatedAt < REVALIDATE_MS) {
+                return entry.config;
+            }
+            // A missing file reads as length 0 and mtime 0
+            if (file.length() == entry.length && file.lastModified() == entry.mtime) {
+                entry.validatedAt = now;
+                return entry.config;
+            }
+            entries.remove(name);
+            return null;
+        }
+        
+        synchronized void put(String name, Configuration config, File file) {
+            put(name, config, file.length(), file.lastModified());
+        }
+        
+        synchronized void put(String name, Configuration config, long length, long mtime) {
+            entries.put(name, new Entry(config, length, mtime, nowMs()));
+            if (names != null && !names.contains(name)) {
+                names = null;
+            }
+        }
+        
+        synchronized void remove(String name) {
+            entries.remove(name);
+            names = null;
+        }
+        
+        // Observer thread: something happened to name.json
+        synchronized void invalidate(String name) {
+            Entry entry = entries.get(name);
+            if (entry != null) {
+                entry.validatedAt = 0;
+            }
+            names = null;
+        }
+        
+        synchronized List<String> names() {
+            long now = nowMs();
+            if (names != null && now - namesValidatedAt >= REVALIDATE_MS) {
+                if (dir.lastModified() != namesDirMtime) {
+                    names = null;
+                } else {
+                    namesValidatedAt = now;
+                }
+            }
+            if (names == null) {
+                namesDirMtime = dir.lastModified();
+                namesValidatedAt = now;
+                names = new ArrayList<>();
+                File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+                if (files != null) {
+                    for (File file : files) {
+                        String name = file.getName();
+                        // Remove .json extension
+                        names.add(name.substring(0, name.length() - SUFFIX.length()));
+                    }
+                }
+            }
+            return new ArrayList<>(names);
+        }
+    }
 }
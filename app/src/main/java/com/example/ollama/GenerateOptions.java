@@ -0,0 +1,166 @@
+package com.example.ollama;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per-request generation options layered over a Configuration
+ * (the Ollama "options" object).
+ */
+public class GenerateOptions {
+    // Pick a new random seed for every run
+    public static final int SEED_RANDOM = -1;
+    // Use the native default token limit
+    public static final int NUM_PREDICT_DEFAULT = -1;
+    // Keep the model loaded for the configuration's keep_alive
+    public static final long KEEP_ALIVE_CONFIG = Long.MIN_VALUE;
+    // Never unload
+    public static final long KEEP_ALIVE_FOREVER = -1;
+
+    public int seed = SEED_RANDOM;
+    // Maximum tokens to generate; <= 0 means the native default
+    public int numPredict = NUM_PREDICT_DEFAULT;
+    // Generation ends before the first occurrence of any of these; never null
+    public List<String> stop = new ArrayList<>();
+    // How long the model stays loaded once idle (Ollama "keep_alive"), in ms; does not
+    // affect output, so it is not part of the signature
+    public long keepAliveMs = KEEP_ALIVE_CONFIG;
+
+    /**
+     * Options taken from a configuration's defaults (config may be null).
+     */
+    public static GenerateOptions from(ConfigurationManager.Configuration config) {
+        GenerateOptions options = new GenerateOptions();
+        if (config != null) {
+            options.seed = config.seed;
+        }
+        return options;
+    }
+
+    /**
+     * Override with the fields present in an Ollama "options" object (may be null).
+     */
+    public GenerateOptions apply(JSONObject json) {
+        if (json == null) {
+            return this;
+        }
+        if (json.has("seed")) {
+            seed = json.optInt("seed", seed);
+        }
+        if (json.has("num_predict")) {
+            numPredict = json.optInt("num_predict", numPredict);
+        }
+        if (json.has("stop")) {
+            setStop(json.opt("stop"));
+        }
+        return this;
+    }
+
+    /**
+     * Replace the stop sequences from a JSON value: a string or an array of strings
+     * (OpenAI accepts both). Empty strings are ignored.
+     */
+    public GenerateOptions setStop(Object value) {
+        stop = new ArrayList<>();
+        if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            for (int i = 0; i < array.length(); i++) {
+                addStop(array.optString(i, ""));
+            }
+        } else if (value instanceof String) {
+            addStop((String) value);
+        }
+        return this;
+    }
+
+    public GenerateOptions addStop(String sequence) {
+        if (sequence != null && !sequence.isEmpty() && !stop.contains(sequence)) {
+            stop.add(sequence);
+        }
+        return this;
+    }
+
+    /**
+     * Parse an Ollama keep_alive value: a duration ("5m", "30s", "1h30m", "500ms"), a
+     * number of seconds, or anything negative to keep the model loaded. 0 unloads it as
+     * soon as the request is done.
+     *
+     * @return milliseconds, {@link #KEEP_ALIVE_FOREVER}, or {@link #KEEP_ALIVE_CONFIG} for
+     *         null and unparseable values
+     */
+    public static long parseKeepAlive(Object value) {
+        if (value instanceof Number) {
+            double seconds = ((Number) value).doubleValue();
+            return seconds < 0 ? KEEP_ALIVE_FOREVER : (long) (seconds * 1000);
+        }
+        if (!(value instanceof String)) {
+            return KEEP_ALIVE_CONFIG;
+        }
+        String s = ((String) value).trim();
+        if (s.isEmpty()) {
+            return KEEP_ALIVE_CONFIG;
+        }
+        if (s.startsWith("-")) {
+            return KEEP_ALIVE_FOREVER;
+        }
+        try {
+            return (long) (Double.parseDouble(s) * 1000);
+        } catch (NumberFormatException e) {
+            // A duration
+        }
+        double total = 0;
+        int i = 0;
+        while (i < s.length()) {
+            int start = i;
+            while (i < s.length() && (Character.isDigit(s.charAt(i)) || s.charAt(i) == '.')) {
+                i++;
+            }
+            int unitStart = i;
+            while (i < s.length() && Character.isLetter(s.charAt(i))) {
+                i++;
+            }
+            if (start == unitStart || unitStart == i) {
+                return KEEP_ALIVE_CONFIG;
+            }
+            double amount;
+            try {
+                amount = Double.parseDouble(s.substring(start, unitStart));
+            } catch (NumberFormatException e) {
+                return KEEP_ALIVE_CONFIG;
+            }
+            switch (s.substring(unitStart, i)) {
+                case "ms": total += amount; break;
+                case "s": total += amount * 1000; break;
+                case "m": total += amount * 60 * 1000; break;
+                case "h": total += amount * 60 * 60 * 1000; break;
+                default: return KEEP_ALIVE_CONFIG;
+            }
+        }
+        return (long) total;
+    }
+
+    /**
+     * Whether identical input produces identical output with these options: a fixed
+     * seed, or greedy sampling (temperature <= 0). Assumes the same thread count and
+     * batch size, which are part of the configuration.
+     */
+    public boolean isDeterministic(ConfigurationManager.Configuration config) {
+        return seed >= 0 || config.temp <= 0;
+    }
+
+    /**
+     * Stable string of every option that affects output, for fingerprints.
+     */
+    public String signature() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("seed=").append(seed).append("|num_predict=").append(numPredict);
+        for (String s : stop) {
+            // Length-prefixed so no stop string can imitate a separator
+            sb.append("|stop=").append(s.length()).append(':').append(s);
+        }
+        return sb.toString();
+    }
+}
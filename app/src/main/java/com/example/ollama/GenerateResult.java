@@ -0,0 +1,89 @@
+package com.example.ollama;
+
+/**
+ * Structured result of a single generation.
+ * Created by native code (see jni_llama.cpp) and completed on the Java side
+ * with load/total timings so the API can report Ollama-compatible fields.
+ */
+public class GenerateResult {
+    // Error codes - MUST match the GEN_ERR_* values in jni_llama.cpp
+    public static final int ERROR_NONE = 0;
+    public static final int ERROR_NOT_INITIALIZED = 1;
+    public static final int ERROR_TOKENIZE = 2;
+    public static final int ERROR_CONTEXT_EXCEEDED = 3;
+    public static final int ERROR_DECODE_PROMPT = 4;
+    public static final int ERROR_DECODE_GENERATION = 5;
+    public static final int ERROR_EXCEPTION = 6;
+    public static final int ERROR_INVALID_ARGUMENT = 7;
+
+    // Done reasons (Ollama "done_reason")
+    public static final String DONE_STOP = "stop";
+    public static final String DONE_LENGTH = "length";
+    public static final String DONE_ERROR = "error";
+    // Load-only requests (empty prompt): the model was loaded, or unloaded (keep_alive 0)
+    public static final String DONE_LOAD = "load";
+    public static final String DONE_UNLOAD = "unload";
+
+    // Decoded from the UTF-8 output buffer by LlamaNative
+    public String text = "";
+    // Length of the UTF-8 output in bytes
+    public final int outputLength;
+    public final int promptEvalCount;
+    public final int evalCount;
+    public final long promptEvalDurationNs;
+    public final long evalDurationNs;
+    public final String doneReason;
+    public final int errorCode;
+    public final String errorMessage;
+
+    // Filled in by ModelManager / API layer
+    public long loadDurationNs;
+    public long totalDurationNs;
+    public long queueDurationNs;
+
+    // Called from native code
+    public GenerateResult(int outputLength, int promptEvalCount, int evalCount,
+                          long promptEvalDurationNs, long evalDurationNs,
+                          String doneReason, int errorCode, String errorMessage) {
+        this.outputLength = outputLength;
+        this.promptEvalCount = promptEvalCount;
+        this.evalCount = evalCount;
+        this.promptEvalDurationNs = promptEvalDurationNs;
+        this.evalDurationNs = evalDurationNs;
+        this.doneReason = doneReason;
+        this.errorCode = errorCode;
+        this.errorMessage = errorMessage;
+    }
+
+    public static GenerateResult error(int errorCode, String errorMessage) {
+        return new GenerateResult(0, 0, 0, 0, 0, DONE_ERROR, errorCode, errorMessage);
+    }
+
+    /**
+     * Copy with the same text, counters and timings (for requests sharing one generation).
+     */
+    public GenerateResult copy() {
+        GenerateResult c = new GenerateResult(outputLength, promptEvalCount, evalCount,
+            promptEvalDurationNs, evalDurationNs, doneReason, errorCode, errorMessage);
+        c.text = text;
+        c.loadDurationNs = loadDurationNs;
+        c.totalDurationNs = totalDurationNs;
+        c.queueDurationNs = queueDurationNs;
+        return c;
+    }
+
+    public boolean isError() {
+        return errorCode != ERROR_NONE;
+    }
+
+    @Override
+    public String toString() {
+        if (isError()) {
+            return "GenerateResult{error=" + errorCode + " (" + errorMessage + ")}";
+        }
+        return "GenerateResult{prompt_eval_count=" + promptEvalCount
+            + ", eval_count=" + evalCount
+            + ", done_reason=" + doneReason
+            + ", text_len=" + text.length() + "}";
+    }
+}
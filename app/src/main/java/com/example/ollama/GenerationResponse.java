@@ -0,0 +1,100 @@
+package com.example.ollama;
+
+import java.io.IOException;
+
+/**
+ * Writes one generation back to the client in an API's wire format: streamed piece by
+ * piece as chunked output, or as a single body once it is done.
+ *
+ * Streaming headers go out with the first piece, so a failure before any output can
+ * still be answered with an error status. Subclasses encode into reused buffers
+ * (see {@link Utf8Buffer}); an encoded buffer is written before the next is encoded.
+ */
+abstract class GenerationResponse {
+    protected final HttpResponseWriter response;
+    private final boolean stream;
+    private boolean started = false;
+
+    GenerationResponse(HttpResponseWriter response, boolean stream) {
+        this.response = response;
+        this.stream = stream;
+    }
+
+    boolean isStreaming() {
+        return stream;
+    }
+
+    /**
+     * Send one piece of generated text; ignored unless streaming.
+     */
+    final void piece(String text) throws IOException {
+        if (!stream) {
+            return;
+        }
+        start();
+        write(encodePiece(text));
+        response.flush();
+    }
+
+    /**
+     * Finish with the result: the closing chunk(s) when streaming, otherwise the whole
+     * body. An error result becomes an in-band error once streaming has started, and
+     * a 500 before that.
+     */
+    final void finish(GenerateResult gen) throws IOException {
+        if (gen.isError()) {
+            if (started) {
+                write(encodeStreamError(gen.errorMessage));
+                response.endChunked();
+            } else {
+                sendError(500, gen.errorMessage, "");
+            }
+            return;
+        }
+        if (stream) {
+            start();
+            writeStreamEnd(gen);
+            response.endChunked();
+        } else {
+            Utf8Buffer body = encodeBody(gen);
+            response.sendJson(200, body.array(), body.length(), "");
+        }
+    }
+
+    /**
+     * Error response before any output.
+     * @param extraHeaders additional header lines, each ending in CRLF (may be empty)
+     */
+    void sendError(int statusCode, String message, String extraHeaders) throws IOException {
+        Utf8Buffer body = encodeError(statusCode, message);
+        response.sendJson(statusCode, body.array(), body.length(), extraHeaders);
+    }
+
+    protected final void write(Utf8Buffer chunk) throws IOException {
+        response.writeChunk(chunk.array(), 0, chunk.length());
+    }
+
+    private void start() throws IOException {
+        if (!started) {
+            response.startChunked(streamContentType());
+            started = true;
+        }
+    }
+
+    protected abstract String streamContentType();
+
+    // One streamed piece, including its framing (newline, SSE "data:" line)
+    protected abstract Utf8Buffer encodePiece(String text);
+
+    // Closing chunk(s) of a successful stream, written with write()
+    protected abstract void writeStreamEnd(GenerateResult gen) throws IOException;
+
+    // Complete non-streamed body
+    protected abstract Utf8Buffer encodeBody(GenerateResult gen);
+
+    // Error after streaming has started, including its framing
+    protected abstract Utf8Buffer encodeStreamError(String message);
+
+    // Error body for an error status
+    protected abstract Utf8Buffer encodeError(int statusCode, String message);
+}
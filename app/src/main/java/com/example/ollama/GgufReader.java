@@ -0,0 +1,435 @@
+package com.example.ollama;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Reads the header of a GGUF model file: metadata key/values and tensor descriptors,
+ * without loading the model.
+ *
+ * The file is memory-mapped and parsed in place, so only the header pages are read;
+ * large arrays (the tokenizer vocabulary) are skipped, not decoded, apart from the few
+ * control tokens, and the tensor data is never touched. Results are cached per path and reused while the file's size and
+ * modification time are unchanged.
+ *
+ * The tensor descriptors also give where the tensor data ends, so a file cut short
+ * anywhere, not just in the header, shows as {@link Metadata#isTruncated()}.
+ */
+final class GgufReader {
+    private static final String TAG = "GgufReader";
+
+    private static final int MAGIC = 0x46554747; // "GGUF" read little-endian
+    private static final int DEFAULT_ALIGNMENT = 32;
+    // Longest string kept (chat templates are a few KB); longer ones are skipped
+    private static final int MAX_STRING_BYTES = 1024 * 1024;
+
+    // Value types
+    private static final int TYPE_UINT8 = 0;
+    private static final int TYPE_INT8 = 1;
+    private static final int TYPE_UINT16 = 2;
+    private static final int TYPE_INT16 = 3;
+    private static final int TYPE_UINT32 = 4;
+    private static final int TYPE_INT32 = 5;
+    private static final int TYPE_FLOAT32 = 6;
+    private static final int TYPE_BOOL = 7;
+    private static final int TYPE_STRING = 8;
+    private static final int TYPE_ARRAY = 9;
+    private static final int TYPE_UINT64 = 10;
+    private static final int TYPE_INT64 = 11;
+    private static final int TYPE_FLOAT64 = 12;
+
+    // llama_token_type for tokens that are markup, not text (<|im_start|>, <end_of_turn>)
+    private static final int TOKEN_TYPE_CONTROL = 3;
+
+    // llama_ftype names, indexed by value (llama.h); null for removed values
+    private static final String[] FILE_TYPES = {
+        "F32", "F16", "Q4_0", "Q4_1", null, null, null, "Q8_0", "Q5_0", "Q5_1",
+        "Q2_K", "Q3_K_S", "Q3_K_M", "Q3_K_L", "Q4_K_S", "Q4_K_M", "Q5_K_S", "Q5_K_M", "Q6_K",
+        "IQ2_XXS", "IQ2_XS", "Q2_K_S", "IQ3_XS", "IQ3_XXS", "IQ1_S", "IQ4_NL", "IQ3_S", "IQ3_M",
+        "IQ2_S", "IQ2_M", "IQ4_XS", "IQ1_M", "BF16", null, null, null, "TQ1_0", "TQ2_0",
+    };
+
+    // ggml_type block sizes (elements) and bytes per block, indexed by value (ggml.h,
+    // ggml-common.h); 0 for removed values
+    private static final int[] TYPE_BLOCK_ELEMENTS = {
+        1, 1, 32, 32, 0, 0, 32, 32, 32, 32,
+        256, 256, 256, 256, 256, 256, 256, 256, 256, 256,
+        32, 256, 256, 256, 1, 1, 1, 1, 1, 256,
+        1, 0, 0, 0, 256, 256,
+    };
+    private static final int[] TYPE_BLOCK_BYTES = {
+        4, 2, 18, 20, 0, 0, 22, 24, 34, 36,
+        84, 110, 144, 176, 210, 292, 66, 74, 98, 50,
+        18, 110, 82, 136, 1, 2, 4, 8, 8, 56,
+        2, 0, 0, 0, 54, 66,
+    };
+
+    /**
+     * What the header says about a model.
+     */
+    static final class Metadata {
+        final long fileSize;
+        final long modifiedMs;
+        final int version;
+        // Scalar and string values by key; arrays are left out
+        final Map<String, Object> values;
+        final long tensorCount;
+        final long parameterCount;
+        // Bytes from the start of tensor data to the end of the file
+        final long tensorBytes;
+        // Offset just past the last tensor's data; -1 if a tensor's type is unknown
+        final long dataEnd;
+        // Text of the vocabulary's control tokens
+        final List<String> controlTokens;
+
+        Metadata(long fileSize, long modifiedMs, int version, Map<String, Object> values,
+                 long tensorCount, long parameterCount, long tensorBytes, long dataEnd,
+                 List<String> controlTokens) {
+            this.fileSize = fileSize;
+            this.modifiedMs = modifiedMs;
+            this.version = version;
+            this.values = Collections.unmodifiableMap(values);
+            this.tensorCount = tensorCount;
+            this.parameterCount = parameterCount;
+            this.tensorBytes = tensorBytes;
+            this.dataEnd = dataEnd;
+            this.controlTokens = Collections.unmodifiableList(controlTokens);
+        }
+
+        /**
+         * True if the file ends before the data of its tensors does (an interrupted
+         * copy or download). False if a tensor's type is not in the table, as the end
+         * is not known then.
+         */
+        boolean isTruncated() {
+            return dataEnd >= 0 && fileSize < dataEnd;
+        }
+
+        String getString(String key) {
+            Object value = values.get(key);
+            return value instanceof String ? (String) value : null;
+        }
+
+        long getLong(String key, long fallback) {
+            Object value = values.get(key);
+            return value instanceof Number ? ((Number) value).longValue() : fallback;
+        }
+
+        String architecture() {
+            String arch = getString("general.architecture");
+            return arch != null ? arch : "unknown";
+        }
+
+        // "<arch>.<key>", e.g. archLong("context_length", 0)
+        long archLong(String key, long fallback) {
+            return getLong(architecture() + "." + key, fallback);
+        }
+
+        long contextLength() {
+            return archLong("context_length", 0);
+        }
+
+        String chatTemplate() {
+            return getString("tokenizer.chat_template");
+        }
+
+        /**
+         * Quantization as Ollama names it ("Q4_K_M"), from general.file_type.
+         */
+        String quantizationLevel() {
+            long fileType = getLong("general.file_type", -1);
+            if (fileType >= 0 && fileType < FILE_TYPES.length && FILE_TYPES[(int) fileType] != null) {
+                return FILE_TYPES[(int) fileType];
+            }
+            return "unknown";
+        }
+
+        /**
+         * Parameter count as Ollama shows it ("7.2B", "494M").
+         */
+        String parameterSize() {
+            if (parameterCount <= 0) {
+                return "unknown";
+            }
+            if (parameterCount >= 1_000_000_000L) {
+                return String.format(Locale.ROOT, "%.1fB", parameterCount / 1e9);
+            }
+            if (parameterCount >= 1_000_000L) {
+                return String.format(Locale.ROOT, "%.0fM", parameterCount / 1e6);
+            }
+            if (parameterCount >= 1_000L) {
+                return String.format(Locale.ROOT, "%.0fK", parameterCount / 1e3);
+            }
+            return String.valueOf(parameterCount);
+        }
+
+        /**
+         * Bytes of an F16 KV cache holding {@code nCtx} tokens, from the attention
+         * shape; 0 if the header does not describe it.
+         */
+        long kvCacheBytes(long nCtx) {
+            long layers = archLong("block_count", 0);
+            long embd = archLong("embedding_length", 0);
+            long heads = archLong("attention.head_count", 0);
+            if (layers <= 0 || embd <= 0 || heads <= 0 || nCtx <= 0) {
+                return 0;
+            }
+            long headsKv = archLong("attention.head_count_kv", heads);
+            long keyLength = archLong("attention.key_length", embd / heads);
+            long valueLength = archLong("attention.value_length", embd / heads);
+            return layers * nCtx * headsKv * (keyLength + valueLength) * 2;
+        }
+    }
+
+    private static final Map<String, Metadata> CACHE = new LinkedHashMap<>();
+
+    private GgufReader() {}
+
+    /**
+     * Header of {@code file}, from the cache if the file is unchanged.
+     *
+     * @return null if the file is missing or not a readable GGUF file
+     */
+    static Metadata read(File file) {
+        if (file == null || !file.isFile()) {
+            return null;
+        }
+        String path = file.getAbsolutePath();
+        long size = file.length();
+        long modified = file.lastModified();
+        synchronized (CACHE) {
+            Metadata cached = CACHE.get(path);
+            if (cached != null && cached.fileSize == size && cached.modifiedMs == modified) {
+                return cached;
+            }
+        }
+        Metadata metadata;
+        try {
+            metadata = parse(file, size, modified);
+        } catch (IOException | RuntimeException e) {
+            Log.w(TAG, "Cannot read GGUF header of " + path + ": " + e.getMessage());
+            return null;
+        }
+        synchronized (CACHE) {
+            CACHE.put(path, metadata);
+        }
+        return metadata;
+    }
+
+    /**
+     * Drop the cached headers (memory pressure); they are re-read on demand.
+     */
+    static void clearCache() {
+        synchronized (CACHE) {
+            CACHE.clear();
+        }
+    }
+
+    private static Metadata parse(File file, long size, long modified) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            // Mapping reserves address space only; pages are read as the parser touches them
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                Math.min(size, Integer.MAX_VALUE));
+            buf.order(ByteOrder.LITTLE_ENDIAN);
+            try {
+                if (buf.getInt() != MAGIC) {
+                    throw new IOException("Not a GGUF file");
+                }
+                int version = buf.getInt();
+                if (version < 2) {
+                    throw new IOException("Unsupported GGUF version " + version);
+                }
+                long tensorCount = buf.getLong();
+                long kvCount = buf.getLong();
+
+                Map<String, Object> values = new LinkedHashMap<>();
+                // Where the token text and token type arrays start, to pick out control tokens
+                int tokensAt = -1;
+                int tokenTypesAt = -1;
+                for (long i = 0; i < kvCount; i++) {
+                    String key = readString(buf);
+                    int type = buf.getInt();
+                    if (type == TYPE_ARRAY) {
+                        if ("tokenizer.ggml.tokens".equals(key)) {
+                            tokensAt = buf.position();
+                        } else if ("tokenizer.ggml.token_type".equals(key)) {
+                            tokenTypesAt = buf.position();
+                        }
+                        skipArray(buf);
+                        continue;
+                    }
+                    Object value = readValue(buf, type);
+                    if (key != null && value != null) {
+                        values.put(key, value);
+                    }
+                }
+
+                long parameterCount = 0;
+                // End of the furthest tensor, relative to the start of tensor data
+                long relativeEnd = 0;
+                for (long i = 0; i < tensorCount; i++) {
+                    skipString(buf);
+                    int dims = buf.getInt();
+                    long rowElements = dims > 0 ? buf.getLong() : 1;
+                    long rows = 1;
+                    for (int d = 1; d < dims; d++) {
+                        rows *= buf.getLong();
+                    }
+                    int type = buf.getInt();
+                    long offset = buf.getLong();
+                    parameterCount += rowElements * rows;
+                    long bytes = tensorBytes(type, rowElements, rows);
+                    if (bytes < 0 || relativeEnd < 0) {
+                        relativeEnd = -1;
+                    } else {
+                        relativeEnd = Math.max(relativeEnd, offset + bytes);
+                    }
+                }
+
+                Object alignmentValue = values.get("general.alignment");
+                long alignment = alignmentValue instanceof Number ? ((Number) alignmentValue).longValue()
+                    : DEFAULT_ALIGNMENT;
+                if (alignment <= 0) {
+                    alignment = DEFAULT_ALIGNMENT;
+                }
+                long dataStart = (buf.position() + alignment - 1) / alignment * alignment;
+                List<String> controlTokens = tokensAt >= 0 && tokenTypesAt >= 0
+                    ? readControlTokens(buf, tokensAt, tokenTypesAt) : new ArrayList<String>();
+                return new Metadata(size, modified, version, values, tensorCount, parameterCount,
+                    Math.max(0, size - dataStart), relativeEnd >= 0 ? dataStart + relativeEnd : -1,
+                    controlTokens);
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("Truncated or corrupt GGUF header");
+            }
+        }
+    }
+
+    // Bytes of a tensor's data (ggml_nbytes for a contiguous tensor); -1 for an unknown type
+    private static long tensorBytes(int type, long rowElements, long rows) {
+        if (type < 0 || type >= TYPE_BLOCK_ELEMENTS.length || TYPE_BLOCK_ELEMENTS[type] == 0) {
+            return -1;
+        }
+        return rowElements / TYPE_BLOCK_ELEMENTS[type] * TYPE_BLOCK_BYTES[type] * rows;
+    }
+
+    // Texts of the tokens typed CONTROL; both arrays were skipped once already
+    private static List<String> readControlTokens(MappedByteBuffer buf, int tokensAt, int tokenTypesAt)
+            throws IOException {
+        List<String> control = new ArrayList<>();
+        buf.position(tokenTypesAt);
+        int typeType = buf.getInt();
+        long typeCount = buf.getLong();
+        buf.position(tokensAt);
+        if (buf.getInt() != TYPE_STRING || (typeType != TYPE_INT32 && typeType != TYPE_UINT32)) {
+            return control;
+        }
+        long count = Math.min(buf.getLong(), typeCount);
+        int typesStart = tokenTypesAt + 12;
+        if (typesStart + count * 4 > buf.limit()) {
+            return control;
+        }
+        for (long i = 0; i < count; i++) {
+            if (buf.getInt(typesStart + (int) (i * 4)) == TOKEN_TYPE_CONTROL) {
+                String text = readString(buf);
+                if (text != null && !text.isEmpty()) {
+                    control.add(text);
+                }
+            } else {
+                skipString(buf);
+            }
+        }
+        return control;
+    }
+
+    private static Object readValue(MappedByteBuffer buf, int type) throws IOException {
+        switch (type) {
+            case TYPE_UINT8: return buf.get() & 0xff;
+            case TYPE_INT8: return (int) buf.get();
+            case TYPE_UINT16: return buf.getShort() & 0xffff;
+            case TYPE_INT16: return (int) buf.getShort();
+            case TYPE_UINT32: return buf.getInt() & 0xffffffffL;
+            case TYPE_INT32: return buf.getInt();
+            case TYPE_FLOAT32: return (double) buf.getFloat();
+            case TYPE_BOOL: return buf.get() != 0;
+            case TYPE_STRING: return readString(buf);
+            case TYPE_UINT64:
+            case TYPE_INT64: return buf.getLong();
+            case TYPE_FLOAT64: return buf.getDouble();
+            default: throw new IOException("Unknown GGUF value type " + type);
+        }
+    }
+
+    private static void skipArray(MappedByteBuffer buf) throws IOException {
+        int type = buf.getInt();
+        long count = buf.getLong();
+        if (type == TYPE_STRING) {
+            for (long i = 0; i < count; i++) {
+                skipString(buf);
+            }
+        } else if (type == TYPE_ARRAY) {
+            for (long i = 0; i < count; i++) {
+                skipArray(buf);
+            }
+        } else {
+            skip(buf, count * valueSize(type));
+        }
+    }
+
+    private static int valueSize(int type) throws IOException {
+        switch (type) {
+            case TYPE_UINT8:
+            case TYPE_INT8:
+            case TYPE_BOOL: return 1;
+            case TYPE_UINT16:
+            case TYPE_INT16: return 2;
+            case TYPE_UINT32:
+            case TYPE_INT32:
+            case TYPE_FLOAT32: return 4;
+            case TYPE_UINT64:
+            case TYPE_INT64:
+            case TYPE_FLOAT64: return 8;
+            default: throw new IOException("Unknown GGUF array type " + type);
+        }
+    }
+
+    // null if longer than MAX_STRING_BYTES
+    private static String readString(MappedByteBuffer buf) {
+        long length = buf.getLong();
+        if (length > MAX_STRING_BYTES) {
+            skip(buf, length);
+            return null;
+        }
+        if (length < 0) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[(int) length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void skipString(MappedByteBuffer buf) {
+        skip(buf, buf.getLong());
+    }
+
+    private static void skip(MappedByteBuffer buf, long bytes) {
+        if (bytes < 0 || bytes > buf.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        buf.position(buf.position() + (int) bytes);
+    }
+}
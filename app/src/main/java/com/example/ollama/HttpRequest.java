@@ -0,0 +1,52 @@
+package com.example.ollama;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A fully received HTTP request, produced by {@link HttpRequestParser}.
+ * Header names are lower-case; the body is the raw bytes as sent.
+ */
+public class HttpRequest {
+    public final String method;
+    public final String path;
+    public final String version;
+    public final Map<String, String> headers;
+    public final byte[] body;
+    public final String remoteAddress;
+
+    public HttpRequest(String method, String path, String version, Map<String, String> headers,
+                       byte[] body, String remoteAddress) {
+        this.method = method;
+        this.path = path;
+        this.version = version;
+        this.headers = headers;
+        this.body = body;
+        this.remoteAddress = remoteAddress;
+    }
+
+    public String header(String name) {
+        return headers.get(name);
+    }
+
+    /**
+     * Whether the connection may carry another request after this one:
+     * HTTP/1.1 unless "Connection: close". HTTP/1.0 connections are always closed,
+     * since responses do not echo "Connection: keep-alive".
+     */
+    public boolean isKeepAlive() {
+        String connection = headers.get("connection");
+        if (connection != null && connection.toLowerCase(Locale.US).contains("close")) {
+            return false;
+        }
+        return "HTTP/1.1".equals(version);
+    }
+
+    /**
+     * Body decoded as UTF-8 (the encoding of every JSON body this server accepts).
+     */
+    public String bodyAsString() {
+        return new String(body, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,305 @@
+package com.example.ollama;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Incremental HTTP/1.1 request parser for the NIO server.
+ * Fed whatever bytes have arrived; returns a request once the head and the whole
+ * body are in. Bodies are read as bytes, either exactly Content-Length of them or
+ * decoded from Transfer-Encoding: chunked. Header and body sizes are bounded.
+ * Bytes of a following (pipelined) request are left in the input buffer.
+ */
+public class HttpRequestParser {
+    public static final int MAX_HEADER_BYTES = 16 * 1024;
+    public static final int DEFAULT_MAX_BODY_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Malformed or oversized request; {@link #statusCode} is the HTTP status to answer with.
+     */
+    public static class ParseException extends Exception {
+        public final int statusCode;
+
+        public ParseException(int statusCode, String message) {
+            super(message);
+            this.statusCode = statusCode;
+        }
+    }
+
+    private static final int STATE_HEAD = 0;
+    private static final int STATE_BODY = 1;
+    private static final int STATE_CHUNK_SIZE = 2;
+    private static final int STATE_CHUNK_DATA = 3;
+    private static final int STATE_CHUNK_END = 4;
+    private static final int STATE_TRAILER = 5;
+
+    // Longest chunk-size or trailer line accepted
+    private static final int MAX_LINE_BYTES = 1024;
+
+    private final String remoteAddress;
+    // Bodies larger than this are refused (413) before they are buffered
+    private final int maxBodyBytes;
+    private int state = STATE_HEAD;
+
+    // Head bytes seen so far
+    private byte[] head = new byte[1024];
+    private int headLength = 0;
+
+    // Parsed head, kept while the body arrives
+    private String method;
+    private String path;
+    private String version;
+    private Map<String, String> headers;
+    private byte[] body;
+    private int bodyLength;
+    // Chunked bodies: bytes left in the current chunk, and the line being read
+    private int chunkRemaining;
+    private final StringBuilder line = new StringBuilder();
+
+    public HttpRequestParser(String remoteAddress) {
+        this(remoteAddress, DEFAULT_MAX_BODY_BYTES);
+    }
+
+    public HttpRequestParser(String remoteAddress, int maxBodyBytes) {
+        this.remoteAddress = remoteAddress;
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Consume bytes from {@code in} (position advances) up to the end of one request.
+     * Bytes after that request stay in the buffer.
+     *
+     * @return the complete request, or null if more bytes are needed
+     */
+    public HttpRequest feed(ByteBuffer in) throws ParseException {
+        while (in.hasRemaining()) {
+            switch (state) {
+                case STATE_HEAD:
+                    if (readHead(in)) {
+                        parseHead();
+                        if (state == STATE_HEAD) {
+                            return finish();
+                        }
+                    }
+                    break;
+                case STATE_BODY: {
+                    int n = Math.min(in.remaining(), body.length - bodyLength);
+                    in.get(body, bodyLength, n);
+                    bodyLength += n;
+                    if (bodyLength == body.length) {
+                        return finish();
+                    }
+                    break;
+                }
+                case STATE_CHUNK_SIZE: {
+                    String sizeLine = readLine(in);
+                    if (sizeLine != null) {
+                        chunkRemaining = parseChunkSize(sizeLine);
+                        if (chunkRemaining == 0) {
+                            state = STATE_TRAILER;
+                        } else {
+                            ensureBodyCapacity(bodyLength + chunkRemaining);
+                            state = STATE_CHUNK_DATA;
+                        }
+                    }
+                    break;
+                }
+                case STATE_CHUNK_DATA: {
+                    int n = Math.min(in.remaining(), chunkRemaining);
+                    in.get(body, bodyLength, n);
+                    bodyLength += n;
+                    chunkRemaining -= n;
+                    if (chunkRemaining == 0) {
+                        state = STATE_CHUNK_END;
+                    }
+                    break;
+                }
+                case STATE_CHUNK_END: {
+                    String rest = readLine(in);
+                    if (rest != null) {
+                        if (!rest.isEmpty()) {
+                            throw new ParseException(400, "Malformed chunk");
+                        }
+                        state = STATE_CHUNK_SIZE;
+                    }
+                    break;
+                }
+                case STATE_TRAILER: {
+                    // Trailer fields are read and dropped; a blank line ends the body
+                    String trailer = readLine(in);
+                    if (trailer != null && trailer.isEmpty()) {
+                        return finish();
+                    }
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("state " + state);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * True while part of a request has been received.
+     */
+    public boolean isMidRequest() {
+        return state != STATE_HEAD || headLength > 0;
+    }
+
+    // Copy head bytes until the blank line; true once it has been seen
+    private boolean readHead(ByteBuffer in) throws ParseException {
+        while (in.hasRemaining()) {
+            byte b = in.get();
+            if (headLength == 0 && (b == '\r' || b == '\n')) {
+                // Tolerate stray CRLF between requests (RFC 7230 3.5)
+                continue;
+            }
+            if (headLength == head.length) {
+                if (head.length >= MAX_HEADER_BYTES) {
+                    throw new ParseException(431, "Request header too large");
+                }
+                byte[] grown = new byte[Math.min(MAX_HEADER_BYTES, head.length * 2)];
+                System.arraycopy(head, 0, grown, 0, headLength);
+                head = grown;
+            }
+            head[headLength++] = b;
+            if (b == '\n' && endsWithBlankLine()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean endsWithBlankLine() {
+        int n = headLength;
+        return (n >= 2 && head[n - 2] == '\n')
+            || (n >= 4 && head[n - 4] == '\r' && head[n - 3] == '\n' && head[n - 2] == '\r');
+    }
+
+    private void parseHead() throws ParseException {
+        String text = new String(head, 0, headLength, StandardCharsets.ISO_8859_1);
+        String[] lines = text.split("\r?\n");
+        String[] requestParts = lines[0].split(" ");
+        if (requestParts.length < 2) {
+            throw new ParseException(400, "Bad Request");
+        }
+        method = requestParts[0];
+        path = requestParts[1];
+        version = requestParts.length > 2 ? requestParts[2] : "HTTP/1.0";
+
+        headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            int colonIndex = line.indexOf(':');
+            if (colonIndex > 0) {
+                String key = line.substring(0, colonIndex).trim().toLowerCase(Locale.US);
+                String value = line.substring(colonIndex + 1).trim();
+                headers.put(key, value);
+            }
+        }
+
+        String transferEncoding = headers.get("transfer-encoding");
+        if (transferEncoding != null) {
+            if (!"chunked".equalsIgnoreCase(transferEncoding)) {
+                throw new ParseException(501, "Unsupported Transfer-Encoding: " + transferEncoding);
+            }
+            if (headers.containsKey("content-length")) {
+                // Ambiguous framing (request smuggling vector); refuse rather than guess
+                throw new ParseException(400, "Both Content-Length and Transfer-Encoding");
+            }
+            body = new byte[1024];
+            bodyLength = 0;
+            line.setLength(0);
+            state = STATE_CHUNK_SIZE;
+            return;
+        }
+        int contentLength = 0;
+        String lengthHeader = headers.get("content-length");
+        if (lengthHeader != null) {
+            try {
+                contentLength = Integer.parseInt(lengthHeader);
+            } catch (NumberFormatException e) {
+                throw new ParseException(400, "Invalid Content-Length");
+            }
+            if (contentLength < 0) {
+                throw new ParseException(400, "Invalid Content-Length");
+            }
+            if (contentLength > maxBodyBytes) {
+                throw new ParseException(413, "Request body too large");
+            }
+        }
+        body = new byte[contentLength];
+        bodyLength = 0;
+        state = contentLength > 0 ? STATE_BODY : STATE_HEAD;
+    }
+
+    // One CRLF- or LF-terminated line, without the terminator; null until complete
+    private String readLine(ByteBuffer in) throws ParseException {
+        while (in.hasRemaining()) {
+            char c = (char) (in.get() & 0xFF);
+            if (c == '\n') {
+                int len = line.length();
+                if (len > 0 && line.charAt(len - 1) == '\r') {
+                    line.setLength(len - 1);
+                }
+                String result = line.toString();
+                line.setLength(0);
+                return result;
+            }
+            if (line.length() >= MAX_LINE_BYTES) {
+                throw new ParseException(400, "Chunk line too long");
+            }
+            line.append(c);
+        }
+        return null;
+    }
+
+    private int parseChunkSize(String sizeLine) throws ParseException {
+        int semicolon = sizeLine.indexOf(';');
+        String hex = (semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim();
+        try {
+            long size = Long.parseLong(hex, 16);
+            if (size < 0 || size > maxBodyBytes) {
+                throw new ParseException(413, "Request body too large");
+            }
+            return (int) size;
+        } catch (NumberFormatException e) {
+            throw new ParseException(400, "Invalid chunk size");
+        }
+    }
+
+    private void ensureBodyCapacity(int needed) throws ParseException {
+        if (needed > maxBodyBytes) {
+            throw new ParseException(413, "Request body too large");
+        }
+        if (needed > body.length) {
+            int capacity = body.length;
+            while (capacity < needed) {
+                capacity = Math.min(maxBodyBytes, capacity * 2);
+            }
+            byte[] grown = new byte[capacity];
+            System.arraycopy(body, 0, grown, 0, bodyLength);
+            body = grown;
+        }
+    }
+
+    private HttpRequest finish() {
+        byte[] content = body;
+        if (bodyLength != body.length) {
+            content = new byte[bodyLength];
+            System.arraycopy(body, 0, content, 0, bodyLength);
+        }
+        HttpRequest request = new HttpRequest(method, path, version, headers, content, remoteAddress);
+        state = STATE_HEAD;
+        headLength = 0;
+        method = null;
+        path = null;
+        version = null;
+        headers = null;
+        body = null;
+        return request;
+    }
+}
@@ -0,0 +1,163 @@
+package com.example.ollama;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Writes HTTP responses with as few allocations as possible.
+ * Status lines and common headers are pre-encoded; head and body are assembled in a
+ * reusable buffer and written in one call; chunk framing is written as bytes.
+ * One instance per connection, used by one request at a time.
+ */
+public class HttpResponseWriter {
+    private static final byte[] CRLF = ascii("\r\n");
+    private static final byte[] JSON_HEADERS = ascii(
+        "Content-Type: application/json\r\n" +
+        "Access-Control-Allow-Origin: *\r\n");
+    private static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+    private static final byte[] CHUNKED_HEADERS = ascii(
+        "Access-Control-Allow-Origin: *\r\n" +
+        "Transfer-Encoding: chunked\r\n");
+    private static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+    private static final byte[] LAST_CHUNK = ascii("0\r\n\r\n");
+
+    private static final byte[] STATUS_200 = ascii("HTTP/1.1 200 OK\r\n");
+    private static final byte[] STATUS_400 = ascii("HTTP/1.1 400 Bad Request\r\n");
+    private static final byte[] STATUS_404 = ascii("HTTP/1.1 404 Not Found\r\n");
+    private static final byte[] STATUS_503 = ascii("HTTP/1.1 503 Service Unavailable\r\n");
+
+    // Timestamps: formatted at most once per millisecond, shared by all writers
+    private static final Object TIMESTAMP_LOCK = new Object();
+    private static final SimpleDateFormat TIMESTAMP_FORMAT = newTimestampFormat();
+    private static long timestampMillis = Long.MIN_VALUE;
+    private static String timestampText;
+
+    private final OutputStream out;
+    private final Utf8Buffer head = new Utf8Buffer(256);
+    private final Utf8Buffer body = new Utf8Buffer(1024);
+
+    public HttpResponseWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Raw stream, for responses that are already fully encoded.
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Complete JSON response with Content-Length.
+     * @param extraHeaders additional header lines, each ending in CRLF (may be empty)
+     */
+    public void sendJson(int statusCode, String json, String extraHeaders) throws IOException {
+        body.reset();
+        body.appendUtf8(json);
+        sendJson(statusCode, body.array(), body.length(), extraHeaders);
+    }
+
+    /**
+     * Complete JSON response from already-encoded UTF-8 bytes.
+     */
+    public void sendJson(int statusCode, byte[] json, int length, String extraHeaders) throws IOException {
+        head.reset();
+        head.append(statusLine(statusCode)).append(JSON_HEADERS);
+        if (extraHeaders != null && !extraHeaders.isEmpty()) {
+            head.appendAscii(extraHeaders);
+        }
+        head.append(CONTENT_LENGTH).appendDecimal(length).append(CRLF).append(CRLF);
+        out.write(head.array(), 0, head.length());
+        out.write(json, 0, length);
+        out.flush();
+    }
+
+    /**
+     * Status 200 with Transfer-Encoding: chunked; follow with writeChunk() and endChunked().
+     */
+    public void startChunked(String contentType) throws IOException {
+        head.reset();
+        head.append(STATUS_200)
+            .append(CONTENT_TYPE).appendAscii(contentType).append(CRLF)
+            .append(CHUNKED_HEADERS)
+            .append(CRLF);
+        out.write(head.array(), 0, head.length());
+    }
+
+    /**
+     * One chunk (size line, data, CRLF). Empty data is skipped: it would end the body.
+     */
+    public void writeChunk(byte[] data, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        head.reset();
+        head.appendHex(len).append(CRLF);
+        out.write(head.array(), 0, head.length());
+        out.write(data, off, len);
+        out.write(CRLF);
+    }
+
+    public void writeChunk(String text) throws IOException {
+        body.reset();
+        body.appendUtf8(text);
+        writeChunk(body.array(), 0, body.length());
+    }
+
+    public void endChunked() throws IOException {
+        out.write(LAST_CHUNK);
+        out.flush();
+    }
+
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Current time as ISO-8601 UTC with milliseconds ("created_at").
+     */
+    public static String timestamp() {
+        long now = System.currentTimeMillis();
+        synchronized (TIMESTAMP_LOCK) {
+            if (now != timestampMillis) {
+                timestampText = TIMESTAMP_FORMAT.format(new Date(now));
+                timestampMillis = now;
+            }
+            return timestampText;
+        }
+    }
+
+    /**
+     * {@code millis} in the same format, e.g. a file's modification time.
+     */
+    public static String timestamp(long millis) {
+        synchronized (TIMESTAMP_LOCK) {
+            return TIMESTAMP_FORMAT.format(new Date(millis));
+        }
+    }
+
+    private static byte[] statusLine(int statusCode) {
+        switch (statusCode) {
+            case 200: return STATUS_200;
+            case 400: return STATUS_400;
+            case 404: return STATUS_404;
+            case 503: return STATUS_503;
+            default: return ascii("HTTP/1.1 " + statusCode + " Error\r\n");
+        }
+    }
+
+    private static SimpleDateFormat newTimestampFormat() {
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
+        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return sdf;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
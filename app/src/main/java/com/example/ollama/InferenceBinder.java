@@ -0,0 +1,316 @@
+package com.example.ollama;
+
+import android.content.Context;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * IInferenceService for bound clients: /api/generate and /api/chat without HTTP.
+ *
+ * Requests go through the same {@link RequestScheduler} and {@link ModelManager} as the
+ * HTTP server, with the caller's uid as the client id for fair queuing. Streamed text is
+ * written into the caller's {@link TokenRing} when one is given, so each token costs one
+ * small oneway notification instead of a JSON line; without a ring it is sent as
+ * onText. The response cache and request coalescing are HTTP-only.
+ *
+ * Binder calls only parse and enqueue; each request runs on its own thread and blocks
+ * there for its queue slot. A request is cancelled when its client dies.
+ */
+final class InferenceBinder extends IInferenceService.Stub {
+    private static final String TAG = "InferenceBinder";
+
+    // Longest wait for the client to free ring space before the request is dropped
+    private static final long RING_STALL_TIMEOUT_MS = NioHttpServer.DEFAULT_IDLE_TIMEOUT_MS;
+
+    private final ModelManager modelManager;
+    private final ConfigurationManager configManager;
+    private final RequestScheduler scheduler;
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private final ConcurrentHashMap<Integer, Request> requests = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread t = new Thread(runnable, "binder-request");
+        t.setDaemon(true);
+        return t;
+    });
+
+    InferenceBinder(Context context, ModelManager modelManager) {
+        this.modelManager = modelManager;
+        this.configManager = new ConfigurationManager(context);
+        this.scheduler = modelManager.getScheduler();
+    }
+
+    @Override
+    public int generate(String requestJson, SharedMemory ring, IInferenceCallback callback) {
+        return submit(requestJson, false, ring, callback);
+    }
+
+    @Override
+    public int chat(String requestJson, SharedMemory ring, IInferenceCallback callback) {
+        return submit(requestJson, true, ring, callback);
+    }
+
+    @Override
+    public void ack(int requestId, long readPosition) {
+        Request request = requests.get(requestId);
+        if (request != null && request.ring != null) {
+            request.ring.ack(readPosition);
+        }
+    }
+
+    @Override
+    public void cancel(int requestId) {
+        Request request = requests.get(requestId);
+        if (request != null) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Cancel everything in flight; called when the service is destroyed.
+     */
+    void shutdown() {
+        for (Request request : requests.values()) {
+            request.cancel();
+        }
+        executor.shutdownNow();
+    }
+
+    // Binder thread: validate, register and start a request. Exceptions reach the caller.
+    private int submit(String requestJson, boolean chat, SharedMemory ring, IInferenceCallback callback) {
+        if (callback == null || requestJson == null) {
+            throw new IllegalArgumentException("requestJson and callback are required");
+        }
+        TokenRing tokenRing = null;
+        if (ring != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.O_MR1) {
+            try {
+                tokenRing = TokenRing.writer(ring);
+            } catch (ErrnoException e) {
+                ring.close();
+                throw new IllegalArgumentException("Cannot map ring: " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                ring.close();
+                throw e;
+            }
+        }
+        int id = nextId.getAndIncrement();
+        Request request = new Request(id, chat, requestJson, tokenRing, tokenRing != null ? ring : null,
+            callback, "uid:" + Binder.getCallingUid());
+        try {
+            callback.asBinder().linkToDeath(request, 0);
+        } catch (RemoteException e) {
+            // Client already gone
+            request.release();
+            throw new IllegalStateException("Client died");
+        }
+        requests.put(id, request);
+        try {
+            executor.execute(request);
+        } catch (RejectedExecutionException e) {
+            request.finish();
+            throw new IllegalStateException("Service is shutting down");
+        }
+        return id;
+    }
+
+    private final class Request implements Runnable, IBinder.DeathRecipient {
+        final int id;
+        final boolean chat;
+        final String json;
+        final TokenRing ring;
+        // The ring's region; this process's copy of the fd is closed in release()
+        final SharedMemory memory;
+        final IInferenceCallback callback;
+        final String clientId;
+        private final Utf8Buffer pieceBytes = new Utf8Buffer(256);
+        private volatile boolean cancelled = false;
+
+        Request(int id, boolean chat, String json, TokenRing ring, SharedMemory memory,
+                IInferenceCallback callback, String clientId) {
+            this.id = id;
+            this.chat = chat;
+            this.json = json;
+            this.ring = ring;
+            this.memory = memory;
+            this.callback = callback;
+            this.clientId = clientId;
+        }
+
+        void cancel() {
+            cancelled = true;
+            // Wakes a writer waiting for ring space
+            closeRing();
+        }
+
+        void closeRing() {
+            if (ring != null) {
+                ring.close();
+            }
+        }
+
+        // Unmap the ring and close the shared memory; the request is over
+        void release() {
+            closeRing();
+            if (memory != null) {
+                memory.close();
+            }
+        }
+
+        @Override
+        public void binderDied() {
+            Log.d(TAG, "Client of request " + id + " died");
+            cancel();
+        }
+
+        void finish() {
+            requests.remove(id);
+            callback.asBinder().unlinkToDeath(this, 0);
+            release();
+        }
+
+        @Override
+        public void run() {
+            try {
+                execute();
+            } catch (RemoteException e) {
+                Log.d(TAG, "Client of request " + id + " went away: " + e.getMessage());
+            } catch (Exception e) {
+                Log.e(TAG, "Request " + id + " failed", e);
+                try {
+                    callback.onError(id, 500, e.getMessage() != null ? e.getMessage() : e.toString());
+                } catch (RemoteException ignored) {}
+            } finally {
+                finish();
+            }
+        }
+
+        private void execute() throws RemoteException {
+            long requestStart = System.nanoTime();
+            String model;
+            int priority;
+            GenerateOptions options;
+            String prompt;
+            try {
+                if (chat) {
+                    ChatRequest request = ChatRequest.parse(json.getBytes(StandardCharsets.UTF_8), true);
+                    if (request.prompt.getMessageCount() == 0) {
+                        callback.onError(id, 400, "No messages provided");
+                        return;
+                    }
+                    model = request.model;
+                    priority = request.priority;
+                    ConfigurationManager.Configuration config = loadConfigOrNull(model);
+                    options = request.generateOptions(config);
+                    prompt = request.prompt.build(config, modelManager.getChatTemplate(config));
+                } else {
+                    JSONObject request = new JSONObject(json);
+                    model = request.optString("model", "default");
+                    priority = RequestScheduler.clientPriority(
+                        request.optInt("priority", RequestScheduler.PRIORITY_NORMAL));
+                    ConfigurationManager.Configuration config = loadConfigOrNull(model);
+                    options = GenerateOptions.from(config).apply(request.optJSONObject("options"));
+                    options.keepAliveMs = GenerateOptions.parseKeepAlive(request.opt("keep_alive"));
+                    prompt = ChatPromptBuilder.applyTemplate(request.optString("prompt", ""), config,
+                        modelManager.getChatTemplate(config));
+                }
+            } catch (JSONException e) {
+                callback.onError(id, 400, "Invalid JSON: " + e.getMessage());
+                return;
+            }
+
+            RequestScheduler.Ticket ticket;
+            try {
+                ticket = scheduler.acquire(clientId, priority, RequestScheduler.estimateCost(prompt.length()));
+            } catch (RequestScheduler.RejectedException e) {
+                callback.onError(id, 503, e.getMessage());
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                callback.onError(id, 503, "Service is shutting down");
+                return;
+            }
+            try {
+                if (cancelled) {
+                    return;
+                }
+                if (!modelManager.loadConfiguration(model)) {
+                    callback.onError(id, 500, "Failed to load configuration: " + model);
+                    return;
+                }
+                long loadDuration = modelManager.getLastLoadDurationNs();
+
+                GenerateResult gen = modelManager.generate(prompt, options, this::deliver);
+                gen.loadDurationNs = loadDuration;
+                gen.queueDurationNs = ticket.getQueueWaitNs();
+                gen.totalDurationNs = System.nanoTime() - requestStart;
+                if (cancelled) {
+                    return;
+                }
+                if (gen.isError()) {
+                    callback.onError(id, 500, gen.errorMessage);
+                } else {
+                    Utf8Buffer done = new ChunkEncoder(model, chat).done("", gen);
+                    callback.onDone(id, new String(done.array(), 0, done.length(), StandardCharsets.UTF_8));
+                }
+            } finally {
+                scheduler.release(ticket);
+            }
+        }
+
+        // Token listener: ring plus notification when the piece fits, onText otherwise
+        private boolean deliver(String piece) {
+            if (cancelled) {
+                return false;
+            }
+            try {
+                if (ring != null) {
+                    pieceBytes.reset();
+                    pieceBytes.appendUtf8(piece);
+                    if (pieceBytes.length() <= ring.capacity()) {
+                        if (!ring.write(pieceBytes.array(), pieceBytes.length(), RING_STALL_TIMEOUT_MS)) {
+                            if (!cancelled) {
+                                Log.w(TAG, "Client of request " + id + " stopped reading; cancelling");
+                                cancelled = true;
+                            }
+                            return false;
+                        }
+                        callback.onAvailable(id, ring.position());
+                        return true;
+                    }
+                }
+                callback.onText(id, piece);
+                return true;
+            } catch (RemoteException e) {
+                cancelled = true;
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+                return false;
+            }
+        }
+
+        private ConfigurationManager.Configuration loadConfigOrNull(String model) {
+            try {
+                return configManager.loadConfiguration(model);
+            } catch (Exception e) {
+                Log.w(TAG, "Could not load config for template", e);
+                return null;
+            }
+        }
+    }
+}
@@ -0,0 +1,635 @@
+package com.example.ollama;
+
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Offline job queue for /api/jobs: a JSONL file of prompts (the /api/batch format, see
+ * {@link BatchRequest}) is run in the background and its results are appended to a JSONL
+ * output file, one line per prompt tagged with its "index".
+ *
+ * Each job lives in its own directory under the jobs dir:
+ *  - input.jsonl:  the submitted body, unchanged
+ *  - output.jsonl: result lines, appended and synced as prompts finish
+ *  - job.json:     status and counters, replaced atomically (temp file + rename)
+ * Progress is the output file itself: on restart the indices already in it are skipped,
+ * so a job interrupted by a service restart carries on where it stopped.
+ *
+ * Jobs run one at a time on a single worker thread, at
+ * {@link RequestScheduler#PRIORITY_BACKGROUND}: they take the model slot only when no
+ * other request is waiting, and hand it back as soon as one arrives (running sequences
+ * stop after their current token and are run again later).
+ */
+public class JobManager {
+    private static final String TAG = "JobManager";
+
+    public static final String STATUS_QUEUED = "queued";
+    public static final String STATUS_RUNNING = "running";
+    public static final String STATUS_COMPLETED = "completed";
+    public static final String STATUS_FAILED = "failed";
+    public static final String STATUS_CANCELLED = "cancelled";
+
+    private static final String INPUT_FILE = "input.jsonl";
+    private static final String OUTPUT_FILE = "output.jsonl";
+    private static final String META_FILE = "job.json";
+    private static final String CLIENT_ID = "jobs";
+    // Prompts handed to one generateBatch() call; progress is synced after each
+    private static final int PROMPTS_PER_SLOT = 64;
+    // Pause before retrying when the request queue rejected the job
+    private static final long RETRY_DELAY_MS = 1000;
+    // How long stop() waits for the running job to reach its next token
+    private static final long STOP_TIMEOUT_MS = 5000;
+
+    private static final AtomicLong NEXT_ID = new AtomicLong(System.currentTimeMillis());
+
+    /**
+     * State of one job. Counters are updated by the worker; read them under the manager's lock.
+     */
+    static final class Job {
+        final String id;
+        final File dir;
+        String model = "default";
+        String status = STATUS_QUEUED;
+        int total;
+        int completed;
+        int failed;
+        String createdAt;
+        String updatedAt;
+        String error;
+        // Bytes of output.jsonl that hold complete lines
+        long outputBytes;
+        // The worker is running it (its files are in use)
+        boolean active;
+        volatile boolean cancelled;
+
+        Job(String id, File dir) {
+            this.id = id;
+            this.dir = dir;
+        }
+
+        File input() {
+            return new File(dir, INPUT_FILE);
+        }
+
+        File output() {
+            return new File(dir, OUTPUT_FILE);
+        }
+
+        boolean isFinished() {
+            return STATUS_COMPLETED.equals(status) || STATUS_FAILED.equals(status)
+                || STATUS_CANCELLED.equals(status);
+        }
+
+        JSONObject toJson() throws JSONException {
+            JSONObject json = new JSONObject();
+            json.put("id", id);
+            json.put("model", model);
+            json.put("status", status);
+            json.put("total", total);
+            json.put("completed", completed);
+            json.put("failed", failed);
+            json.put("created_at", createdAt);
+            json.put("updated_at", updatedAt);
+            if (error != null) {
+                json.put("error", error);
+            }
+            return json;
+        }
+    }
+
+    private final File dir;
+    private final ModelManager modelManager;
+    private final RequestScheduler scheduler;
+    private final ConfigurationManager configManager;
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+    private ExecutorService worker;
+    // Worker shut down by stop() that may still be finishing its job
+    private ExecutorService stoppingWorker;
+
+    public JobManager(File dir, ModelManager modelManager, ConfigurationManager configManager) {
+        this.dir = dir;
+        this.modelManager = modelManager;
+        this.scheduler = modelManager.getScheduler();
+        this.configManager = configManager;
+    }
+
+    /**
+     * Load jobs from disk and resume the unfinished ones, oldest first.
+     */
+    public synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        if (stoppingWorker != null && !stoppingWorker.isTerminated()) {
+            // Its job still writes to files that start() would reload from
+            Log.w(TAG, "Previous worker is still stopping; not starting");
+            return;
+        }
+        stoppingWorker = null;
+        worker = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "JobManager");
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        jobs.clear();
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Cannot create jobs dir " + dir);
+            return;
+        }
+        List<Job> loaded = new ArrayList<>();
+        File[] dirs = dir.listFiles();
+        if (dirs != null) {
+            for (File d : dirs) {
+                Job job = loadJob(d);
+                if (job != null) {
+                    loaded.add(job);
+                }
+            }
+        }
+        // Job ids increase with submission time
+        Collections.sort(loaded, (a, b) -> a.id.compareTo(b.id));
+        for (Job job : loaded) {
+            jobs.put(job.id, job);
+            if (!job.isFinished()) {
+                job.status = STATUS_QUEUED;
+                schedule(job);
+            }
+        }
+        Log.i(TAG, "Loaded " + loaded.size() + " jobs");
+    }
+
+    /**
+     * Stop the worker and wait up to {@link #STOP_TIMEOUT_MS} for it to finish. A running
+     * job stops at its next token and resumes on the next start().
+     */
+    public void stop() {
+        ExecutorService stopping;
+        synchronized (this) {
+            if (worker == null) {
+                return;
+            }
+            stopping = worker;
+            stoppingWorker = worker;
+            worker = null;
+        }
+        stopping.shutdownNow();
+        // Not under the lock: the worker takes it to record progress on its way out
+        try {
+            if (!stopping.awaitTermination(STOP_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                Log.w(TAG, "Worker still running " + STOP_TIMEOUT_MS + " ms after stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Store a new job and queue it.
+     *
+     * @param body JSONL or JSON in the /api/batch format
+     * @throws JSONException if the body cannot be parsed or has no prompts
+     * @throws IOException   if the job could not be written
+     */
+    public synchronized JSONObject submit(byte[] body) throws JSONException, IOException {
+        BatchRequest request = BatchRequest.parse(body);
+        if (request.prompts.isEmpty()) {
+            throw new JSONException("No prompts provided");
+        }
+        String id = "job-" + Long.toHexString(NEXT_ID.getAndIncrement());
+        Job job = new Job(id, new File(dir, id));
+        if (!job.dir.mkdirs()) {
+            throw new IOException("Cannot create job dir " + job.dir);
+        }
+        job.model = request.model;
+        job.total = request.prompts.size();
+        job.createdAt = HttpResponseWriter.timestamp();
+        job.updatedAt = job.createdAt;
+        try (FileOutputStream out = new FileOutputStream(job.input())) {
+            out.write(body);
+            out.getFD().sync();
+        }
+        saveMeta(job);
+        jobs.put(id, job);
+        schedule(job);
+        Log.i(TAG, "Submitted " + id + ": " + job.total + " prompts for " + job.model);
+        return job.toJson();
+    }
+
+    /**
+     * Status of a job, or null if there is no such job.
+     */
+    public synchronized JSONObject status(String id) throws JSONException {
+        Job job = jobs.get(id);
+        return job != null ? job.toJson() : null;
+    }
+
+    public synchronized JSONArray list() throws JSONException {
+        JSONArray array = new JSONArray();
+        for (Job job : jobs.values()) {
+            array.put(job.toJson());
+        }
+        return array;
+    }
+
+    /**
+     * A job's output file and how many of its bytes are complete lines (bytes past that
+     * may be a line still being written).
+     */
+    static final class Results {
+        final File file;
+        final long length;
+
+        Results(File file, long length) {
+            this.file = file;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Results written so far, or null if there is no such job.
+     */
+    synchronized Results results(String id) {
+        Job job = jobs.get(id);
+        return job != null ? new Results(job.output(), job.outputBytes) : null;
+    }
+
+    /**
+     * Cancel a job and delete its files (once the worker has let go of them).
+     *
+     * @return the job's final status, or null if there is no such job
+     */
+    public synchronized JSONObject cancel(String id) throws JSONException {
+        Job job = jobs.remove(id);
+        if (job == null) {
+            return null;
+        }
+        job.cancelled = true;
+        if (!job.isFinished()) {
+            job.status = STATUS_CANCELLED;
+        }
+        if (!job.active) {
+            deleteDir(job.dir);
+        }
+        Log.i(TAG, "Cancelled " + id);
+        return job.toJson();
+    }
+
+    private void schedule(final Job job) {
+        if (worker == null) {
+            return;
+        }
+        worker.execute(() -> run(job));
+    }
+
+    private void run(Job job) {
+        synchronized (this) {
+            if (job.cancelled) {
+                return;
+            }
+            job.active = true;
+        }
+        try {
+            BatchRequest request = BatchRequest.parse(readFile(job.input()));
+            boolean[] done = new boolean[request.prompts.size()];
+            recover(job, done);
+            setStatus(job, STATUS_RUNNING, null);
+
+            ConfigurationManager.Configuration config = null;
+            try {
+                config = configManager.loadConfiguration(request.model);
+            } catch (Exception e) {
+                Log.w(TAG, "Could not load config for template", e);
+            }
+            GenerateOptions options = GenerateOptions.from(config).apply(request.options);
+            ChunkEncoder encoder = new ChunkEncoder(request.model, false);
+
+            try (FileOutputStream out = new FileOutputStream(job.output(), true)) {
+                while (!job.cancelled && !Thread.currentThread().isInterrupted()) {
+                    // The first prompts not done yet; ones cut short by a preemption come round again
+                    List<Integer> indices = new ArrayList<>();
+                    for (int i = 0; i < done.length && indices.size() < PROMPTS_PER_SLOT; i++) {
+                        if (!done[i]) {
+                            indices.add(i);
+                        }
+                    }
+                    if (indices.isEmpty()) {
+                        setStatus(job, STATUS_COMPLETED, null);
+                        break;
+                    }
+                    List<String> prompts = new ArrayList<>(indices.size());
+                    ChatTemplate chatTemplate = modelManager.getChatTemplate(config);
+                    int chars = 0;
+                    for (int i : indices) {
+                        String prompt = ChatPromptBuilder.applyTemplate(request.prompts.get(i), config,
+                            chatTemplate);
+                        prompts.add(prompt);
+                        chars += prompt.length();
+                    }
+
+                    RequestScheduler.Ticket ticket = acquireSlot(chars);
+                    if (ticket == null) {
+                        break;
+                    }
+                    JobListener listener = new JobListener(job, indices, done, encoder, out);
+                    GenerateResult total;
+                    try {
+                        if (!modelManager.loadConfiguration(request.model)) {
+                            setStatus(job, STATUS_FAILED, "Failed to load configuration: " + request.model);
+                            break;
+                        }
+                        total = modelManager.generateBatch(prompts, options, request.parallel, listener);
+                    } finally {
+                        scheduler.release(ticket);
+                    }
+                    out.getFD().sync();
+                    saveMetaQuietly(job);
+                    if (listener.writeError != null) {
+                        setStatus(job, STATUS_FAILED, "Cannot write results: " + listener.writeError.getMessage());
+                        break;
+                    }
+                    if (total.isError() && listener.reported == 0) {
+                        setStatus(job, STATUS_FAILED, total.errorMessage);
+                        break;
+                    }
+                }
+            }
+        } catch (JSONException e) {
+            setStatus(job, STATUS_FAILED, "Invalid job input: " + e.getMessage());
+        } catch (IOException e) {
+            Log.e(TAG, "Job " + job.id + " failed", e);
+            setStatus(job, STATUS_FAILED, e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Job " + job.id + " failed", e);
+            setStatus(job, STATUS_FAILED, e.toString());
+        }
+        synchronized (this) {
+            job.active = false;
+            if (job.cancelled) {
+                deleteDir(job.dir);
+            }
+        }
+    }
+
+    /**
+     * Writes each finished prompt's line and marks it done. Stops the batch (without
+     * recording the interrupted prompts) once an interactive request is waiting.
+     */
+    private final class JobListener implements LlamaNative.BatchListener {
+        private final Job job;
+        private final List<Integer> indices;
+        private final boolean[] done;
+        private final ChunkEncoder encoder;
+        private final FileOutputStream out;
+        boolean preempted = false;
+        int reported = 0;
+        IOException writeError;
+
+        JobListener(Job job, List<Integer> indices, boolean[] done, ChunkEncoder encoder,
+                    FileOutputStream out) {
+            this.job = job;
+            this.indices = indices;
+            this.done = done;
+            this.encoder = encoder;
+            this.out = out;
+        }
+
+        @Override
+        public boolean onToken(int index, String piece) {
+            return !shouldYield();
+        }
+
+        @Override
+        public boolean onResult(int batchIndex, GenerateResult result) {
+            if (preempted || writeError != null) {
+                // Cut short to give the slot up: not an answer, run it again later
+                return false;
+            }
+            int index = indices.get(batchIndex);
+            encoder.setIndex(index);
+            Utf8Buffer line = result.isError() ? encoder.error(result.errorMessage)
+                : encoder.done(result.text, result);
+            line.append((byte) '\n');
+            try {
+                out.write(line.array(), 0, line.length());
+            } catch (IOException e) {
+                writeError = e;
+                return false;
+            }
+            done[index] = true;
+            reported++;
+            synchronized (JobManager.this) {
+                job.outputBytes += line.length();
+                if (result.isError()) {
+                    job.failed++;
+                } else {
+                    job.completed++;
+                }
+                job.updatedAt = HttpResponseWriter.timestamp();
+            }
+            return !shouldYield();
+        }
+
+        private boolean shouldYield() {
+            if (!preempted && (job.cancelled || Thread.currentThread().isInterrupted()
+                    || scheduler.hasWaitingAbove(RequestScheduler.PRIORITY_BACKGROUND))) {
+                preempted = true;
+            }
+            return preempted;
+        }
+    }
+
+    /**
+     * Wait for the model slot behind every other request; null if the worker is stopping.
+     */
+    private RequestScheduler.Ticket acquireSlot(int promptChars) {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                return scheduler.acquire(CLIENT_ID, RequestScheduler.PRIORITY_BACKGROUND,
+                    RequestScheduler.estimateCost(promptChars));
+            } catch (RequestScheduler.RejectedException e) {
+                // Queue full or waited too long behind interactive traffic: try again
+                try {
+                    Thread.sleep(Math.max(RETRY_DELAY_MS, e.retryAfterSeconds * 1000L));
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Mark the prompts already in output.jsonl as done and recount. A line cut off by a
+     * crash is removed, so appending starts on a line boundary.
+     */
+    private void recover(Job job, boolean[] done) throws IOException {
+        File output = job.output();
+        int completed = 0;
+        int failed = 0;
+        long complete = 0;
+        if (output.exists()) {
+            byte[] data = readFile(output);
+            int lineStart = 0;
+            for (int i = 0; i < data.length; i++) {
+                if (data[i] != '\n') {
+                    continue;
+                }
+                String line = new String(data, lineStart, i - lineStart, StandardCharsets.UTF_8);
+                lineStart = i + 1;
+                complete = lineStart;
+                try {
+                    JSONObject json = new JSONObject(line);
+                    int index = json.optInt("index", -1);
+                    if (index >= 0 && index < done.length && !done[index]) {
+                        done[index] = true;
+                        if (json.has("error")) {
+                            failed++;
+                        } else {
+                            completed++;
+                        }
+                    }
+                } catch (JSONException e) {
+                    Log.w(TAG, "Skipping unreadable line in " + output);
+                }
+            }
+            if (complete < data.length) {
+                try (RandomAccessFile raf = new RandomAccessFile(output, "rw")) {
+                    raf.setLength(complete);
+                }
+            }
+        }
+        synchronized (this) {
+            job.total = done.length;
+            job.completed = completed;
+            job.failed = failed;
+            job.outputBytes = complete;
+        }
+    }
+
+    private Job loadJob(File jobDir) {
+        File meta = new File(jobDir, META_FILE);
+        if (!jobDir.isDirectory() || !meta.isFile()) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(new String(readFile(meta), StandardCharsets.UTF_8));
+            Job job = new Job(json.getString("id"), jobDir);
+            job.model = json.optString("model", job.model);
+            job.status = json.optString("status", STATUS_QUEUED);
+            job.total = json.optInt("total", 0);
+            job.completed = json.optInt("completed", 0);
+            job.failed = json.optInt("failed", 0);
+            job.createdAt = json.optString("created_at", "");
+            job.updatedAt = json.optString("updated_at", job.createdAt);
+            job.error = json.has("error") ? json.optString("error") : null;
+            job.outputBytes = job.output().length();
+            return job;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Skipping unreadable job " + jobDir.getName(), e);
+            return null;
+        }
+    }
+
+    private void setStatus(Job job, String status, String error) {
+        synchronized (this) {
+            if (job.cancelled) {
+                return;
+            }
+            job.status = status;
+            job.error = error;
+            job.updatedAt = HttpResponseWriter.timestamp();
+        }
+        if (error != null) {
+            Log.w(TAG, "Job " + job.id + " " + status + ": " + error);
+        } else {
+            Log.i(TAG, "Job " + job.id + " " + status);
+        }
+        saveMetaQuietly(job);
+    }
+
+    private void saveMetaQuietly(Job job) {
+        try {
+            saveMeta(job);
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to save job " + job.id, e);
+        }
+    }
+
+    /**
+     * Write job.json to a temp file and rename it into place.
+     */
+    private void saveMeta(Job job) throws IOException, JSONException {
+        byte[] data;
+        synchronized (this) {
+            if (job.cancelled) {
+                return;
+            }
+            data = job.toJson().toString().getBytes(StandardCharsets.UTF_8);
+        }
+        File file = new File(job.dir, META_FILE);
+        File tmp = new File(job.dir, META_FILE + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp)) {
+            fos.write(data);
+            fos.getFD().sync();
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("rename failed: " + tmp);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        try (FileInputStream in = new FileInputStream(file)) {
+            long length = file.length();
+            if (length > Integer.MAX_VALUE) {
+                throw new IOException("File too large: " + file);
+            }
+            byte[] data = new byte[(int) length];
+            int off = 0;
+            while (off < data.length) {
+                int n = in.read(data, off, data.length - off);
+                if (n < 0) {
+                    break;
+                }
+                off += n;
+            }
+            if (off == data.length) {
+                return data;
+            }
+            byte[] shorter = new byte[off];
+            System.arraycopy(data, 0, shorter, 0, off);
+            return shorter;
+        }
+    }
+
+    private static void deleteDir(File d) {
+        File[] files = d.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        d.delete();
+    }
+}
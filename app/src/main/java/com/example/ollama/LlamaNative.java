@@ -2,30 +2,156 @@ package com.example.ollama;
 
 import android.util.Log;
 
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
 public class LlamaNative {
 
     private static final String TAG = "LlamaNative";
     
+    // Output buffer size for generateUtf8(); generation stops with done_reason "length" when full
+    public static final int DEFAULT_OUTPUT_CAPACITY = 256 * 1024;
+    // generateBatch() gives each parallel sequence DEFAULT_OUTPUT_CAPACITY; matches BATCH_MAX_SEQUENCES
+    private static final int MAX_BATCH_OUTPUT_SLOTS = 4;
+    
+    private final Utf8BufferPool bufferPool = new Utf8BufferPool(4, 4 * 1024 * 1024);
+    
     public interface DownloadProgressListener {
         void onProgress(int percent);
     }
     
     private volatile DownloadProgressListener downloadProgressListener;
+    
+    /**
+     * Receives generated text as it is produced. Pieces always end on a character boundary.
+     */
+    public interface TokenListener {
+        /**
+         * @param piece text produced since the previous call
+         * @return false to stop generation
+         */
+        boolean onToken(String piece);
+    }
+    
+    // Passed to native generateUtf8(); decodes new output bytes for a TokenListener
+    private static final class OutputCallback {
+        private final ByteBuffer output;
+        private final TokenListener listener;
+        
+        OutputCallback(ByteBuffer output, TokenListener listener) {
+            this.output = output;
+            this.listener = listener;
+        }
+        
+        // Called from native code
+        @SuppressWarnings("unused")
+        boolean onBytes(int offset, int length) {
+            return listener.onToken(decode(output, offset, length));
+        }
+    }
+
+    /**
+     * Receives the output of {@link #generateBatch}, tagged with the prompt's index.
+     * Calls for different prompts interleave.
+     */
+    public interface BatchListener {
+        /**
+         * @param piece text produced for prompt {@code index} since its previous call
+         * @return false to stop that prompt
+         */
+        boolean onToken(int index, String piece);
+        
+        /**
+         * Prompt {@code index} has finished; {@code result.text} holds its whole output.
+         * @return false to start no further prompts (those already running go on)
+         */
+        boolean onResult(int index, GenerateResult result);
+    }
+    
+    // Passed to native generateBatchUtf8(); decodes each prompt's share of the output buffer
+    private static final class BatchOutputCallback {
+        private final ByteBuffer output;
+        private final BatchListener listener;
+        
+        BatchOutputCallback(ByteBuffer output, BatchListener listener) {
+            this.output = output;
+            this.listener = listener;
+        }
+        
+        // Called from native code
+        @SuppressWarnings("unused")
+        boolean onBytes(int index, int offset, int length) {
+            return listener.onToken(index, decode(output, offset, length));
+        }
+        
+        // Called from native code
+        @SuppressWarnings("unused")
+        boolean onDone(int index, int offset, GenerateResult result) {
+            if (result.outputLength > 0) {
+                result.text = decode(output, offset, result.outputLength);
+            }
+            return listener.onResult(index, result);
+        }
+    }
 
     static {
         System.loadLibrary("llama_jni");
     }
 
-    public native String download(String url, String path);
+    /**
+     * Download url to path. Data goes to path + ".part", in parallel byte ranges when the
+     * server allows, and is renamed to path when complete; an interrupted download resumes
+     * from path + ".part.state" on the next call. Blocks; progress goes to the listener.
+     * The data is checked to be GGUF as it arrives and hashed; a SHA-256 that differs from
+     * {@code sha256} (hex; null or "" to use the server's ETag if it is one) fails the
+     * download. The digest is kept in path + ".sha256" (see {@link ModelDigest}).
+     * @return "ok" or an error message
+     */
+    public native String download(String url, String path, String sha256);
     public native String init(String modelPath);
-    public native String generate(String prompt);
+    /**
+     * Generate from a raw UTF-8 prompt held in a direct buffer.
+     * The output is written as raw UTF-8 into {@code output} (a direct buffer);
+     * its length in bytes is {@link GenerateResult#outputLength}.
+     * {@code callback} may be null; otherwise its {@code boolean onBytes(int offset, int length)}
+     * is called with each newly completed range of {@code output}.
+     * {@code seed} < 0 picks a random seed.
+     * {@code maxTokens} > 0 caps the generated tokens; <= 0 uses the native default (1024).
+     */
+    public native GenerateResult generateUtf8(ByteBuffer prompt, int promptLength, ByteBuffer output,
+                                              int seed, int maxTokens, Object callback);
+    /**
+     * Generate for several raw UTF-8 prompts at once, as parallel sequences of one context.
+     * The prompts are back to back in {@code prompts}; prompt i ends at {@code promptEnds[i]}.
+     * Up to {@code parallel} of them (<= 0: the native maximum) are decoded together, each with
+     * an equal share of {@code output} and of the context. {@code callback} must have
+     * {@code boolean onBytes(int index, int offset, int length)} and
+     * {@code boolean onDone(int index, int offset, GenerateResult result)}; prompts not started
+     * when onDone returns false are never reported.
+     * @return summed token counts, or an error if the batch could not run to the end
+     */
+    public native GenerateResult generateBatchUtf8(ByteBuffer prompts, int[] promptEnds, ByteBuffer output,
+                                                   int parallel, int seed, int maxTokens, Object callback);
     public native void free();
+    
+    /**
+     * Context size, threads and batch size. Recreates the context of a loaded model if they changed.
+     * @return "ok" or an error message
+     */
+    public native String setContextParams(int nCtx, int nThreads, int nBatch);
 
     // 新しく追加したネイティブ: JNI 側のログファイルパスを設定する
     public native void setLogPath(String path);
     
     // Set sampling parameters
     public native void setParameters(
+        float temp, float topP, int topK,
         int penaltyLastN, float penaltyRepeat, float penaltyFreq, float penaltyPresent,
         int mirostat, float mirostatTau, float mirostatEta,
         float minP, float typicalP,
@@ -36,6 +162,192 @@ public class LlamaNative {
         String drySequenceBreakers
     );
 
+    /**
+     * Tokenize raw UTF-8 text with the loaded model's vocab.
+     * Does not wait for a running generate(); throws RuntimeException if no model is loaded.
+     */
+    public native int[] tokenizeUtf8(ByteBuffer text, int length, boolean addSpecial, boolean parseSpecial);
+    
+    /**
+     * Detokenize into a direct buffer as raw UTF-8.
+     * @return bytes written, or a negative number (required size) if output is too small
+     */
+    public native int detokenizeUtf8(int[] tokens, ByteBuffer output);
+    
+    /**
+     * Format {@code messageCount} messages with a chat template. {@code packed} is the
+     * template followed by role/content pairs, each NUL-terminated UTF-8.
+     * @return formatted UTF-8, or null if llama.cpp does not know the template
+     */
+    private native byte[] applyChatTemplateUtf8(byte[] packed, int messageCount, boolean addAssistant);
+    
+    /**
+     * Format a conversation with a chat template (a GGUF tokenizer.chat_template).
+     * llama.cpp recognises the common template families rather than running jinja, so
+     * unusual templates are not supported. Needs no loaded model.
+     *
+     * @param addAssistant end with the opening of an assistant turn
+     * @return the prompt, or null if the template is not supported
+     */
+    public String applyChatTemplate(String template, List<String> roles, List<String> contents,
+                                    boolean addAssistant) {
+        ByteArrayOutputStream packed = new ByteArrayOutputStream(256);
+        appendNulTerminated(packed, template);
+        for (int i = 0; i < roles.size(); i++) {
+            appendNulTerminated(packed, roles.get(i));
+            appendNulTerminated(packed, contents.get(i));
+        }
+        byte[] result = applyChatTemplateUtf8(packed.toByteArray(), roles.size(), addAssistant);
+        return result != null ? new String(result, StandardCharsets.UTF_8) : null;
+    }
+    
+    // NULs inside the text would end it early on the native side, so they are dropped
+    private static void appendNulTerminated(ByteArrayOutputStream out, String text) {
+        byte[] bytes = (text != null ? text.replace("\u0000", "") : "").getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+        out.write(0);
+    }
+    
+    public int[] tokenize(String text, boolean addSpecial, boolean parseSpecial) {
+        ByteBuffer in = encodeUtf8(text);
+        try {
+            return tokenizeUtf8(in, in.limit(), addSpecial, parseSpecial);
+        } finally {
+            bufferPool.release(in);
+        }
+    }
+    
+    public String detokenize(int[] tokens) {
+        ByteBuffer out = bufferPool.acquire(tokens.length * 8 + 16);
+        try {
+            int n = detokenizeUtf8(tokens, out);
+            if (n < 0) {
+                bufferPool.release(out);
+                out = bufferPool.acquire(-n);
+                n = detokenizeUtf8(tokens, out);
+            }
+            if (n <= 0) {
+                return "";
+            }
+            out.limit(n);
+            out.position(0);
+            return StandardCharsets.UTF_8.decode(out).toString();
+        } finally {
+            bufferPool.release(out);
+        }
+    }
+    
+    /**
+     * Generate from a String prompt using pooled direct buffers.
+     * Text crosses JNI as real UTF-8 in both directions, so 4-byte characters
+     * (emoji, some CJK) survive intact.
+     */
+    public GenerateResult generate(String prompt) {
+        return generate(prompt, GenerateOptions.SEED_RANDOM, GenerateOptions.NUM_PREDICT_DEFAULT, null);
+    }
+    
+    /**
+     * Generate and report text to {@code listener} (may be null) as each token is decoded.
+     * A {@code seed} >= 0 makes sampling reproducible; {@code maxTokens} <= 0 uses the default limit.
+     */
+    public GenerateResult generate(String prompt, int seed, int maxTokens, TokenListener listener) {
+        ByteBuffer in = encodeUtf8(prompt);
+        ByteBuffer out = bufferPool.acquire(DEFAULT_OUTPUT_CAPACITY);
+        try {
+            OutputCallback callback = listener != null ? new OutputCallback(out, listener) : null;
+            GenerateResult result = generateUtf8(in, in.limit(), out, seed, maxTokens, callback);
+            if (result != null && result.outputLength > 0) {
+                out.limit(result.outputLength);
+                out.position(0);
+                result.text = StandardCharsets.UTF_8.decode(out).toString();
+            }
+            return result;
+        } finally {
+            bufferPool.release(in);
+            bufferPool.release(out);
+        }
+    }
+    
+    /**
+     * Generate for every prompt in {@code prompts}, reporting each one's text and result to
+     * {@code listener} by index as it is produced. Prompts run {@code parallel} at a time with
+     * their prefills packed into shared decode batches, so throughput is well above running
+     * them one after another.
+     * @return summed counts over all prompts, or an error if the batch stopped early
+     */
+    public GenerateResult generateBatch(List<String> prompts, int parallel, int seed, int maxTokens,
+                                        BatchListener listener) {
+        int chars = 0;
+        for (String prompt : prompts) {
+            chars += prompt != null ? prompt.length() : 0;
+        }
+        // A UTF-16 char never needs more than 3 UTF-8 bytes
+        ByteBuffer in = bufferPool.acquire(chars * 3 + 1);
+        int slots = parallel > 0 ? Math.min(parallel, prompts.size()) : prompts.size();
+        ByteBuffer out = bufferPool.acquire(Math.max(1, Math.min(slots, MAX_BATCH_OUTPUT_SLOTS))
+            * DEFAULT_OUTPUT_CAPACITY);
+        try {
+            CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            int[] ends = new int[prompts.size()];
+            for (int i = 0; i < ends.length; i++) {
+                String prompt = prompts.get(i);
+                encoder.reset();
+                encoder.encode(CharBuffer.wrap(prompt != null ? prompt : ""), in, true);
+                encoder.flush(in);
+                ends[i] = in.position();
+            }
+            in.flip();
+            return generateBatchUtf8(in, ends, out, parallel, seed, maxTokens,
+                new BatchOutputCallback(out, listener));
+        } finally {
+            bufferPool.release(in);
+            bufferPool.release(out);
+        }
+    }
+    
+    private static String decode(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer slice = buffer.duplicate();
+        slice.limit(offset + length);
+        slice.position(offset);
+        return StandardCharsets.UTF_8.decode(slice).toString();
+    }
+    
+    /**
+     * Encode a String into a pooled direct buffer (position 0, limit = byte length).
+     * Caller must hand the buffer back with {@link #releaseBuffer(ByteBuffer)}.
+     */
+    ByteBuffer encodeUtf8(String text) {
+        if (text == null) {
+            text = "";
+        }
+        // A UTF-16 char never needs more than 3 UTF-8 bytes
+        ByteBuffer buf = bufferPool.acquire(text.length() * 3 + 1);
+        CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        CoderResult cr = encoder.encode(CharBuffer.wrap(text), buf, true);
+        if (!cr.isUnderflow()) {
+            Log.w(TAG, "UTF-8 encode incomplete: " + cr);
+        }
+        encoder.flush(buf);
+        buf.flip();
+        return buf;
+    }
+    
+    void releaseBuffer(ByteBuffer buf) {
+        bufferPool.release(buf);
+    }
+    
+    /**
+     * Drop the pooled JNI buffers; they are reallocated on demand.
+     * @return direct bytes released
+     */
+    long trimBuffers() {
+        return bufferPool.clear();
+    }
+    
     public void setDownloadProgressListener(DownloadProgressListener listener) {
         this.downloadProgressListener = listener;
     }
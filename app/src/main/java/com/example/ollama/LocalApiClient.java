@@ -0,0 +1,335 @@
+package com.example.ollama;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Minimal HTTP/1.1 client for this app's API, over the local socket
+ * ({@link LocalHttpServer}) or TCP. Enough for in-process tools and the
+ * transport benchmark in androidTest: one request at a time on one kept-alive connection,
+ * Content-Length and chunked bodies, and NDJSON streams delivered line by line as
+ * they arrive. Not thread-safe.
+ */
+public final class LocalApiClient implements Closeable {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    // Longest status, header or chunk-size line accepted
+    private static final int MAX_LINE_BYTES = 8 * 1024;
+
+    /**
+     * Receives each line of a streamed (NDJSON) response as it arrives.
+     */
+    public interface LineListener {
+        void onLine(String line);
+    }
+
+    /**
+     * Status and body. The body is empty when lines went to a {@link LineListener}.
+     */
+    public static final class Response {
+        public final int statusCode;
+        public final byte[] body;
+
+        Response(int statusCode, byte[] body) {
+            this.statusCode = statusCode;
+            this.body = body;
+        }
+
+        public String bodyAsString() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    private interface Connector {
+        Closeable connect(Streams streams) throws IOException;
+    }
+
+    private static final class Streams {
+        InputStream in;
+        OutputStream out;
+    }
+
+    private final Connector connector;
+    private final String hostHeader;
+    private final Streams streams = new Streams();
+    private Closeable connection;
+
+    private LocalApiClient(Connector connector, String hostHeader) {
+        this.connector = connector;
+        this.hostHeader = hostHeader;
+    }
+
+    /**
+     * Client for an abstract-namespace socket (see {@link OllamaApiServer#setLocalSocketName}).
+     */
+    public static LocalApiClient overLocalSocket(final String name) {
+        return new LocalApiClient(streams -> {
+            LocalSocket socket = new LocalSocket();
+            try {
+                socket.connect(new LocalSocketAddress(name, LocalSocketAddress.Namespace.ABSTRACT));
+                streams.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+                streams.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return socket;
+        }, "localhost");
+    }
+
+    public static LocalApiClient overTcp(final String host, final int port) {
+        return new LocalApiClient(streams -> {
+            Socket socket = new Socket();
+            try {
+                socket.setTcpNoDelay(true);
+                socket.connect(new InetSocketAddress(host, port));
+                streams.in = new BufferedInputStream(socket.getInputStream(), BUFFER_SIZE);
+                streams.out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_SIZE);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return socket;
+        }, host + ":" + port);
+    }
+
+    public Response get(String path) throws IOException {
+        return request("GET", path, null, null);
+    }
+
+    public Response post(String path, String json) throws IOException {
+        return request("POST", path, json.getBytes(StandardCharsets.UTF_8), null);
+    }
+
+    /**
+     * POST and deliver the response body line by line (for "stream": true).
+     */
+    public Response postStreaming(String path, String json, LineListener listener) throws IOException {
+        return request("POST", path, json.getBytes(StandardCharsets.UTF_8), listener);
+    }
+
+    /**
+     * Send one request and read its whole response. The connection is opened on first
+     * use and reused while the server keeps it alive; an I/O error closes it.
+     *
+     * @param body     request body, or null for none
+     * @param listener receives the body line by line, or null to collect it
+     */
+    public Response request(String method, String path, byte[] body, LineListener listener)
+            throws IOException {
+        if (connection == null) {
+            connection = connector.connect(streams);
+        }
+        try {
+            writeRequest(method, path, body);
+            return readResponse(listener);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        if (connection != null) {
+            try {
+                connection.close();
+            } catch (IOException ignored) {}
+            connection = null;
+        }
+    }
+
+    private void writeRequest(String method, String path, byte[] body) throws IOException {
+        StringBuilder head = new StringBuilder(128);
+        head.append(method).append(' ').append(path).append(" HTTP/1.1\r\n")
+            .append("Host: ").append(hostHeader).append("\r\n");
+        if (body != null) {
+            head.append("Content-Type: application/json\r\n")
+                .append("Content-Length: ").append(body.length).append("\r\n");
+        }
+        head.append("\r\n");
+        OutputStream out = streams.out;
+        out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+        if (body != null) {
+            out.write(body);
+        }
+        out.flush();
+    }
+
+    private Response readResponse(LineListener listener) throws IOException {
+        String statusLine = readLine();
+        int statusCode = parseStatus(statusLine);
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean close = false;
+        String line;
+        while (!(line = readLine()).isEmpty()) {
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+            String value = line.substring(colon + 1).trim();
+            if ("content-length".equals(name)) {
+                contentLength = Long.parseLong(value);
+            } else if ("transfer-encoding".equals(name)) {
+                chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+            } else if ("connection".equals(name)) {
+                close = "close".equalsIgnoreCase(value);
+            }
+        }
+
+        BodySink sink = new BodySink(listener);
+        if (chunked) {
+            readChunked(sink);
+        } else if (contentLength >= 0) {
+            readFully(sink, contentLength);
+        } else {
+            // No framing: the body runs to the end of the connection
+            readToEnd(sink);
+            close = true;
+        }
+        sink.finish();
+        if (close) {
+            close();
+        }
+        return new Response(statusCode, sink.body());
+    }
+
+    private void readChunked(BodySink sink) throws IOException {
+        while (true) {
+            String sizeLine = readLine();
+            int semicolon = sizeLine.indexOf(';');
+            String size = (semicolon >= 0 ? sizeLine.substring(0, semicolon) : sizeLine).trim();
+            long length;
+            try {
+                length = Long.parseLong(size, 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Bad chunk size: " + sizeLine);
+            }
+            if (length == 0) {
+                // Trailers, if any, end with a blank line
+                while (!readLine().isEmpty()) {
+                    // skip
+                }
+                return;
+            }
+            readFully(sink, length);
+            readLine();
+        }
+    }
+
+    private void readFully(BodySink sink, long length) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(BUFFER_SIZE, Math.max(1, length))];
+        while (length > 0) {
+            int n = streams.in.read(buffer, 0, (int) Math.min(buffer.length, length));
+            if (n < 0) {
+                throw new EOFException("Connection closed mid-body");
+            }
+            sink.write(buffer, n);
+            length -= n;
+        }
+    }
+
+    private void readToEnd(BodySink sink) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = streams.in.read(buffer)) >= 0) {
+            sink.write(buffer, n);
+        }
+    }
+
+    // CRLF- (or LF-) terminated ASCII line, without the terminator
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder(64);
+        InputStream in = streams.in;
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') {
+                    line.setLength(end - 1);
+                }
+                return line.toString();
+            }
+            if (line.length() >= MAX_LINE_BYTES) {
+                throw new IOException("Response line too long");
+            }
+            line.append((char) c);
+        }
+        throw new EOFException("Connection closed");
+    }
+
+    private static int parseStatus(String statusLine) throws IOException {
+        // HTTP/1.1 200 OK
+        int first = statusLine.indexOf(' ');
+        if (!statusLine.startsWith("HTTP/") || first < 0) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+        int second = statusLine.indexOf(' ', first + 1);
+        try {
+            return Integer.parseInt(statusLine.substring(first + 1, second < 0 ? statusLine.length() : second));
+        } catch (NumberFormatException e) {
+            throw new IOException("Bad status line: " + statusLine);
+        }
+    }
+
+    /**
+     * Collects a body, or splits it into lines for a listener as the bytes arrive.
+     * Lines are decoded whole, so a character split across chunks is not broken.
+     */
+    private static final class BodySink {
+        private final LineListener listener;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        BodySink(LineListener listener) {
+            this.listener = listener;
+        }
+
+        void write(byte[] data, int length) {
+            if (listener == null) {
+                bytes.write(data, 0, length);
+                return;
+            }
+            int start = 0;
+            for (int i = 0; i < length; i++) {
+                if (data[i] == '\n') {
+                    bytes.write(data, start, i - start);
+                    emit();
+                    start = i + 1;
+                }
+            }
+            bytes.write(data, start, length - start);
+        }
+
+        void finish() {
+            if (listener != null && bytes.size() > 0) {
+                emit();
+            }
+        }
+
+        byte[] body() {
+            return listener == null ? bytes.toByteArray() : new byte[0];
+        }
+
+        private void emit() {
+            String line = new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+            bytes.reset();
+            if (!line.isEmpty()) {
+                listener.onLine(line);
+            }
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.example.ollama;
+
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP server on an abstract-namespace Unix domain socket, for clients on the device.
+ * Speaks the same HTTP/1.1 as {@link NioHttpServer} and takes the same
+ * {@link NioHttpServer.Handler}, so routing and response encoding are shared; only
+ * the transport differs. No TCP stack, no loopback port visible to other apps' port
+ * scans, and the peer's uid is known (it becomes the request's remote address,
+ * "local:UID").
+ *
+ * LocalSocket only offers blocking streams, so each connection has its own thread
+ * (there are few local clients). Connections are kept alive and requests on one
+ * connection are handled in order. A connection with no request arriving for the idle
+ * timeout is closed.
+ */
+public class LocalHttpServer {
+    private static final String TAG = "LocalHttpServer";
+
+    public static final int DEFAULT_MAX_CONNECTIONS = 16;
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+
+    private final String name;
+    private final NioHttpServer.Handler handler;
+    private final int maxConnections;
+
+    private LocalServerSocket serverSocket;
+    private ExecutorService connectionThreads;
+    private Thread acceptor;
+    private volatile boolean running = false;
+    private volatile long idleTimeoutMs = NioHttpServer.DEFAULT_IDLE_TIMEOUT_MS;
+    private volatile int maxBodyBytes = HttpRequestParser.DEFAULT_MAX_BODY_BYTES;
+    private final AtomicInteger openConnections = new AtomicInteger();
+    private final Set<LocalSocket> sockets = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    /**
+     * @param name socket name in the abstract namespace (no leading '@')
+     */
+    public LocalHttpServer(String name, NioHttpServer.Handler handler, int maxConnections) {
+        this.name = name;
+        this.handler = handler;
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    /**
+     * Bind and start serving. Throws if the name is already bound.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        serverSocket = new LocalServerSocket(name);
+        connectionThreads = Executors.newCachedThreadPool(runnable -> {
+            Thread t = new Thread(runnable, "local-conn");
+            t.setDaemon(true);
+            return t;
+        });
+        running = true;
+
+        acceptor = new Thread(this::acceptLoop, "local-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        // close() does not reliably wake a thread blocked in accept(); a throwaway
+        // connection does
+        try (LocalSocket wake = new LocalSocket()) {
+            wake.connect(new LocalSocketAddress(name, LocalSocketAddress.Namespace.ABSTRACT));
+        } catch (IOException ignored) {}
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Error closing server socket", e);
+        }
+        for (LocalSocket socket : sockets) {
+            closeQuietly(socket);
+        }
+        connectionThreads.shutdownNow();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Close keep-alive connections with no request arriving for this long.
+     * Applies to connections accepted afterwards.
+     */
+    public void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Largest request body accepted (413 beyond that), as for {@link NioHttpServer}.
+     */
+    public void setMaxBodyBytes(int maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            final LocalSocket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "Error accepting connection", e);
+                }
+                continue;
+            }
+            if (!running) {
+                closeQuietly(socket);
+                break;
+            }
+            if (openConnections.incrementAndGet() > maxConnections) {
+                openConnections.decrementAndGet();
+                Log.w(TAG, "Too many local connections; refusing one");
+                closeQuietly(socket);
+                continue;
+            }
+            sockets.add(socket);
+            try {
+                connectionThreads.execute(() -> {
+                    try {
+                        serve(socket);
+                    } finally {
+                        sockets.remove(socket);
+                        closeQuietly(socket);
+                        openConnections.decrementAndGet();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Server is stopping
+                sockets.remove(socket);
+                closeQuietly(socket);
+                openConnections.decrementAndGet();
+            }
+        }
+    }
+
+    // Connection thread: read, parse and handle requests until the peer goes away
+    private void serve(LocalSocket socket) {
+        String remoteAddress = peerAddress(socket);
+        HttpRequestParser parser = new HttpRequestParser(remoteAddress, maxBodyBytes);
+        ByteBuffer readBuffer = ByteBuffer.allocate(NioHttpServer.READ_BUFFER_SIZE);
+        try {
+            socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, idleTimeoutMs));
+            InputStream in = socket.getInputStream();
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), OUTPUT_BUFFER_SIZE);
+            HttpResponseWriter response = new HttpResponseWriter(out);
+            while (running) {
+                readBuffer.flip();
+                HttpRequest request;
+                try {
+                    request = parser.feed(readBuffer);
+                } catch (HttpRequestParser.ParseException e) {
+                    ByteBuffer error = NioHttpServer.simpleErrorResponse(e.statusCode, e.getMessage());
+                    out.write(error.array(), error.position(), error.remaining());
+                    out.flush();
+                    return;
+                }
+                readBuffer.compact();
+                if (request == null) {
+                    int n = in.read(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+                    if (n < 0) {
+                        return;
+                    }
+                    readBuffer.position(readBuffer.position() + n);
+                    continue;
+                }
+                handler.handle(request, response);
+                response.flush();
+                if (!request.isKeepAlive()) {
+                    return;
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            Log.d(TAG, "Closing idle connection from " + remoteAddress);
+        } catch (IOException e) {
+            Log.d(TAG, "Connection I/O error: " + e.getMessage());
+        } catch (Exception e) {
+            Log.e(TAG, "Error handling request", e);
+        }
+    }
+
+    private static String peerAddress(LocalSocket socket) {
+        try {
+            Credentials credentials = socket.getPeerCredentials();
+            if (credentials != null) {
+                return "local:" + credentials.getUid();
+            }
+        } catch (IOException ignored) {}
+        return "local";
+    }
+
+    private static void closeQuietly(LocalSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -177,11 +177,16 @@ public class MainActivity extends Activity {
                         modelManager.applyConfiguration(currentConfig);
                     }
                     
-                    String gen = modelManager.generate(chatPrompt);
-                    final String finalGen = gen;
+                    GenerateResult gen = modelManager.generate(chatPrompt);
                     runOnUiThread(() -> {
-                        appendMessage("generate() returned.");
-                        outputView.setText(finalGen);
+                        if (gen.isError()) {
+                            appendMessage("generate() failed: " + gen.errorMessage);
+                            outputView.setText("Error: " + gen.errorMessage);
+                        } else {
+                            appendMessage("generate() returned. " + gen.evalCount + " tokens in "
+                                + (gen.evalDurationNs / 1000000) + " ms");
+                            outputView.setText(gen.text);
+                        }
                     });
                 } catch (Throwable t) {
                     appendException("generate() threw", t);
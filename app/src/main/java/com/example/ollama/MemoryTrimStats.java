@@ -0,0 +1,74 @@
+package com.example.ollama;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Counters for {@link ModelManager#trimMemory}: how often each step ran and about how
+ * much it freed, next to what undoing it cost later (context restores and model reloads
+ * after a trim). Freed bytes are estimates: cache sizes, and for the model the GGUF
+ * tensor data plus the KV cache computed from the header.
+ */
+final class MemoryTrimStats {
+    static final int STEP_CACHES = 0;
+    static final int STEP_CONTEXT = 1;
+    static final int STEP_UNLOAD = 2;
+    private static final String[] STEP_NAMES = {"caches", "context", "unload"};
+
+    private final long[] runs = new long[STEP_NAMES.length];
+    private final long[] freedBytes = new long[STEP_NAMES.length];
+    private final long[] durationNs = new long[STEP_NAMES.length];
+    private final int[] lastLevel = new int[STEP_NAMES.length];
+    private final long[] lastAtMs = new long[STEP_NAMES.length];
+    // Context and unload steps not taken because a request held the model
+    private long skippedBusy = 0;
+    private long contextRestores = 0;
+    private long contextRestoreNs = 0;
+    private long modelReloads = 0;
+    private long modelReloadNs = 0;
+
+    synchronized void recordStep(int step, int level, long freed, long nanos) {
+        runs[step]++;
+        freedBytes[step] += freed;
+        durationNs[step] += nanos;
+        lastLevel[step] = level;
+        lastAtMs[step] = System.currentTimeMillis();
+    }
+
+    synchronized void recordSkippedBusy() {
+        skippedBusy++;
+    }
+
+    synchronized void recordContextRestore(long nanos) {
+        contextRestores++;
+        contextRestoreNs += nanos;
+    }
+
+    synchronized void recordModelReload(long nanos) {
+        modelReloads++;
+        modelReloadNs += nanos;
+    }
+
+    synchronized JSONObject toJSON() throws JSONException {
+        JSONObject steps = new JSONObject();
+        for (int i = 0; i < STEP_NAMES.length; i++) {
+            JSONObject step = new JSONObject();
+            step.put("runs", runs[i]);
+            step.put("freed_bytes", freedBytes[i]);
+            step.put("duration", durationNs[i]);
+            if (runs[i] > 0) {
+                step.put("last_level", lastLevel[i]);
+                step.put("last_at", HttpResponseWriter.timestamp(lastAtMs[i]));
+            }
+            steps.put(STEP_NAMES[i], step);
+        }
+        JSONObject json = new JSONObject();
+        json.put("steps", steps);
+        json.put("skipped_busy", skippedBusy);
+        json.put("context_restores", contextRestores);
+        json.put("context_restore_duration", contextRestoreNs);
+        json.put("model_reloads", modelReloads);
+        json.put("model_reload_duration", modelReloadNs);
+        return json;
+    }
+}
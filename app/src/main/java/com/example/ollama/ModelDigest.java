@@ -0,0 +1,131 @@
+package com.example.ollama;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.regex.Pattern;
+
+/**
+ * SHA-256 of a model file, remembered in {@code <file>.sha256} next to it as
+ * "{@code <hex> <size> <mtime seconds>}". The native download writes that file after
+ * hashing the data as it arrived; {@link #of} hashes only when it is missing or the
+ * model file's size or mtime no longer match it.
+ */
+final class ModelDigest {
+    private static final String TAG = "ModelDigest";
+    private static final String SUFFIX = ".sha256";
+    private static final Pattern HEX_64 = Pattern.compile("[0-9a-fA-F]{64}");
+
+    private ModelDigest() {}
+
+    /**
+     * Lower-case hex SHA-256 of {@code file}, from the digest file when it is current.
+     *
+     * @return null if the file cannot be read
+     */
+    static String of(File file) {
+        String cached = known(file);
+        if (cached != null) {
+            return cached;
+        }
+        long start = System.nanoTime();
+        String digest;
+        try {
+            digest = compute(file);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot hash " + file.getName() + ": " + e.getMessage());
+            return null;
+        }
+        Log.i(TAG, "Hashed " + file.getName() + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+        write(file, digest);
+        return digest;
+    }
+
+    /**
+     * True if {@code sha256} is empty (nothing to check) or 64 hex digits, any case.
+     */
+    static boolean isWellFormed(String sha256) {
+        return sha256 == null || sha256.trim().isEmpty() || HEX_64.matcher(sha256.trim()).matches();
+    }
+
+    /**
+     * True if {@code expected} (hex, any case) is empty or matches the file's digest.
+     */
+    static boolean matches(File file, String expected) {
+        if (expected == null || expected.trim().isEmpty()) {
+            return true;
+        }
+        String digest = of(file);
+        return digest != null && digest.equalsIgnoreCase(expected.trim());
+    }
+
+    /**
+     * Digest from {@code <file>.sha256} if it describes the file as it is now; null
+     * otherwise, without hashing.
+     */
+    static String known(File file) {
+        File digestFile = new File(file.getPath() + SUFFIX);
+        if (!digestFile.isFile()) {
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(digestFile))) {
+            String line = reader.readLine();
+            String[] parts = line != null ? line.trim().split("\\s+") : new String[0];
+            if (parts.length == 3 && parts[0].length() == 64
+                    && Long.parseLong(parts[1]) == file.length()
+                    && Long.parseLong(parts[2]) == file.lastModified() / 1000) {
+                return parts[0].toLowerCase(Locale.ROOT);
+            }
+        } catch (IOException | NumberFormatException e) {
+            Log.w(TAG, "Ignoring " + digestFile.getName() + ": " + e.getMessage());
+        }
+        return null;
+    }
+
+    private static String compute(File file) throws IOException {
+        MessageDigest sha256;
+        try {
+            sha256 = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[1 << 20];
+        try (InputStream in = new FileInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                sha256.update(buffer, 0, n);
+            }
+        }
+        StringBuilder hex = new StringBuilder(64);
+        for (byte b : sha256.digest()) {
+            hex.append(String.format(Locale.ROOT, "%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+
+    private static void write(File file, String digest) {
+        File digestFile = new File(file.getPath() + SUFFIX);
+        File tempFile = new File(file.getPath() + SUFFIX + ".tmp");
+        String line = digest + " " + file.length() + " " + file.lastModified() / 1000 + "\n";
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            out.write(line.getBytes(StandardCharsets.US_ASCII));
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write " + digestFile.getName() + ": " + e.getMessage());
+            tempFile.delete();
+            return;
+        }
+        if (!tempFile.renameTo(digestFile)) {
+            tempFile.delete();
+        }
+    }
+}
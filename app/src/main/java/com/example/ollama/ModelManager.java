@@ -1,5 +1,6 @@
 package com.example.ollama;
 
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.util.Log;
 
@@ -7,11 +8,27 @@ import org.json.JSONException;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Singleton class that manages model loading and generation.
  * Provides unified access for both UI and API, with busy state tracking.
+ *
+ * A loaded model is freed once it has been idle for its keep-alive: the configuration's
+ * keepAlive, or the last request's keep_alive ({@link GenerateOptions#keepAliveMs}).
+ * The idle timer is armed whenever the busy lock is released.
+ *
+ * Under memory pressure ({@link #trimMemory}) native state is given up in steps, cheapest
+ * to rebuild first, so the process is less likely to be killed outright.
  */
 public class ModelManager {
     private static final String TAG = "ModelManager";
@@ -21,12 +38,51 @@ public class ModelManager {
     private final Context context;
     private final LlamaNative llama;
     private final ConfigurationManager configManager;
+    private final RequestScheduler scheduler;
     
     // State tracking
     private final AtomicBoolean busy = new AtomicBoolean(false);
     private volatile String currentConfigName = null;
     private volatile String currentModelPath = null;
+    private volatile ConfigurationManager.Configuration currentConfig = null;
     private volatile boolean modelLoaded = false;
+    private volatile long lastLoadDurationNs = 0;
+    // Read-held by vocab calls that skip the queue, write-held while the model is switched
+    // or freed, so such a call never runs against a model other than the one it checked for
+    private final ReentrantReadWriteLock modelSwitchLock = new ReentrantReadWriteLock();
+    
+    // Idle unload: keep-alive for the loaded model, and when it is due (0 = not scheduled).
+    // Memory trims run on the same thread.
+    private static final long DEFAULT_KEEP_ALIVE_MS = 5 * 60 * 1000;
+    private volatile long keepAliveMs = DEFAULT_KEEP_ALIVE_MS;
+    private volatile long unloadAtMs = 0;
+    private final Object unloadLock = new Object();
+    private ScheduledFuture<?> unloadTask;
+    private final ScheduledExecutorService unloadTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "model-unload");
+        t.setDaemon(true);
+        return t;
+    });
+    
+    // trimMemory steps; each includes the ones before it
+    public static final int TRIM_NONE = 0;
+    public static final int TRIM_CACHES = 1;
+    public static final int TRIM_CONTEXT = 2;
+    public static final int TRIM_UNLOAD = 3;
+    // Smallest n_ctx the context step shrinks to
+    private static final int TRIM_MIN_N_CTX = 512;
+    
+    // Shard suffix of a split GGUF model (llama_split_path): -00001-of-00003.gguf
+    private static final Pattern SPLIT_SHARD = Pattern.compile("-(\\d{5})-of-(\\d{5})\\.gguf$");
+    
+    // n_ctx of the live context; below currentConfig.nCtx after a trim (0 = none)
+    private volatile int appliedNCtx = 0;
+    // Configuration unloaded by trimMemory; its next load is counted as a reload
+    private volatile String trimmedConfigName = null;
+    private final MemoryTrimStats trimStats = new MemoryTrimStats();
+    
+    // Token counts for repeated strings (system prompts etc.), keyed by model path
+    private final TokenCountCache tokenCountCache = new TokenCountCache(256, 512 * 1024);
     
     // Listener interface
     public interface ModelListener {
@@ -39,10 +95,18 @@ public class ModelManager {
     
     private ModelListener listener;
     
+    /**
+     * Told which step {@link #trimMemory} took, on the thread that took it.
+     */
+    public interface TrimListener {
+        void onTrimmed(int step);
+    }
+    
     private ModelManager(Context context) {
         this.context = context.getApplicationContext();
         this.llama = new LlamaNative();
         this.configManager = new ConfigurationManager(this.context);
+        this.scheduler = new RequestScheduler(this);
         
         // Set JNI log path
         File logFile = new File(context.getExternalFilesDir(null), "ollama.log");
@@ -68,6 +132,13 @@ public class ModelManager {
         return llama;
     }
     
+    /**
+     * Shared request queue for API clients; grants the busy lock in fair order.
+     */
+    public RequestScheduler getScheduler() {
+        return scheduler;
+    }
+    
     public boolean isBusy() {
         return busy.get();
     }
@@ -84,6 +155,53 @@ public class ModelManager {
         return currentModelPath;
     }
     
+    /**
+     * Configuration currently applied, or null if none is loaded.
+     */
+    public ConfigurationManager.Configuration getCurrentConfig() {
+        return currentConfig;
+    }
+    
+    /**
+     * n_ctx of the live context: the configuration's, or less after {@link #trimMemory}
+     * shrank it. 0 if no model is loaded.
+     */
+    public int getContextLength() {
+        return appliedNCtx;
+    }
+    
+    MemoryTrimStats getTrimStats() {
+        return trimStats;
+    }
+    
+    /**
+     * Local file a configuration's model is (or will be) downloaded to,
+     * or null if the model URL has no file name.
+     */
+    public File getModelFile(ConfigurationManager.Configuration config) {
+        String filename = extractFilenameFromUrl(config.modelUrl);
+        if (filename == null || filename.isEmpty()) {
+            return null;
+        }
+        return new File(context.getFilesDir(), filename);
+    }
+    
+    /**
+     * The model's chat template for a configuration (cached per configuration), or null
+     * to use its promptTemplate. Reads only the GGUF header; the model need not be loaded.
+     */
+    public ChatTemplate getChatTemplate(ConfigurationManager.Configuration config) {
+        return config != null ? ChatTemplate.forConfig(config, getModelFile(config), llama) : null;
+    }
+    
+    /**
+     * Time spent by the most recent loadConfiguration call (download + init), in nanoseconds.
+     * 0 when the configuration was already loaded.
+     */
+    public long getLastLoadDurationNs() {
+        return lastLoadDurationNs;
+    }
+    
     /**
      * Try to acquire the busy lock for generation.
      * @return true if lock acquired, false if already busy
@@ -93,10 +211,82 @@ public class ModelManager {
     }
     
     /**
-     * Release the busy lock.
+     * Release the busy lock. Unloads the model now if its keep-alive is 0, otherwise
+     * (re)starts its idle timer.
      */
     public void release() {
+        long keepAlive = keepAliveMs;
+        if (modelLoaded && keepAlive == 0) {
+            unloadLocked("keep_alive 0");
+        }
         busy.set(false);
+        if (modelLoaded) {
+            scheduleUnload(keepAlive);
+        }
+    }
+    
+    /**
+     * Override the loaded model's keep-alive (ms, or {@link GenerateOptions#KEEP_ALIVE_FOREVER});
+     * {@link GenerateOptions#KEEP_ALIVE_CONFIG} leaves it unchanged. Applies from the next release.
+     */
+    public void setKeepAlive(long keepAliveMs) {
+        if (keepAliveMs != GenerateOptions.KEEP_ALIVE_CONFIG) {
+            this.keepAliveMs = keepAliveMs;
+        }
+    }
+    
+    /**
+     * When the idle model will be unloaded (epoch ms); 0 if no unload is scheduled.
+     */
+    public long getUnloadAtMs() {
+        return unloadAtMs;
+    }
+    
+    private void scheduleUnload(long delayMs) {
+        synchronized (unloadLock) {
+            if (unloadTask != null) {
+                unloadTask.cancel(false);
+                unloadTask = null;
+            }
+            if (delayMs < 0) {
+                unloadAtMs = 0;
+                return;
+            }
+            unloadAtMs = System.currentTimeMillis() + delayMs;
+            unloadTask = unloadTimer.schedule(this::unloadIfIdle, delayMs, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    // Timer thread. A request holding the lock re-arms the timer when it releases.
+    private void unloadIfIdle() {
+        long due = unloadAtMs;
+        if (!modelLoaded || due == 0 || System.currentTimeMillis() < due) {
+            return;
+        }
+        if (busy.compareAndSet(false, true)) {
+            try {
+                unloadLocked("idle for " + keepAliveMs + " ms");
+            } finally {
+                busy.set(false);
+            }
+        }
+    }
+    
+    // Caller holds the busy lock
+    private void unloadLocked(String reason) {
+        Log.i(TAG, "Unloading " + currentConfigName + " (" + reason + ")");
+        modelSwitchLock.writeLock().lock();
+        try {
+            llama.free();
+            currentModelPath = null;
+            currentConfig = null;
+            currentConfigName = null;
+            modelLoaded = false;
+            appliedNCtx = 0;
+            unloadAtMs = 0;
+        } finally {
+            modelSwitchLock.writeLock().unlock();
+        }
     }
     
     /**
@@ -107,12 +297,19 @@ public class ModelManager {
      * @return true if successful, false otherwise
      */
     public boolean loadConfiguration(String configName) {
+        lastLoadDurationNs = 0;
+        
         // If same config is already loaded, just return true
         if (configName.equals(currentConfigName) && modelLoaded) {
             Log.i(TAG, "Configuration already loaded: " + configName);
+            keepAliveMs = configKeepAlive(currentConfig);
+            if (appliedNCtx < currentConfig.nCtx) {
+                return restoreContext(currentConfig);
+            }
             return true;
         }
         
+        long loadStart = System.nanoTime();
         try {
             ConfigurationManager.Configuration config = configManager.loadConfiguration(configName);
             
@@ -131,41 +328,58 @@ public class ModelManager {
             String modelPath = destFile.getAbsolutePath();
             
             // Download if not exists
-            if (!destFile.exists() || destFile.length() == 0) {
-                Log.i(TAG, "Downloading model from: " + config.modelUrl);
-                String dlResult = llama.download(config.modelUrl, modelPath);
-                if (!"ok".equals(dlResult)) {
-                    Log.e(TAG, "Download failed: " + dlResult);
-                    if (listener != null) {
-                        listener.onError("Download failed: " + dlResult);
-                    }
-                    return false;
-                }
+            if (!downloadIfMissing(config, destFile)) {
+                return false;
             }
             
-            // Initialize model if path changed
-            if (!modelPath.equals(currentModelPath)) {
-                if (currentModelPath != null) {
-                    llama.free();
-                }
-                
-                String initResult = llama.init(modelPath);
-                if (!"ok".equals(initResult)) {
-                    Log.e(TAG, "Model init failed: " + initResult);
-                    if (listener != null) {
-                        listener.onError("Model init failed: " + initResult);
+            modelSwitchLock.writeLock().lock();
+            try {
+                // Initialize model if path changed
+                if (!modelPath.equals(currentModelPath)) {
+                    if (currentModelPath != null) {
+                        llama.free();
+                        currentModelPath = null;
+                        currentConfigName = null;
+                        modelLoaded = false;
+                    }
+                    
+                    // No model is loaded now, so this only records the values init uses
+                    if (!setContextParams(config)) {
+                        return false;
                     }
+                    String initResult = llama.init(modelPath);
+                    if (!"ok".equals(initResult)) {
+                        Log.e(TAG, "Model init failed: " + initResult);
+                        if (listener != null) {
+                            listener.onError("Model init failed: " + initResult);
+                        }
+                        return false;
+                    }
+                    
+                    currentModelPath = modelPath;
+                } else if (!setContextParams(config)) {
+                    // Same model: the context is recreated only if the values changed. A failed
+                    // recreate leaves no context, so drop the model and let the next load start clean.
+                    unloadLocked("context setup failed");
                     return false;
                 }
                 
-                currentModelPath = modelPath;
+                // Set parameters from configuration
+                applyConfiguration(config);
+                
+                currentConfig = config;
+                currentConfigName = configName;
+                keepAliveMs = configKeepAlive(config);
+                appliedNCtx = config.nCtx;
+                modelLoaded = true;
+            } finally {
+                modelSwitchLock.writeLock().unlock();
             }
-            
-            // Set parameters from configuration
-            applyConfiguration(config);
-            
-            currentConfigName = configName;
-            modelLoaded = true;
+            lastLoadDurationNs = System.nanoTime() - loadStart;
+            if (configName.equals(trimmedConfigName)) {
+                trimStats.recordModelReload(lastLoadDurationNs);
+            }
+            trimmedConfigName = null;
             
             if (listener != null) {
                 listener.onModelLoaded(configName);
@@ -182,11 +396,275 @@ public class ModelManager {
         }
     }
     
+    private boolean setContextParams(ConfigurationManager.Configuration config) {
+        String result = llama.setContextParams(config.nCtx, config.nThreads, config.nBatch);
+        if (!"ok".equals(result)) {
+            Log.e(TAG, "Context setup failed: " + result);
+            if (listener != null) {
+                listener.onError("Context setup failed: " + result);
+            }
+            return false;
+        }
+        return true;
+    }
+    
+    // Back to the configured n_ctx after trimMemory shrank the context. Caller holds the busy lock.
+    private boolean restoreContext(ConfigurationManager.Configuration config) {
+        long start = System.nanoTime();
+        String result = llama.setContextParams(config.nCtx, config.nThreads, config.nBatch);
+        if (!"ok".equals(result)) {
+            Log.e(TAG, "Context restore failed: " + result);
+            // The native side has no context left; drop the model so the next load starts clean
+            unloadLocked("context restore failed");
+            if (listener != null) {
+                listener.onError("Context setup failed: " + result);
+            }
+            return false;
+        }
+        appliedNCtx = config.nCtx;
+        lastLoadDurationNs = System.nanoTime() - start;
+        trimStats.recordContextRestore(lastLoadDurationNs);
+        Log.i(TAG, "Context restored to n_ctx=" + config.nCtx);
+        return true;
+    }
+    
+    /**
+     * Step for an onTrimMemory level. UI_HIDDEN only concerns the activity; the running
+     * levels and their cached-process counterparts escalate the same way.
+     */
+    static int trimStep(int level) {
+        switch (level) {
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE:
+            case ComponentCallbacks2.TRIM_MEMORY_BACKGROUND:
+                return TRIM_CACHES;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW:
+            case ComponentCallbacks2.TRIM_MEMORY_MODERATE:
+                return TRIM_CONTEXT;
+            case ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL:
+            case ComponentCallbacks2.TRIM_MEMORY_COMPLETE:
+                return TRIM_UNLOAD;
+            default:
+                return TRIM_NONE;
+        }
+    }
+    
+    /**
+     * Give up memory for an onTrimMemory {@code level}, in steps:
+     *  1. drop caches (token counts, pooled JNI buffers, GGUF headers, the response
+     *     cache index);
+     *  2. recreate the context with half its n_ctx (down to 512), shrinking the KV cache;
+     *     the next request for the configuration restores it;
+     *  3. unload the model.
+     * Steps 2 and 3 need the model idle; while a request holds the busy lock only the
+     * caches are dropped. Every step taken is counted in {@link #getTrimStats()}.
+     *
+     * Returns at once: recreating the context or freeing the model can take a while, so
+     * the steps run on the idle-unload thread rather than the caller's (the main thread,
+     * for onTrimMemory).
+     *
+     * @param responseCache also trimmed in step 1; may be null
+     * @param trimListener  told the last step taken; may be null
+     */
+    public void trimMemory(int level, ResponseCache responseCache, TrimListener trimListener) {
+        int step = trimStep(level);
+        if (step == TRIM_NONE) {
+            return;
+        }
+        unloadTimer.execute(() -> {
+            int taken = trimMemoryNow(level, step, responseCache);
+            if (trimListener != null) {
+                trimListener.onTrimmed(taken);
+            }
+        });
+    }
+    
+    // The steps of trimMemory, on the idle-unload thread
+    private int trimMemoryNow(int level, int step, ResponseCache responseCache) {
+        long start = System.nanoTime();
+        // Header of the loaded model for the estimates below, read before its cache is dropped
+        String residentPath = currentModelPath;
+        GgufReader.Metadata resident = readMetadata(residentPath);
+        long freed = tokenCountCache.clear() * 2L + llama.trimBuffers();
+        if (responseCache != null) {
+            freed += responseCache.trimMemory();
+        }
+        GgufReader.clearCache();
+        trimStats.recordStep(MemoryTrimStats.STEP_CACHES, level, freed, System.nanoTime() - start);
+        Log.i(TAG, "Memory pressure (level " + level + "): dropped caches, ~" + freed + " bytes");
+        if (step == TRIM_CACHES || !modelLoaded) {
+            return TRIM_CACHES;
+        }
+        
+        if (!busy.compareAndSet(false, true)) {
+            Log.i(TAG, "Memory pressure (level " + level + "): model busy, keeping it");
+            trimStats.recordSkippedBusy();
+            return TRIM_CACHES;
+        }
+        try {
+            if (!modelLoaded) {
+                return TRIM_CACHES;
+            }
+            if (currentModelPath != null && !currentModelPath.equals(residentPath)) {
+                // Another model was loaded in between
+                resident = readMetadata(currentModelPath);
+            }
+            if (step == TRIM_CONTEXT) {
+                int current = appliedNCtx;
+                int target = Math.max(TRIM_MIN_N_CTX, current / 2);
+                if (target >= current) {
+                    return TRIM_CACHES;
+                }
+                if (shrinkContextLocked(level, current, target, resident)) {
+                    return TRIM_CONTEXT;
+                }
+                // Recreating the context failed and left none; unload the rest
+            }
+            start = System.nanoTime();
+            String configName = currentConfigName;
+            freed = residentBytes(resident, appliedNCtx);
+            unloadLocked("memory pressure, level " + level);
+            trimmedConfigName = configName;
+            trimStats.recordStep(MemoryTrimStats.STEP_UNLOAD, level, freed, System.nanoTime() - start);
+            return TRIM_UNLOAD;
+        } finally {
+            busy.set(false);
+        }
+    }
+    
+    // Recreate the context with a smaller n_ctx; false if that failed
+    private boolean shrinkContextLocked(int level, int current, int target, GgufReader.Metadata resident) {
+        ConfigurationManager.Configuration config = currentConfig;
+        long start = System.nanoTime();
+        String result = llama.setContextParams(target, config.nThreads, Math.min(config.nBatch, target));
+        if (!"ok".equals(result)) {
+            Log.w(TAG, "Context shrink failed: " + result);
+            return false;
+        }
+        appliedNCtx = target;
+        long freed = residentBytes(resident, current) - residentBytes(resident, target);
+        trimStats.recordStep(MemoryTrimStats.STEP_CONTEXT, level, freed, System.nanoTime() - start);
+        Log.i(TAG, "Memory pressure (level " + level + "): n_ctx " + current + " -> " + target
+            + ", ~" + freed + " bytes");
+        return true;
+    }
+    
+    private static GgufReader.Metadata readMetadata(String modelPath) {
+        return modelPath != null ? GgufReader.read(new File(modelPath)) : null;
+    }
+    
+    // Tensor data plus an nCtx KV cache for a model, from its GGUF header
+    private static long residentBytes(GgufReader.Metadata metadata, int nCtx) {
+        return metadata != null ? metadata.tensorBytes + metadata.kvCacheBytes(nCtx) : 0;
+    }
+    
+    /**
+     * Download a configuration's model file if it is not on disk yet, without loading it
+     * (startup preloading of configurations other than the resident one).
+     * Caller must hold busy lock.
+     */
+    public boolean ensureDownloaded(String configName) {
+        try {
+            ConfigurationManager.Configuration config = configManager.loadConfiguration(configName);
+            File destFile = getModelFile(config);
+            if (destFile == null) {
+                Log.e(TAG, "Cannot determine filename from URL: " + config.modelUrl);
+                return false;
+            }
+            return downloadIfMissing(config, destFile);
+        } catch (IOException | JSONException e) {
+            Log.e(TAG, "Failed to read configuration: " + configName, e);
+            return false;
+        }
+    }
+    
+    // Package-private for ModelDownloadTest
+    boolean downloadIfMissing(ConfigurationManager.Configuration config, File destFile) {
+        String[] urls = shardUrls(config.modelUrl);
+        for (int i = 0; i < urls.length; i++) {
+            File file = i == 0 ? destFile : new File(destFile.getParentFile(), extractFilenameFromUrl(urls[i]));
+            // The configured digest is the first file's; other shards are checked against the ETag
+            if (!downloadFileIfMissing(urls[i], file, i == 0 ? config.sha256 : null)) {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    private boolean downloadFileIfMissing(String url, File file, String sha256) {
+        if (!ModelDigest.isWellFormed(sha256)) {
+            // Only a hand-edited configuration gets here; saving checks the format
+            Log.e(TAG, "Configured SHA-256 is not 64 hex digits: " + sha256);
+            if (listener != null) {
+                listener.onError("Configured SHA-256 is not 64 hex digits");
+            }
+            return false;
+        }
+        // The native download creates the file only once it is complete and verified (it
+        // works in file.part and renames that over the file), so a file that fails a check
+        // below stays until its replacement is ready. A file that is not GGUF or ends before
+        // its tensor data does was cut short by an older version or is an error page, and
+        // one that does not match the configured digest is stale.
+        if (file.exists()) {
+            GgufReader.Metadata metadata = GgufReader.read(file);
+            if (metadata == null) {
+                Log.w(TAG, "Not a valid GGUF file, downloading again: " + file.getName());
+            } else if (metadata.isTruncated()) {
+                Log.w(TAG, file.getName() + " has " + metadata.fileSize + " of " + metadata.dataEnd
+                    + " bytes, downloading again");
+            } else if (!ModelDigest.matches(file, sha256)) {
+                Log.w(TAG, "SHA-256 of " + file.getName() + " does not match, downloading again");
+            } else {
+                return true;
+            }
+        }
+        Log.i(TAG, "Downloading model from: " + url);
+        String dlResult = llama.download(url, file.getAbsolutePath(), sha256);
+        if (!"ok".equals(dlResult)) {
+            Log.e(TAG, "Download failed: " + dlResult);
+            if (listener != null) {
+                listener.onError("Download failed: " + dlResult);
+            }
+            return false;
+        }
+        return true;
+    }
+    
+    /**
+     * URLs of every shard of a split model (llama.cpp naming, name-00001-of-00003.gguf)
+     * when modelUrl is its first shard; otherwise just modelUrl. init() is given the first
+     * shard and finds the others next to it.
+     */
+    static String[] shardUrls(String modelUrl) {
+        int q = modelUrl.indexOf('?');
+        String path = q >= 0 ? modelUrl.substring(0, q) : modelUrl;
+        String query = q >= 0 ? modelUrl.substring(q) : "";
+        Matcher m = SPLIT_SHARD.matcher(path);
+        if (!m.find() || Integer.parseInt(m.group(1)) != 1) {
+            return new String[] {modelUrl};
+        }
+        int count = Integer.parseInt(m.group(2));
+        String[] urls = new String[Math.max(1, count)];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = path.substring(0, m.start())
+                + String.format(Locale.ROOT, "-%05d-of-%05d.gguf", i + 1, count) + query;
+        }
+        return urls;
+    }
+    
+    private static long configKeepAlive(ConfigurationManager.Configuration config) {
+        long ms = config != null ? GenerateOptions.parseKeepAlive(config.keepAlive)
+            : GenerateOptions.KEEP_ALIVE_CONFIG;
+        return ms != GenerateOptions.KEEP_ALIVE_CONFIG ? ms : DEFAULT_KEEP_ALIVE_MS;
+    }
+    
     /**
      * Apply configuration parameters to the model.
      */
     public void applyConfiguration(ConfigurationManager.Configuration config) {
         llama.setParameters(
+            (float)config.temp,
+            (float)config.topP,
+            config.topK,
             config.penaltyLastN,
             (float)config.penaltyRepeat,
             (float)config.penaltyFreq,
@@ -214,47 +692,217 @@ public class ModelManager {
      * This method is NOT thread-safe - caller must hold busy lock.
      * 
      * @param prompt The prompt to generate from
-     * @return Generated text or error message
+     * @return Generation result; check {@link GenerateResult#isError()}
+     */
+    public GenerateResult generate(String prompt) {
+        return generate(prompt, GenerateOptions.from(currentConfig), null);
+    }
+    
+    /**
+     * Generate with per-request options and stream text to {@code tokenListener}
+     * (may be null) as it is produced. With stop sequences, the text (streamed and in
+     * the result) ends before the first one.
+     * This method is NOT thread-safe - caller must hold busy lock.
      */
-    public String generate(String prompt) {
+    public GenerateResult generate(String prompt, GenerateOptions options,
+                                   LlamaNative.TokenListener tokenListener) {
         if (!modelLoaded) {
-            return "Model not loaded";
+            return GenerateResult.error(GenerateResult.ERROR_NOT_INITIALIZED, "Model not loaded");
         }
+        setKeepAlive(options.keepAliveMs);
         
         if (listener != null) {
             listener.onGenerating(currentConfigName);
         }
         
-        String result;
+        StopSequenceFilter stopFilter = options.stop.isEmpty() ? null
+            : new StopSequenceFilter(options.stop, tokenListener);
+        long start = System.nanoTime();
+        GenerateResult result;
         try {
-            result = llama.generate(prompt);
+            result = llama.generate(prompt, options.seed, options.numPredict,
+                stopFilter != null ? stopFilter : tokenListener);
         } catch (Throwable t) {
             // Log full stack trace and notify listener so the server can respond gracefully
             Log.e(TAG, "Exception during generate", t);
             if (listener != null) {
                 listener.onError("Generation exception: " + t.toString());
             }
-            // Return a clear error string so API layer can send a proper error response
-            return "generate failed: " + t.toString();
+            // Return a clear error so API layer can send a proper error response
+            return GenerateResult.error(GenerateResult.ERROR_EXCEPTION, "generate failed: " + t.toString());
+        }
+        if (result == null) {
+            return GenerateResult.error(GenerateResult.ERROR_EXCEPTION, "generate returned no result");
+        }
+        result.totalDurationNs = System.nanoTime() - start;
+        if (stopFilter != null && !result.isError()) {
+            stopFilter.finish();
+            result.text = stopFilter.getText();
+        }
+        
+        if (result.isError()) {
+            Log.e(TAG, "Generation failed: " + result.errorMessage);
+            if (listener != null) {
+                listener.onError("Generation failed: " + result.errorMessage);
+            }
+        } else if (listener != null) {
+            listener.onGenerationComplete(currentConfigName, result.text);
         }
         
+        return result;
+    }
+    
+    /**
+     * Generate for many prompts with the same options, {@code parallel} at a time
+     * (<= 0: as many as the context allows). Each prompt's text and result reach
+     * {@code batchListener} tagged with its index, in completion order; stop sequences
+     * are applied per prompt as in {@link #generate(String, GenerateOptions, LlamaNative.TokenListener)}.
+     * This method is NOT thread-safe - caller must hold busy lock.
+     *
+     * @return counts summed over the prompts, or an error if the batch did not run to the end
+     */
+    public GenerateResult generateBatch(List<String> prompts, GenerateOptions options, int parallel,
+                                        final LlamaNative.BatchListener batchListener) {
+        if (!modelLoaded) {
+            return GenerateResult.error(GenerateResult.ERROR_NOT_INITIALIZED, "Model not loaded");
+        }
+        setKeepAlive(options.keepAliveMs);
+        
         if (listener != null) {
-            listener.onGenerationComplete(currentConfigName, result);
+            listener.onGenerating(currentConfigName);
         }
         
+        final List<String> stops = options.stop;
+        final StopSequenceFilter[] stopFilters = new StopSequenceFilter[prompts.size()];
+        LlamaNative.BatchListener filtered = stops.isEmpty() ? batchListener : new LlamaNative.BatchListener() {
+            @Override
+            public boolean onToken(final int index, String piece) {
+                if (stopFilters[index] == null) {
+                    stopFilters[index] = new StopSequenceFilter(stops, p -> batchListener.onToken(index, p));
+                }
+                return stopFilters[index].onToken(piece);
+            }
+            
+            @Override
+            public boolean onResult(int index, GenerateResult result) {
+                StopSequenceFilter stopFilter = stopFilters[index];
+                if (stopFilter != null && !result.isError()) {
+                    stopFilter.finish();
+                    result.text = stopFilter.getText();
+                }
+                stopFilters[index] = null;
+                return batchListener.onResult(index, result);
+            }
+        };
+        
+        long start = System.nanoTime();
+        GenerateResult result;
+        try {
+            result = llama.generateBatch(prompts, parallel, options.seed, options.numPredict, filtered);
+        } catch (Throwable t) {
+            Log.e(TAG, "Exception during batch generate", t);
+            if (listener != null) {
+                listener.onError("Generation exception: " + t.toString());
+            }
+            return GenerateResult.error(GenerateResult.ERROR_EXCEPTION, "generate failed: " + t.toString());
+        }
+        if (result == null) {
+            return GenerateResult.error(GenerateResult.ERROR_EXCEPTION, "generate returned no result");
+        }
+        result.totalDurationNs = System.nanoTime() - start;
+        
+        if (result.isError()) {
+            Log.e(TAG, "Batch generation failed: " + result.errorMessage);
+            if (listener != null) {
+                listener.onError("Generation failed: " + result.errorMessage);
+            }
+        }
         return result;
     }
     
+    /**
+     * A call against the resident model's vocabulary; must not return null.
+     */
+    public interface ResidentCall<T> {
+        T call();
+    }
+    
+    /**
+     * Run {@code call} if {@code configName}'s model is loaded, holding off model switches
+     * until it returns. For vocab-only requests (tokenize, detokenize) that skip the queue;
+     * it does not wait for a running generation.
+     *
+     * @return the call's result, or null if another configuration (or none) is loaded
+     */
+    public <T> T callIfResident(String configName, ResidentCall<T> call) {
+        modelSwitchLock.readLock().lock();
+        try {
+            if (!modelLoaded || !configName.equals(currentConfigName)) {
+                return null;
+            }
+            return call.call();
+        } finally {
+            modelSwitchLock.readLock().unlock();
+        }
+    }
+    
+    /**
+     * Tokenize text with the currently loaded model, using the same flags as generate()
+     * (no BOS/EOS added, special tokens parsed) unless told otherwise.
+     * Safe to call while a generation is running; does not need the busy lock, but without
+     * it use {@link #callIfResident} so the model cannot change underneath.
+     *
+     * @throws IllegalStateException if no model is loaded
+     */
+    public int[] tokenize(String text, boolean addSpecial, boolean parseSpecial) {
+        String modelPath = currentModelPath;
+        if (!modelLoaded || modelPath == null) {
+            throw new IllegalStateException("Model not loaded");
+        }
+        int[] tokens = llama.tokenize(text, addSpecial, parseSpecial);
+        if (tokens == null) {
+            throw new IllegalStateException("Tokenize failed");
+        }
+        if (!addSpecial && parseSpecial && modelPath.equals(currentModelPath)) {
+            tokenCountCache.put(modelPath, text, tokens.length);
+        }
+        return tokens;
+    }
+    
+    /**
+     * Count tokens as generate() would see them, served from an LRU cache when possible.
+     *
+     * @throws IllegalStateException if no model is loaded
+     */
+    public int countTokens(String text) {
+        String modelPath = currentModelPath;
+        if (!modelLoaded || modelPath == null) {
+            throw new IllegalStateException("Model not loaded");
+        }
+        int cached = tokenCountCache.get(modelPath, text);
+        if (cached >= 0) {
+            return cached;
+        }
+        return tokenize(text, false, true).length;
+    }
+    
+    /**
+     * @throws IllegalStateException if no model is loaded
+     */
+    public String detokenize(int[] tokens) {
+        if (!modelLoaded) {
+            throw new IllegalStateException("Model not loaded");
+        }
+        return llama.detokenize(tokens);
+    }
+    
     /**
      * Free the model resources.
      */
     public void free() {
         if (busy.compareAndSet(false, true)) {
             try {
-                llama.free();
-                currentModelPath = null;
-                currentConfigName = null;
-                modelLoaded = false;
+                unloadLocked("free");
             } finally {
                 busy.set(false);
             }
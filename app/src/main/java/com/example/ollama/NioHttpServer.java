@@ -0,0 +1,618 @@
+package com.example.ollama;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Selector-based HTTP server.
+ *
+ * Threads:
+ *  - one acceptor, blocking in accept()
+ *  - a few I/O loops, each owning a Selector; all socket reads and writes are non-blocking
+ *  - a fixed worker pool running request handlers (which may block on the model)
+ * Idle connections cost a SelectionKey and a small read buffer, not a thread.
+ *
+ * Handlers write through the connection's {@link HttpResponseWriter}, backed by a
+ * {@link ChannelOutputStream}; its data is queued on the connection and written by the
+ * I/O loop. The queue is bounded: a handler that produces faster than the client reads
+ * blocks in write() until the queue drains. Output buffers are recycled per connection
+ * once written, so streaming many small chunks does not allocate per flush.
+ *
+ * HTTP/1.1 connections are kept alive. Requests on one connection are handled one at a
+ * time in arrival order, so pipelined requests get their responses in order. Connections
+ * with no request in progress, or whose client stopped reading, are closed after the
+ * idle timeout.
+ */
+public class NioHttpServer {
+    private static final String TAG = "NioHttpServer";
+
+    public static final int DEFAULT_IO_THREADS = 2;
+    public static final int READ_BUFFER_SIZE = 16 * 1024;
+    // Bytes a connection may have queued for writing before handler writes block
+    public static final int MAX_PENDING_WRITE_BYTES = 256 * 1024;
+    private static final int OUTPUT_BUFFER_SIZE = 8 * 1024;
+    // Written output buffers kept per connection for reuse
+    private static final int MAX_FREE_BUFFERS = 4;
+    public static final long DEFAULT_IDLE_TIMEOUT_MS = 30 * 1000;
+    // How often each I/O loop looks for timed-out connections
+    private static final long SWEEP_INTERVAL_MS = 1000;
+
+    /**
+     * Handles one request. Runs on a worker thread; may block.
+     * The response must be fully written to {@code response} before returning.
+     */
+    public interface Handler {
+        void handle(HttpRequest request, HttpResponseWriter response) throws IOException;
+    }
+
+    private final int port;
+    private final Handler handler;
+    private final int ioThreads;
+    private final int workerThreads;
+
+    private ServerSocketChannel serverChannel;
+    private IoLoop[] loops;
+    private ExecutorService workers;
+    private Thread acceptor;
+    private volatile boolean running = false;
+    private volatile long idleTimeoutMs = DEFAULT_IDLE_TIMEOUT_MS;
+    private volatile int maxBodyBytes = HttpRequestParser.DEFAULT_MAX_BODY_BYTES;
+    private final AtomicInteger openConnections = new AtomicInteger();
+
+    public NioHttpServer(int port, Handler handler, int ioThreads, int workerThreads) {
+        this.port = port;
+        this.handler = handler;
+        this.ioThreads = Math.max(1, ioThreads);
+        this.workerThreads = Math.max(1, workerThreads);
+    }
+
+    /**
+     * Bind and start serving. Throws if the port cannot be bound.
+     */
+    public synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(port));
+
+        workers = Executors.newFixedThreadPool(workerThreads, namedThreads("api-worker"));
+        loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop(Selector.open());
+            Thread t = new Thread(loops[i], "api-io-" + i);
+            t.setDaemon(true);
+            t.start();
+        }
+        running = true;
+
+        acceptor = new Thread(this::acceptLoop, "api-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (serverChannel != null) {
+            try {
+                serverChannel.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing server channel", e);
+            }
+        }
+        if (loops != null) {
+            for (IoLoop loop : loops) {
+                loop.shutdown();
+            }
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Close keep-alive connections idle for this long; also bounds how long a partly
+     * received request or a stalled reader may hold a connection.
+     */
+    public void setIdleTimeoutMs(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Largest request body accepted; larger ones get 413 as soon as the size is known
+     * (Content-Length, or the running total of chunks), without buffering them.
+     * Applies to connections accepted afterwards.
+     */
+    public void setMaxBodyBytes(int maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+
+    /**
+     * Executor that request handlers run on; also usable for background work
+     * that should be bounded the same way (e.g. preloading).
+     */
+    public ExecutorService getWorkers() {
+        return workers;
+    }
+
+    public int getOpenConnections() {
+        return openConnections.get();
+    }
+
+    private void acceptLoop() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                loops[next].register(channel);
+                next = (next + 1) % loops.length;
+            } catch (IOException e) {
+                if (running) {
+                    Log.e(TAG, "Error accepting connection", e);
+                }
+            }
+        }
+    }
+
+    private static ThreadFactory namedThreads(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, prefix + "-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // ---------------- I/O loop ----------------
+
+    private final class IoLoop implements Runnable {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(final SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(this, channel);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    openConnections.incrementAndGet();
+                } catch (IOException e) {
+                    Log.w(TAG, "Failed to register connection", e);
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        // Run on this loop's thread
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void shutdown() {
+            execute(() -> {
+                for (SelectionKey key : selector.keys()) {
+                    Object attachment = key.attachment();
+                    if (attachment instanceof Connection) {
+                        ((Connection) attachment).close();
+                    }
+                }
+                try {
+                    selector.close();
+                } catch (IOException ignored) {}
+            });
+        }
+
+        @Override
+        public void run() {
+            long lastSweep = System.currentTimeMillis();
+            try {
+                while (selector.isOpen()) {
+                    selector.select(SWEEP_INTERVAL_MS);
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    if (!selector.isOpen()) {
+                        break;
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        Connection connection = (Connection) key.attachment();
+                        if (!key.isValid()) {
+                            connection.close();
+                            continue;
+                        }
+                        if (key.isWritable()) {
+                            connection.onWritable();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            connection.onReadable();
+                        }
+                    }
+                    long now = System.currentTimeMillis();
+                    if (now - lastSweep >= SWEEP_INTERVAL_MS) {
+                        lastSweep = now;
+                        for (SelectionKey key : selector.keys()) {
+                            Object attachment = key.attachment();
+                            if (attachment instanceof Connection) {
+                                ((Connection) attachment).checkTimeout(now);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    Log.e(TAG, "I/O loop failed", e);
+                }
+            }
+        }
+    }
+
+    // ---------------- Connection ----------------
+
+    private final class Connection {
+        private final IoLoop loop;
+        private final SocketChannel channel;
+        private final String remoteAddress;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final HttpRequestParser parser;
+        SelectionKey key;
+
+        // Guarded by outLock; filled by the worker, drained by the loop
+        private final Object outLock = new Object();
+        private final ArrayDeque<ByteBuffer> outQueue = new ArrayDeque<>();
+        private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<>();
+        private int pendingBytes = 0;
+        private volatile boolean closed = false;
+        // Last read or write progress (or request start/end)
+        private volatile long lastActivityMs = System.currentTimeMillis();
+
+        // Created on the first request and reused for the rest on this connection
+        private HttpResponseWriter response;
+
+        // Loop thread only
+        private boolean handling = false;
+        private boolean keepAlive = false;
+        private boolean inputClosed = false;
+        private boolean closeWhenFlushed = false;
+
+        Connection(IoLoop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+            Socket socket = channel.socket();
+            this.remoteAddress = socket.getInetAddress() != null
+                ? socket.getInetAddress().getHostAddress() : "unknown";
+            this.parser = new HttpRequestParser(remoteAddress, maxBodyBytes);
+        }
+
+        void onReadable() {
+            int n;
+            try {
+                n = channel.read(readBuffer);
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            if (n < 0) {
+                inputClosed = true;
+                setInterest(SelectionKey.OP_READ, false);
+                if (!handling) {
+                    // Serve complete requests still buffered, then close
+                    parseBuffered();
+                    if (!handling) {
+                        closeWhenFlushed = true;
+                        flushFromLoop();
+                    }
+                }
+                // Otherwise the running handler completes its response first
+                return;
+            }
+            if (n > 0) {
+                lastActivityMs = System.currentTimeMillis();
+            }
+            if (!handling) {
+                parseBuffered();
+            } else if (!readBuffer.hasRemaining()) {
+                // Bounded: stop reading until the current request is done
+                setInterest(SelectionKey.OP_READ, false);
+            }
+        }
+
+        private void parseBuffered() {
+            readBuffer.flip();
+            HttpRequest request;
+            try {
+                request = parser.feed(readBuffer);
+            } catch (HttpRequestParser.ParseException e) {
+                // Answer and close; nothing more is read from this connection
+                readBuffer.clear();
+                setInterest(SelectionKey.OP_READ, false);
+                enqueue(simpleErrorResponse(e.statusCode, e.getMessage()));
+                closeWhenFlushed = true;
+                flushFromLoop();
+                return;
+            }
+            readBuffer.compact();
+            if (request != null) {
+                dispatch(request);
+            }
+        }
+
+        private void dispatch(final HttpRequest request) {
+            handling = true;
+            keepAlive = request.isKeepAlive();
+            lastActivityMs = System.currentTimeMillis();
+            if (response == null) {
+                response = new HttpResponseWriter(new ChannelOutputStream(this));
+            }
+            final HttpResponseWriter out = response;
+            try {
+                workers.execute(() -> {
+                    boolean completed = false;
+                    try {
+                        handler.handle(request, out);
+                        out.flush();
+                        completed = true;
+                    } catch (IOException e) {
+                        Log.d(TAG, "Handler I/O error: " + e.getMessage());
+                    } catch (Exception e) {
+                        Log.e(TAG, "Error handling request", e);
+                    } finally {
+                        final boolean reusable = completed;
+                        loop.execute(() -> onHandlerDone(reusable));
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Server is stopping
+                close();
+            }
+        }
+
+        // Loop thread: the handler has returned
+        private void onHandlerDone(boolean completed) {
+            handling = false;
+            lastActivityMs = System.currentTimeMillis();
+            if (!completed || !keepAlive) {
+                // A response cut short cannot be followed by another on the same stream
+                closeWhenFlushed = true;
+                flushFromLoop();
+                return;
+            }
+            flushFromLoop();
+            if (closed) {
+                return;
+            }
+            // Next pipelined request, if one is already buffered
+            if (readBuffer.position() > 0) {
+                parseBuffered();
+            }
+            if (!handling && inputClosed) {
+                closeWhenFlushed = true;
+                flushFromLoop();
+            } else if (!inputClosed) {
+                setInterest(SelectionKey.OP_READ, true);
+            }
+        }
+
+        // Loop thread
+        void checkTimeout(long now) {
+            if (closed || now - lastActivityMs < idleTimeoutMs) {
+                return;
+            }
+            int pending;
+            synchronized (outLock) {
+                pending = pendingBytes;
+            }
+            // A running handler that is not blocked on a stalled reader is left alone
+            if (handling && pending == 0) {
+                return;
+            }
+            Log.d(TAG, "Closing idle connection from " + remoteAddress);
+            close();
+        }
+
+        // Worker thread: queue bytes, blocking while too much is pending
+        void enqueue(ByteBuffer data) {
+            synchronized (outLock) {
+                outQueue.add(data);
+                pendingBytes += data.remaining();
+            }
+        }
+
+        void write(ByteBuffer data) throws IOException {
+            synchronized (outLock) {
+                while (!closed && pendingBytes >= MAX_PENDING_WRITE_BYTES) {
+                    try {
+                        outLock.wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new IOException("Interrupted while writing");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                outQueue.add(data);
+                pendingBytes += data.remaining();
+            }
+            loop.execute(this::flushFromLoop);
+        }
+
+        // Worker thread: an empty output buffer, recycled if one is available
+        ByteBuffer takeBuffer() {
+            synchronized (outLock) {
+                ByteBuffer buffer = freeBuffers.poll();
+                return buffer != null ? buffer : ByteBuffer.allocate(OUTPUT_BUFFER_SIZE);
+            }
+        }
+
+        // Loop thread
+        private void flushFromLoop() {
+            if (closed) {
+                return;
+            }
+            boolean drained;
+            try {
+                synchronized (outLock) {
+                    while (!outQueue.isEmpty()) {
+                        ByteBuffer head = outQueue.peek();
+                        int n = channel.write(head);
+                        if (n > 0) {
+                            lastActivityMs = System.currentTimeMillis();
+                        }
+                        pendingBytes -= n;
+                        if (head.hasRemaining()) {
+                            break;
+                        }
+                        outQueue.poll();
+                        if (head.capacity() == OUTPUT_BUFFER_SIZE && freeBuffers.size() < MAX_FREE_BUFFERS) {
+                            head.clear();
+                            freeBuffers.add(head);
+                        }
+                    }
+                    drained = outQueue.isEmpty();
+                    outLock.notifyAll();
+                }
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            setInterest(SelectionKey.OP_WRITE, !drained);
+            if (drained && closeWhenFlushed && !handling) {
+                close();
+            }
+        }
+
+        void onWritable() {
+            flushFromLoop();
+        }
+
+        private void setInterest(int op, boolean on) {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            int ops = key.interestOps();
+            key.interestOps(on ? (ops | op) : (ops & ~op));
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            synchronized (outLock) {
+                outQueue.clear();
+                freeBuffers.clear();
+                pendingBytes = 0;
+                outLock.notifyAll();
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+            openConnections.decrementAndGet();
+        }
+    }
+
+    /**
+     * OutputStream for handlers. Small writes are collected in a buffer and handed to the
+     * connection on flush() or when the buffer fills; the next buffer comes from the
+     * connection's free list.
+     */
+    private static final class ChannelOutputStream extends OutputStream {
+        private final Connection connection;
+        private ByteBuffer buffer;
+
+        ChannelOutputStream(Connection connection) {
+            this.connection = connection;
+            this.buffer = connection.takeBuffer();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                flush();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (!buffer.hasRemaining()) {
+                    flush();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            ByteBuffer data = buffer;
+            buffer = connection.takeBuffer();
+            connection.write(data);
+        }
+    }
+
+    // Also used by LocalHttpServer
+    static ByteBuffer simpleErrorResponse(int statusCode, String message) {
+        String body = "{\"error\":\"" + message.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        String head = "HTTP/1.1 " + statusCode + " Error\r\n" +
+            "Content-Type: application/json\r\n" +
+            "Access-Control-Allow-Origin: *\r\n" +
+            "Connection: close\r\n" +
+            "Content-Length: " + bodyBytes.length + "\r\n" +
+            "\r\n";
+        byte[] headBytes = head.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buf = ByteBuffer.allocate(headBytes.length + bodyBytes.length);
+        buf.put(headBytes).put(bodyBytes);
+        buf.flip();
+        return buf;
+    }
+
+    private static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+}
@@ -7,29 +7,22 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.nio.charset.StandardCharsets;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.TimeZone;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Ollama-compatible API server that provides /api/chat and /api/generate endpoints.
  * Uses registered Configurations as model names.
  * Uses ModelManager for unified model management with busy state.
+ * Served by {@link NioHttpServer}; handlers run on its worker threads. Optionally also
+ * served on a local (Unix domain) socket by {@link LocalHttpServer}, with the same routing.
  */
 public class OllamaApiServer {
     private static final String TAG = "OllamaApiServer";
@@ -38,11 +31,31 @@ public class OllamaApiServer {
     private final Context context;
     private final ConfigurationManager configManager;
     private final ModelManager modelManager;
+    private final RequestScheduler scheduler;
+    private final RequestCoalescer coalescer = new RequestCoalescer();
+    private final ResponseCache responseCache;
+    private final JobManager jobManager;
     
-    private ServerSocket serverSocket;
-    private ExecutorService executorService;
+    private static final String JOBS_PREFIX = "/api/jobs/";
+    private static final String JOBS_RESULTS_SUFFIX = "/results";
+    
+    // Worker threads beyond the request queue depth, so light endpoints are not starved
+    private static final int WORKER_THREADS_EXTRA = 4;
+    
+    private static final byte[] CORS_RESPONSE = ("HTTP/1.1 204 No Content\r\n" +
+        "Access-Control-Allow-Origin: *\r\n" +
+        "Access-Control-Allow-Methods: GET, POST, DELETE, OPTIONS\r\n" +
+        "Access-Control-Allow-Headers: Content-Type, Authorization\r\n" +
+        "Access-Control-Max-Age: 86400\r\n" +
+        "\r\n").getBytes(StandardCharsets.US_ASCII);
+    
+    private NioHttpServer httpServer;
+    private LocalHttpServer localServer;
     private final AtomicBoolean running = new AtomicBoolean(false);
     private int port = DEFAULT_PORT;
+    private int maxBodyBytes = HttpRequestParser.DEFAULT_MAX_BODY_BYTES;
+    private String localSocketName;
+    private List<String> preloadConfigs = new ArrayList<>();
     
     public interface ServerListener {
         void onServerStarted(int port);
@@ -60,6 +73,14 @@ public class OllamaApiServer {
         this.context = context;
         this.configManager = new ConfigurationManager(context);
         this.modelManager = modelManager;
+        this.scheduler = modelManager.getScheduler();
+        this.responseCache = new ResponseCache(new File(context.getFilesDir(), "response_cache"),
+            ResponseCache.DEFAULT_MAX_BYTES);
+        this.jobManager = new JobManager(new File(context.getFilesDir(), "jobs"), modelManager, configManager);
+    }
+    
+    public ResponseCache getResponseCache() {
+        return responseCache;
     }
     
     public void setListener(ServerListener listener) {
@@ -70,6 +91,29 @@ public class OllamaApiServer {
         this.port = port;
     }
     
+    /**
+     * Largest request body accepted (413 beyond that). Takes effect on start().
+     */
+    public void setMaxBodyBytes(int maxBodyBytes) {
+        this.maxBodyBytes = maxBodyBytes;
+    }
+    
+    /**
+     * Also listen on this abstract-namespace socket name; null (the default) for TCP only.
+     * Takes effect on start().
+     */
+    public void setLocalSocketName(String localSocketName) {
+        this.localSocketName = localSocketName;
+    }
+    
+    /**
+     * Configurations to preload at start(), first one resident (see {@link #preload}).
+     * Empty (the default) loads nothing until the first request.
+     */
+    public void setPreloadConfigs(List<String> preloadConfigs) {
+        this.preloadConfigs = new ArrayList<>(preloadConfigs);
+    }
+    
     public int getPort() {
         return port;
     }
@@ -84,66 +128,76 @@ public class OllamaApiServer {
             return;
         }
         
-        executorService = Executors.newCachedThreadPool();
-        executorService.submit(() -> {
-            try {
-                serverSocket = new ServerSocket(port);
-                running.set(true);
-                Log.i(TAG, "Llama API server started on port " + port);
-                
-                if (listener != null) {
-                    listener.onServerStarted(port);
-                }
-                
-                // Preload default configuration in background
-                executorService.submit(() -> {
-                    if (modelManager.tryAcquire()) {
-                        try {
-                            if (modelManager.loadConfiguration("default")) {
-                                Log.i(TAG, "Preloaded default configuration");
-                            } else {
-                                Log.w(TAG, "Preload default configuration failed");
-                            }
-                        } catch (Exception e) {
-                            Log.w(TAG, "Preload exception", e);
-                        } finally {
-                            modelManager.release();
-                        }
-                    }
-                });
-                
-                while (running.get()) {
-                    try {
-                        Socket clientSocket = serverSocket.accept();
-                        executorService.submit(() -> handleClient(clientSocket));
-                    } catch (IOException e) {
-                        if (running.get()) {
-                            Log.e(TAG, "Error accepting connection", e);
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                Log.e(TAG, "Failed to start server", e);
-                if (listener != null) {
-                    listener.onServerError("Failed to start server: " + e.getMessage());
+        // Enough workers for every queued request and coalesced follower, plus a few for light endpoints
+        int workerThreads = scheduler.getMaxQueueDepth() + RequestCoalescer.MAX_FOLLOWERS
+            + WORKER_THREADS_EXTRA;
+        httpServer = new NioHttpServer(port, this::handleRequest,
+            NioHttpServer.DEFAULT_IO_THREADS, workerThreads);
+        httpServer.setMaxBodyBytes(maxBodyBytes);
+        try {
+            httpServer.start();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to start server", e);
+            httpServer.stop();
+            httpServer = null;
+            if (listener != null) {
+                listener.onServerError("Failed to start server: " + e.getMessage());
+            }
+            return;
+        }
+        running.set(true);
+        Log.i(TAG, "Llama API server started on port " + port);
+        startLocalServer();
+        jobManager.start();
+        
+        if (listener != null) {
+            listener.onServerStarted(port);
+        }
+        
+        if (!preloadConfigs.isEmpty()) {
+            final List<String> preload = new ArrayList<>(preloadConfigs);
+            httpServer.getWorkers().execute(() -> preload(preload));
+        }
+    }
+    
+    /**
+     * Background startup preload: the first configuration is loaded and stays resident
+     * for its keep-alive; the others only have their model files downloaded, since one
+     * model is resident at a time. Skipped if a request got to the model first.
+     */
+    private void preload(List<String> configs) {
+        if (!modelManager.tryAcquire()) {
+            return;
+        }
+        try {
+            for (int i = 1; i < configs.size(); i++) {
+                if (!modelManager.ensureDownloaded(configs.get(i))) {
+                    Log.w(TAG, "Preload download failed: " + configs.get(i));
                 }
             }
-        });
+            if (modelManager.loadConfiguration(configs.get(0))) {
+                Log.i(TAG, "Preloaded configuration " + configs.get(0));
+            } else {
+                Log.w(TAG, "Preload configuration failed: " + configs.get(0));
+            }
+        } catch (Exception e) {
+            Log.w(TAG, "Preload exception", e);
+        } finally {
+            modelManager.release();
+        }
     }
     
     public void stop() {
         running.set(false);
+        jobManager.stop();
         
-        if (serverSocket != null) {
-            try {
-                serverSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Error closing server socket", e);
-            }
+        if (localServer != null) {
+            localServer.stop();
+            localServer = null;
         }
-        
-        if (executorService != null) {
-            executorService.shutdownNow();
+        if (httpServer != null) {
+            httpServer.stop();
+            httpServer = null;
         }
         
         Log.i(TAG, "Llama API server stopped");
@@ -152,421 +206,948 @@ public class OllamaApiServer {
         }
     }
     
-    private void handleClient(Socket clientSocket) {
+    // The local listener is optional: failing to bind it leaves the TCP server running
+    private void startLocalServer() {
+        if (localSocketName == null || localSocketName.isEmpty()) {
+            return;
+        }
+        localServer = new LocalHttpServer(localSocketName, this::handleRequest,
+            LocalHttpServer.DEFAULT_MAX_CONNECTIONS);
+        localServer.setMaxBodyBytes(maxBodyBytes);
         try {
-            BufferedReader reader = new BufferedReader(
-                new InputStreamReader(clientSocket.getInputStream(), StandardCharsets.UTF_8));
-            OutputStream outputStream = clientSocket.getOutputStream();
+            localServer.start();
+            Log.i(TAG, "Also listening on local socket @" + localSocketName);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to bind local socket @" + localSocketName, e);
+            localServer = null;
+            if (listener != null) {
+                listener.onServerError("Failed to bind local socket: " + e.getMessage());
+            }
+        }
+    }
+    
+    /**
+     * Route one request. Runs on an NioHttpServer worker thread, or on a
+     * LocalHttpServer connection thread.
+     */
+    private void handleRequest(HttpRequest request, HttpResponseWriter response) throws IOException {
+        String method = request.method;
+        String path = request.path;
+        
+        Log.d(TAG, "Request: " + method + " " + path);
+        if (listener != null) {
+            listener.onRequest(method, path);
+        }
+        
+        String clientId = getClientId(request);
+        
+        // Route request
+        if ("POST".equals(method)) {
+            if ("/api/generate".equals(path)) {
+                handleGenerate(response, request.bodyAsString(), clientId);
+            } else if ("/api/chat".equals(path)) {
+                handleChat(response, request.body, clientId);
+            } else if ("/api/batch".equals(path)) {
+                handleBatch(response, request.body, clientId);
+            } else if ("/api/jobs".equals(path)) {
+                handleJobSubmit(response, request.body);
+            } else if ("/api/tokenize".equals(path)) {
+                handleTokenize(response, request.bodyAsString(), clientId);
+            } else if ("/api/detokenize".equals(path)) {
+                handleDetokenize(response, request.bodyAsString(), clientId);
+            } else if ("/api/tags".equals(path) || "/api/tags/".equals(path)) {
+                handleTags(response);
+            } else if ("/api/show".equals(path)) {
+                handleShow(response, request.bodyAsString());
+            } else if ("/v1/chat/completions".equals(path)) {
+                handleOpenAiChat(response, request.body, clientId);
+            } else if ("/v1/completions".equals(path)) {
+                handleOpenAiCompletion(response, request.bodyAsString(), clientId);
+            } else {
+                sendErrorResponse(response, 404, "Not Found");
+            }
+        } else if ("GET".equals(method)) {
+            if ("/api/tags".equals(path) || "/api/tags/".equals(path)) {
+                handleTags(response);
+            } else if ("/api/metrics".equals(path)) {
+                handleMetrics(response);
+            } else if ("/api/ps".equals(path)) {
+                handlePs(response);
+            } else if ("/v1/models".equals(path)) {
+                handleOpenAiModels(response);
+            } else if ("/api/jobs".equals(path)) {
+                handleJobList(response);
+            } else if (path.startsWith(JOBS_PREFIX)) {
+                handleJobGet(response, path.substring(JOBS_PREFIX.length()));
+            } else if ("/".equals(path) || "/api".equals(path)) {
+                sendJsonResponse(response, 200, "{\"status\":\"Ollama is running\"}");
+            } else {
+                sendErrorResponse(response, 404, "Not Found");
+            }
+        } else if ("DELETE".equals(method) && path.startsWith(JOBS_PREFIX)) {
+            handleJobCancel(response, path.substring(JOBS_PREFIX.length()));
+        } else if ("OPTIONS".equals(method)) {
+            handleCors(response);
+        } else {
+            sendErrorResponse(response, 405, "Method Not Allowed");
+        }
+    }
+    
+    /**
+     * Client identity for fair queuing: API key if one is sent, otherwise the remote address.
+     */
+    private String getClientId(HttpRequest request) {
+        String apiKey = request.header("x-api-key");
+        if (apiKey == null) {
+            String auth = request.header("authorization");
+            if (auth != null && auth.regionMatches(true, 0, "Bearer ", 0, 7)) {
+                apiKey = auth.substring(7).trim();
+            }
+        }
+        if (apiKey != null && !apiKey.isEmpty()) {
+            return "key:" + apiKey;
+        }
+        return request.remoteAddress;
+    }
+    
+    /**
+     * Sends an error response in the format of the API being served.
+     */
+    private interface ErrorSender {
+        void sendError(int statusCode, String message, String extraHeaders) throws IOException;
+    }
+    
+    private RequestScheduler.Ticket acquireSlot(final HttpResponseWriter response, String clientId,
+                                                int priority, int promptChars) throws IOException {
+        return acquireSlot((statusCode, message, extraHeaders) ->
+            sendErrorResponse(response, statusCode, message, extraHeaders), clientId, priority, promptChars);
+    }
+    
+    /**
+     * Wait in the request queue for the model slot.
+     * Sends 503 (with Retry-After when the queue is full) and returns null on rejection.
+     */
+    private RequestScheduler.Ticket acquireSlot(ErrorSender errors, String clientId,
+                                                int priority, int promptChars) throws IOException {
+        try {
+            return scheduler.acquire(clientId, priority, RequestScheduler.estimateCost(promptChars));
+        } catch (RequestScheduler.RejectedException e) {
+            errors.sendError(503, e.getMessage(), "Retry-After: " + e.retryAfterSeconds + "\r\n");
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            errors.sendError(503, "Server is shutting down", "");
+            return null;
+        }
+    }
+    
+    private void handleGenerate(HttpResponseWriter response, String body, String clientId) throws IOException {
+        long requestStart = System.nanoTime();
+        try {
+            JSONObject request = new JSONObject(body);
+            String model = request.optString("model", "default");
+            String prompt = request.optString("prompt", "");
+            boolean stream = request.optBoolean("stream", true);
+            int priority = RequestScheduler.clientPriority(
+                request.optInt("priority", RequestScheduler.PRIORITY_NORMAL));
+            boolean useCache = request.optBoolean("cache", true);
+            long keepAlive = GenerateOptions.parseKeepAlive(request.opt("keep_alive"));
             
-            // Read request line
-            String requestLine = reader.readLine();
-            if (requestLine == null || requestLine.isEmpty()) {
-                clientSocket.close();
+            if (prompt.isEmpty()) {
+                handleLoadOnly(response, model, keepAlive, clientId, priority, false, requestStart);
                 return;
             }
             
-            String[] requestParts = requestLine.split(" ");
-            if (requestParts.length < 2) {
-                sendErrorResponse(outputStream, 400, "Bad Request");
-                clientSocket.close();
+            ConfigurationManager.Configuration config = loadConfigOrNull(model);
+            GenerateOptions options = GenerateOptions.from(config).apply(request.optJSONObject("options"));
+            options.keepAliveMs = keepAlive;
+            String promptToUse = applyPromptTemplate(prompt, config);
+            
+            generateAndRespond(new OllamaGenerationResponse(response, stream, model, false),
+                model, config, options, promptToUse, useCache, clientId, priority, requestStart);
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid JSON in generate request", e);
+            sendErrorResponse(response, 400, "Invalid JSON: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * The body is read with a streaming parser; messages go straight into the prompt
+     * builder (see {@link ChatRequest}).
+     */
+    private void handleChat(HttpResponseWriter response, byte[] body, String clientId) throws IOException {
+        long requestStart = System.nanoTime();
+        try {
+            ChatRequest request = ChatRequest.parse(body, true);
+            
+            if (request.prompt.getMessageCount() == 0) {
+                handleLoadOnly(response, request.model, request.keepAliveMs, clientId, request.priority, true,
+                    requestStart);
                 return;
             }
             
-            String method = requestParts[0];
-            String path = requestParts[1];
+            ConfigurationManager.Configuration config = loadConfigOrNull(request.model);
+            GenerateOptions options = request.generateOptions(config);
+            // Build prompt from messages (already applies template if available)
+            String promptToUse = request.prompt.build(config, modelManager.getChatTemplate(config));
+            
+            generateAndRespond(new OllamaGenerationResponse(response, request.stream, request.model, true),
+                request.model, config, options, promptToUse, request.useCache, clientId, request.priority,
+                requestStart);
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid JSON in chat request", e);
+            sendErrorResponse(response, 400, "Invalid JSON: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * /api/generate with an empty prompt, or /api/chat with no messages: only load the
+     * model (done_reason "load"), or with keep_alive 0 unload it ("unload"), as Ollama does.
+     * The request still waits its turn in the queue.
+     */
+    private void handleLoadOnly(HttpResponseWriter response, String model, long keepAliveMs,
+                                String clientId, int priority, boolean chat, long requestStart)
+            throws IOException {
+        RequestScheduler.Ticket ticket = acquireSlot(response, clientId, priority, 0);
+        if (ticket == null) {
+            return;
+        }
+        String doneReason;
+        long loadDuration = 0;
+        try {
+            if (keepAliveMs == 0) {
+                // Unloaded by release() below, if it is the resident model
+                if (model.equals(modelManager.getCurrentConfigName())) {
+                    modelManager.setKeepAlive(0);
+                }
+                doneReason = GenerateResult.DONE_UNLOAD;
+            } else {
+                if (!modelManager.loadConfiguration(model)) {
+                    sendErrorResponse(response, 500, "Failed to load configuration: " + model);
+                    return;
+                }
+                loadDuration = modelManager.getLastLoadDurationNs();
+                modelManager.setKeepAlive(keepAliveMs);
+                doneReason = GenerateResult.DONE_LOAD;
+            }
+        } finally {
+            scheduler.release(ticket);
+        }
+        GenerateResult result = new GenerateResult(0, 0, 0, 0, 0, doneReason, GenerateResult.ERROR_NONE, null);
+        result.loadDurationNs = loadDuration;
+        result.queueDurationNs = ticket.getQueueWaitNs();
+        result.totalDurationNs = System.nanoTime() - requestStart;
+        new OllamaGenerationResponse(response, false, model, chat).finish(result);
+    }
+    
+    /**
+     * POST /api/batch: many prompts (an array or JSONL, see {@link BatchRequest}) with one
+     * configuration, run as parallel sequences under a single queue slot. Prompts are
+     * templated as for /api/generate; results stream back as NDJSON tagged with their index
+     * (see {@link BatchResponse}). The response cache and request coalescing are not used.
+     */
+    private void handleBatch(HttpResponseWriter response, byte[] body, String clientId) throws IOException {
+        long requestStart = System.nanoTime();
+        BatchRequest request;
+        try {
+            request = BatchRequest.parse(body);
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid batch request", e);
+            sendErrorResponse(response, 400, "Invalid batch request: " + e.getMessage());
+            return;
+        }
+        if (request.prompts.isEmpty()) {
+            sendErrorResponse(response, 400, "No prompts provided");
+            return;
+        }
+        
+        ConfigurationManager.Configuration config = loadConfigOrNull(request.model);
+        GenerateOptions options = GenerateOptions.from(config).apply(request.options);
+        List<String> prompts = new ArrayList<>(request.prompts.size());
+        for (String prompt : request.prompts) {
+            prompts.add(applyPromptTemplate(prompt, config));
+        }
+        
+        RequestScheduler.Ticket ticket = acquireSlot(response, clientId, request.priority, request.promptChars());
+        if (ticket == null) {
+            return;
+        }
+        try {
+            if (!modelManager.loadConfiguration(request.model)) {
+                sendErrorResponse(response, 500, "Failed to load configuration: " + request.model);
+                return;
+            }
+            long loadDuration = modelManager.getLastLoadDurationNs();
             
-            Log.d(TAG, "Request: " + method + " " + path);
             if (listener != null) {
-                listener.onRequest(method, path);
+                listener.onGenerating(request.model);
             }
             
-            // Read headers
-            Map<String, String> headers = new HashMap<>();
-            String headerLine;
-            int contentLength = 0;
-            while ((headerLine = reader.readLine()) != null && !headerLine.isEmpty()) {
-                int colonIndex = headerLine.indexOf(':');
-                if (colonIndex > 0) {
-                    String key = headerLine.substring(0, colonIndex).trim().toLowerCase();
-                    String value = headerLine.substring(colonIndex + 1).trim();
-                    headers.put(key, value);
-                    if ("content-length".equals(key)) {
-                        contentLength = Integer.parseInt(value);
+            BatchResponse output = new BatchResponse(response, request.stream, request.model);
+            GenerateResult total = modelManager.generateBatch(prompts, options, request.parallel, output);
+            total.loadDurationNs = loadDuration;
+            total.queueDurationNs = ticket.getQueueWaitNs();
+            total.totalDurationNs = System.nanoTime() - requestStart;
+            Log.i(TAG, "Batch of " + prompts.size() + " prompts: " + total);
+            output.finish(total, prompts.size());
+        } finally {
+            scheduler.release(ticket);
+        }
+    }
+    
+    /**
+     * POST /api/jobs: store a JSONL (or /api/batch JSON) body as a background job; see
+     * {@link JobManager}. Responds with the job's status, including its "id".
+     */
+    private void handleJobSubmit(HttpResponseWriter response, byte[] body) throws IOException {
+        try {
+            sendJsonResponse(response, 200, jobManager.submit(body).toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid job request", e);
+            sendErrorResponse(response, 400, "Invalid job request: " + e.getMessage());
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to store job", e);
+            sendErrorResponse(response, 500, "Failed to store job: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * GET /api/jobs: every job's status, oldest first.
+     */
+    private void handleJobList(HttpResponseWriter response) throws IOException {
+        try {
+            JSONObject result = new JSONObject();
+            result.put("jobs", jobManager.list());
+            sendJsonResponse(response, 200, result.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Error building job list", e);
+            sendErrorResponse(response, 500, "Internal Server Error");
+        }
+    }
+    
+    /**
+     * GET /api/jobs/{id} (status) or /api/jobs/{id}/results (the output JSONL so far).
+     */
+    private void handleJobGet(HttpResponseWriter response, String rest) throws IOException {
+        try {
+            if (rest.endsWith(JOBS_RESULTS_SUFFIX)) {
+                String id = rest.substring(0, rest.length() - JOBS_RESULTS_SUFFIX.length());
+                JobManager.Results results = jobManager.results(id);
+                if (results == null) {
+                    sendErrorResponse(response, 404, "Job not found: " + id);
+                    return;
+                }
+                sendJobResults(response, results);
+                return;
+            }
+            JSONObject status = jobManager.status(rest);
+            if (status == null) {
+                sendErrorResponse(response, 404, "Job not found: " + rest);
+                return;
+            }
+            sendJsonResponse(response, 200, status.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Error building job status", e);
+            sendErrorResponse(response, 500, "Internal Server Error");
+        }
+    }
+    
+    // Stream the complete lines of a job's output file
+    private void sendJobResults(HttpResponseWriter response, JobManager.Results results) throws IOException {
+        response.startChunked("application/x-ndjson");
+        if (results.length > 0) {
+            byte[] buf = new byte[64 * 1024];
+            try (FileInputStream in = new FileInputStream(results.file)) {
+                long remaining = results.length;
+                while (remaining > 0) {
+                    int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                    if (n < 0) {
+                        break;
                     }
+                    response.writeChunk(buf, 0, n);
+                    remaining -= n;
+                }
+            }
+        }
+        response.endChunked();
+    }
+    
+    /**
+     * DELETE /api/jobs/{id}: cancel the job and delete its files.
+     */
+    private void handleJobCancel(HttpResponseWriter response, String id) throws IOException {
+        try {
+            JSONObject status = jobManager.cancel(id);
+            if (status == null) {
+                sendErrorResponse(response, 404, "Job not found: " + id);
+                return;
+            }
+            sendJsonResponse(response, 200, status.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Error building job status", e);
+            sendErrorResponse(response, 500, "Internal Server Error");
+        }
+    }
+    
+    /**
+     * POST /v1/chat/completions (OpenAI). Same parser, prompt builder and generation
+     * path as /api/chat; "stream" defaults to false and streams as Server-Sent Events.
+     */
+    private void handleOpenAiChat(HttpResponseWriter response, byte[] body, String clientId) throws IOException {
+        long requestStart = System.nanoTime();
+        ChatRequest request;
+        try {
+            request = ChatRequest.parse(body, false);
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid JSON in OpenAI chat request", e);
+            sendOpenAiError(response, 400, "Invalid JSON: " + e.getMessage());
+            return;
+        }
+        if (request.prompt.getMessageCount() == 0) {
+            sendOpenAiError(response, 400, "No messages provided");
+            return;
+        }
+        
+        ConfigurationManager.Configuration config = loadConfigOrNull(request.model);
+        GenerateOptions options = request.generateOptions(config);
+        String promptToUse = request.prompt.build(config, modelManager.getChatTemplate(config));
+        
+        generateAndRespond(new OpenAiGenerationResponse(response, request.stream, request.model, true,
+                request.includeUsage),
+            request.model, config, options, promptToUse, request.useCache, clientId, request.priority,
+            requestStart);
+    }
+    
+    /**
+     * POST /v1/completions (OpenAI) {"model", "prompt", "max_tokens"?, "stop"?, "seed"?,
+     * "stream"?, "stream_options"?}. The prompt goes through the configuration's template,
+     * as with /api/generate. An array prompt uses its first element.
+     */
+    private void handleOpenAiCompletion(HttpResponseWriter response, String body, String clientId)
+            throws IOException {
+        long requestStart = System.nanoTime();
+        String model;
+        String prompt;
+        boolean stream;
+        boolean includeUsage;
+        int priority;
+        boolean useCache;
+        JSONObject request;
+        try {
+            request = new JSONObject(body);
+            model = request.optString("model", "default");
+            JSONArray prompts = request.optJSONArray("prompt");
+            prompt = prompts != null ? prompts.optString(0, "") : request.optString("prompt", "");
+            stream = request.optBoolean("stream", false);
+            JSONObject streamOptions = request.optJSONObject("stream_options");
+            includeUsage = streamOptions != null && streamOptions.optBoolean("include_usage", false);
+            priority = RequestScheduler.clientPriority(
+                request.optInt("priority", RequestScheduler.PRIORITY_NORMAL));
+            useCache = request.optBoolean("cache", true);
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid JSON in OpenAI completion request", e);
+            sendOpenAiError(response, 400, "Invalid JSON: " + e.getMessage());
+            return;
+        }
+        
+        ConfigurationManager.Configuration config = loadConfigOrNull(model);
+        GenerateOptions options = GenerateOptions.from(config);
+        if (request.has("max_tokens")) {
+            options.numPredict = request.optInt("max_tokens", options.numPredict);
+        }
+        if (request.has("stop")) {
+            options.setStop(request.opt("stop"));
+        }
+        if (request.has("seed")) {
+            options.seed = request.optInt("seed", options.seed);
+        }
+        String promptToUse = applyPromptTemplate(prompt, config);
+        
+        generateAndRespond(new OpenAiGenerationResponse(response, stream, model, false, includeUsage),
+            model, config, options, promptToUse, useCache, clientId, priority, requestStart);
+    }
+    
+    /**
+     * GET /v1/models (OpenAI): one entry per configuration.
+     */
+    private void handleOpenAiModels(HttpResponseWriter response) throws IOException {
+        try {
+            long created = System.currentTimeMillis() / 1000;
+            JSONArray data = new JSONArray();
+            for (String configName : configManager.listConfigurations()) {
+                JSONObject model = new JSONObject();
+                model.put("id", configName);
+                model.put("object", "model");
+                model.put("created", created);
+                model.put("owned_by", "library");
+                data.put(model);
+            }
+            JSONObject list = new JSONObject();
+            list.put("object", "list");
+            list.put("data", data);
+            sendJsonResponse(response, 200, list.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Error building models response", e);
+            sendOpenAiError(response, 500, "Internal Server Error");
+        }
+    }
+    
+    private void sendOpenAiError(HttpResponseWriter response, int statusCode, String message) throws IOException {
+        sendJsonResponse(response, statusCode, OpenAiGenerationResponse.errorJson(statusCode, message));
+    }
+    
+    private ConfigurationManager.Configuration loadConfigOrNull(String model) {
+        try {
+            return configManager.loadConfiguration(model);
+        } catch (Exception e) {
+            Log.w(TAG, "Could not load config for template", e);
+            return null;
+        }
+    }
+    
+    /**
+     * Run (or join) the generation for a fully templated prompt and write it to
+     * {@code output} in its API's format.
+     * Deterministic requests are answered from the response cache when possible (unless the
+     * request sent "cache": false), and ones identical to a request already in flight attach
+     * to it as followers. Neither path touches the request queue or the model.
+     */
+    private void generateAndRespond(GenerationResponse output, String model,
+                                    ConfigurationManager.Configuration config, GenerateOptions options,
+                                    String prompt, boolean useCache,
+                                    String clientId, int priority, long requestStart)
+            throws IOException {
+        String cacheKey = null;
+        if (useCache && responseCache.isEnabled() && config != null && options.isDeterministic(config)) {
+            cacheKey = responseCache.key(modelManager.getModelFile(config), config, options, prompt);
+            GenerateResult cached = cacheKey != null ? responseCache.get(cacheKey) : null;
+            if (cached != null) {
+                Log.i(TAG, "Response cache hit for " + model);
+                cached.totalDurationNs = System.nanoTime() - requestStart;
+                if (!cached.text.isEmpty()) {
+                    output.piece(cached.text);
                 }
+                output.finish(cached);
+                return;
+            }
+        }
+        
+        String fingerprint = RequestCoalescer.fingerprint(model, config, options, prompt);
+        RequestCoalescer.Attachment attachment = fingerprint != null ? coalescer.attach(fingerprint) : null;
+        if (attachment != null && !attachment.leader) {
+            Log.i(TAG, "Coalescing request from " + clientId + " onto in-flight generation");
+            followGeneration(output, attachment, requestStart);
+            return;
+        }
+        
+        GenerateResult gen = null;
+        try {
+            gen = runGeneration(output, model, options, prompt, clientId, priority,
+                requestStart, attachment != null ? attachment.shared : null, cacheKey);
+        } finally {
+            if (attachment != null) {
+                coalescer.complete(attachment, gen != null ? gen
+                    : GenerateResult.error(GenerateResult.ERROR_EXCEPTION, "Generation aborted"));
+            }
+        }
+    }
+    
+    /**
+     * Queue for the model, generate, and stream tokens to the client (and to
+     * {@code shared}, if followers may attach). A complete result is stored under
+     * {@code cacheKey} if one is given. Returns the result, or an error result if the
+     * request never ran; the response has been written either way.
+     */
+    private GenerateResult runGeneration(final GenerationResponse output, String model,
+                                         GenerateOptions options, String prompt,
+                                         String clientId, int priority,
+                                         long requestStart, final RequestCoalescer.SharedGeneration shared,
+                                         String cacheKey) throws IOException {
+        // Wait for the model slot in the fair queue - 503 + Retry-After only when the queue is full
+        RequestScheduler.Ticket ticket = acquireSlot(output::sendError, clientId, priority, prompt.length());
+        if (ticket == null) {
+            return GenerateResult.error(GenerateResult.ERROR_EXCEPTION, "Request was not scheduled");
+        }
+        
+        try {
+            // Load model/configuration if needed (will be fast if same config already loaded)
+            if (!modelManager.loadConfiguration(model)) {
+                output.sendError(500, "Failed to load configuration: " + model, "");
+                return GenerateResult.error(GenerateResult.ERROR_NOT_INITIALIZED,
+                    "Failed to load configuration: " + model);
             }
+            long loadDuration = modelManager.getLastLoadDurationNs();
             
-            // Read body
-            String body = "";
-            if (contentLength > 0) {
-                char[] bodyChars = new char[contentLength];
-                int read = reader.read(bodyChars, 0, contentLength);
-                body = new String(bodyChars, 0, read);
+            if (listener != null) {
+                listener.onGenerating(model);
             }
             
-            // Route request
-            if ("POST".equals(method)) {
-                if ("/api/generate".equals(path)) {
-                    handleGenerate(outputStream, body);
-                } else if ("/api/chat".equals(path)) {
-                    handleChat(outputStream, body);
-                } else if ("/api/tags".equals(path) || "/api/tags/".equals(path)) {
-                    handleTags(outputStream);
-                } else {
-                    sendErrorResponse(outputStream, 404, "Not Found");
+            final boolean[] clientGone = { false };
+            // Generate directly - same code path as UI
+            GenerateResult gen = modelManager.generate(prompt, options, piece -> {
+                if (shared != null) {
+                    shared.append(piece);
                 }
-            } else if ("GET".equals(method)) {
-                if ("/api/tags".equals(path) || "/api/tags/".equals(path)) {
-                    handleTags(outputStream);
-                } else if ("/".equals(path) || "/api".equals(path)) {
-                    sendJsonResponse(outputStream, 200, "{\"status\":\"Ollama is running\"}");
-                } else {
-                    sendErrorResponse(outputStream, 404, "Not Found");
+                if (output.isStreaming() && !clientGone[0]) {
+                    try {
+                        output.piece(piece);
+                    } catch (IOException e) {
+                        Log.w(TAG, "Client went away during streaming: " + e.getMessage());
+                        clientGone[0] = true;
+                    }
                 }
-            } else if ("OPTIONS".equals(method)) {
-                handleCors(outputStream);
-            } else {
-                sendErrorResponse(outputStream, 405, "Method Not Allowed");
-            }
+                // Keep going while anyone is still reading
+                return !clientGone[0] || (shared != null && shared.hasFollowers());
+            });
+            gen.loadDurationNs = loadDuration;
+            gen.queueDurationNs = ticket.getQueueWaitNs();
+            gen.totalDurationNs = System.nanoTime() - requestStart;
             
-            clientSocket.close();
-        } catch (Exception e) {
-            Log.e(TAG, "Error handling client", e);
-            try {
-                clientSocket.close();
-            } catch (IOException ignored) {}
+            if (!clientGone[0]) {
+                // Output cut short by a disconnect is not a valid answer to cache
+                if (cacheKey != null && !gen.isError()) {
+                    responseCache.put(cacheKey, gen);
+                }
+                output.finish(gen);
+            }
+            return gen;
+        } finally {
+            scheduler.release(ticket);
         }
     }
     
-    private void handleGenerate(OutputStream outputStream, String body) throws IOException {
+    /**
+     * Replay a generation started by another request: stream its pieces as they arrive,
+     * then finish with its counters and this request's own total duration.
+     */
+    private void followGeneration(GenerationResponse output, RequestCoalescer.Attachment attachment,
+                                  long requestStart) throws IOException {
+        RequestCoalescer.SharedGeneration shared = attachment.shared;
+        try {
+            int cursor = 0;
+            String piece;
+            while ((piece = shared.awaitText(cursor)) != null) {
+                cursor += piece.length();
+                output.piece(piece);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            output.sendError(503, "Server is shutting down", "");
+            return;
+        } finally {
+            coalescer.detach(attachment);
+        }
+        
+        GenerateResult gen = shared.getResult().copy();
+        gen.loadDurationNs = 0;
+        gen.queueDurationNs = 0;
+        gen.totalDurationNs = System.nanoTime() - requestStart;
+        output.finish(gen);
+    }
+    
+    /**
+     * POST /api/tokenize {"model", "content", "count_only"?, "add_special"?, "parse_special"?}
+     * Defaults match how generate() tokenizes the templated prompt.
+     */
+    private void handleTokenize(HttpResponseWriter response, String body, String clientId) throws IOException {
         try {
             JSONObject request = new JSONObject(body);
             String model = request.optString("model", "default");
-            String prompt = request.optString("prompt", "");
-            boolean stream = request.optBoolean("stream", true);
-            
-            // Try to acquire busy lock - return 503 if busy
-            if (!modelManager.tryAcquire()) {
-                Log.w(TAG, "Model is busy, rejecting request");
-                sendErrorResponse(outputStream, 503, "Model is busy processing another request");
-                return;
-            }
+            String content = request.optString("content", request.optString("prompt", ""));
+            boolean countOnly = request.optBoolean("count_only", false);
+            boolean addSpecial = request.optBoolean("add_special", false);
+            boolean parseSpecial = request.optBoolean("parse_special", true);
             
-            try {
-                // Load model/configuration if needed (will be fast if same config already loaded)
-                if (!modelManager.loadConfiguration(model)) {
-                    sendErrorResponse(outputStream, 500, "Failed to load configuration: " + model);
+            JSONObject result = new JSONObject();
+            result.put("model", model);
+            if (countOnly && !addSpecial && parseSpecial) {
+                Integer count = callWithModel(response, model, clientId,
+                    () -> modelManager.countTokens(content));
+                if (count == null) {
                     return;
                 }
-                
-                ConfigurationManager.Configuration config = null;
-                try {
-                    config = configManager.loadConfiguration(model);
-                } catch (Exception e) {
-                    Log.w(TAG, "Could not load config for template", e);
+                result.put("count", count);
+            } else {
+                int[] tokens = callWithModel(response, model, clientId,
+                    () -> modelManager.tokenize(content, addSpecial, parseSpecial));
+                if (tokens == null) {
+                    return;
                 }
-                
-                if (listener != null) {
-                    listener.onGenerating(model);
+                JSONArray tokenArray = new JSONArray();
+                for (int token : tokens) {
+                    tokenArray.put(token);
                 }
-                
-                String promptToUse = applyPromptTemplate(prompt, config);
-                // Generate directly - same code path as UI
-                String response = modelManager.generate(promptToUse);
-                
-                if (stream) {
-                    // Streaming response (single chunk for simplicity)
-                    JSONObject chunk = new JSONObject();
-                    chunk.put("model", model);
-                    chunk.put("created_at", getTimestamp());
-                    chunk.put("response", response);
-                    chunk.put("done", true);
-                    
-                    sendStreamingResponse(outputStream, chunk.toString());
-                } else {
-                    // Non-streaming response
-                    JSONObject result = new JSONObject();
-                    result.put("model", model);
-                    result.put("created_at", getTimestamp());
-                    result.put("response", response);
-                    result.put("done", true);
-                    
-                    sendJsonResponse(outputStream, 200, result.toString());
-                }
-            } finally {
-                modelManager.release();
+                result.put("tokens", tokenArray);
+                result.put("count", tokens.length);
             }
+            sendJsonResponse(response, 200, result.toString());
         } catch (JSONException e) {
-            Log.e(TAG, "Invalid JSON in generate request", e);
-            sendErrorResponse(outputStream, 400, "Invalid JSON: " + e.getMessage());
+            Log.e(TAG, "Invalid JSON in tokenize request", e);
+            sendErrorResponse(response, 400, "Invalid JSON: " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Tokenize failed", e);
+            sendErrorResponse(response, 500, "Tokenize failed: " + e.getMessage());
         }
     }
     
-    private void handleChat(OutputStream outputStream, String body) throws IOException {
+    /**
+     * POST /api/detokenize {"model", "tokens": [...]}
+     */
+    private void handleDetokenize(HttpResponseWriter response, String body, String clientId) throws IOException {
         try {
             JSONObject request = new JSONObject(body);
             String model = request.optString("model", "default");
-            JSONArray messages = request.optJSONArray("messages");
-            boolean stream = request.optBoolean("stream", true);
-            
-            if (messages == null || messages.length() == 0) {
-                sendErrorResponse(outputStream, 400, "No messages provided");
+            JSONArray tokenArray = request.optJSONArray("tokens");
+            if (tokenArray == null) {
+                sendErrorResponse(response, 400, "No tokens provided");
                 return;
             }
+            int[] tokens = new int[tokenArray.length()];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = tokenArray.getInt(i);
+            }
             
-            // Try to acquire busy lock - return 503 if busy
-            if (!modelManager.tryAcquire()) {
-                Log.w(TAG, "Model is busy, rejecting request");
-                sendErrorResponse(outputStream, 503, "Model is busy processing another request");
+            String content = callWithModel(response, model, clientId, () -> modelManager.detokenize(tokens));
+            if (content == null) {
                 return;
             }
             
-            try {
-                // Load model/configuration if needed (will be fast if same config already loaded)
-                if (!modelManager.loadConfiguration(model)) {
-                    sendErrorResponse(outputStream, 500, "Failed to load configuration: " + model);
-                    return;
-                }
-                
-                if (listener != null) {
-                    listener.onGenerating(model);
-                }
-                
-                // Build prompt from messages (already applies template if available)
-                String promptToUse = buildPromptFromMessages(messages, model);
-
-                // Generate directly - same code path as UI
-                String response = modelManager.generate(promptToUse);
-
-                if (stream) {
-
-                    // Streaming response
-                    JSONObject chunk = new JSONObject();
-                    chunk.put("model", model);
-                    chunk.put("created_at", getTimestamp());
-                    
-                    JSONObject message = new JSONObject();
-                    message.put("role", "assistant");
-                    message.put("content", response);
-                    chunk.put("message", message);
-                    chunk.put("done", true);
-                    
-                    sendStreamingResponse(outputStream, chunk.toString());
-                } else {
-                    // Non-streaming response
-                    JSONObject result = new JSONObject();
-                    result.put("model", model);
-                    result.put("created_at", getTimestamp());
-                    
-                    JSONObject message = new JSONObject();
-                    message.put("role", "assistant");
-                    message.put("content", response);
-                    result.put("message", message);
-                    result.put("done", true);
-                    
-                    sendJsonResponse(outputStream, 200, result.toString());
-                }
-            } finally {
-                modelManager.release();
-            }
+            JSONObject result = new JSONObject();
+            result.put("model", model);
+            result.put("content", content);
+            sendJsonResponse(response, 200, result.toString());
         } catch (JSONException e) {
-            Log.e(TAG, "Invalid JSON in chat request", e);
-            sendErrorResponse(outputStream, 400, "Invalid JSON: " + e.getMessage());
+            Log.e(TAG, "Invalid JSON in detokenize request", e);
+            sendErrorResponse(response, 400, "Invalid JSON: " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Detokenize failed", e);
+            sendErrorResponse(response, 500, "Detokenize failed: " + e.getMessage());
         }
     }
     
-    private void handleTags(OutputStream outputStream) throws IOException {
+    /**
+     * Run a vocab-only call against a configuration's model. If the model is resident the
+     * call runs at once, without the busy lock; otherwise a queue slot is taken, the
+     * configuration loaded, and the call made before the slot is released, so the model
+     * cannot be switched in between. Sends the error response itself and returns null on
+     * failure.
+     */
+    private <T> T callWithModel(HttpResponseWriter response, String model, String clientId,
+                                ModelManager.ResidentCall<T> call) throws IOException {
+        T result = modelManager.callIfResident(model, call);
+        if (result != null) {
+            return result;
+        }
+        RequestScheduler.Ticket ticket = acquireSlot(response, clientId,
+            RequestScheduler.PRIORITY_NORMAL, 0);
+        if (ticket == null) {
+            return null;
+        }
+        try {
+            if (!modelManager.loadConfiguration(model)) {
+                sendErrorResponse(response, 500, "Failed to load configuration: " + model);
+                return null;
+            }
+            return call.call();
+        } finally {
+            scheduler.release(ticket);
+        }
+    }
+    
+    /**
+     * GET /api/tags: one entry per configuration, with size, family, parameter count and
+     * quantization read from the model file's GGUF header (see {@link GgufReader}); a
+     * model that is not downloaded yet has size 0 and unknown details.
+     */
+    private void handleTags(HttpResponseWriter response) throws IOException {
         try {
             List<String> configs = configManager.listConfigurations();
             JSONArray models = new JSONArray();
             
             for (String configName : configs) {
+                ConfigurationManager.Configuration config = loadConfigOrNull(configName);
+                File modelFile = config != null ? modelManager.getModelFile(config) : null;
+                GgufReader.Metadata metadata = GgufReader.read(modelFile);
+                
                 JSONObject model = new JSONObject();
                 model.put("name", configName);
                 model.put("model", configName);
-                model.put("modified_at", getTimestamp());
-                model.put("size", 0);
-                
-                JSONObject details = new JSONObject();
-                details.put("format", "gguf");
-                details.put("family", "llama");
-                details.put("parameter_size", "unknown");
-                details.put("quantization_level", "unknown");
-                model.put("details", details);
+                model.put("modified_at", metadata != null
+                    ? HttpResponseWriter.timestamp(metadata.modifiedMs) : getTimestamp());
+                model.put("size", metadata != null ? metadata.fileSize : 0);
+                model.put("details", modelDetails(metadata));
                 
                 models.put(model);
             }
             
-            JSONObject response = new JSONObject();
-            response.put("models", models);
+            JSONObject tags = new JSONObject();
+            tags.put("models", models);
             
-            sendJsonResponse(outputStream, 200, response.toString());
+            sendJsonResponse(response, 200, tags.toString());
         } catch (JSONException e) {
             Log.e(TAG, "Error building tags response", e);
-            sendErrorResponse(outputStream, 500, "Internal Server Error");
+            sendErrorResponse(response, 500, "Internal Server Error");
         }
     }
     
-    private void handleCors(OutputStream outputStream) throws IOException {
-        String response = "HTTP/1.1 204 No Content\r\n" +
-            "Access-Control-Allow-Origin: *\r\n" +
-            "Access-Control-Allow-Methods: GET, POST, OPTIONS\r\n" +
-            "Access-Control-Allow-Headers: Content-Type\r\n" +
-            "Access-Control-Max-Age: 86400\r\n" +
-            "\r\n";
-        outputStream.write(response.getBytes(StandardCharsets.UTF_8));
-        outputStream.flush();
-    }
-    
-
-    private String applyPromptTemplate(String userInput, ConfigurationManager.Configuration config) {
-        // Strip any existing template markers from user input to prevent double-templating
-        String cleanInput = stripTemplateMarkers(userInput);
-        
-        if (config != null && config.promptTemplate != null && !config.promptTemplate.isEmpty()) {
-            return config.promptTemplate.replace("{USER_INPUT}", cleanInput);
-        }
-        return "<|system|>\nYou are a helpful assistant.\n<|user|>\n" + cleanInput + "\n<|assistant|>\n";
-    }
-
-    private String buildPromptFromMessages(JSONArray messages, String configName) throws JSONException {
-        StringBuilder sb = new StringBuilder();
-        
-        // Try to get prompt template from config
-        String template = null;
+    /**
+     * POST /api/show {"model"}: the configuration's sampling parameters and template, and
+     * the model file's details and GGUF metadata (model_info). Does not load the model.
+     */
+    private void handleShow(HttpResponseWriter response, String body) throws IOException {
         try {
-            ConfigurationManager.Configuration config = configManager.loadConfiguration(configName);
-            template = config.promptTemplate;
-        } catch (Exception e) {
-            Log.w(TAG, "Could not load config for template", e);
-        }
-        
-        // Build conversation from messages
-        String systemPrompt = "You are a helpful assistant.";
-        StringBuilder userContent = new StringBuilder();
-        
-        for (int i = 0; i < messages.length(); i++) {
-            JSONObject msg = messages.getJSONObject(i);
-            String role = msg.optString("role", "");
-            String content = msg.optString("content", "");
+            JSONObject request = new JSONObject(body);
+            String name = request.optString("model", request.optString("name", ""));
+            ConfigurationManager.Configuration config = loadConfigOrNull(name);
+            if (config == null) {
+                sendErrorResponse(response, 404, "model '" + name + "' not found");
+                return;
+            }
+            GgufReader.Metadata metadata = GgufReader.read(modelManager.getModelFile(config));
             
-            // Strip any existing template markers from content to avoid double-templating
-            content = stripTemplateMarkers(content);
+            String parameters = "num_ctx " + config.nCtx + "\n" +
+                "num_batch " + config.nBatch + "\n" +
+                "num_thread " + config.nThreads + "\n" +
+                "temperature " + config.temp + "\n" +
+                "top_k " + config.topK + "\n" +
+                "top_p " + config.topP + "\n" +
+                "min_p " + config.minP + "\n" +
+                "repeat_last_n " + config.penaltyLastN + "\n" +
+                "repeat_penalty " + config.penaltyRepeat + "\n" +
+                "seed " + config.seed;
+            String template = config.promptTemplate;
+            if ((template == null || template.isEmpty()) && metadata != null) {
+                template = metadata.chatTemplate();
+            }
             
-            if ("system".equals(role)) {
-                systemPrompt = content;
-            } else if ("user".equals(role)) {
-                if (userContent.length() > 0) {
-                    userContent.append("\n");
-                }
-                userContent.append(content);
-            } else if ("assistant".equals(role)) {
-                // Include previous assistant responses in context
-                if (userContent.length() > 0) {
-                    userContent.append("\nAssistant: ").append(content).append("\nUser: ");
+            JSONObject show = new JSONObject();
+            show.put("modelfile", "# Configuration " + name + "\nFROM " + config.modelUrl + "\n");
+            show.put("parameters", parameters);
+            show.put("template", template != null ? template : "");
+            show.put("details", modelDetails(metadata));
+            if (metadata != null) {
+                JSONObject modelInfo = new JSONObject();
+                for (Map.Entry<String, Object> entry : metadata.values.entrySet()) {
+                    modelInfo.put(entry.getKey(), entry.getValue());
                 }
+                modelInfo.put("general.parameter_count", metadata.parameterCount);
+                show.put("model_info", modelInfo);
+                show.put("modified_at", HttpResponseWriter.timestamp(metadata.modifiedMs));
             }
+            show.put("capabilities", new JSONArray().put("completion"));
+            sendJsonResponse(response, 200, show.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Invalid JSON in show request", e);
+            sendErrorResponse(response, 400, "Invalid JSON: " + e.getMessage());
         }
-        
-        // Apply template if available
-        if (template != null && !template.isEmpty() && template.contains("{USER_INPUT}")) {
-            // Replace system prompt marker if present
-            String result = template;
-            if (template.contains("<|system|>")) {
-                // Use template as-is but replace user input
-                result = template.replace("{USER_INPUT}", userContent.toString());
-            } else {
-                result = template.replace("{USER_INPUT}", userContent.toString());
+    }
+    
+    /**
+     * GET /api/ps: the resident model, if any. Its size is the tensor data (mapped from
+     * the file) plus an F16 KV cache for the configured context, both from the GGUF
+     * header; all of it is in CPU memory, so size_vram is 0.
+     */
+    private void handlePs(HttpResponseWriter response) throws IOException {
+        try {
+            JSONArray models = new JSONArray();
+            ConfigurationManager.Configuration config = modelManager.getCurrentConfig();
+            String configName = modelManager.getCurrentConfigName();
+            String modelPath = modelManager.getCurrentModelPath();
+            if (modelManager.isModelLoaded() && config != null && modelPath != null) {
+                GgufReader.Metadata metadata = GgufReader.read(new File(modelPath));
+                long nCtx = modelManager.getContextLength();
+                if (nCtx <= 0 && metadata != null) {
+                    nCtx = metadata.contextLength();
+                }
+                long size = metadata != null
+                    ? metadata.tensorBytes + metadata.kvCacheBytes(nCtx) : new File(modelPath).length();
+                
+                JSONObject model = new JSONObject();
+                model.put("name", configName);
+                model.put("model", configName);
+                model.put("size", size);
+                model.put("digest", "");
+                model.put("details", modelDetails(metadata));
+                model.put("size_vram", 0);
+                model.put("context_length", nCtx);
+                long unloadAt = modelManager.getUnloadAtMs();
+                if (unloadAt > 0) {
+                    model.put("expires_at", HttpResponseWriter.timestamp(unloadAt));
+                }
+                models.put(model);
             }
-            return result;
+            
+            JSONObject ps = new JSONObject();
+            ps.put("models", models);
+            sendJsonResponse(response, 200, ps.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Error building ps response", e);
+            sendErrorResponse(response, 500, "Internal Server Error");
         }
-        
-        // Default format
-        sb.append("<|system|>\n").append(systemPrompt).append("\n");
-        sb.append("<|user|>\n").append(userContent.toString()).append("\n");
-        sb.append("<|assistant|>\n");
-        
-        return sb.toString();
     }
     
     /**
-     * Strip common prompt template markers from content to prevent double-templating.
-     * This handles cases where the client sends content that already contains template markers.
+     * GET /api/metrics: memory-pressure steps taken and what undoing them cost.
      */
-    private String stripTemplateMarkers(String content) {
-        if (content == null || content.isEmpty()) {
-            return content;
-        }
-        
-        // Common template markers to strip
-        String[] markers = {
-            "<start_of_turn>system", "<end_of_turn>", "<start_of_turn>user", 
-            "<start_of_turn>model", "<start_of_turn>assistant",
-            "<|system|>", "<|user|>", "<|assistant|>", "<|model|>",
-            "<|im_start|>system", "<|im_start|>user", "<|im_start|>assistant", "<|im_end|>",
-            "[INST]", "[/INST]", "<<SYS>>", "<</SYS>>"
-        };
-        
-        String result = content;
-        for (String marker : markers) {
-            result = result.replace(marker, "");
+    private void handleMetrics(HttpResponseWriter response) throws IOException {
+        try {
+            JSONObject metrics = new JSONObject();
+            metrics.put("memory_trim", modelManager.getTrimStats().toJSON());
+            sendJsonResponse(response, 200, metrics.toString());
+        } catch (JSONException e) {
+            Log.e(TAG, "Error building metrics response", e);
+            sendErrorResponse(response, 500, "Internal Server Error");
         }
-        
-        // Clean up extra whitespace/newlines left behind
-        result = result.replaceAll("\\n{3,}", "\n\n").trim();
-        
-        return result;
     }
     
-    private void sendJsonResponse(OutputStream outputStream, int statusCode, String body) throws IOException {
-        String status = statusCode == 200 ? "OK" : (statusCode == 400 ? "Bad Request" : 
-                        (statusCode == 404 ? "Not Found" : (statusCode == 503 ? "Service Unavailable" : "Error")));
-        
-        String response = "HTTP/1.1 " + statusCode + " " + status + "\r\n" +
-            "Content-Type: application/json\r\n" +
-            "Access-Control-Allow-Origin: *\r\n" +
-            "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n" +
-            "\r\n" +
-            body;
-        
-        outputStream.write(response.getBytes(StandardCharsets.UTF_8));
-        outputStream.flush();
+    // Ollama "details" object; unknowns when the header could not be read
+    private static JSONObject modelDetails(GgufReader.Metadata metadata) throws JSONException {
+        String family = metadata != null ? metadata.architecture() : "unknown";
+        JSONObject details = new JSONObject();
+        details.put("format", "gguf");
+        details.put("family", family);
+        details.put("families", new JSONArray().put(family));
+        details.put("parameter_size", metadata != null ? metadata.parameterSize() : "unknown");
+        details.put("quantization_level", metadata != null ? metadata.quantizationLevel() : "unknown");
+        return details;
     }
     
-    private void sendStreamingResponse(OutputStream outputStream, String body) throws IOException {
-        String response = "HTTP/1.1 200 OK\r\n" +
-            "Content-Type: application/x-ndjson\r\n" +
-            "Access-Control-Allow-Origin: *\r\n" +
-            "Transfer-Encoding: chunked\r\n" +
-            "\r\n";
-        
-        outputStream.write(response.getBytes(StandardCharsets.UTF_8));
-        
-        // Write chunk
-        byte[] chunk = (body + "\n").getBytes(StandardCharsets.UTF_8);
-        String chunkSize = Integer.toHexString(chunk.length) + "\r\n";
-        outputStream.write(chunkSize.getBytes(StandardCharsets.UTF_8));
-        outputStream.write(chunk);
-        outputStream.write("\r\n".getBytes(StandardCharsets.UTF_8));
-        
-        // End chunk
-        outputStream.write("0\r\n\r\n".getBytes(StandardCharsets.UTF_8));
-        outputStream.flush();
+    private void handleCors(HttpResponseWriter response) throws IOException {
+        OutputStream out = response.getOutputStream();
+        out.write(CORS_RESPONSE);
+        out.flush();
+    }
+    
+
+    private String applyPromptTemplate(String userInput, ConfigurationManager.Configuration config) {
+        return ChatPromptBuilder.applyTemplate(userInput, config, modelManager.getChatTemplate(config));
+    }
+    
+    private void sendJsonResponse(HttpResponseWriter response, int statusCode, String body) throws IOException {
+        sendJsonResponse(response, statusCode, body, "");
+    }
+    
+    private void sendJsonResponse(HttpResponseWriter response, int statusCode, String body,
+                                  String extraHeaders) throws IOException {
+        response.sendJson(statusCode, body, extraHeaders);
+    }
+    
+    private void sendErrorResponse(HttpResponseWriter response, int statusCode, String message) throws IOException {
+        sendErrorResponse(response, statusCode, message, "");
     }
     
-    private void sendErrorResponse(OutputStream outputStream, int statusCode, String message) throws IOException {
+    private void sendErrorResponse(HttpResponseWriter response, int statusCode, String message,
+                                   String extraHeaders) throws IOException {
         try {
             JSONObject error = new JSONObject();
             error.put("error", message);
-            sendJsonResponse(outputStream, statusCode, error.toString());
+            sendJsonResponse(response, statusCode, error.toString(), extraHeaders);
         } catch (JSONException e) {
-            sendJsonResponse(outputStream, statusCode, "{\"error\":\"" + message + "\"}");
+            sendJsonResponse(response, statusCode, "{\"error\":\"" + message + "\"}", extraHeaders);
         }
     }
     
     private String getTimestamp() {
-        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US);
-        sdf.setTimeZone(TimeZone.getTimeZone("UTC"));
-        return sdf.format(new Date());
+        return HttpResponseWriter.timestamp();
     }
 }
@@ -10,6 +10,9 @@ import android.os.Build;
 import android.os.IBinder;
 import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Foreground service that keeps the Llama API server running in the background.
  * Uses a persistent notification to maintain the service.
@@ -22,6 +25,8 @@ public class OllamaForegroundService extends Service {
     
     public static final String ACTION_START = "com.example.ollama.START_SERVICE";
     public static final String ACTION_STOP = "com.example.ollama.STOP_SERVICE";
+    // bindService() action for IInferenceService
+    public static final String ACTION_BIND_INFERENCE = "com.example.ollama.BIND_INFERENCE";
     
     // Broadcast actions for communicating with MainActivity
     public static final String ACTION_LOG = "com.example.ollama.LOG";
@@ -30,8 +35,19 @@ public class OllamaForegroundService extends Service {
     public static final String EXTRA_STATUS = "status";
     public static final String EXTRA_PORT = "port";
     
+    private static final String PREFS_NAME = "ollama_prefs";
+    private static final String PREF_QUEUE_DEPTH = "queue_depth";
+    private static final String PREF_RESPONSE_CACHE_MB = "response_cache_mb";
+    private static final String PREF_MAX_BODY_MB = "max_request_body_mb";
+    private static final String PREF_LOCAL_SOCKET = "local_socket_enabled";
+    // Comma-separated configuration names to preload at startup; empty for none
+    private static final String PREF_PRELOAD_CONFIGS = "preload_configs";
+    // Abstract-namespace name of the optional local socket listener
+    public static final String LOCAL_SOCKET_NAME = "com.example.ollama.api";
+    
     private OllamaApiServer apiServer;
     private ModelManager modelManager;
+    private InferenceBinder inferenceBinder;
     private int port = OllamaApiServer.DEFAULT_PORT;
     
     @Override
@@ -41,6 +57,11 @@ public class OllamaForegroundService extends Service {
         
         createNotificationChannel();
         modelManager = ModelManager.getInstance(this);
+        
+        int queueDepth = getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+            .getInt(PREF_QUEUE_DEPTH, RequestScheduler.DEFAULT_MAX_QUEUE_DEPTH);
+        modelManager.getScheduler().setMaxQueueDepth(queueDepth);
+        inferenceBinder = new InferenceBinder(this, modelManager);
     }
     
     @Override
@@ -69,6 +90,9 @@ public class OllamaForegroundService extends Service {
     
     @Override
     public IBinder onBind(Intent intent) {
+        if (intent != null && ACTION_BIND_INFERENCE.equals(intent.getAction())) {
+            return inferenceBinder;
+        }
         return null;
     }
     
@@ -76,9 +100,25 @@ public class OllamaForegroundService extends Service {
     public void onDestroy() {
         Log.i(TAG, "Service onDestroy");
         stopApiServer();
+        inferenceBinder.shutdown();
         super.onDestroy();
     }
     
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        OllamaApiServer server = apiServer;
+        // Runs on ModelManager's thread; this returns right away
+        modelManager.trimMemory(level, server != null ? server.getResponseCache() : null, step -> {
+            if (step == ModelManager.TRIM_CONTEXT) {
+                sendLog("Memory pressure: context shrunk to n_ctx=" + modelManager.getContextLength());
+            } else if (step == ModelManager.TRIM_UNLOAD) {
+                updateNotification("Model unloaded (low memory)");
+                sendLog("Memory pressure: model unloaded");
+            }
+        });
+    }
+    
     private void createNotificationChannel() {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
             NotificationChannel channel = new NotificationChannel(
@@ -143,6 +183,25 @@ public class OllamaForegroundService extends Service {
         
         apiServer = new OllamaApiServer(this, modelManager);
         apiServer.setPort(port);
+        
+        // 0 turns the cache off
+        int cacheMb = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getInt(PREF_RESPONSE_CACHE_MB,
+            (int) (ResponseCache.DEFAULT_MAX_BYTES / (1024 * 1024)));
+        apiServer.getResponseCache().setMaxBytes(cacheMb * 1024L * 1024L);
+        int maxBodyMb = getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getInt(PREF_MAX_BODY_MB,
+            HttpRequestParser.DEFAULT_MAX_BODY_BYTES / (1024 * 1024));
+        apiServer.setMaxBodyBytes(maxBodyMb * 1024 * 1024);
+        if (getSharedPreferences(PREFS_NAME, MODE_PRIVATE).getBoolean(PREF_LOCAL_SOCKET, false)) {
+            apiServer.setLocalSocketName(LOCAL_SOCKET_NAME);
+        }
+        List<String> preload = new ArrayList<>();
+        for (String name : getSharedPreferences(PREFS_NAME, MODE_PRIVATE)
+                .getString(PREF_PRELOAD_CONFIGS, "").split(",")) {
+            if (!name.trim().isEmpty()) {
+                preload.add(name.trim());
+            }
+        }
+        apiServer.setPreloadConfigs(preload);
         apiServer.setListener(new OllamaApiServer.ServerListener() {
             @Override
             public void onServerStarted(int port) {
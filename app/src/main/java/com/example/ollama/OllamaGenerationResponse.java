@@ -0,0 +1,51 @@
+package com.example.ollama;
+
+import java.io.IOException;
+
+/**
+ * /api/generate and /api/chat output: application/x-ndjson lines when streaming,
+ * one JSON object otherwise, {"error": "..."} on failure.
+ */
+final class OllamaGenerationResponse extends GenerationResponse {
+    private final ChunkEncoder encoder;
+
+    OllamaGenerationResponse(HttpResponseWriter response, boolean stream, String model, boolean chat) {
+        super(response, stream);
+        this.encoder = new ChunkEncoder(model, chat);
+    }
+
+    @Override
+    protected String streamContentType() {
+        return "application/x-ndjson";
+    }
+
+    @Override
+    protected Utf8Buffer encodePiece(String text) {
+        return line(encoder.piece(text));
+    }
+
+    @Override
+    protected void writeStreamEnd(GenerateResult gen) throws IOException {
+        // Text has already been sent piece by piece
+        write(line(encoder.done("", gen)));
+    }
+
+    @Override
+    protected Utf8Buffer encodeBody(GenerateResult gen) {
+        return encoder.done(gen.text, gen);
+    }
+
+    @Override
+    protected Utf8Buffer encodeStreamError(String message) {
+        return line(encoder.error(message));
+    }
+
+    @Override
+    protected Utf8Buffer encodeError(int statusCode, String message) {
+        return encoder.error(message);
+    }
+
+    private static Utf8Buffer line(Utf8Buffer json) {
+        return json.append((byte) '\n');
+    }
+}
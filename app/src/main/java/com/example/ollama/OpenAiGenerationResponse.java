@@ -0,0 +1,177 @@
+package com.example.ollama;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * /v1/chat/completions and /v1/completions output in the OpenAI format.
+ *
+ * Streaming uses Server-Sent Events: one "data: {chunk}" event per piece (a
+ * {"delta": {"content"}} for chat, {"text"} for completions), a closing chunk with
+ * finish_reason, an optional usage chunk, then "data: [DONE]". As in
+ * {@link ChunkEncoder}, everything fixed for the request (id, created, model) is
+ * serialized once and each piece only adds its escaped text.
+ */
+final class OpenAiGenerationResponse extends GenerationResponse {
+    private static final AtomicLong NEXT_ID = new AtomicLong(System.currentTimeMillis());
+    private static final byte[] DATA = ascii("data: ");
+    private static final byte[] EVENT_END = ascii("\n\n");
+    private static final byte[] DONE_EVENT = ascii("data: [DONE]\n\n");
+
+    private final boolean chat;
+    private final boolean includeUsage;
+    // {"id":"...","object":"...","created":N,"model":"..."
+    private final byte[] chunkPrefix;
+    private final byte[] bodyPrefix;
+    private final Utf8Buffer buffer = new Utf8Buffer(512);
+    private boolean sentRole = false;
+
+    /**
+     * @param includeUsage streaming only: send a usage chunk before [DONE]
+     *                     (stream_options.include_usage); bodies always include usage
+     */
+    OpenAiGenerationResponse(HttpResponseWriter response, boolean stream, String model, boolean chat,
+                             boolean includeUsage) {
+        super(response, stream);
+        this.chat = chat;
+        this.includeUsage = includeUsage;
+        String id = (chat ? "chatcmpl-" : "cmpl-") + Long.toHexString(NEXT_ID.getAndIncrement());
+        long created = System.currentTimeMillis() / 1000;
+        chunkPrefix = prefix(id, chat ? "chat.completion.chunk" : "text_completion", created, model);
+        bodyPrefix = prefix(id, chat ? "chat.completion" : "text_completion", created, model);
+    }
+
+    @Override
+    protected String streamContentType() {
+        return "text/event-stream";
+    }
+
+    @Override
+    protected Utf8Buffer encodePiece(String text) {
+        beginEvent();
+        buffer.append(chunkPrefix).appendAscii(",\"choices\":[{\"index\":0,");
+        if (chat) {
+            // The first delta also carries the role
+            buffer.appendAscii(sentRole ? "\"delta\":{\"content\":\""
+                : "\"delta\":{\"role\":\"assistant\",\"content\":\"");
+            sentRole = true;
+            ChunkEncoder.appendEscaped(buffer, text);
+            buffer.appendAscii("\"},\"finish_reason\":null}]}");
+        } else {
+            buffer.appendAscii("\"text\":\"");
+            ChunkEncoder.appendEscaped(buffer, text);
+            buffer.appendAscii("\",\"logprobs\":null,\"finish_reason\":null}]}");
+        }
+        return buffer.append(EVENT_END);
+    }
+
+    @Override
+    protected void writeStreamEnd(GenerateResult gen) throws IOException {
+        beginEvent();
+        buffer.append(chunkPrefix).appendAscii(",\"choices\":[{\"index\":0,");
+        buffer.appendAscii(chat ? "\"delta\":{}," : "\"text\":\"\",\"logprobs\":null,");
+        appendFinishReason(gen);
+        buffer.appendAscii("}]}").append(EVENT_END);
+        write(buffer);
+
+        if (includeUsage) {
+            beginEvent();
+            buffer.append(chunkPrefix).appendAscii(",\"choices\":[],");
+            appendUsage(gen);
+            buffer.append((byte) '}').append(EVENT_END);
+            write(buffer);
+        }
+
+        buffer.reset();
+        buffer.append(DONE_EVENT);
+        write(buffer);
+    }
+
+    @Override
+    protected Utf8Buffer encodeBody(GenerateResult gen) {
+        buffer.reset();
+        buffer.append(bodyPrefix).appendAscii(",\"choices\":[{");
+        if (chat) {
+            buffer.appendAscii("\"index\":0,\"message\":{\"role\":\"assistant\",\"content\":\"");
+            ChunkEncoder.appendEscaped(buffer, gen.text);
+            buffer.appendAscii("\"},");
+        } else {
+            buffer.appendAscii("\"text\":\"");
+            ChunkEncoder.appendEscaped(buffer, gen.text);
+            buffer.appendAscii("\",\"index\":0,\"logprobs\":null,");
+        }
+        appendFinishReason(gen);
+        buffer.appendAscii("}],");
+        appendUsage(gen);
+        return buffer.append((byte) '}');
+    }
+
+    @Override
+    protected Utf8Buffer encodeStreamError(String message) {
+        beginEvent();
+        appendErrorObject("api_error", message);
+        return buffer.append(EVENT_END);
+    }
+
+    @Override
+    protected Utf8Buffer encodeError(int statusCode, String message) {
+        buffer.reset();
+        appendErrorObject(statusCode < 500 ? "invalid_request_error" : "api_error", message);
+        return buffer;
+    }
+
+    /**
+     * OpenAI-style error body for requests that fail before a response object exists.
+     */
+    static String errorJson(int statusCode, String message) {
+        Utf8Buffer b = new Utf8Buffer(128);
+        appendErrorObject(b, statusCode < 500 ? "invalid_request_error" : "api_error", message);
+        return new String(b.array(), 0, b.length(), StandardCharsets.UTF_8);
+    }
+
+    private void beginEvent() {
+        buffer.reset();
+        buffer.append(DATA);
+    }
+
+    // "stop" (end of text or a stop sequence) or "length" (token/context/output limit)
+    private void appendFinishReason(GenerateResult gen) {
+        buffer.appendAscii(GenerateResult.DONE_LENGTH.equals(gen.doneReason)
+            ? "\"finish_reason\":\"length\"" : "\"finish_reason\":\"stop\"");
+    }
+
+    private void appendUsage(GenerateResult gen) {
+        buffer.appendAscii("\"usage\":{\"prompt_tokens\":").appendDecimal(gen.promptEvalCount)
+            .appendAscii(",\"completion_tokens\":").appendDecimal(gen.evalCount)
+            .appendAscii(",\"total_tokens\":").appendDecimal(gen.promptEvalCount + gen.evalCount)
+            .append((byte) '}');
+    }
+
+    private void appendErrorObject(String type, String message) {
+        appendErrorObject(buffer, type, message);
+    }
+
+    private static void appendErrorObject(Utf8Buffer b, String type, String message) {
+        b.appendAscii("{\"error\":{\"message\":\"");
+        ChunkEncoder.appendEscaped(b, message != null ? message : "");
+        b.appendAscii("\",\"type\":\"").appendAscii(type).appendAscii("\",\"param\":null,\"code\":null}}");
+    }
+
+    private static byte[] prefix(String id, String object, long created, String model) {
+        Utf8Buffer b = new Utf8Buffer(128);
+        b.appendAscii("{\"id\":\"").appendAscii(id)
+            .appendAscii("\",\"object\":\"").appendAscii(object)
+            .appendAscii("\",\"created\":").appendDecimal(created)
+            .appendAscii(",\"model\":\"");
+        ChunkEncoder.appendEscaped(b, model);
+        b.append((byte) '"');
+        byte[] bytes = new byte[b.length()];
+        System.arraycopy(b.array(), 0, bytes, 0, b.length());
+        return bytes;
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
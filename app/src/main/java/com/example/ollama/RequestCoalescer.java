@@ -0,0 +1,152 @@
+package com.example.ollama;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Registry of in-flight generations keyed by request fingerprint.
+ *
+ * A request whose output is fully determined by its inputs (fixed seed or greedy
+ * sampling) is fingerprinted from config name, effective sampling parameters, seed
+ * and the templated prompt. If an identical request is already generating, the newcomer attaches as a
+ * follower and replays the leader's output instead of queuing for the model again.
+ *
+ * Followers skip the request queue but each holds a worker thread while it replays, so
+ * at most {@link #MAX_FOLLOWERS} wait at once; the server sizes its pool for them.
+ */
+public class RequestCoalescer {
+    /**
+     * Followers waiting at once over all generations. Beyond this an identical request
+     * is not coalesced and queues for the model like any other.
+     */
+    public static final int MAX_FOLLOWERS = 8;
+
+    /**
+     * Output of one generation, shared by the leader and any followers.
+     */
+    public static final class SharedGeneration {
+        private final StringBuilder text = new StringBuilder();
+        private GenerateResult result;
+        private int followers;
+
+        synchronized void append(String piece) {
+            text.append(piece);
+            notifyAll();
+        }
+
+        synchronized void complete(GenerateResult result) {
+            this.result = result;
+            notifyAll();
+        }
+
+        /**
+         * Block until text past {@code from} is available or the generation is done.
+         * @return the new text, or null once the generation is complete and fully read
+         */
+        public synchronized String awaitText(int from) throws InterruptedException {
+            while (result == null && text.length() <= from) {
+                wait();
+            }
+            return text.length() > from ? text.substring(from) : null;
+        }
+
+        /**
+         * Final result; only valid once {@link #awaitText(int)} has returned null.
+         */
+        public synchronized GenerateResult getResult() {
+            return result;
+        }
+
+        public synchronized boolean hasFollowers() {
+            return followers > 0;
+        }
+
+        synchronized void addFollower() {
+            followers++;
+        }
+
+        synchronized void removeFollower() {
+            followers--;
+        }
+    }
+
+    /**
+     * Outcome of {@link #attach(String)}.
+     */
+    public static final class Attachment {
+        public final String fingerprint;
+        public final SharedGeneration shared;
+        public final boolean leader;
+
+        Attachment(String fingerprint, SharedGeneration shared, boolean leader) {
+            this.fingerprint = fingerprint;
+            this.shared = shared;
+            this.leader = leader;
+        }
+    }
+
+    private final Map<String, SharedGeneration> inFlight = new HashMap<>();
+    private int followers = 0;
+
+    /**
+     * SHA-256 over config name, sampling parameters, options and prompt, or null if the
+     * request is not deterministic.
+     */
+    public static String fingerprint(String configName, ConfigurationManager.Configuration config,
+                                     GenerateOptions options, String prompt) {
+        if (config == null || !options.isDeterministic(config)) {
+            return null;
+        }
+        return RequestFingerprint.sha256Hex(configName, config.modelUrl,
+            RequestFingerprint.samplingParams(config), options.signature(), prompt);
+    }
+
+    /**
+     * Join the generation running for {@code fingerprint}, or register a new one.
+     * The leader of a new generation must always call
+     * {@link #complete(Attachment, GenerateResult)} in a {@code finally}, since followers
+     * wait for it; a follower must call {@link #detach(Attachment)} when done reading.
+     * @return null if the generation is running but already has {@link #MAX_FOLLOWERS}
+     *         (over all generations) waiting: run the request on its own
+     */
+    public synchronized Attachment attach(String fingerprint) {
+        SharedGeneration existing = inFlight.get(fingerprint);
+        if (existing != null) {
+            if (followers >= MAX_FOLLOWERS) {
+                return null;
+            }
+            followers++;
+            existing.addFollower();
+            return new Attachment(fingerprint, existing, false);
+        }
+        SharedGeneration shared = new SharedGeneration();
+        inFlight.put(fingerprint, shared);
+        return new Attachment(fingerprint, shared, true);
+    }
+
+    /**
+     * A follower has stopped reading.
+     */
+    public void detach(Attachment follower) {
+        synchronized (this) {
+            followers--;
+        }
+        follower.shared.removeFollower();
+    }
+
+    /**
+     * Publish the leader's result and stop accepting followers for it.
+     */
+    public void complete(Attachment attachment, GenerateResult result) {
+        synchronized (this) {
+            if (inFlight.get(attachment.fingerprint) == attachment.shared) {
+                inFlight.remove(attachment.fingerprint);
+            }
+        }
+        attachment.shared.complete(result);
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,70 @@
+package com.example.ollama;
+
+import android.util.Log;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Hashing helpers shared by request coalescing and the response cache.
+ */
+final class RequestFingerprint {
+    private static final String TAG = "RequestFingerprint";
+
+    private RequestFingerprint() {
+    }
+
+    /**
+     * Every configuration value that influences the output, in a fixed order.
+     * Threads and batch size are included: they change floating-point reduction order.
+     */
+    static String samplingParams(ConfigurationManager.Configuration config) {
+        return config.nCtx + "|" + config.nThreads + "|" + config.nBatch
+            + "|" + config.temp + "|" + config.topP + "|" + config.topK
+            + "|" + config.penaltyLastN + "|" + config.penaltyRepeat
+            + "|" + config.penaltyFreq + "|" + config.penaltyPresent
+            + "|" + config.mirostat + "|" + config.mirostatTau + "|" + config.mirostatEta
+            + "|" + config.minP + "|" + config.typicalP
+            + "|" + config.dynatempRange + "|" + config.dynatempExponent
+            + "|" + config.xtcProbability + "|" + config.xtcThreshold
+            + "|" + config.topNSigma
+            + "|" + config.dryMultiplier + "|" + config.dryBase
+            + "|" + config.dryAllowedLength + "|" + config.dryPenaltyLastN
+            + "|" + config.drySequenceBreakers;
+    }
+
+    /**
+     * SHA-256 (hex) over the parts, NUL-separated so ("ab","c") and ("a","bc") differ.
+     * Returns null if SHA-256 is unavailable.
+     */
+    static String sha256Hex(String... parts) {
+        MessageDigest md = newSha256();
+        if (md == null) {
+            return null;
+        }
+        for (String part : parts) {
+            md.update((part != null ? part : "").getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+        }
+        return toHex(md.digest());
+    }
+
+    static MessageDigest newSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            Log.e(TAG, "SHA-256 unavailable", e);
+            return null;
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
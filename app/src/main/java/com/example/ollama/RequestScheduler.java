@@ -0,0 +1,253 @@
+package com.example.ollama;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bounded, fair request queue in front of ModelManager's busy lock.
+ *
+ * Requests wait here instead of being rejected with 503 while the model is busy.
+ * Ordering:
+ *  - higher priority first (strict)
+ *  - within a priority, weighted fair queuing by client: every ticket gets a virtual
+ *    finish time = max(virtual now, client's previous finish) + cost, and the smallest
+ *    finish time runs next. Clients are served round-robin, and a short interactive
+ *    request finishes "earlier" than a long batch job queued at the same time.
+ * Only when the queue is full is a request rejected, with a Retry-After estimate.
+ */
+public class RequestScheduler {
+    private static final String TAG = "RequestScheduler";
+
+    public static final int DEFAULT_MAX_QUEUE_DEPTH = 16;
+    public static final int PRIORITY_NORMAL = 0;
+    // Offline jobs (JobManager): run only when nothing else is waiting
+    public static final int PRIORITY_BACKGROUND = -100;
+    // Range for priorities sent by clients ("priority" in a request); see clientPriority
+    public static final int PRIORITY_CLIENT_MIN = -10;
+    public static final int PRIORITY_CLIENT_MAX = 10;
+    public static final long DEFAULT_MAX_WAIT_MS = 5 * 60 * 1000;
+
+    // Cost allowance for the generated part of a request, in tokens
+    private static final long GENERATION_COST = 64;
+    // Poll interval: the busy lock can also be released by callers that bypass the scheduler (UI)
+    private static final long POLL_MS = 50;
+
+    /**
+     * Thrown when a request cannot be queued (queue full) or waited too long.
+     */
+    public static class RejectedException extends Exception {
+        public final int retryAfterSeconds;
+
+        public RejectedException(String message, int retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+    }
+
+    /**
+     * A granted slot. Must be passed back to {@link #release(Ticket)}.
+     */
+    public static final class Ticket {
+        final String clientId;
+        final int priority;
+        final long cost;
+        final long seq;
+        final long enqueuedNs;
+        final double virtualStart;
+        final double virtualFinish;
+        long grantedNs;
+
+        Ticket(String clientId, int priority, long cost, long seq, double virtualStart) {
+            this.clientId = clientId;
+            this.priority = priority;
+            this.cost = cost;
+            this.seq = seq;
+            this.enqueuedNs = System.nanoTime();
+            this.virtualStart = virtualStart;
+            this.virtualFinish = virtualStart + cost;
+        }
+
+        /**
+         * Time spent waiting in the queue, in nanoseconds.
+         */
+        public long getQueueWaitNs() {
+            return grantedNs - enqueuedNs;
+        }
+    }
+
+    private final ModelManager modelManager;
+    private final List<Ticket> waiting = new ArrayList<>();
+    private final Map<String, Double> clientFinish = new HashMap<>();
+    private double virtualTime = 0;
+    private long nextSeq = 0;
+    private volatile int maxQueueDepth = DEFAULT_MAX_QUEUE_DEPTH;
+    private volatile long maxWaitMs = DEFAULT_MAX_WAIT_MS;
+    // Exponential moving average of service time, for Retry-After
+    private volatile long avgServiceMs = 5000;
+
+    public RequestScheduler(ModelManager modelManager) {
+        this.modelManager = modelManager;
+    }
+
+    public void setMaxQueueDepth(int depth) {
+        this.maxQueueDepth = Math.max(0, depth);
+    }
+
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public void setMaxWaitMs(long maxWaitMs) {
+        this.maxWaitMs = maxWaitMs;
+    }
+
+    public synchronized int getQueueLength() {
+        return waiting.size();
+    }
+
+    /**
+     * A client-supplied priority clamped to [PRIORITY_CLIENT_MIN, PRIORITY_CLIENT_MAX], so
+     * no request can claim the background tier or leave every other client behind.
+     */
+    public static int clientPriority(int priority) {
+        return Math.max(PRIORITY_CLIENT_MIN, Math.min(PRIORITY_CLIENT_MAX, priority));
+    }
+
+    /**
+     * Whether a request with a priority above {@code priority} is waiting, i.e. whether
+     * a holder at that priority should give the slot up.
+     */
+    public synchronized boolean hasWaitingAbove(int priority) {
+        for (Ticket t : waiting) {
+            if (t.priority > priority) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rough cost of a request in tokens: prompt tokens (about 4 chars each) plus a fixed
+     * allowance for generation.
+     */
+    public static long estimateCost(int promptChars) {
+        return promptChars / 4 + GENERATION_COST;
+    }
+
+    /**
+     * Wait for the model slot. On return the caller holds ModelManager's busy lock.
+     *
+     * @throws RejectedException    queue full, or waited longer than the max wait
+     * @throws InterruptedException the waiting thread was interrupted (e.g. server stop)
+     */
+    public Ticket acquire(String clientId, int priority, long cost)
+            throws RejectedException, InterruptedException {
+        synchronized (this) {
+            if (waiting.isEmpty() && modelManager.tryAcquire()) {
+                // Fast path: idle
+                Ticket ticket = newTicket(clientId, priority, cost);
+                grant(ticket);
+                return ticket;
+            }
+            if (waiting.size() >= maxQueueDepth) {
+                int retryAfter = estimateRetryAfterSeconds();
+                Log.w(TAG, "Queue full (" + waiting.size() + "), rejecting client " + clientId);
+                throw new RejectedException("Request queue is full", retryAfter);
+            }
+
+            Ticket ticket = newTicket(clientId, priority, cost);
+            waiting.add(ticket);
+            Log.d(TAG, "Queued client=" + clientId + " priority=" + priority
+                + " cost=" + cost + " depth=" + waiting.size());
+
+            long deadline = System.currentTimeMillis() + maxWaitMs;
+            try {
+                while (true) {
+                    if (selectNext() == ticket && modelManager.tryAcquire()) {
+                        waiting.remove(ticket);
+                        grant(ticket);
+                        return ticket;
+                    }
+                    long remaining = deadline - System.currentTimeMillis();
+                    if (remaining <= 0) {
+                        waiting.remove(ticket);
+                        notifyAll();
+                        throw new RejectedException("Timed out waiting in request queue",
+                            estimateRetryAfterSeconds());
+                    }
+                    wait(Math.min(POLL_MS, remaining));
+                }
+            } catch (InterruptedException e) {
+                waiting.remove(ticket);
+                notifyAll();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Release the model slot and let the next queued request run.
+     */
+    public void release(Ticket ticket) {
+        long serviceMs = (System.nanoTime() - ticket.grantedNs) / 1000000;
+        avgServiceMs = (avgServiceMs * 7 + serviceMs) / 8;
+        modelManager.release();
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    private Ticket newTicket(String clientId, int priority, long cost) {
+        Double previousFinish = clientFinish.get(clientId);
+        double start = Math.max(virtualTime, previousFinish != null ? previousFinish : 0);
+        Ticket ticket = new Ticket(clientId, priority, Math.max(1, cost), nextSeq++, start);
+        clientFinish.put(clientId, ticket.virtualFinish);
+        return ticket;
+    }
+
+    private void grant(Ticket ticket) {
+        ticket.grantedNs = System.nanoTime();
+        virtualTime = Math.max(virtualTime, ticket.virtualStart);
+        // Forget clients that have nothing queued and no lead over virtual time
+        Iterator<Map.Entry<String, Double>> it = clientFinish.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<String, Double> e = it.next();
+            if (e.getValue() <= virtualTime && !hasWaiting(e.getKey())) {
+                it.remove();
+            }
+        }
+    }
+
+    private boolean hasWaiting(String clientId) {
+        for (Ticket t : waiting) {
+            if (t.clientId.equals(clientId)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Ticket selectNext() {
+        Ticket best = null;
+        for (Ticket t : waiting) {
+            if (best == null
+                    || t.priority > best.priority
+                    || (t.priority == best.priority
+                        && (t.virtualFinish < best.virtualFinish
+                            || (t.virtualFinish == best.virtualFinish && t.seq < best.seq)))) {
+                best = t;
+            }
+        }
+        return best;
+    }
+
+    private int estimateRetryAfterSeconds() {
+        long ms = avgServiceMs * (waiting.size() + 1);
+        return (int) Math.max(1, Math.min(3600, (ms + 999) / 1000));
+    }
+}
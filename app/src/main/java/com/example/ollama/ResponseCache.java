@@ -0,0 +1,323 @@
+package com.example.ollama;
+
+import android.util.Log;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * On-disk exact-match cache of generation results for deterministic requests.
+ *
+ * Key: SHA-256 of (model file hash, effective sampling parameters, seed, templated prompt),
+ * so results survive service restarts but never outlive the model file they came from.
+ * One small JSON file per entry; least recently used entries are evicted once the
+ * directory exceeds the byte budget (file mtime doubles as the access time).
+ */
+public class ResponseCache {
+    private static final String TAG = "ResponseCache";
+
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    // Bytes hashed from each end of the model file for its identity
+    private static final int MODEL_HASH_SPAN = 1024 * 1024;
+    private static final String SUFFIX = ".json";
+    // Rough heap cost of one index entry: key, File and path strings, map node
+    private static final int INDEX_ENTRY_BYTES = 400;
+
+    private static final class Entry {
+        final File file;
+        long size;
+        long lastAccess;
+
+        Entry(File file, long size, long lastAccess) {
+            this.file = file;
+            this.size = size;
+            this.lastAccess = lastAccess;
+        }
+    }
+
+    private final File dir;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private long totalBytes = 0;
+    private long maxBytes;
+    private boolean indexed = false;
+
+    // Model hash memo: path -> "size:mtime:hash"
+    private final Map<String, String> modelHashes = new HashMap<>();
+
+    public ResponseCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized void setMaxBytes(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        evict();
+    }
+
+    /**
+     * False when the size limit is 0: nothing is stored, so lookups can be skipped.
+     */
+    public synchronized boolean isEnabled() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * Cache key for a request, or null if the model file is not present yet.
+     */
+    public String key(File modelFile, ConfigurationManager.Configuration config,
+                      GenerateOptions options, String prompt) {
+        String modelHash = modelHash(modelFile);
+        if (modelHash == null) {
+            return null;
+        }
+        return RequestFingerprint.sha256Hex(modelHash, RequestFingerprint.samplingParams(config),
+            options.signature(), prompt);
+    }
+
+    /**
+     * Cached result for a key, or null on a miss. Timing fields are the original run's.
+     */
+    public synchronized GenerateResult get(String key) {
+        ensureIndexed();
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            JSONObject json = new JSONObject(readFile(entry.file));
+            GenerateResult result = new GenerateResult(
+                json.getInt("output_length"),
+                json.getInt("prompt_eval_count"),
+                json.getInt("eval_count"),
+                json.getLong("prompt_eval_duration"),
+                json.getLong("eval_duration"),
+                json.getString("done_reason"),
+                GenerateResult.ERROR_NONE,
+                null);
+            result.text = json.getString("text");
+            entry.lastAccess = System.currentTimeMillis();
+            entry.file.setLastModified(entry.lastAccess);
+            return result;
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Dropping unreadable cache entry " + entry.file.getName(), e);
+            remove(key);
+            return null;
+        }
+    }
+
+    /**
+     * Store a successful result. Written to a temp file and renamed into place.
+     */
+    public synchronized void put(String key, GenerateResult result) {
+        if (result.isError() || maxBytes <= 0) {
+            return;
+        }
+        ensureIndexed();
+        File file = new File(dir, key + SUFFIX);
+        File tmp = new File(dir, key + ".tmp");
+        try {
+            JSONObject json = new JSONObject();
+            json.put("text", result.text);
+            json.put("output_length", result.outputLength);
+            json.put("prompt_eval_count", result.promptEvalCount);
+            json.put("eval_count", result.evalCount);
+            json.put("prompt_eval_duration", result.promptEvalDurationNs);
+            json.put("eval_duration", result.evalDurationNs);
+            json.put("done_reason", result.doneReason);
+            byte[] data = json.toString().getBytes(StandardCharsets.UTF_8);
+            if (data.length > maxBytes / 4) {
+                return;
+            }
+            try (FileOutputStream fos = new FileOutputStream(tmp)) {
+                fos.write(data);
+                fos.getFD().sync();
+            }
+            if (!tmp.renameTo(file)) {
+                throw new IOException("rename failed: " + tmp);
+            }
+            // Replaced in place by the rename; only the accounting of the old entry goes
+            Entry old = entries.remove(key);
+            if (old != null) {
+                totalBytes -= old.size;
+            }
+            Entry entry = new Entry(file, data.length, System.currentTimeMillis());
+            entries.put(key, entry);
+            totalBytes += entry.size;
+            evict();
+        } catch (IOException | JSONException e) {
+            Log.w(TAG, "Failed to write cache entry", e);
+            tmp.delete();
+        }
+    }
+
+    public synchronized void clear() {
+        ensureIndexed();
+        for (Entry entry : entries.values()) {
+            entry.file.delete();
+        }
+        entries.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized int size() {
+        ensureIndexed();
+        return entries.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        ensureIndexed();
+        return totalBytes;
+    }
+
+    /**
+     * Forget the in-memory index and model hash memo (memory pressure); entries stay on
+     * disk and are indexed again on next use.
+     *
+     * @return estimated heap bytes released
+     */
+    public synchronized long trimMemory() {
+        long freed = (long) entries.size() * INDEX_ENTRY_BYTES;
+        entries.clear();
+        totalBytes = 0;
+        indexed = false;
+        synchronized (modelHashes) {
+            freed += (long) modelHashes.size() * INDEX_ENTRY_BYTES;
+            modelHashes.clear();
+        }
+        return freed;
+    }
+
+    /**
+     * Identity of a model file: its full SHA-256 when {@link ModelDigest} has one on
+     * record (the download writes it), else a SHA-256 of size, mtime and the first and
+     * last MiB. The full hash is not computed here: on the request path it would read
+     * gigabytes. Memoized until the file changes.
+     */
+    String modelHash(File modelFile) {
+        if (modelFile == null || !modelFile.isFile() || modelFile.length() == 0) {
+            return null;
+        }
+        String path = modelFile.getAbsolutePath();
+        String stamp = modelFile.length() + ":" + modelFile.lastModified() + ":";
+        synchronized (modelHashes) {
+            String memo = modelHashes.get(path);
+            if (memo != null && memo.startsWith(stamp)) {
+                return memo.substring(stamp.length());
+            }
+        }
+        String digest = ModelDigest.known(modelFile);
+        if (digest != null) {
+            synchronized (modelHashes) {
+                modelHashes.put(path, stamp + digest);
+            }
+            return digest;
+        }
+        MessageDigest md = RequestFingerprint.newSha256();
+        if (md == null) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(modelFile, "r")) {
+            long length = raf.length();
+            byte[] buf = new byte[(int) Math.min(MODEL_HASH_SPAN, length)];
+            raf.readFully(buf);
+            md.update(buf);
+            if (length > MODEL_HASH_SPAN) {
+                raf.seek(Math.max(MODEL_HASH_SPAN, length - MODEL_HASH_SPAN));
+                int n = raf.read(buf);
+                if (n > 0) {
+                    md.update(buf, 0, n);
+                }
+            }
+            md.update(stamp.getBytes(StandardCharsets.UTF_8));
+            String hash = RequestFingerprint.toHex(md.digest());
+            synchronized (modelHashes) {
+                modelHashes.put(path, stamp + hash);
+            }
+            return hash;
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to hash model file " + path, e);
+            return null;
+        }
+    }
+
+    private void ensureIndexed() {
+        if (indexed) {
+            return;
+        }
+        indexed = true;
+        if (!dir.exists() && !dir.mkdirs()) {
+            Log.w(TAG, "Cannot create cache dir " + dir);
+            return;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            String name = f.getName();
+            if (name.endsWith(SUFFIX)) {
+                String key = name.substring(0, name.length() - SUFFIX.length());
+                entries.put(key, new Entry(f, f.length(), f.lastModified()));
+                totalBytes += f.length();
+            } else {
+                // Leftover temp file from an interrupted write
+                f.delete();
+            }
+        }
+        Log.i(TAG, "Indexed " + entries.size() + " cached responses, " + totalBytes + " bytes");
+        evict();
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            totalBytes -= entry.size;
+            if (entry.file.exists() && !entry.file.delete()) {
+                Log.w(TAG, "Failed to delete " + entry.file);
+            }
+        }
+    }
+
+    private void evict() {
+        if (totalBytes <= maxBytes) {
+            return;
+        }
+        List<Map.Entry<String, Entry>> byAge = new ArrayList<>(entries.entrySet());
+        Collections.sort(byAge, (a, b) -> Long.compare(a.getValue().lastAccess, b.getValue().lastAccess));
+        for (Map.Entry<String, Entry> e : byAge) {
+            if (totalBytes <= maxBytes) {
+                break;
+            }
+            remove(e.getKey());
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        try (FileInputStream fis = new FileInputStream(file)) {
+            byte[] data = new byte[(int) file.length()];
+            int off = 0;
+            while (off < data.length) {
+                int n = fis.read(data, off, data.length - off);
+                if (n < 0) {
+                    break;
+                }
+                off += n;
+            }
+            return new String(data, 0, off, StandardCharsets.UTF_8);
+        }
+    }
+}
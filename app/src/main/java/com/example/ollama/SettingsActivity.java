@@ -8,6 +8,7 @@ import android.util.Log;
 import android.view.Gravity;
 import android.widget.ArrayAdapter;
 import android.widget.Button;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ProgressBar;
 import android.widget.Spinner;
@@ -32,6 +33,16 @@ public class SettingsActivity extends Activity {
     
     private static final String PREFS_NAME = "ollama_prefs";
     private static final String PREF_API_PORT = "api_port";
+    // Read by OllamaForegroundService
+    private static final String PREF_QUEUE_DEPTH = "queue_depth";
+    private static final String PREF_RESPONSE_CACHE_MB = "response_cache_mb";
+    private static final int DEFAULT_RESPONSE_CACHE_MB = (int) (ResponseCache.DEFAULT_MAX_BYTES / (1024 * 1024));
+    private static final String PREF_MAX_BODY_MB = "max_request_body_mb";
+    private static final int DEFAULT_MAX_BODY_MB = HttpRequestParser.DEFAULT_MAX_BODY_BYTES / (1024 * 1024);
+    // Keeps the byte count within an int
+    private static final int MAX_BODY_MB_LIMIT = 1024;
+    private static final String PREF_LOCAL_SOCKET = "local_socket_enabled";
+    private static final String PREF_PRELOAD_CONFIGS = "preload_configs";
     
     private ConfigurationManager configManager;
     private ModelManager modelManager;
@@ -40,12 +51,16 @@ public class SettingsActivity extends Activity {
     private EditText configNameInput;
     private Spinner configSpinner;
     private EditText modelUrlInput;
+    private EditText modelSha256Input;
     private EditText nCtxInput;
     private EditText nThreadsInput;
     private EditText nBatchInput;
+    private EditText keepAliveInput;
     private EditText tempInput;
     private EditText topPInput;
     private EditText topKInput;
+    private EditText seedInput;
+    private EditText systemPromptInput;
     private EditText promptTemplateInput;
     private TextView modelFileInfo;
     private ProgressBar modelProgressBar;
@@ -80,6 +95,11 @@ public class SettingsActivity extends Activity {
     
     // API Server settings
     private EditText apiPortInput;
+    private EditText apiQueueDepthInput;
+    private EditText apiResponseCacheInput;
+    private EditText apiMaxBodyInput;
+    private CheckBox apiLocalSocketCheckBox;
+    private EditText apiPreloadInput;
     private TextView apiServerStatus;
     
     private ConfigurationManager.Configuration currentConfig;
@@ -124,12 +144,16 @@ public class SettingsActivity extends Activity {
         configNameInput = findViewById(R.id.configNameInput);
         configSpinner = findViewById(R.id.configSpinner);
         modelUrlInput = findViewById(R.id.modelUrlInput);
+        modelSha256Input = findViewById(R.id.modelSha256Input);
         nCtxInput = findViewById(R.id.nCtxInput);
         nThreadsInput = findViewById(R.id.nThreadsInput);
         nBatchInput = findViewById(R.id.nBatchInput);
+        keepAliveInput = findViewById(R.id.keepAliveInput);
         tempInput = findViewById(R.id.tempInput);
         topPInput = findViewById(R.id.topPInput);
         topKInput = findViewById(R.id.topKInput);
+        seedInput = findViewById(R.id.seedInput);
+        systemPromptInput = findViewById(R.id.systemPromptInput);
         promptTemplateInput = findViewById(R.id.promptTemplateInput);
         modelFileInfo = findViewById(R.id.modelFileInfo);
         modelProgressBar = findViewById(R.id.modelProgressBar);
@@ -164,12 +188,24 @@ public class SettingsActivity extends Activity {
         
         // API Server settings
         apiPortInput = findViewById(R.id.apiPortInput);
+        apiQueueDepthInput = findViewById(R.id.apiQueueDepthInput);
+        apiResponseCacheInput = findViewById(R.id.apiResponseCacheInput);
+        apiMaxBodyInput = findViewById(R.id.apiMaxBodyInput);
+        apiLocalSocketCheckBox = findViewById(R.id.apiLocalSocketCheckBox);
+        apiPreloadInput = findViewById(R.id.apiPreloadInput);
         apiServerStatus = findViewById(R.id.apiServerStatus);
         
         // Load saved API port
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
         int savedPort = prefs.getInt(PREF_API_PORT, OllamaApiServer.DEFAULT_PORT);
         apiPortInput.setText(String.valueOf(savedPort));
+        apiQueueDepthInput.setText(String.valueOf(
+            prefs.getInt(PREF_QUEUE_DEPTH, RequestScheduler.DEFAULT_MAX_QUEUE_DEPTH)));
+        apiResponseCacheInput.setText(String.valueOf(
+            prefs.getInt(PREF_RESPONSE_CACHE_MB, DEFAULT_RESPONSE_CACHE_MB)));
+        apiMaxBodyInput.setText(String.valueOf(prefs.getInt(PREF_MAX_BODY_MB, DEFAULT_MAX_BODY_MB)));
+        apiLocalSocketCheckBox.setChecked(prefs.getBoolean(PREF_LOCAL_SOCKET, false));
+        apiPreloadInput.setText(prefs.getString(PREF_PRELOAD_CONFIGS, ""));
         
         Button saveConfigButton = findViewById(R.id.saveConfigButton);
         Button loadConfigButton = findViewById(R.id.loadConfigButton);
@@ -207,12 +243,16 @@ public class SettingsActivity extends Activity {
     private void updateUIFromConfig(ConfigurationManager.Configuration config) {
         configNameInput.setText(config.name);
         modelUrlInput.setText(config.modelUrl);
+        modelSha256Input.setText(config.sha256);
         nCtxInput.setText(String.valueOf(config.nCtx));
         nThreadsInput.setText(String.valueOf(config.nThreads));
         nBatchInput.setText(String.valueOf(config.nBatch));
+        keepAliveInput.setText(config.keepAlive);
         tempInput.setText(String.valueOf(config.temp));
         topPInput.setText(String.valueOf(config.topP));
         topKInput.setText(String.valueOf(config.topK));
+        seedInput.setText(String.valueOf(config.seed));
+        systemPromptInput.setText(config.systemPrompt);
         promptTemplateInput.setText(config.promptTemplate);
         
         // Penalty parameters
@@ -252,6 +292,8 @@ public class SettingsActivity extends Activity {
         }
         
         config.modelUrl = modelUrlInput.getText().toString().trim();
+        // Empty is allowed: the server's ETag (if it is a SHA-256) is checked instead
+        config.sha256 = modelSha256Input.getText().toString().trim();
         
         try {
             config.nCtx = Integer.parseInt(nCtxInput.getText().toString());
@@ -271,6 +313,11 @@ public class SettingsActivity extends Activity {
             config.nBatch = 16;
         }
         
+        config.keepAlive = keepAliveInput.getText().toString().trim();
+        if (GenerateOptions.parseKeepAlive(config.keepAlive) == GenerateOptions.KEEP_ALIVE_CONFIG) {
+            config.keepAlive = ConfigurationManager.Configuration.DEFAULT_KEEP_ALIVE;
+        }
+        
         try {
             config.temp = Double.parseDouble(tempInput.getText().toString());
         } catch (NumberFormatException e) {
@@ -289,6 +336,15 @@ public class SettingsActivity extends Activity {
             config.topK = 40;
         }
         
+        try {
+            config.seed = Integer.parseInt(seedInput.getText().toString());
+        } catch (NumberFormatException e) {
+            config.seed = -1;
+        }
+        
+        // Empty is allowed: no system message
+        config.systemPrompt = systemPromptInput.getText().toString().trim();
+        
         config.promptTemplate = promptTemplateInput.getText().toString();
         if (config.promptTemplate.isEmpty()) {
             config.promptTemplate = "<|system|>\nYou are a helpful assistant.\n<|user|>\n{USER_INPUT}\n<|assistant|>\n";
@@ -416,6 +472,9 @@ public class SettingsActivity extends Activity {
     
     private void saveCurrentConfiguration() {
         ConfigurationManager.Configuration config = getConfigFromUI();
+        if (!checkSha256(config)) {
+            return;
+        }
         
         try {
             configManager.saveConfiguration(config);
@@ -437,6 +496,16 @@ public class SettingsActivity extends Activity {
         }
     }
     
+    // A mistyped digest would fail every download of the model, so it is not saved
+    private boolean checkSha256(ConfigurationManager.Configuration config) {
+        if (ModelDigest.isWellFormed(config.sha256)) {
+            return true;
+        }
+        modelSha256Input.setError("64 hex digits, or empty");
+        showToast("SHA-256 must be 64 hex digits or empty");
+        return false;
+    }
+    
     private void loadSelectedConfiguration() {
         String selectedName = (String) configSpinner.getSelectedItem();
         if (selectedName == null || selectedName.isEmpty()) {
@@ -471,6 +540,9 @@ public class SettingsActivity extends Activity {
     private void loadModel() {
         // Persist current UI config so ModelManager can load by name
         ConfigurationManager.Configuration config = getConfigFromUI();
+        if (!checkSha256(config)) {
+            return;
+        }
         try {
             configManager.saveConfiguration(config);
         } catch (IOException | JSONException e) {
@@ -604,6 +676,15 @@ public class SettingsActivity extends Activity {
         });
     }
     
+    // Whole number typed into a settings field, or fallback if it is empty or not a number
+    private static int parseIntOr(EditText input, int fallback) {
+        try {
+            return Integer.parseInt(input.getText().toString().trim());
+        } catch (NumberFormatException e) {
+            return fallback;
+        }
+    }
+    
     @Override
     public void finish() {
         // Save API port to preferences
@@ -614,7 +695,17 @@ public class SettingsActivity extends Activity {
             // Use default
         }
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
-        prefs.edit().putInt(PREF_API_PORT, apiPort).apply();
+        prefs.edit()
+            .putInt(PREF_API_PORT, apiPort)
+            .putInt(PREF_QUEUE_DEPTH, Math.max(0,
+                parseIntOr(apiQueueDepthInput, RequestScheduler.DEFAULT_MAX_QUEUE_DEPTH)))
+            .putInt(PREF_RESPONSE_CACHE_MB, Math.max(0,
+                parseIntOr(apiResponseCacheInput, DEFAULT_RESPONSE_CACHE_MB)))
+            .putInt(PREF_MAX_BODY_MB, Math.max(1, Math.min(MAX_BODY_MB_LIMIT,
+                parseIntOr(apiMaxBodyInput, DEFAULT_MAX_BODY_MB))))
+            .putBoolean(PREF_LOCAL_SOCKET, apiLocalSocketCheckBox.isChecked())
+            .putString(PREF_PRELOAD_CONFIGS, apiPreloadInput.getText().toString().trim())
+            .apply();
         
         // Return the current configuration name and model info to MainActivity
         Intent resultIntent = new Intent();
@@ -0,0 +1,105 @@
+package com.example.ollama;
+
+import java.util.List;
+
+/**
+ * Token listener that ends generation at the first stop sequence.
+ *
+ * Text is passed on to the wrapped listener as it arrives, except for a tail that
+ * could still turn out to be the start of a stop sequence; that tail is held back
+ * until the next piece decides it. The stop sequence itself and anything after it
+ * are never passed on. {@link #getText()} is the output up to the stop.
+ */
+final class StopSequenceFilter implements LlamaNative.TokenListener {
+    private final List<String> stops;
+    private final LlamaNative.TokenListener downstream;
+    private final StringBuilder text = new StringBuilder();
+    // Chars of text already passed downstream
+    private int emitted = 0;
+    private boolean stopped = false;
+
+    /**
+     * @param downstream receives the filtered text; may be null
+     */
+    StopSequenceFilter(List<String> stops, LlamaNative.TokenListener downstream) {
+        this.stops = stops;
+        this.downstream = downstream;
+    }
+
+    @Override
+    public boolean onToken(String piece) {
+        if (stopped) {
+            return false;
+        }
+        text.append(piece);
+
+        // No stop can start in text already emitted (it was not a possible prefix)
+        int match = -1;
+        for (String stop : stops) {
+            int at = text.indexOf(stop, emitted);
+            if (at >= 0 && (match < 0 || at < match)) {
+                match = at;
+            }
+        }
+        if (match >= 0) {
+            stopped = true;
+            text.setLength(match);
+            emit(match);
+            return false;
+        }
+        return emit(text.length() - heldBack());
+    }
+
+    /**
+     * Pass on any held-back tail; call once generation has ended.
+     */
+    void finish() {
+        if (!stopped) {
+            emit(text.length());
+        }
+    }
+
+    boolean isStopped() {
+        return stopped;
+    }
+
+    String getText() {
+        return text.toString();
+    }
+
+    // Longest tail of the unemitted text that is a proper prefix of some stop sequence
+    private int heldBack() {
+        int longest = 0;
+        int available = text.length() - emitted;
+        for (String stop : stops) {
+            int max = Math.min(stop.length() - 1, available);
+            for (int n = max; n > longest; n--) {
+                if (regionMatchesTail(stop, n)) {
+                    longest = n;
+                    break;
+                }
+            }
+        }
+        return longest;
+    }
+
+    // Whether the last n chars of text equal the first n chars of stop
+    private boolean regionMatchesTail(String stop, int n) {
+        int start = text.length() - n;
+        for (int i = 0; i < n; i++) {
+            if (text.charAt(start + i) != stop.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean emit(int end) {
+        if (end <= emitted) {
+            return true;
+        }
+        String out = text.substring(emitted, end);
+        emitted = end;
+        return downstream == null || downstream.onToken(out);
+    }
+}
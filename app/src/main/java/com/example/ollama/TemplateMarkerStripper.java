@@ -0,0 +1,218 @@
+package com.example.ollama;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Removes chat-template markers from message text so client-templated content is not
+ * templated twice. One pass over the input does three things at once:
+ *  - strip the markers;
+ *  - collapse runs of three or more newlines to two;
+ *  - trim the ends.
+ * The result goes into a reused per-thread buffer.
+ *
+ * Markers live in a keyword trie and match leftmost-longest. A model's control token
+ * that is a prefix of a built-in marker ("<|im_start|>" vs "<|im_start|>system") does not
+ * cut the longer marker short. Positions whose character starts no marker, nearly all
+ * of them, cost one table lookup, and text between changes is copied in bulk.
+ *
+ * Immutable and thread-safe; {@link #DEFAULT} has the built-in markers, {@link #withMarkers}
+ * adds a model's own (see {@link ChatTemplate}).
+ */
+final class TemplateMarkerStripper {
+    // Common template markers to strip
+    static final String[] BUILTIN_MARKERS = {
+        "<start_of_turn>system", "<end_of_turn>", "<start_of_turn>user",
+        "<start_of_turn>model", "<start_of_turn>assistant",
+        "<|system|>", "<|user|>", "<|assistant|>", "<|model|>",
+        "<|im_start|>system", "<|im_start|>user", "<|im_start|>assistant", "<|im_end|>",
+        "[INST]", "[/INST]", "<<SYS>>", "<</SYS>>"
+    };
+
+    static final TemplateMarkerStripper DEFAULT = new TemplateMarkerStripper(Arrays.asList(BUILTIN_MARKERS));
+
+    // Per-thread output buffers above this size are not kept
+    private static final int MAX_REUSED_CHARS = 256 * 1024;
+    private static final ThreadLocal<StringBuilder> BUFFER = new ThreadLocal<StringBuilder>() {
+        @Override
+        protected StringBuilder initialValue() {
+            return new StringBuilder(1024);
+        }
+    };
+
+    private static final class Node {
+        char[] chars = new char[0];
+        Node[] next = new Node[0];
+        // Length of the marker ending here, 0 if none
+        int markerLength;
+
+        Node child(char c) {
+            for (int i = 0; i < chars.length; i++) {
+                if (chars[i] == c) {
+                    return next[i];
+                }
+            }
+            return null;
+        }
+
+        Node addChild(char c) {
+            Node child = child(c);
+            if (child == null) {
+                child = new Node();
+                chars = Arrays.copyOf(chars, chars.length + 1);
+                next = Arrays.copyOf(next, next.length + 1);
+                chars[chars.length - 1] = c;
+                next[next.length - 1] = child;
+            }
+            return child;
+        }
+    }
+
+    private final Node root = new Node();
+    // Root children for ASCII first characters, the common case
+    private final Node[] rootAscii = new Node[128];
+    private final boolean hasNonAsciiRoot;
+
+    private TemplateMarkerStripper(Collection<String> markers) {
+        for (String marker : markers) {
+            if (marker == null || marker.isEmpty()) {
+                continue;
+            }
+            Node node = root;
+            for (int i = 0; i < marker.length(); i++) {
+                node = node.addChild(marker.charAt(i));
+            }
+            node.markerLength = marker.length();
+        }
+        boolean nonAscii = false;
+        for (int i = 0; i < root.chars.length; i++) {
+            if (root.chars[i] < 128) {
+                rootAscii[root.chars[i]] = root.next[i];
+            } else {
+                nonAscii = true;
+            }
+        }
+        hasNonAsciiRoot = nonAscii;
+    }
+
+    /**
+     * The built-in markers plus a model's control tokens. Tokens that start with a letter,
+     * digit or whitespace, or are a single character, are left out: those could be ordinary text.
+     */
+    static TemplateMarkerStripper withMarkers(Collection<String> controlTokens) {
+        List<String> markers = new ArrayList<>(Arrays.asList(BUILTIN_MARKERS));
+        for (String token : controlTokens) {
+            if (token.length() >= 2 && token.charAt(0) > ' ' && !Character.isLetterOrDigit(token.charAt(0))) {
+                markers.add(token);
+            }
+        }
+        return new TemplateMarkerStripper(markers);
+    }
+
+    /**
+     * {@code content} without markers, newline runs collapsed and trimmed; the same
+     * instance if nothing changed.
+     */
+    String strip(String content) {
+        if (content == null || content.isEmpty()) {
+            return content;
+        }
+        StringBuilder out = BUFFER.get();
+        out.setLength(0);
+        if (!strip(content, out)) {
+            return content;
+        }
+        String result = out.toString();
+        if (out.capacity() > MAX_REUSED_CHARS) {
+            BUFFER.remove();
+        }
+        return result;
+    }
+
+    /**
+     * Append the stripped form of {@code content} to {@code out}. Unchanged stretches
+     * are copied in bulk.
+     *
+     * @return false if stripping changes nothing; nothing is appended then
+     */
+    boolean strip(CharSequence content, StringBuilder out) {
+        int start = out.length();
+        int length = content.length();
+        boolean changed = false;
+        // content[runStart, i) is kept but not copied to out yet
+        int runStart = 0;
+        // Newlines at the end of the output, for collapsing runs
+        int newlines = 0;
+        int i = 0;
+        while (i < length) {
+            char c = content.charAt(i);
+            if (c > ' ') {
+                Node node = c < 128 ? rootAscii[c] : (hasNonAsciiRoot ? root.child(c) : null);
+                int marker = node != null ? longestMarker(node, content, i + 1) : 0;
+                if (marker == 0) {
+                    newlines = 0;
+                    i++;
+                    continue;
+                }
+                out.append(content, runStart, i);
+                i += marker;
+                runStart = i;
+                changed = true;
+                continue;
+            }
+            boolean drop;
+            if (out.length() == start && runStart == i) {
+                // Leading whitespace (String.trim() rules)
+                drop = true;
+            } else if (c == '\n') {
+                drop = newlines == 2;
+                newlines = drop ? 2 : newlines + 1;
+            } else {
+                drop = false;
+                newlines = 0;
+            }
+            if (drop) {
+                out.append(content, runStart, i);
+                runStart = i + 1;
+                changed = true;
+            }
+            i++;
+        }
+
+        int end = length;
+        while (end > runStart && content.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (!changed && end == length) {
+            return false;
+        }
+        out.append(content, runStart, end);
+        if (end == runStart) {
+            // Trailing whitespace already copied
+            int outEnd = out.length();
+            while (outEnd > start && out.charAt(outEnd - 1) <= ' ') {
+                outEnd--;
+            }
+            out.setLength(outEnd);
+        }
+        return true;
+    }
+
+    // Length of the longest marker through node (matched up to content[j]), 0 if none
+    private static int longestMarker(Node node, CharSequence content, int j) {
+        int longest = 0;
+        int length = content.length();
+        while (node != null) {
+            if (node.markerLength > 0) {
+                longest = node.markerLength;
+            }
+            if (j >= length) {
+                break;
+            }
+            node = node.child(content.charAt(j++));
+        }
+        return longest;
+    }
+}
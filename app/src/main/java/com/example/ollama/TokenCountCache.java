@@ -0,0 +1,65 @@
+package com.example.ollama;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Small LRU cache of token counts for repeated strings (system prompts, templates).
+ * Keys include the model path so counts never leak across vocabularies.
+ */
+public class TokenCountCache {
+    private final int maxEntries;
+    private final int maxTotalChars;
+    private int totalChars = 0;
+
+    // access-order LinkedHashMap = LRU iteration order
+    private final LinkedHashMap<String, Integer> counts = new LinkedHashMap<>(16, 0.75f, true);
+
+    public TokenCountCache(int maxEntries, int maxTotalChars) {
+        this.maxEntries = maxEntries;
+        this.maxTotalChars = maxTotalChars;
+    }
+
+    private static String key(String modelPath, String text) {
+        return modelPath + '\u0000' + text;
+    }
+
+    /**
+     * @return cached count, or -1 if not cached
+     */
+    public synchronized int get(String modelPath, String text) {
+        Integer count = counts.get(key(modelPath, text));
+        return count != null ? count : -1;
+    }
+
+    public synchronized void put(String modelPath, String text, int count) {
+        if (modelPath == null || text == null || text.length() > maxTotalChars / 4) {
+            return; // too large to be worth keeping
+        }
+        String k = key(modelPath, text);
+        if (counts.put(k, count) == null) {
+            totalChars += k.length();
+        }
+        Iterator<Map.Entry<String, Integer>> it = counts.entrySet().iterator();
+        while ((counts.size() > maxEntries || totalChars > maxTotalChars) && it.hasNext()) {
+            Map.Entry<String, Integer> eldest = it.next();
+            totalChars -= eldest.getKey().length();
+            it.remove();
+        }
+    }
+
+    /**
+     * @return chars held by the dropped keys
+     */
+    public synchronized int clear() {
+        int chars = totalChars;
+        counts.clear();
+        totalChars = 0;
+        return chars;
+    }
+
+    public synchronized int size() {
+        return counts.size();
+    }
+}
@@ -0,0 +1,167 @@
+package com.example.ollama;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Byte ring in a {@link SharedMemory} region, carrying generated UTF-8 text from the
+ * service to a bound client (see IInferenceService) without a Parcel per token.
+ *
+ * The region holds only data. Positions are running byte totals and travel in Binder
+ * calls: the writer announces its write position with onAvailable, the reader returns
+ * its read position with ack(). Each Binder transaction is a full memory barrier, so
+ * bytes written before an announcement are visible to the reader that receives it.
+ * Announced positions always fall between whole pieces, so the reader can decode each
+ * span on its own.
+ *
+ * The client creates the region ({@link #create}) and maps it read-only with
+ * {@link #reader}; the service maps it with {@link #writer}.
+ */
+@TargetApi(Build.VERSION_CODES.O_MR1)
+public final class TokenRing implements Closeable {
+    public static final int DEFAULT_CAPACITY = 64 * 1024;
+    // Smaller rings would send most long pieces through onText
+    public static final int MIN_CAPACITY = 4 * 1024;
+
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final boolean writable;
+    // Writer: bytes written; reader: bytes read
+    private long position = 0;
+    // Writer only: reader's last ack; guarded by this
+    private long acked = 0;
+    private boolean closed = false;
+
+    private TokenRing(ByteBuffer buffer, boolean writable) {
+        this.buffer = buffer;
+        this.capacity = buffer.capacity();
+        this.writable = writable;
+    }
+
+    /**
+     * Allocate a region. It can serve one request at a time; positions restart at 0 for
+     * each request, so map a new {@link #reader} for each.
+     */
+    public static SharedMemory create(int capacity) throws ErrnoException {
+        return SharedMemory.create("token-ring", Math.max(MIN_CAPACITY, capacity));
+    }
+
+    /**
+     * Map a client's region for writing. The mapping is private to this object; the
+     * client keeps its own handle.
+     */
+    static TokenRing writer(SharedMemory memory) throws ErrnoException {
+        if (memory.getSize() < MIN_CAPACITY) {
+            throw new IllegalArgumentException("Ring smaller than " + MIN_CAPACITY + " bytes");
+        }
+        return new TokenRing(memory.mapReadWrite(), true);
+    }
+
+    /**
+     * Map a region for reading, starting at position 0.
+     */
+    public static TokenRing reader(SharedMemory memory) throws ErrnoException {
+        return new TokenRing(memory.mapReadOnly(), false);
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Bytes written (writer) or read (reader) so far.
+     */
+    public synchronized long position() {
+        return position;
+    }
+
+    /**
+     * Writer: append {@code length} bytes, waiting for the reader to free space.
+     *
+     * @param timeoutMs longest wait for an ack
+     * @return false if the data can never fit, the ring was closed, or no ack came in time
+     */
+    synchronized boolean write(byte[] data, int length, long timeoutMs) throws InterruptedException {
+        if (!writable || length > capacity) {
+            return false;
+        }
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!closed && position + length - acked > capacity) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0) {
+                return false;
+            }
+            wait(remaining);
+        }
+        if (closed) {
+            return false;
+        }
+        int offset = (int) (position % capacity);
+        int first = Math.min(length, capacity - offset);
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.put(data, 0, first);
+        if (first < length) {
+            view.position(0);
+            view.put(data, first, length - first);
+        }
+        position += length;
+        return true;
+    }
+
+    /**
+     * Writer: the reader has consumed everything before {@code readPosition}.
+     */
+    synchronized void ack(long readPosition) {
+        if (readPosition > acked && readPosition <= position) {
+            acked = readPosition;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Reader: decode the bytes from the current position up to an announced write
+     * position, and advance past them. Call ack() on the service with
+     * {@link #position()} afterwards.
+     */
+    public synchronized String read(long writePosition) {
+        int length = (int) (writePosition - position);
+        if (length <= 0) {
+            return "";
+        }
+        if (length > capacity) {
+            throw new IllegalStateException("Write position " + writePosition + " overran the reader");
+        }
+        byte[] bytes = new byte[length];
+        int offset = (int) (position % capacity);
+        int first = Math.min(length, capacity - offset);
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(bytes, 0, first);
+        if (first < length) {
+            view.position(0);
+            view.get(bytes, first, length - first);
+        }
+        position = writePosition;
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Unmap. A writer blocked for space returns false.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        notifyAll();
+        SharedMemory.unmap(buffer);
+    }
+}
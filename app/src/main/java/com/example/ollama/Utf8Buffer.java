@@ -0,0 +1,149 @@
+package com.example.ollama;
+
+/**
+ * Growable byte array for assembling response bytes without intermediate Strings.
+ * Not thread-safe; meant to be owned by one connection or request and reused via {@link #reset()}.
+ */
+public class Utf8Buffer {
+    private static final byte[] HEX = "0123456789abcdef".getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+
+    private byte[] data;
+    private int length;
+
+    public Utf8Buffer(int initialCapacity) {
+        data = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public void reset() {
+        length = 0;
+    }
+
+    public byte[] array() {
+        return data;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public Utf8Buffer append(byte b) {
+        ensure(1);
+        data[length++] = b;
+        return this;
+    }
+
+    public Utf8Buffer append(byte[] bytes) {
+        return append(bytes, 0, bytes.length);
+    }
+
+    public Utf8Buffer append(byte[] bytes, int off, int len) {
+        ensure(len);
+        System.arraycopy(bytes, off, data, length, len);
+        length += len;
+        return this;
+    }
+
+    /**
+     * Append a String known to be ASCII (header names, numbers); other chars become '?'.
+     */
+    public Utf8Buffer appendAscii(String s) {
+        int n = s.length();
+        ensure(n);
+        for (int i = 0; i < n; i++) {
+            char c = s.charAt(i);
+            data[length++] = (byte) (c < 0x80 ? c : '?');
+        }
+        return this;
+    }
+
+    public Utf8Buffer appendDecimal(long value) {
+        if (value < 0) {
+            append((byte) '-');
+            value = -value;
+        }
+        ensure(20);
+        int start = length;
+        do {
+            data[length++] = (byte) ('0' + (value % 10));
+            value /= 10;
+        } while (value != 0);
+        reverse(start, length - 1);
+        return this;
+    }
+
+    public Utf8Buffer appendHex(int value) {
+        ensure(8);
+        int start = length;
+        do {
+            data[length++] = HEX[value & 0xF];
+            value >>>= 4;
+        } while (value != 0);
+        reverse(start, length - 1);
+        return this;
+    }
+
+    /**
+     * Append chars [start, end) of s as UTF-8. Unpaired surrogates become '?'.
+     */
+    public Utf8Buffer appendUtf8(CharSequence s, int start, int end) {
+        ensure(end - start);
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                ensure(1);
+                data[length++] = (byte) c;
+            } else {
+                appendUtf8Char(s, c, i, end);
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    i++;
+                }
+            }
+        }
+        return this;
+    }
+
+    public Utf8Buffer appendUtf8(CharSequence s) {
+        return appendUtf8(s, 0, s.length());
+    }
+
+    // Non-ASCII char at index i (a surrogate pair is consumed by the caller)
+    private void appendUtf8Char(CharSequence s, char c, int i, int end) {
+        ensure(4);
+        if (c < 0x800) {
+            data[length++] = (byte) (0xC0 | (c >> 6));
+            data[length++] = (byte) (0x80 | (c & 0x3F));
+        } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(s.charAt(i + 1))) {
+            int cp = Character.toCodePoint(c, s.charAt(i + 1));
+            data[length++] = (byte) (0xF0 | (cp >> 18));
+            data[length++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+            data[length++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+            data[length++] = (byte) (0x80 | (cp & 0x3F));
+        } else if (Character.isSurrogate(c)) {
+            data[length++] = (byte) '?';
+        } else {
+            data[length++] = (byte) (0xE0 | (c >> 12));
+            data[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+            data[length++] = (byte) (0x80 | (c & 0x3F));
+        }
+    }
+
+    private void reverse(int i, int j) {
+        while (i < j) {
+            byte t = data[i];
+            data[i++] = data[j];
+            data[j--] = t;
+        }
+    }
+
+    private void ensure(int extra) {
+        if (length + extra > data.length) {
+            int capacity = data.length * 2;
+            while (capacity < length + extra) {
+                capacity *= 2;
+            }
+            byte[] grown = new byte[capacity];
+            System.arraycopy(data, 0, grown, 0, length);
+            data = grown;
+        }
+    }
+}
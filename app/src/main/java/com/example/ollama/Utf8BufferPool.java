@@ -0,0 +1,86 @@
+package com.example.ollama;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Small pool of direct ByteBuffers used to pass raw UTF-8 across JNI.
+ * Direct buffers are expensive to allocate and are only reclaimed by GC,
+ * so prompt/output buffers are reused between generate calls.
+ */
+public class Utf8BufferPool {
+    private static final int MIN_CAPACITY = 4 * 1024;
+
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    private final int maxPooled;
+    private final int maxPooledCapacity;
+
+    /**
+     * @param maxPooled         number of idle buffers kept for reuse
+     * @param maxPooledCapacity buffers larger than this are not kept after release
+     */
+    public Utf8BufferPool(int maxPooled, int maxPooledCapacity) {
+        this.maxPooled = maxPooled;
+        this.maxPooledCapacity = maxPooledCapacity;
+    }
+
+    /**
+     * Get a cleared direct buffer with at least minCapacity bytes.
+     */
+    public synchronized ByteBuffer acquire(int minCapacity) {
+        Iterator<ByteBuffer> it = free.iterator();
+        while (it.hasNext()) {
+            ByteBuffer buf = it.next();
+            if (buf.capacity() >= minCapacity) {
+                it.remove();
+                buf.clear();
+                return buf;
+            }
+        }
+        return ByteBuffer.allocateDirect(roundUp(minCapacity)).order(ByteOrder.nativeOrder());
+    }
+
+    public synchronized void release(ByteBuffer buf) {
+        if (buf == null || !buf.isDirect() || buf.capacity() > maxPooledCapacity) {
+            return;
+        }
+        if (free.size() >= maxPooled) {
+            // Drop the smallest buffer so larger (more reusable) ones stay pooled
+            ByteBuffer smallest = null;
+            for (ByteBuffer b : free) {
+                if (smallest == null || b.capacity() < smallest.capacity()) {
+                    smallest = b;
+                }
+            }
+            if (smallest == null || smallest.capacity() >= buf.capacity()) {
+                return;
+            }
+            free.remove(smallest);
+        }
+        free.addLast(buf);
+    }
+
+    /**
+     * Release every pooled buffer (e.g. under memory pressure).
+     *
+     * @return bytes of the dropped buffers
+     */
+    public synchronized long clear() {
+        long bytes = 0;
+        for (ByteBuffer buf : free) {
+            bytes += buf.capacity();
+        }
+        free.clear();
+        return bytes;
+    }
+
+    private static int roundUp(int n) {
+        if (n <= MIN_CAPACITY) {
+            return MIN_CAPACITY;
+        }
+        int p = Integer.highestOneBit(n);
+        return p == n ? n : (p << 1 > 0 ? p << 1 : n);
+    }
+}
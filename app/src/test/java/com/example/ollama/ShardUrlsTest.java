@@ -0,0 +1,48 @@
+package com.example.ollama;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ShardUrlsTest {
+    private static final String BASE = "https://example.com/models/qwen-7b-q4_k_m";
+
+    @Test
+    public void expandsFirstShardToAllShards() {
+        assertArrayEquals(new String[] {
+            BASE + "-00001-of-00003.gguf",
+            BASE + "-00002-of-00003.gguf",
+            BASE + "-00003-of-00003.gguf",
+        }, ModelManager.shardUrls(BASE + "-00001-of-00003.gguf"));
+    }
+
+    @Test
+    public void keepsQueryStringOnEveryShard() {
+        assertArrayEquals(new String[] {
+            BASE + "-00001-of-00002.gguf?download=true",
+            BASE + "-00002-of-00002.gguf?download=true",
+        }, ModelManager.shardUrls(BASE + "-00001-of-00002.gguf?download=true"));
+    }
+
+    @Test
+    public void leavesLaterShardAlone() {
+        // Only the first shard names the model; a later one is downloaded as given
+        String url = BASE + "-00002-of-00003.gguf";
+        assertArrayEquals(new String[] {url}, ModelManager.shardUrls(url));
+    }
+
+    @Test
+    public void leavesUnsplitModelAlone() {
+        String url = BASE + ".gguf?download=true";
+        assertArrayEquals(new String[] {url}, ModelManager.shardUrls(url));
+        // The suffix has to end the path, not just appear in it
+        String inQuery = BASE + ".gguf?name=x-00001-of-00002.gguf";
+        assertArrayEquals(new String[] {inQuery}, ModelManager.shardUrls(inQuery));
+    }
+
+    @Test
+    public void singleShardSplitIsOneUrl() {
+        String url = BASE + "-00001-of-00001.gguf";
+        assertArrayEquals(new String[] {url}, ModelManager.shardUrls(url));
+    }
+}
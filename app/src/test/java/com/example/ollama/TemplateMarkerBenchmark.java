@@ -0,0 +1,133 @@
+package com.example.ollama;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Compares {@link TemplateMarkerStripper} with the sequential String.replace and regex
+ * pass it replaced, on a synthetic chat history: messages of mixed length with the odd
+ * pasted template marker and blank-line run, about {@code historyChars} in total.
+ *
+ * Both are run alternately for the same number of rounds, each round stripping every
+ * message once, after a warm-up so the JIT has compiled both. Their outputs are checked
+ * against each other first. Runs on the calling thread.
+ *
+ * Not a test: run {@link #main} from the IDE, or with java on the classpath of the debug
+ * and debugUnitTest classes. {@link TemplateMarkerStripperTest} checks the equivalence.
+ */
+final class TemplateMarkerBenchmark {
+    private static final int WARMUP_ROUNDS = 50;
+    private static final String[] WORDS = {
+        "the", "model", "answer", "context", "prompt", "token", "cache", "reply", "server",
+        "request", "stream", "quickly", "because", "which", "would", "latency", "memory",
+    };
+
+    private TemplateMarkerBenchmark() {}
+
+    /**
+     * Print the report for a 32 KiB history and 200 rounds, or [historyChars [rounds]].
+     */
+    public static void main(String[] args) {
+        int historyChars = args.length > 0 ? Integer.parseInt(args[0]) : 32 * 1024;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        System.out.print(run(historyChars, rounds));
+    }
+
+    /**
+     * @param historyChars total size of the history, e.g. 32 * 1024
+     * @param rounds       timed passes over the whole history per implementation
+     * @return a plain-text report
+     */
+    static String run(int historyChars, int rounds) {
+        List<String> messages = history(historyChars, new Random(42));
+        TemplateMarkerStripper stripper = TemplateMarkerStripper.DEFAULT;
+
+        for (String message : messages) {
+            if (!sequentialStrip(message).equals(stripper.strip(message))) {
+                throw new IllegalStateException("Outputs differ for: " + message);
+            }
+        }
+        for (int i = 0; i < WARMUP_ROUNDS; i++) {
+            stripAll(messages, stripper, false);
+            stripAll(messages, stripper, true);
+        }
+        long[] sequential = new long[rounds];
+        long[] singlePass = new long[rounds];
+        for (int i = 0; i < rounds; i++) {
+            sequential[i] = stripAll(messages, stripper, false);
+            singlePass[i] = stripAll(messages, stripper, true);
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "Strip %d messages, %d chars, %d rounds (us per round)\n",
+            messages.size(), historyChars, rounds));
+        appendRow(report, "  sequential replace + regex", sequential);
+        appendRow(report, "  single pass               ", singlePass);
+        return report.toString();
+    }
+
+    private static long stripAll(List<String> messages, TemplateMarkerStripper stripper, boolean singlePass) {
+        long start = System.nanoTime();
+        int sink = 0;
+        for (String message : messages) {
+            sink += (singlePass ? stripper.strip(message) : sequentialStrip(message)).length();
+        }
+        long elapsed = System.nanoTime() - start;
+        // Keeps the results live
+        if (sink < 0) {
+            throw new AssertionError();
+        }
+        return elapsed;
+    }
+
+    // The former ChatPromptBuilder.stripTemplateMarkers
+    static String sequentialStrip(String content) {
+        String result = content;
+        for (String marker : TemplateMarkerStripper.BUILTIN_MARKERS) {
+            result = result.replace(marker, "");
+        }
+        return result.replaceAll("\\n{3,}", "\n\n").trim();
+    }
+
+    private static List<String> history(int chars, Random random) {
+        List<String> messages = new ArrayList<>();
+        int total = 0;
+        while (total < chars) {
+            int length = Math.min(chars - total, 80 + random.nextInt(1200));
+            StringBuilder message = new StringBuilder(length + 32);
+            while (message.length() < length) {
+                int roll = random.nextInt(100);
+                if (roll < 2) {
+                    message.append(TemplateMarkerStripper.BUILTIN_MARKERS[
+                        random.nextInt(TemplateMarkerStripper.BUILTIN_MARKERS.length)]);
+                } else if (roll < 5) {
+                    message.append("\n\n\n");
+                } else if (roll < 12) {
+                    message.append('\n');
+                } else {
+                    message.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+                }
+            }
+            messages.add(message.toString());
+            total += message.length();
+        }
+        return messages;
+    }
+
+    private static void appendRow(StringBuilder report, String label, long[] nanos) {
+        long[] sorted = Arrays.copyOf(nanos, nanos.length);
+        Arrays.sort(sorted);
+        report.append(label);
+        if (sorted.length == 0) {
+            report.append("  no samples\n");
+            return;
+        }
+        report.append(String.format(Locale.ROOT, "  p50 %8.1f  p95 %8.1f  min %8.1f\n",
+            sorted[(sorted.length - 1) / 2] / 1000.0,
+            sorted[Math.max(0, (int) Math.ceil(0.95 * sorted.length) - 1)] / 1000.0,
+            sorted[0] / 1000.0));
+    }
+}
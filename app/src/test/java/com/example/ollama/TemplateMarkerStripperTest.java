@@ -0,0 +1,71 @@
+package com.example.ollama;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class TemplateMarkerStripperTest {
+    // Pieces random inputs are built from. Cut-off markers are followed by a space so that
+    // no piece completes them; the old replace pass would strip what that spells out.
+    private static final String[] FILLER = {
+        "word", "<b>", "[x]", "|", "<|im", "[INST", "<start_of_turn", "été", "中文",
+        " ", "  ", "\t", "\r\n", "\n", "\n\n", "\n\n\n", "\n\n\n\n\n", " \n \n",
+    };
+
+    @Test
+    public void matchesSequentialReplaceOnRandomInput() {
+        Random random = new Random(7);
+        for (int n = 0; n < 20000; n++) {
+            String input = randomInput(random, random.nextInt(40));
+            assertEquals("input: " + Arrays.toString(input.toCharArray()),
+                TemplateMarkerBenchmark.sequentialStrip(input), TemplateMarkerStripper.DEFAULT.strip(input));
+        }
+    }
+
+    @Test
+    public void matchesSequentialReplaceOnBenchmarkHistory() {
+        // Same check the benchmark makes before timing
+        TemplateMarkerBenchmark.run(64 * 1024, 1);
+    }
+
+    @Test
+    public void returnsSameInstanceWhenUnchanged() {
+        String text = "Hello\n\nworld";
+        assertSame(text, TemplateMarkerStripper.DEFAULT.strip(text));
+        assertEquals("", TemplateMarkerStripper.DEFAULT.strip(""));
+        assertNull(TemplateMarkerStripper.DEFAULT.strip(null));
+    }
+
+    @Test
+    public void controlTokenDoesNotCutBuiltinMarkerShort() {
+        TemplateMarkerStripper stripper = TemplateMarkerStripper.withMarkers(
+            Arrays.asList("<|im_start|>", "<eos>", "a", "x<", " <y>"));
+        assertEquals("hi", stripper.strip("<|im_start|>systemhi<eos>"));
+        assertEquals("hi", stripper.strip("<|im_start|>hi"));
+        // Single characters and tokens that could be ordinary text are not markers
+        assertEquals("a x< b", stripper.strip(" a x< b"));
+    }
+
+    private static String randomInput(Random random, int pieces) {
+        StringBuilder input = new StringBuilder();
+        for (int i = 0; i < pieces; i++) {
+            String piece;
+            if (random.nextInt(4) == 0) {
+                piece = TemplateMarkerStripper.BUILTIN_MARKERS[
+                    random.nextInt(TemplateMarkerStripper.BUILTIN_MARKERS.length)];
+            } else {
+                piece = FILLER[random.nextInt(FILLER.length)];
+                if (piece.startsWith("<|im") || piece.startsWith("[INST") || piece.startsWith("<start")) {
+                    piece += " ";
+                }
+            }
+            input.append(piece);
+        }
+        return input.toString();
+    }
+}